@@ -0,0 +1,200 @@
+package artlu;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BitCodec encode and decode primitives at byte aligned and unaligned offsets.
+ * Types narrower than the bit size are benchmarked at their own width.
+ * Run with lein bench, which adds the gc profiler for allocation per operation.
+ * @author anderse
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitCodecBenchmark {
+
+	@Param({"0", "3"})
+	public int offset;
+
+	@Param({"1", "7", "8", "13", "16", "24", "31", "32", "33", "48", "63", "64"})
+	public int bitSize;
+
+	/**
+	 * Fields of a repeat_block decoded and encoded in bulk.
+	 */
+	private static final int COUNT = 256;
+
+	private byte[] data;
+	private BitCodec codec;
+	private long value;
+	private BigInteger big;
+	private byte[] bytes;
+	private String digits;
+	private String chars;
+	private byte[] repeated;
+	private long[] values;
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(bitSize);
+		data = new byte[64];
+		random.nextBytes(data);
+		codec = new BitCodec();
+		value = random.nextLong() >>> (Long.SIZE - bitSize);
+		big = BigInteger.valueOf(value);
+		bytes = BitCodec.bytearrayDecode(data, 0, bitSize, false);
+		digits = BitCodec.bcdDecode(new byte[] {0x12, 0x34, 0x56, 0x78, (byte) 0x90, 0x12, 0x34, 0x56}, 0, bcdSize(), false);
+		chars = "abcdefgh".substring(0, charSize() / BitCodec.BYTE_SIZE);
+		repeated = new byte[COUNT * Long.BYTES + 1];
+		random.nextBytes(repeated);
+		values = new long[COUNT];
+		BitCodec.longUnpack(repeated, offset, bitSize, false, values, 0, COUNT);
+	}
+
+	private int bcdSize() {
+		return Math.max(4, bitSize / 4 * 4);
+	}
+
+	private int charSize() {
+		return Math.max(BitCodec.BYTE_SIZE, bitSize / BitCodec.BYTE_SIZE * BitCodec.BYTE_SIZE);
+	}
+
+	/**
+	 * @return a cleared codec holding offset bits, so the next field starts unaligned when offset is
+	 */
+	private BitCodec start() {
+		codec.clear();
+		return offset == 0 ? codec : codec.addPadding(offset, 0);
+	}
+
+	@Benchmark
+	public byte byteDecode() {
+		return BitCodec.byteDecode(data, offset, Math.min(bitSize, 8), false);
+	}
+
+	@Benchmark
+	public short shortDecode() {
+		return BitCodec.shortDecode(data, offset, Math.min(bitSize, 16), false);
+	}
+
+	@Benchmark
+	public int intDecode() {
+		return BitCodec.intDecode(data, offset, Math.min(bitSize, 32), false);
+	}
+
+	@Benchmark
+	public long longDecode() {
+		return BitCodec.longDecode(data, offset, bitSize, false);
+	}
+
+	@Benchmark
+	public long signedLongDecode() {
+		return BitCodec.longDecode(data, offset, bitSize, true);
+	}
+
+	@Benchmark
+	public BigInteger bigintDecode() {
+		return BitCodec.bigintDecode(data, offset, bitSize, false);
+	}
+
+	@Benchmark
+	public String bcdDecode() {
+		return BitCodec.bcdDecode(data, offset, bcdSize(), false);
+	}
+
+	@Benchmark
+	public String asciiDecode() {
+		return BitCodec.asciiDecode(data, offset, charSize(), false);
+	}
+
+	@Benchmark
+	public byte[] bytearrayDecode() {
+		return BitCodec.bytearrayDecode(data, offset, bitSize, false);
+	}
+
+	@Benchmark
+	public BitCodec byteEncode() {
+		return start().addByteEncode((byte) value, Math.min(bitSize, 8), 0, false);
+	}
+
+	@Benchmark
+	public BitCodec intEncode() {
+		return start().addIntEncode((int) value, Math.min(bitSize, 32), 0, false);
+	}
+
+	@Benchmark
+	public BitCodec longEncode() {
+		return start().addLongEncode(value, bitSize, 0, false);
+	}
+
+	@Benchmark
+	public BitCodec bigintEncode() {
+		return start().addBigintEncode(big, bitSize, 0, false);
+	}
+
+	@Benchmark
+	public BitCodec bcdEncode() {
+		return start().addBcdEncode(digits, bcdSize(), 0, false, 1);
+	}
+
+	@Benchmark
+	public BitCodec asciiEncode() {
+		return start().addAsciiEncode(chars, charSize(), 0, false, 1);
+	}
+
+	@Benchmark
+	public BitCodec bytearrayEncode() {
+		return start().addByteArrayEncode(bytes, bitSize, 0, false);
+	}
+
+	@Benchmark
+	public long[] longUnpack() {
+		BitCodec.longUnpack(repeated, offset, bitSize, false, values, 0, COUNT);
+		return values;
+	}
+
+	@Benchmark
+	public long[] longDecodeEach() {
+		for (int i = 0; i < COUNT; i++) {
+			values[i] = BitCodec.longDecode(repeated, offset + i * bitSize, bitSize, false);
+		}
+		return values;
+	}
+
+	@Benchmark
+	public BitCodec longPack() {
+		return start().addLongPack(values, 0, COUNT, bitSize, false);
+	}
+
+	@Benchmark
+	public BitCodec longEncodeEach() {
+		final BitCodec c = start();
+		for (int i = 0; i < COUNT; i++) {
+			c.addLongEncode(values[i], bitSize, 0, false);
+		}
+		return c;
+	}
+
+	@Benchmark
+	public byte[] toByteArray() {
+		return longEncode().toByteArray();
+	}
+}
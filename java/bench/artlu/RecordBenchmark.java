@@ -0,0 +1,191 @@
+package artlu;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Whole record encode and decode of compiled externals, one per kind of layout.
+ * @author anderse
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordBenchmark {
+
+	static final String SCHEMA =
+			"external Fixed {\n"
+			+ "  byte a;\n"
+			+ "  short b : signed;\n"
+			+ "  int c : bit_size(20);\n"
+			+ "  long d;\n"
+			+ "  ascii s : static_size(4);\n"
+			+ "};\n"
+			+ "external Dynamic {\n"
+			+ "  byte len;\n"
+			+ "  bytearray data : dynamic_size(len);\n"
+			+ "  bcd num : bit_size(16);\n"
+			+ "};\n"
+			+ "external Repeat {\n"
+			+ "  byte n;\n"
+			+ "  bit_block : static_size(4) {\n"
+			+ "    repeat_block(8) {\n"
+			+ "      byte c : bit_size(4);\n"
+			+ "    };\n"
+			+ "  };\n"
+			+ "};\n"
+			+ "external Switched {\n"
+			+ "  byte kind;\n"
+			+ "  switched_set(kind) {\n"
+			+ "    case (1) { int x; };\n"
+			+ "    case (2) { long y; bigint z : bit_size(72); };\n"
+			+ "    default : include_prefix { };\n"
+			+ "  };\n"
+			+ "};\n";
+
+	@Param({"Fixed", "Dynamic", "Repeat", "Switched"})
+	public String external;
+
+	private Decoder decoder;
+	private SinkDecoder sinkDecoder;
+	private Encoder encoder;
+	private RecordView view;
+	private DecodeSink sink;
+	private Map<String, Object> record;
+	private byte[] data;
+	private final Map<String, Object> decoded = new LinkedHashMap<>();
+	private final BitCodec codec = new BitCodec();
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		final CompiledSchema schema = new ArtluParser().compile(SCHEMA);
+		decoder = schema.decoder(external);
+		sinkDecoder = schema.sinkDecoder(external);
+		encoder = schema.encoder(external);
+		view = schema.view(external);
+		sink = new BlackholeSink(blackhole);
+		record = recordOf(external);
+		data = encoder.encode(record, new BitCodec()).toByteArray();
+	}
+
+	static Map<String, Object> recordOf(final String external) {
+		final Map<String, Object> r = new HashMap<>();
+		switch (external) {
+		case "Fixed":
+			r.put("a", 1);
+			r.put("b", -2);
+			r.put("c", 300000);
+			r.put("d", 1L << 40);
+			r.put("s", "abcd");
+			break;
+		case "Dynamic":
+			r.put("len", 8);
+			r.put("data", new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+			r.put("num", "1234");
+			break;
+		case "Repeat":
+			r.put("n", 8);
+			r.put("c", Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8));
+			break;
+		default:
+			r.put("kind", 2);
+			r.put("y", 5L);
+			r.put("z", BigInteger.ONE.shiftLeft(70));
+			break;
+		}
+		return r;
+	}
+
+	@Benchmark
+	public Map<String, Object> decode() {
+		decoded.clear();
+		decoder.decode(data, 0, decoded);
+		return decoded;
+	}
+
+	@Benchmark
+	public int decodeSink() {
+		return sinkDecoder.decode(data, 0, sink);
+	}
+
+	@Benchmark
+	public void view(final Blackhole blackhole) {
+		view.bind(data, 0);
+		for (int i = 0; i < view.layout().size(); i++) {
+			blackhole.consume(view.get(i));
+		}
+	}
+
+	@Benchmark
+	public int encode() {
+		codec.clear();
+		return encoder.encode(record, codec).bitLength();
+	}
+
+	@Benchmark
+	public byte[] encodeToByteArray() {
+		codec.clear();
+		return encoder.encode(record, codec).toByteArray();
+	}
+
+	/**
+	 * Consumes decoded fields without keeping them.
+	 */
+	static final class BlackholeSink implements DecodeSink {
+		private final Blackhole blackhole;
+
+		BlackholeSink(final Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void onInt(final int fieldId, final int value) {
+			blackhole.consume(value);
+		}
+
+		@Override
+		public void onLong(final int fieldId, final long value) {
+			blackhole.consume(value);
+		}
+
+		@Override
+		public void onDouble(final int fieldId, final double value) {
+			blackhole.consume(value);
+		}
+
+		@Override
+		public void onBytes(final int fieldId, final byte[] buffer, final int offset, final int length) {
+			blackhole.consume(buffer[offset]);
+		}
+
+		@Override
+		public void onString(final int fieldId, final String value) {
+			blackhole.consume(value);
+		}
+
+		@Override
+		public void onBigInteger(final int fieldId, final BigInteger value) {
+			blackhole.consume(value);
+		}
+	}
+}
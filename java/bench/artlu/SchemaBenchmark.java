@@ -0,0 +1,63 @@
+package artlu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Schema parse and compile time through ArtluParser, for the schema of RecordBenchmark.
+ * @author anderse
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchemaBenchmark {
+
+	private ArtluParser parser;
+	private Schema schema;
+
+	@Setup
+	public void setup() {
+		parser = new ArtluParser();
+		schema = Schema.of(parser.parseTree(RecordBenchmark.SCHEMA));
+	}
+
+	@Benchmark
+	public Object parse() {
+		return parser.parse(RecordBenchmark.SCHEMA);
+	}
+
+	@Benchmark
+	public Object parseTree() {
+		return parser.parseTree(RecordBenchmark.SCHEMA);
+	}
+
+	/**
+	 * Java source generation only.
+	 */
+	@Benchmark
+	public Object generate() {
+		return SchemaCompiler.sources(schema);
+	}
+
+	/**
+	 * Parse, generate, compile and load.
+	 */
+	@Benchmark
+	public CompiledSchema compile() {
+		return parser.compile(RecordBenchmark.SCHEMA);
+	}
+}
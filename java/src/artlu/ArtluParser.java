@@ -1,11 +1,21 @@
 package artlu;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import clojure.java.api.Clojure;
 import clojure.lang.IFn;
 
+/**
+ * Entry point from Java, parses schemas with SchemaParser and compiles them to codec classes, parse and
+ * decode go through the Clojure implementation.
+ * The parser holds only the Clojure functions it calls, which keep no state, so one instance can be shared
+ * between threads. The compiled codecs are shared the same way, see CompiledSchema.
+ * @author anderse
+ *
+ */
 public class ArtluParser {
 	private static final String ARTLU_CORE = "artlu.core";
 	private static final String CLOJURE_CORE = "clojure.core";
@@ -15,7 +25,7 @@ public class ArtluParser {
 	private final IFn parse;
 	private final IFn isFailure;
 	private final IFn getFailure;
-	private IFn decode;
+	private final IFn decode;
 
 	public ArtluParser() {
 		require = Clojure.var(CLOJURE_CORE, "require");
@@ -29,6 +39,15 @@ public class ArtluParser {
 	public final Object parse(final String text) {
 		return parse.invoke(text);
 	}
+
+	/**
+	 * @param text schema source
+	 * @return the untransformed parse tree the schema compiler reads
+	 */
+	public final Object parseTree(final String text) {
+		return SchemaParser.parse(text);
+	}
+
 	public boolean isFailure(final Object ast) {
 		return (boolean) isFailure.invoke(ast);
 	}
@@ -44,4 +63,106 @@ public class ArtluParser {
 	public static final List<Map<String, Object>> decode(IFn decodeFn, byte[] data) {
 		return (List<Map<String, Object>>) decodeFn.invoke(data);
 	}
+
+	/**
+	 * Compile the externals of a schema to codec classes.
+	 * @param text schema source
+	 * @return
+	 */
+	public CompiledSchema compile(final String text) {
+		return compileSchema(text);
+	}
+
+	/**
+	 * Compile a schema through a cache.
+	 * @param text schema source
+	 * @param cache
+	 * @return
+	 */
+	public static CompiledSchema compile(final String text, final SchemaCache cache) {
+		return cache.load(text, ArtluParser::compileSchema);
+	}
+
+	/**
+	 * Compile a decoder of some fields of an external for the records a filter selects.
+	 * @param text schema source
+	 * @param external
+	 * @param fields the fields to decode
+	 * @param filter an aplBooleanExpression over the fields, null to select every record
+	 * @return
+	 */
+	public ProjectedDecoder project(final String text, final String external, final List<String> fields, final String filter) {
+		return SchemaCompiler.project(Schema.of(SchemaParser.parse(text)), external, fields, filter);
+	}
+
+	private static CompiledSchema compileSchema(final String text) {
+		final long start = System.nanoTime();
+		final CompiledSchema compiled = SchemaCompiler.compile(Schema.of(SchemaParser.parse(text)));
+		if (Metrics.ENABLED) Metrics.compiled(System.nanoTime() - start);
+		return compiled;
+	}
+
+	/**
+	 * Decode all records in data.
+	 * @param decoder
+	 * @param data
+	 * @return
+	 */
+	public static final List<Map<String, Object>> decode(final Decoder decoder, final byte[] data) {
+		final List<Map<String, Object>> result = new ArrayList<>();
+		final int end = data.length * BitCodec.BYTE_SIZE;
+		int pos = 0;
+		while (end - pos >= BitCodec.BYTE_SIZE) {
+			final Map<String, Object> record = new LinkedHashMap<>();
+			final int n = decoder.decode(data, pos, record);
+			if (n <= 0) throw new CodecException("no record of " + decoder.name() + " at byte " + pos / BitCodec.BYTE_SIZE);
+			result.add(record);
+			pos += n;
+		}
+		return result;
+	}
+
+	/**
+	 * Decode the projected fields of the records in data the filter selects, other records are skipped.
+	 * @param decoder
+	 * @param data
+	 * @return
+	 */
+	public static final List<Map<String, Object>> select(final ProjectedDecoder decoder, final byte[] data) {
+		final List<Map<String, Object>> result = new ArrayList<>();
+		final int end = data.length * BitCodec.BYTE_SIZE;
+		int pos = 0;
+		while (end - pos >= BitCodec.BYTE_SIZE) {
+			final Map<String, Object> record = new LinkedHashMap<>();
+			int n = decoder.decode(data, pos, record);
+			if (n < 0) {
+				n = decoder.skip(data, pos);
+			} else {
+				result.add(record);
+			}
+			if (n <= 0) throw new CodecException("no record of " + decoder.name() + " at byte " + pos / BitCodec.BYTE_SIZE);
+			pos += n;
+		}
+		return result;
+	}
+
+	/**
+	 * Decode all records in data into a sink.
+	 * @param decoder
+	 * @param data
+	 * @param sink
+	 * @return number of records
+	 */
+	public static final int decode(final SinkDecoder decoder, final byte[] data, final DecodeSink sink) {
+		final int end = data.length * BitCodec.BYTE_SIZE;
+		int pos = 0;
+		int records = 0;
+		while (end - pos >= BitCodec.BYTE_SIZE) {
+			final int n = decoder.decode(data, pos, sink);
+			if (n <= 0) throw new CodecException("no record of " + decoder.name() + " at byte " + pos / BitCodec.BYTE_SIZE);
+			pos += n;
+			records++;
+		}
+		return records;
+	}
 }
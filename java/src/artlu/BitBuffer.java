@@ -0,0 +1,312 @@
+package artlu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Growable bit buffer backed by a long array.
+ * Bits are stored msb first, bit 0 of the buffer is the most significant bit of the first word,
+ * which makes the byte image of the buffer the big endian bytes of its words.
+ * Bits beyond the current length are always zero.
+ * @author anderse
+ *
+ */
+public final class BitBuffer {
+
+	private static final int WORD_SIZE = 64;
+	private static final int WORD_SHIFT = 6;
+	private static final int WORD_MASK = WORD_SIZE - 1;
+	private static final int DEFAULT_CAPACITY = 4;
+	private static final VarHandle BUFFER_LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private long[] words;
+	private int length;
+
+	public BitBuffer() {
+		this(DEFAULT_CAPACITY * WORD_SIZE);
+	}
+
+	/**
+	 * @param bitCapacity initial capacity in bits
+	 */
+	public BitBuffer(final int bitCapacity) {
+		words = new long[Math.max(1, wordSizeOf(bitCapacity))];
+	}
+
+	/**
+	 * @return number of bits written
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Reset the length to zero, the allocated capacity is kept.
+	 */
+	public void clear() {
+		Arrays.fill(words, 0, wordSizeOf(length), 0L);
+		length = 0;
+	}
+
+	/**
+	 * Get a single bit.
+	 * @param bitIndex
+	 * @return
+	 */
+	public boolean get(final int bitIndex) {
+		if (bitIndex < 0 || bitIndex >= length) throw new IndexOutOfBoundsException(String.valueOf(bitIndex));
+		return (words[bitIndex >>> WORD_SHIFT] & (1L << (WORD_MASK - (bitIndex & WORD_MASK)))) != 0;
+	}
+
+	/**
+	 * Append the bitSize least significant bits of value, msb first.
+	 * @param value
+	 * @param bitSize up to 64
+	 * @return
+	 */
+	public BitBuffer append(final long value, final int bitSize) {
+		if (bitSize <= 0) return this;
+		ensureCapacity(length + bitSize);
+		final long v = lowBits(value, bitSize);
+		final int w = length >>> WORD_SHIFT;
+		final int free = WORD_SIZE - (length & WORD_MASK);
+		if (bitSize <= free) {
+			words[w] |= v << (free - bitSize);
+		} else {
+			final int rest = bitSize - free;
+			words[w] |= v >>> rest;
+			words[w + 1] |= v << (WORD_SIZE - rest);
+		}
+		length += bitSize;
+		return this;
+	}
+
+	/**
+	 * Append the bitSize least significant bits of count values, msb first. The bits are collected in a word
+	 * and stored a word at a time.
+	 * @param values
+	 * @param offset of the first value
+	 * @param count
+	 * @param bitSize up to 64
+	 * @return
+	 */
+	public BitBuffer append(final long[] values, final int offset, final int count, final int bitSize) {
+		if (bitSize <= 0 || count <= 0) return this;
+		final int end = Math.toIntExact(length + (long) count * bitSize);
+		ensureCapacity(end);
+		int w = length >>> WORD_SHIFT;
+		int free = WORD_SIZE - (length & WORD_MASK);
+		long word = words[w];
+		for (int i = offset; i < offset + count; i++) {
+			final long v = lowBits(values[i], bitSize);
+			if (bitSize < free) {
+				word |= v << (free - bitSize);
+				free -= bitSize;
+			} else {
+				final int rest = bitSize - free;
+				words[w++] = word | v >>> rest;
+				word = rest == 0 ? 0L : v << (WORD_SIZE - rest);
+				free = WORD_SIZE - rest;
+			}
+		}
+		if (w < words.length) words[w] = word;
+		length = end;
+		return this;
+	}
+
+	/**
+	 * Append the bitSize least significant bits of count values, msb first.
+	 * @param values
+	 * @param offset of the first value
+	 * @param count
+	 * @param bitSize up to 32
+	 * @return
+	 */
+	public BitBuffer append(final int[] values, final int offset, final int count, final int bitSize) {
+		if (bitSize <= 0 || count <= 0) return this;
+		final int end = Math.toIntExact(length + (long) count * bitSize);
+		ensureCapacity(end);
+		int w = length >>> WORD_SHIFT;
+		int free = WORD_SIZE - (length & WORD_MASK);
+		long word = words[w];
+		for (int i = offset; i < offset + count; i++) {
+			final long v = lowBits(values[i], bitSize);
+			if (bitSize < free) {
+				word |= v << (free - bitSize);
+				free -= bitSize;
+			} else {
+				final int rest = bitSize - free;
+				words[w++] = word | v >>> rest;
+				word = rest == 0 ? 0L : v << (WORD_SIZE - rest);
+				free = WORD_SIZE - rest;
+			}
+		}
+		if (w < words.length) words[w] = word;
+		length = end;
+		return this;
+	}
+
+	/**
+	 * Append bitSize copies of a bit.
+	 * @param bit
+	 * @param bitSize any non negative size
+	 * @return
+	 */
+	public BitBuffer fill(final boolean bit, final int bitSize) {
+		final long v = bit ? -1L : 0L;
+		for (int n = bitSize; n > 0; n -= WORD_SIZE) {
+			append(v, Math.min(n, WORD_SIZE));
+		}
+		return this;
+	}
+
+	/**
+	 * Overwrite the bitSize bits starting at bitOffset with the least significant bits of value, msb first.
+	 * The buffer is extended with zero bits if needed.
+	 * @param bitOffset
+	 * @param value
+	 * @param bitSize up to 64
+	 * @return
+	 */
+	public BitBuffer set(final int bitOffset, final long value, final int bitSize) {
+		final int end = bitOffset + bitSize;
+		ensureCapacity(end);
+		if (bitSize > 0) {
+			final long v = lowBits(value, bitSize);
+			final int w = bitOffset >>> WORD_SHIFT;
+			final int free = WORD_SIZE - (bitOffset & WORD_MASK);
+			if (bitSize <= free) {
+				final int shift = free - bitSize;
+				final long mask = lowBits(-1L, bitSize) << shift;
+				words[w] = (words[w] & ~mask) | (v << shift);
+			} else {
+				final int rest = bitSize - free;
+				final long hiMask = lowBits(-1L, free);
+				final long loMask = -1L << (WORD_SIZE - rest);
+				words[w] = (words[w] & ~hiMask) | (v >>> rest);
+				words[w + 1] = (words[w + 1] & ~loMask) | (v << (WORD_SIZE - rest));
+			}
+		}
+		if (end > length) length = end;
+		return this;
+	}
+
+	/**
+	 * @return the bits packed msb first into bytes, the last byte is zero padded
+	 */
+	public byte[] toByteArray() {
+		final byte[] result = new byte[BitCodec.byteSizeOf(length)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte) byteAt(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Copy the bits into dst starting at an absolute bit offset, bits of dst outside the range are kept.
+	 * Byte aligned offsets are written a word at a time.
+	 * @param dst
+	 * @param bitOffset absolute bit offset, the buffer position is ignored
+	 * @return number of bits written
+	 */
+	public int writeTo(final ByteBuffer dst, final int bitOffset) {
+		final long end = (long) bitOffset + length;
+		if (bitOffset < 0 || end > (long) dst.limit() * BitCodec.BYTE_SIZE) {
+			throw new IndexOutOfBoundsException("bit range " + bitOffset + " + " + length + " outside " + dst.limit() + " bytes");
+		}
+		if (length == 0) return 0;
+		final int first = bitOffset >>> 3;
+		final int shift = bitOffset & 7;
+		if (shift == 0) {
+			final int full = length >>> 3;
+			int i = 0;
+			for (; i + Long.BYTES <= full; i += Long.BYTES) {
+				BUFFER_LONG_VIEW.set(dst, first + i, words[i >>> 3]);
+			}
+			for (; i < full; i++) {
+				dst.put(first + i, (byte) byteAt(i));
+			}
+			final int rest = length & 7;
+			if (rest > 0) {
+				merge(dst, first + full, byteAt(full), 0xff00 >>> rest);
+			}
+		} else {
+			final int last = (int) ((end - 1) >>> 3);
+			for (int d = first; d <= last; d++) {
+				final int j = d - first - 1;
+				final int v = ((byteAt(j) << BitCodec.BYTE_SIZE) | byteAt(j + 1)) >>> shift;
+				final long lo = Math.max(bitOffset, (long) d << 3) - ((long) d << 3);
+				final long hi = Math.min(end, ((long) d << 3) + BitCodec.BYTE_SIZE) - ((long) d << 3);
+				merge(dst, d, v, (0xff >>> lo) & (0xff << (BitCodec.BYTE_SIZE - hi)));
+			}
+		}
+		return length;
+	}
+
+	private static void merge(final ByteBuffer dst, final int index, final int value, final int mask) {
+		final int m = mask & 0xff;
+		if (m == 0xff) {
+			dst.put(index, (byte) value);
+		} else {
+			dst.put(index, (byte) ((dst.get(index) & ~m) | (value & m)));
+		}
+	}
+
+	/**
+	 * @return the byte at a byte index, zero outside the buffer
+	 */
+	private int byteAt(final int byteIndex) {
+		if (byteIndex < 0 || byteIndex >= words.length << 3) return 0;
+		return (int) (words[byteIndex >>> 3] >>> (WORD_SIZE - BitCodec.BYTE_SIZE - ((byteIndex & 7) << 3))) & 0xff;
+	}
+
+	private void ensureCapacity(final int bitSize) {
+		final int n = wordSizeOf(bitSize);
+		if (n > words.length) {
+			words = Arrays.copyOf(words, Math.max(n, words.length << 1));
+		}
+	}
+
+	private static long lowBits(final long value, final int bitSize) {
+		return bitSize == WORD_SIZE ? value : value & ((1L << bitSize) - 1L);
+	}
+
+	private static int wordSizeOf(final int bitSize) {
+		return (bitSize + WORD_MASK) >> WORD_SHIFT;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder buf = new StringBuilder("[");
+		for (int i = 0; i < length; i++) {
+			if (i > 0) buf.append(", ");
+			buf.append(get(i));
+		}
+		return buf.append(']').toString();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (obj instanceof BitBuffer) {
+			final BitBuffer bb = (BitBuffer)obj;
+			if (length != bb.length) return false;
+			for (int i = wordSizeOf(length) - 1; i >= 0; i--) {
+				if (words[i] != bb.words[i]) return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = length;
+		for (int i = wordSizeOf(length) - 1; i >= 0; i--) {
+			h = h * 31 + words[i];
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+}
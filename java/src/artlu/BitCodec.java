@@ -1,7 +1,11 @@
 package artlu;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigInteger;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 
@@ -10,6 +14,8 @@ import java.util.List;
  * Bit encoding/decoding class.
  * The encoding provides add and set methods for building a bit block from various data types.
  * The decoding provides static decode methods for various data types.
+ * Decoding keeps no state. An instance holds the state of one encode and is used by one thread at a time,
+ * clear() or a CodecPool reuses it for the next record.
  * @author anderse
  *
  */
@@ -17,13 +23,38 @@ public class BitCodec {
 
 	private static final int ZERO_ASCII = 48;
 	final static int bcdSize = 4;
+	/**
+	 * The two bcd digits of each byte value, high nibble first.
+	 */
+	private static final char[] BCD_DIGITS = new char[512];
+	static {
+		for (int b = 0; b < 256; b++) {
+			BCD_DIGITS[2 * b] = (char) ((b >>> 4) + ZERO_ASCII);
+			BCD_DIGITS[2 * b + 1] = (char) ((b & 0xf) + ZERO_ASCII);
+		}
+	}
 	public static final String MZ_ULTRA_BITFIELD_ENCODER = "mz.ultra.bitfield.codec";
 	public static final boolean useNewBitFieldEncoding = Boolean.getBoolean(MZ_ULTRA_BITFIELD_ENCODER);
 	public static final int BYTE_SIZE = 8;
-	private final List<Boolean> encodedState = new ArrayList<>();
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle BUFFER_LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	/*
+	 * Byte order views of byte aligned 16, 32 and 64 bit fields.
+	 */
+	private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle BUFFER_SHORT_BE = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle BUFFER_SHORT_LE = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle BUFFER_INT_BE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle BUFFER_INT_LE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle BUFFER_LONG_LE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private final BitBuffer encodedState = new BitBuffer();
 
 	/** 
-	 * Clear encoded state.
+	 * Clear encoded state, the buffer capacity is kept for reuse.
 	 */
 	public void clear() {
 		encodedState.clear();
@@ -235,24 +266,108 @@ public class BitCodec {
 		return value;
 	}
 
+	/**
+	 * Write a string of decimal digits as bcd nibbles, bitSize / 4 nibbles from bitOffset, padded with the low nibble
+	 * of bytePadding. Sixteen nibbles are packed into a long per write.
+	 * @param v
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param bytePadding
+	 * @param signed false rejects characters below '0'
+	 * @param align 1 for left aligned
+	 */
 	public void setBcdEncode(final String v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed, final int align) {
-		addBcdEncode(v, bitSize, bytePadding, signed, align); //TODO
+		final int n = bitSize / bcdSize;
+		final int length = v.length();
+		final int startIx = startIxOf(align, n, length);
+		final int first = Math.max(startIx, 0);
+		final long fill = bytePadding & 0xf;
+		int position = bitOffset;
+		long nibbles = 0L;
+		int k = 0;
+		for (int i = 0; i < n; i++) {
+			final int j = i - first;
+			nibbles = (nibbles << bcdSize) | (i >= startIx && j < length ? nibbleOf(v.charAt(j), signed) : fill);
+			if (++k == Long.SIZE / bcdSize) {
+				encodedState.set(position, nibbles, Long.SIZE);
+				position += Long.SIZE;
+				nibbles = 0L;
+				k = 0;
+			}
+		}
+		encodedState.set(position, nibbles, k * bcdSize);
 	}
-	
+
 	public BitCodec addBcdEncode(final String v, final int bitSize, final int bytePadding, final boolean signed, final int align) {
-		final byte[] ba = v.getBytes(); //TODO encoding
-		final int n = bitSize / bcdSize;
-		final int startIx = startIxOf(align, n, ba.length);
-		int j = 0;
-		final int bp = bytePadding & 0b1111;
+		setBcdEncode(v, encodedState.length(), bitSize, bytePadding, signed, align);
+		return this;
+	}
+
+	private static long nibbleOf(final char c, final boolean signed) {
+		final int d = c - ZERO_ASCII;
+		if (d < 0 && !signed) throw new NumberFormatException(String.valueOf(c));
+		return d & 0xf;
+	}
+
+	/**
+	 * Write a string as iso-8859-1 characters, bitSize / 8 characters from bitOffset padded with bytePadding,
+	 * the remaining bits of bitSize are zero. Eight characters are packed into a long per write.
+	 * Characters outside iso-8859-1 are written as '?'.
+	 * @param v
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param bytePadding
+	 * @param signed
+	 * @param align 1 for left aligned
+	 */
+	public void setAsciiEncode(final String v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed, final int align) {
+		final int n = bitSize / BYTE_SIZE;
+		final int length = v.length();
+		final int startIx = startIxOf(align, n, length);
+		final long fill = bytePadding & 0xff;
+		int position = bitOffset;
+		long chars = 0L;
+		int k = 0;
 		for (int i = 0; i < n; i++) {
-			if (i >= startIx && i < startIx + ba.length) {
-				addByteEncode((byte) (ba[j] - ZERO_ASCII), bcdSize, bytePadding, signed);
-				j++;
-			} else {
-				addByteEncode((byte) bp, bcdSize, bytePadding, signed);
+			final int j = i - startIx;
+			final char c = j >= 0 && j < length ? v.charAt(j) : (char) fill;
+			chars = (chars << BYTE_SIZE) | (c <= 0xff ? c : '?');
+			if (++k == Long.BYTES) {
+				encodedState.set(position, chars, Long.SIZE);
+				position += Long.SIZE;
+				chars = 0L;
+				k = 0;
 			}
 		}
+		encodedState.set(position, chars, k * BYTE_SIZE);
+		encodedState.set(bitOffset + n * BYTE_SIZE, 0L, bitSize - n * BYTE_SIZE);
+	}
+
+	/**
+	 * Append a string as iso-8859-1 characters, padded with bytePadding up to bitSize.
+	 * @param v
+	 * @param bitSize
+	 * @param bytePadding
+	 * @param signed
+	 * @param align 1 for left aligned
+	 * @return
+	 */
+	public BitCodec addAsciiEncode(final String v, final int bitSize, final int bytePadding, final boolean signed, final int align) {
+		setAsciiEncode(v, encodedState.length(), bitSize, bytePadding, signed, align);
+		return this;
+	}
+
+	/**
+	 * Append bitSize bits of a repeated padding byte.
+	 * @param bitSize
+	 * @param bytePadding
+	 * @return
+	 */
+	public BitCodec addPadding(final int bitSize, final int bytePadding) {
+		for (int n = bitSize; n > 0; n -= BYTE_SIZE) {
+			final int m = Math.min(n, BYTE_SIZE);
+			encodedState.append((bytePadding & 0xff) >>> (BYTE_SIZE - m), m);
+		}
 		return this;
 	}
 
@@ -260,69 +375,311 @@ public class BitCodec {
 		return align == 1 ? 0: totalSize - strSize;
 	}
 
+	/**
+	 * Write a byte array as a big endian field, the last bitSize bits of v right aligned in the field.
+	 * Bytes missing in v are encoded as zero.
+	 * @param v
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param bytePadding
+	 * @param signed
+	 * @return
+	 */
 	public BitCodec setByteArrayEncode(final byte[] v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(reverse(v), bitOffset, bitSize, bytePadding); //TODO reverse performance
+		return setBigEndian(v, 0, bitOffset, bitSize);
 	}
 	public BitCodec addByteArrayEncode(final byte[] v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(reverse(v), bitSize, bytePadding); //TODO reverse performance
+		return setBigEndian(v, 0, encodedState.length(), bitSize);
 	}
 
 	public BitCodec setDoubleEncode(final double v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(longArrayOf(Double.doubleToRawLongBits(v), bitSize, signed), bitOffset, bitSize, bytePadding);
+		return setLongEncode(Double.doubleToRawLongBits(v), bitOffset, bitSize, bytePadding, signed);
 	}
 	public BitCodec addDoubleEncode(final double v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(longArrayOf(Double.doubleToRawLongBits(v), bitSize, signed), bitSize, bytePadding);
+		return addLongEncode(Double.doubleToRawLongBits(v), bitSize, bytePadding, signed);
 	}
 	public BitCodec setFloatEncode(final float v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(intArrayOf(Float.floatToRawIntBits(v), bitSize, signed), bitOffset, bitSize, bytePadding);
+		return setIntEncode(Float.floatToRawIntBits(v), bitOffset, bitSize, bytePadding, signed);
 	}
 	public BitCodec addFloatEncode(final float v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(intArrayOf(Float.floatToRawIntBits(v), bitSize, signed), bitSize, bytePadding);
+		return addIntEncode(Float.floatToRawIntBits(v), bitSize, bytePadding, signed);
 	}
 	public BitCodec setByteEncode(final byte v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(byteArrayOf(v, bitSize, signed), bitOffset, bitSize, bytePadding);
+		return setBits(byteBinaryOf(v, bitSize, signed) & 0xff, false, bitOffset, bitSize);
 	}
 	public BitCodec addByteEncode(final byte v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(byteArrayOf(v, bitSize, signed), bitSize, bytePadding);
+		return addBits(byteBinaryOf(v, bitSize, signed) & 0xff, false, bitSize);
 	}
 
 	public BitCodec setShortEncode(final short v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(intArrayOf(v, bitSize, signed), bitOffset, bitSize, bytePadding);
+		return setIntEncode(v, bitOffset, bitSize, bytePadding, signed);
 	}
 	public BitCodec addShortEncode(final short v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(intArrayOf(v, bitSize, signed), bitSize, bytePadding);
+		return addIntEncode(v, bitSize, bytePadding, signed);
 	}
 	public BitCodec setIntEncode(final int v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(intArrayOf(v, bitSize, signed), bitOffset, bitSize, bytePadding);
+		final int b = intBinaryOf(v, bitSize, signed);
+		return setBits(b, b < 0, bitOffset, bitSize);
 	}
 	public BitCodec addIntEncode(final int v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(intArrayOf(v, bitSize, signed), bitSize, bytePadding);
+		final int b = intBinaryOf(v, bitSize, signed);
+		return addBits(b, b < 0, bitSize);
 	}
 
 	public BitCodec setLongEncode(final long v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(longArrayOf(v, bitSize, signed), bitOffset, bitSize, bytePadding);
+		final long b = longBinaryOf(v, bitSize, signed);
+		return setBits(b, b < 0, bitOffset, bitSize);
 	}
 	public BitCodec addLongEncode(final long v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(longArrayOf(v, bitSize, signed), bitSize, bytePadding);
+		final long b = longBinaryOf(v, bitSize, signed);
+		return addBits(b, b < 0, bitSize);
 	}
+	/**
+	 * Write a BigInteger of any width, values of fields up to 64 bits that fit a long take the long path and others
+	 * are written from their two's complement bytes, sign extended up to bitSize.
+	 * @param v
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param bytePadding
+	 * @param signed false rejects negative values
+	 * @return
+	 */
 	public BitCodec setBigintEncode(final BigInteger v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed) {
-		return setEncode(longArrayOf(v.longValue(), bitSize, signed), bitOffset, bitSize, bytePadding);
+		if (bitSize <= Long.SIZE && v.bitLength() < Long.SIZE) return setLongEncode(v.longValue(), bitOffset, bitSize, bytePadding, signed);
+		if (!signed && v.signum() < 0) throw new NumberFormatException();
+		return setBigEndian(v.toByteArray(), v.signum() < 0 ? -1 : 0, bitOffset, bitSize);
 	}
 	public BitCodec addBigintEncode(final BigInteger v, final int bitSize, final int bytePadding, final boolean signed) {
-		return addEncode(longArrayOf(v.longValue(), bitSize, signed), bitSize, bytePadding);
+		return setBigintEncode(v, encodedState.length(), bitSize, bytePadding, signed);
 	}
 
+	/**
+	 * Add count consecutive fields of bitSize bits, the elements of a repeat_block of one integer field, in one
+	 * call. The same bits as count calls of addIntEncode.
+	 * @param src
+	 * @param srcOffset of the first value
+	 * @param count
+	 * @param bitSize 1 to 32
+	 * @param signed false rejects negative values
+	 * @return
+	 */
+	public BitCodec addIntPack(final int[] src, final int srcOffset, final int count, final int bitSize, final boolean signed) {
+		checkBulk(bitSize, Integer.SIZE, srcOffset, count, src.length);
+		if (!signed) {
+			for (int i = srcOffset; i < srcOffset + count; i++) {
+				if (src[i] < 0) throw new NumberFormatException();
+			}
+		}
+		encodedState.append(src, srcOffset, count, bitSize);
+		return this;
+	}
+	/**
+	 * Add count consecutive fields of bitSize bits, the same bits as count calls of addLongEncode.
+	 * @param src
+	 * @param srcOffset of the first value
+	 * @param count
+	 * @param bitSize 1 to 64
+	 * @param signed false rejects negative values
+	 * @return
+	 */
+	public BitCodec addLongPack(final long[] src, final int srcOffset, final int count, final int bitSize, final boolean signed) {
+		checkBulk(bitSize, Long.SIZE, srcOffset, count, src.length);
+		if (!signed) {
+			for (int i = srcOffset; i < srcOffset + count; i++) {
+				if (src[i] < 0) throw new NumberFormatException();
+			}
+		}
+		encodedState.append(src, srcOffset, count, bitSize);
+		return this;
+	}
+
+	private static void checkBulk(final int bitSize, final int maxBitSize, final int offset, final int count, final int length) {
+		if (bitSize <= 0 || bitSize > maxBitSize) throw new IllegalArgumentException("bit size " + bitSize + " is not 1 to " + maxBitSize);
+		if (offset < 0 || count < 0 || offset > length - count) {
+			throw new ArrayIndexOutOfBoundsException(count + " values at " + offset + " outside " + length);
+		}
+	}
+
+	/*
+	 * Integer fields in a byte order, see Endian. Big endian is the bit stream order of the methods above.
+	 */
+
+	public BitCodec setByteEncode(final byte v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		if (endian == Endian.BIG_ENDIAN) return setByteEncode(v, bitOffset, bitSize, bytePadding, signed);
+		return setOrdered(byteBinaryOf(v, bitSize, signed), bitOffset, bitSize, endian);
+	}
+	public BitCodec addByteEncode(final byte v, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		return setByteEncode(v, encodedState.length(), bitSize, bytePadding, signed, endian);
+	}
+	public BitCodec setShortEncode(final short v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		return setIntEncode(v, bitOffset, bitSize, bytePadding, signed, endian);
+	}
+	public BitCodec addShortEncode(final short v, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		return setIntEncode(v, encodedState.length(), bitSize, bytePadding, signed, endian);
+	}
+	public BitCodec setIntEncode(final int v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		if (endian == Endian.BIG_ENDIAN) return setIntEncode(v, bitOffset, bitSize, bytePadding, signed);
+		return setOrdered(intBinaryOf(v, bitSize, signed), bitOffset, bitSize, endian);
+	}
+	public BitCodec addIntEncode(final int v, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		return setIntEncode(v, encodedState.length(), bitSize, bytePadding, signed, endian);
+	}
+	public BitCodec setLongEncode(final long v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		if (endian == Endian.BIG_ENDIAN) return setLongEncode(v, bitOffset, bitSize, bytePadding, signed);
+		return setOrdered(longBinaryOf(v, bitSize, signed), bitOffset, bitSize, endian);
+	}
+	public BitCodec addLongEncode(final long v, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		return setLongEncode(v, encodedState.length(), bitSize, bytePadding, signed, endian);
+	}
+	/**
+	 * Write a BigInteger of any width in a byte order.
+	 * @param v
+	 * @param bitOffset
+	 * @param bitSize a multiple of 8 for little endian
+	 * @param bytePadding
+	 * @param signed false rejects negative values
+	 * @param endian
+	 * @return
+	 */
+	public BitCodec setBigintEncode(final BigInteger v, final int bitOffset, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		if (endian == Endian.BIG_ENDIAN) return setBigintEncode(v, bitOffset, bitSize, bytePadding, signed);
+		if (bitSize <= Long.SIZE && v.bitLength() < Long.SIZE) return setLongEncode(v.longValue(), bitOffset, bitSize, bytePadding, signed, endian);
+		endian.check(bitSize, true);
+		if (!signed && v.signum() < 0) throw new NumberFormatException();
+		final int n = byteSizeOf(bitSize);
+		// the field as unsigned bits, in the high bits of its bytes for lsb_lo so they end up right aligned when reversed
+		final BigInteger bits = v.and(BigInteger.ONE.shiftLeft(bitSize).subtract(BigInteger.ONE)).shiftLeft(endian == Endian.LSB_LO ? n * BYTE_SIZE - bitSize : 0);
+		final byte[] ba = fieldBytes(bits, n);
+		reverse(ba, endian == Endian.LSB_LO);
+		return setBigEndian(ba, 0, bitOffset, bitSize);
+	}
+	public BitCodec addBigintEncode(final BigInteger v, final int bitSize, final int bytePadding, final boolean signed, final Endian endian) {
+		return setBigintEncode(v, encodedState.length(), bitSize, bytePadding, signed, endian);
+	}
+
+	/**
+	 * Write the bitSize least significant bits of a binary value in a byte order.
+	 */
+	private BitCodec setOrdered(final long binary, final int bitOffset, final int bitSize, final Endian endian) {
+		endian.check(bitSize, false);
+		final long bits = bitSize == Long.SIZE ? binary : binary & ((1L << bitSize) - 1L);
+		return setBits(endian.order(bits, bitSize), false, bitOffset, bitSize);
+	}
+
+	/**
+	 * @return the n least significant bytes of the two's complement of v, big endian
+	 */
+	private static byte[] fieldBytes(final BigInteger v, final int n) {
+		final byte[] b = v.toByteArray();
+		final byte[] result = new byte[n];
+		final int k = Math.min(n, b.length);
+		System.arraycopy(b, b.length - k, result, n - k, k);
+		return result;
+	}
+
+	/**
+	 * Reverse the order of bytes in place, and the bits in each byte when bits is true.
+	 */
+	private static void reverse(final byte[] ba, final boolean bits) {
+		for (int i = 0, j = ba.length - 1; i <= j; i++, j--) {
+			final byte a = ba[i];
+			final byte b = ba[j];
+			ba[i] = bits ? (byte) (Integer.reverse(b) >>> 24) : b;
+			ba[j] = bits ? (byte) (Integer.reverse(a) >>> 24) : a;
+		}
+	}
+
+	/**
+	 * Append a field given as little endian bytes, bits missing in ba are encoded as zero.
+	 * @param ba
+	 * @param bitSize
+	 * @param bytePadding
+	 * @return
+	 */
 	public BitCodec addEncode(final byte[] ba, final int bitSize, final int bytePadding) {
-		final boolean[] e = encode(ba, bitSize, bytePadding);
-		for (final boolean b : e)
-			encodedState.add(b);
+		if (bitSize <= 0) return this;
+		final int n = byteSizeOf(bitSize);
+		encodedState.append(byteAt(ba, n - 1), bitSize - (n - 1) * BYTE_SIZE);
+		for (int i = n - 2; i >= 0; i--) {
+			encodedState.append(byteAt(ba, i), BYTE_SIZE);
+		}
 		return this;
 	}
 	public BitCodec setEncode(final byte[] ba, final int bitOffset, final int bitSize, final int bytePadding) {
-		while (encodedState.size() < (bitOffset + bitSize)) encodedState.add(false);
-		final boolean[] e = encode(ba, bitSize, bytePadding);
-		for (int i = 0; i < bitSize; i++) {
-			encodedState.set(i + bitOffset, e[i]);
+		if (bitSize <= 0) {
+			encodedState.set(bitOffset, 0L, bitSize);
+			return this;
+		}
+		final int n = byteSizeOf(bitSize);
+		final int r = bitSize - (n - 1) * BYTE_SIZE;
+		encodedState.set(bitOffset, byteAt(ba, n - 1), r);
+		for (int i = n - 2; i >= 0; i--) {
+			encodedState.set(bitOffset + r + (n - 2 - i) * BYTE_SIZE, byteAt(ba, i), BYTE_SIZE);
+		}
+		return this;
+	}
+
+	/**
+	 * Write the last bitSize bits of big endian bytes, the bytes before ba are fill.
+	 * Eight bytes at a time are merged into the bit buffer as a long, whatever the alignment of bitOffset.
+	 */
+	private BitCodec setBigEndian(final byte[] ba, final int fill, final int bitOffset, final int bitSize) {
+		if (bitSize <= 0) {
+			encodedState.set(bitOffset, 0L, bitSize);
+			return this;
+		}
+		final int n = byteSizeOf(bitSize);
+		final int r = bitSize - (n - 1) * BYTE_SIZE;
+		final int first = ba.length - n;
+		encodedState.set(bitOffset, first >= 0 ? ba[first] : fill, r);
+		int position = bitOffset + r;
+		for (int k = 1; k < n;) {
+			final int i = first + k;
+			if (i < 0) {
+				final int m = Math.min(Math.min(-i, n - k), Long.BYTES);
+				encodedState.set(position, fill, m * BYTE_SIZE);
+				k += m;
+				position += m * BYTE_SIZE;
+			} else if (k + Long.BYTES <= n) {
+				encodedState.set(position, (long) LONG_VIEW.get(ba, i), Long.SIZE);
+				k += Long.BYTES;
+				position += Long.SIZE;
+			} else {
+				encodedState.set(position, ba[i], BYTE_SIZE);
+				k++;
+				position += BYTE_SIZE;
+			}
+		}
+		return this;
+	}
+
+	private static int byteAt(final byte[] ba, final int i) {
+		return i < ba.length ? ba[i] & 0xff : 0;
+	}
+
+	/**
+	 * Append the bitSize least significant bits of a value, msb first.
+	 * Fields wider than a long get their high bits from fill.
+	 */
+	private BitCodec addBits(final long bits, final boolean fill, final int bitSize) {
+		if (bitSize > Long.SIZE) {
+			encodedState.fill(fill, bitSize - Long.SIZE);
+			encodedState.append(bits, Long.SIZE);
+		} else {
+			encodedState.append(bits, bitSize);
+		}
+		return this;
+	}
+
+	private BitCodec setBits(final long bits, final boolean fill, final int bitOffset, final int bitSize) {
+		if (bitSize > Long.SIZE) {
+			final int high = bitSize - Long.SIZE;
+			for (int i = 0; i < high; i += Long.SIZE) {
+				encodedState.set(bitOffset + i, fill ? -1L : 0L, Math.min(Long.SIZE, high - i));
+			}
+			encodedState.set(bitOffset + high, bits, Long.SIZE);
+		} else {
+			encodedState.set(bitOffset, bits, bitSize);
 		}
 		return this;
 	}
@@ -352,7 +709,35 @@ public class BitCodec {
 	}
 
 	public byte[] toByteArray() {
-		return toByteArray(encodedState, true);
+		return encodedState.toByteArray();
+	}
+
+	/**
+	 * @return number of encoded bits
+	 */
+	public int bitLength() {
+		return encodedState.length();
+	}
+
+	/**
+	 * Write the encoded bits into dst starting at an absolute bit offset, without allocating an intermediate array.
+	 * Bits of dst outside the written range are kept.
+	 * @param dst
+	 * @param bitOffset absolute bit offset, independent of the buffer position
+	 * @return number of bits written
+	 */
+	public int writeTo(final ByteBuffer dst, final int bitOffset) {
+		return encodedState.writeTo(dst, bitOffset);
+	}
+
+	/**
+	 * Write the encoded bits into dst starting at a bit offset.
+	 * @param dst
+	 * @param bitOffset
+	 * @return number of bits written
+	 */
+	public int writeTo(final byte[] dst, final int bitOffset) {
+		return encodedState.writeTo(ByteBuffer.wrap(dst), bitOffset);
 	}
 
 	public static byte[] toByteArray(final List<Boolean> l, final boolean reverse) {
@@ -390,18 +775,199 @@ public class BitCodec {
 	
 	public static String bcdDecode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize,
 			final boolean signed) {
-		final StringBuilder buf = new StringBuilder();
-		for (int i = 0; i < bitSize / bcdSize; i++) {
-			final int bitIx = i * bcdSize + byteOffset * BYTE_SIZE + bitOffset;
-			if (bitIx >= data.length * BYTE_SIZE) break;
-			buf.append((char)(byteDecode(data, bitIx, bcdSize, signed) + ZERO_ASCII));
+		final char[] digits = new char[Math.max(0, bitSize / bcdSize)];
+		return new String(digits, 0, bcdDecode(data, byteOffset * BYTE_SIZE + bitOffset, bitSize, digits, 0));
+	}
+
+	/**
+	 * Decode bcd digits into dst without allocating, nibbles 10 to 15 decode as the characters after '9'.
+	 * Decoding stops at the end of data.
+	 * @param data
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param dst room for bitSize / 4 digits
+	 * @param dstOffset
+	 * @return the number of digits decoded
+	 */
+	public static int bcdDecode(final byte[] data, final int bitOffset, final int bitSize, final char[] dst, final int dstOffset) {
+		final int n = bcdDigitsOf(data.length, bitOffset, bitSize);
+		int i = 0;
+		if ((bitOffset & 7) == 0) {
+			for (int b = bitOffset >>> 3; i + 2 <= n; i += 2, b++) {
+				final int d = (data[b] & 0xff) << 1;
+				dst[dstOffset + i] = BCD_DIGITS[d];
+				dst[dstOffset + i + 1] = BCD_DIGITS[d + 1];
+			}
+		} else {
+			for (; i + Long.BYTES * 2 <= n; i += Long.BYTES * 2) {
+				final long w = bitsOf(data, bitOffset + (long) i * bcdSize, Long.SIZE);
+				for (int k = 0; k < Long.BYTES; k++) {
+					final int d = (int) (w >>> (Long.SIZE - BYTE_SIZE - k * BYTE_SIZE) & 0xff) << 1;
+					dst[dstOffset + i + 2 * k] = BCD_DIGITS[d];
+					dst[dstOffset + i + 2 * k + 1] = BCD_DIGITS[d + 1];
+				}
+			}
+		}
+		for (; i < n; i++) {
+			dst[dstOffset + i] = (char) (bitsOf(data, bitOffset + (long) i * bcdSize, bcdSize) + ZERO_ASCII);
+		}
+		return n;
+	}
+
+	/**
+	 * Decode bcd digits as ascii characters into dst without allocating.
+	 * @param data
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param dst room for bitSize / 4 digits
+	 * @param dstOffset
+	 * @return the number of digits decoded
+	 */
+	public static int bcdDecode(final byte[] data, final int bitOffset, final int bitSize, final byte[] dst, final int dstOffset) {
+		final int n = bcdDigitsOf(data.length, bitOffset, bitSize);
+		int i = 0;
+		if ((bitOffset & 7) == 0) {
+			for (int b = bitOffset >>> 3; i + 2 <= n; i += 2, b++) {
+				final int d = (data[b] & 0xff) << 1;
+				dst[dstOffset + i] = (byte) BCD_DIGITS[d];
+				dst[dstOffset + i + 1] = (byte) BCD_DIGITS[d + 1];
+			}
+		}
+		for (; i < n; i++) {
+			dst[dstOffset + i] = (byte) (bitsOf(data, bitOffset + (long) i * bcdSize, bcdSize) + ZERO_ASCII);
+		}
+		return n;
+	}
+
+	/**
+	 * Append bcd digits to dst, which can be reused between records.
+	 * @param data
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param dst
+	 * @return dst
+	 */
+	public static StringBuilder bcdDecode(final byte[] data, final int bitOffset, final int bitSize, final StringBuilder dst) {
+		final int n = bcdDigitsOf(data.length, bitOffset, bitSize);
+		dst.ensureCapacity(dst.length() + n);
+		for (int i = 0; i < n; i++) {
+			dst.append((char) (bitsOf(data, bitOffset + (long) i * bcdSize, bcdSize) + ZERO_ASCII));
+		}
+		return dst;
+	}
+
+	/**
+	 * @return the bcd digits of a field starting before the end of data
+	 */
+	private static int bcdDigitsOf(final int byteLength, final int bitOffset, final int bitSize) {
+		final long available = (long) byteLength * BYTE_SIZE - bitOffset;
+		if (available <= 0 || bitSize < bcdSize) return 0;
+		return (int) Math.min(bitSize / bcdSize, (available + bcdSize - 1) / bcdSize);
+	}
+
+	public static String asciiDecode(final byte[] data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		checkRange(data.length, 0, bitOffset, bitSize);
+		final int n = bitSize / BYTE_SIZE;
+		if ((bitOffset & 7) == 0) return new String(data, bitOffset >>> 3, n, StandardCharsets.ISO_8859_1);
+		final char[] chars = new char[n];
+		asciiDecode(data, bitOffset, bitSize, chars, 0);
+		return new String(chars);
+	}
+
+	/**
+	 * Decode iso-8859-1 characters into dst without allocating.
+	 * @param data
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param dst room for bitSize / 8 characters
+	 * @param dstOffset
+	 * @return the number of characters decoded
+	 */
+	public static int asciiDecode(final byte[] data, final int bitOffset, final int bitSize, final char[] dst, final int dstOffset) {
+		final long start = checkRange(data.length, 0, bitOffset, bitSize);
+		final int n = bitSize / BYTE_SIZE;
+		int i = 0;
+		if ((bitOffset & 7) == 0) {
+			for (final int b = bitOffset >>> 3; i < n; i++) {
+				dst[dstOffset + i] = (char) (data[b + i] & 0xff);
+			}
+			return n;
+		}
+		for (; i + Long.BYTES <= n; i += Long.BYTES) {
+			final long w = bitsOf(data, start + (long) i * BYTE_SIZE, Long.SIZE);
+			for (int k = 0; k < Long.BYTES; k++) {
+				dst[dstOffset + i + k] = (char) (w >>> (Long.SIZE - BYTE_SIZE - k * BYTE_SIZE) & 0xff);
+			}
+		}
+		for (; i < n; i++) {
+			dst[dstOffset + i] = (char) bitsOf(data, start + (long) i * BYTE_SIZE, BYTE_SIZE);
+		}
+		return n;
+	}
+
+	/**
+	 * Decode iso-8859-1 characters into dst without allocating, a byte aligned field is a single array copy.
+	 * @param data
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param dst room for bitSize / 8 characters
+	 * @param dstOffset
+	 * @return the number of characters decoded
+	 */
+	public static int asciiDecode(final byte[] data, final int bitOffset, final int bitSize, final byte[] dst, final int dstOffset) {
+		final long start = checkRange(data.length, 0, bitOffset, bitSize);
+		final int n = bitSize / BYTE_SIZE;
+		if ((bitOffset & 7) == 0) {
+			System.arraycopy(data, bitOffset >>> 3, dst, dstOffset, n);
+			return n;
 		}
-		return buf.toString();
+		for (int i = 0; i < n; i++) {
+			dst[dstOffset + i] = (byte) bitsOf(data, start + (long) i * BYTE_SIZE, BYTE_SIZE);
+		}
+		return n;
 	}
+
+	/**
+	 * Append iso-8859-1 characters to dst, which can be reused between records.
+	 * @param data
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param dst
+	 * @return dst
+	 */
+	public static StringBuilder asciiDecode(final byte[] data, final int bitOffset, final int bitSize, final StringBuilder dst) {
+		final long start = checkRange(data.length, 0, bitOffset, bitSize);
+		final int n = bitSize / BYTE_SIZE;
+		dst.ensureCapacity(dst.length() + n);
+		for (int i = 0; i < n; i++) {
+			dst.append((char) bitsOf(data, start + (long) i * BYTE_SIZE, BYTE_SIZE));
+		}
+		return dst;
+	}
+
+	public static byte[] bytearrayDecode(final byte[] data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		return bytearrayDecode(data, bitOffset / BYTE_SIZE, bitOffset % BYTE_SIZE, bitSize, signed);
+	}
+	/**
+	 * Decode a field to big endian bytes, right aligned, a field ending on a byte boundary is a single array copy.
+	 * @param data
+	 * @param byteOffset
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param signed
+	 * @return
+	 */
 	public static byte[] bytearrayDecode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize,
 			final boolean signed) {
-		return reverse(decode(data, byteOffset, bitOffset, bitSize));
-		//TODO reverse performance
+		final long end = checkRange(data.length, byteOffset, bitOffset, bitSize) + bitSize;
+		if ((end & 7) != 0) return decode(data, byteOffset, bitOffset, bitSize, true);
+		final int n = byteSizeOf(bitSize);
+		final byte[] result = new byte[n];
+		System.arraycopy(data, (int) (end >>> 3) - n, result, 0, n);
+		if (n > 0) result[0] &= 0xff >>> (n * BYTE_SIZE - bitSize);
+		return result;
 	}
 	public static byte byteDecode(final byte[] data, final int bitOffset, final int bitSize,
 			final boolean signed) {
@@ -409,7 +975,7 @@ public class BitCodec {
 	}
 	public static byte byteDecode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize,
 			final boolean signed) {
-		return byteOf(decode(data, byteOffset, bitOffset, bitSize), bitSize, signed);
+		return byteDecimalOf((byte) lowBitsOf(data, byteOffset, bitOffset, bitSize), bitSize, signed);
 	}
 
 	public static short shortDecode(final byte[] data, final int bitOffset, final int bitSize,
@@ -418,7 +984,7 @@ public class BitCodec {
 	}
 	public static short shortDecode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize,
 			final boolean signed) {
-		return (short) intOf(decode(data, byteOffset, bitOffset, bitSize), bitSize, signed);
+		return (short) intDecimalOf((int) lowBitsOf(data, byteOffset, bitOffset, bitSize), bitSize, signed);
 	}
 	public static int intDecode(final byte[] data, final int bitOffset, final int bitSize,
 			final boolean signed) {
@@ -426,16 +992,44 @@ public class BitCodec {
 	}
 	public static int intDecode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize,
 			final boolean signed) {
-		return intOf(decode(data, byteOffset, bitOffset, bitSize), bitSize, signed);
+		return intDecimalOf((int) lowBitsOf(data, byteOffset, bitOffset, bitSize), bitSize, signed);
 	}
 
 	public static BigInteger bigintDecode(final byte[] data, final int bitOffset, final int bitSize,
 			final boolean signed) {
 		return bigintDecode(data, bitOffset / BYTE_SIZE, bitOffset % BYTE_SIZE, bitSize, signed);
 	}
+	/**
+	 * Decode a field of any width, fields wider than a long are built from their big endian bytes, in place when
+	 * the field ends on a byte boundary.
+	 * @param data
+	 * @param byteOffset
+	 * @param bitOffset
+	 * @param bitSize
+	 * @param signed
+	 * @return
+	 */
 	public static BigInteger bigintDecode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize,
 			final boolean signed) {
-		return BigInteger.valueOf(longOf(decode(data, byteOffset, bitOffset, bitSize), bitSize, signed));
+		if (bitSize < Long.SIZE || bitSize == Long.SIZE && signed) {
+			return BigInteger.valueOf(longDecimalOf(lowBitsOf(data, byteOffset, bitOffset, bitSize), bitSize, signed));
+		}
+		final long start = checkRange(data.length, byteOffset, bitOffset, bitSize);
+		if ((bitSize & 7) == 0 && (start & 7) == 0) {
+			final int from = (int) (start >>> 3);
+			return signed ? new BigInteger(data, from, bitSize / BYTE_SIZE) : new BigInteger(1, data, from, bitSize / BYTE_SIZE);
+		}
+		return bigintOf(bytearrayDecode(data, byteOffset, bitOffset, bitSize, signed), bitSize, signed);
+	}
+
+	/**
+	 * @param ba a field right aligned in big endian bytes
+	 */
+	private static BigInteger bigintOf(final byte[] ba, final int bitSize, final boolean signed) {
+		if (!signed) return new BigInteger(1, ba);
+		final int shift = ba.length * BYTE_SIZE - bitSize + Integer.SIZE - BYTE_SIZE;
+		ba[0] = (byte) ((ba[0] << shift) >> shift);
+		return new BigInteger(ba);
 	}
 	public static long longDecode(final byte[] data, final int bitOffset, final int bitSize,
 			final boolean signed) {
@@ -443,18 +1037,500 @@ public class BitCodec {
 	}
 	public static long longDecode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize,
 			final boolean signed) {
-		return longOf(decode(data, byteOffset, bitOffset, bitSize), bitSize, signed);
+		return longDecimalOf(lowBitsOf(data, byteOffset, bitOffset, bitSize), bitSize, signed);
+	}
+
+	public static byte byteDecode(final byte[] data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return byteDecimalOf((byte) orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static short shortDecode(final byte[] data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return (short) intDecimalOf((int) orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static int intDecode(final byte[] data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return intDecimalOf((int) orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static long longDecode(final byte[] data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return longDecimalOf(orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static BigInteger bigintDecode(final byte[] data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		if (endian == Endian.BIG_ENDIAN) return bigintDecode(data, bitOffset, bitSize, signed);
+		if (bitSize < Long.SIZE || bitSize == Long.SIZE && signed) {
+			return BigInteger.valueOf(longDecimalOf(orderedBits(data, bitOffset, bitSize, endian), bitSize, signed));
+		}
+		endian.check(bitSize, true);
+		return bigintOf(reordered(bytearrayDecode(data, bitOffset, bitSize, false), bitSize, endian), bitSize, signed);
+	}
+
+	/**
+	 * Decode count consecutive fields of bitSize bits, the elements of a repeat_block of one integer field, in one
+	 * call, the values of count calls of intDecode. The range is checked once, byte aligned fields of 8, 16 or 32
+	 * bits are read through byte array views and other fields from a 64 bit load each, four fields per iteration.
+	 * Signed values are sign extended in a separate pass over dst, a loop the JIT vectorizes.
+	 * @param data
+	 * @param bitOffset of the first field
+	 * @param bitSize 1 to 32
+	 * @param signed
+	 * @param dst
+	 * @param dstOffset of the first value
+	 * @param count
+	 */
+	public static void intUnpack(final byte[] data, final int bitOffset, final int bitSize, final boolean signed, final int[] dst,
+			final int dstOffset, final int count) {
+		checkBulk(bitSize, Integer.SIZE, dstOffset, count, dst.length);
+		final long start = checkBulkRange(data.length, bitOffset, bitSize, count);
+		final int end = dstOffset + count;
+		int b = (int) (start >>> 3);
+		if ((start & 7) == 0 && bitSize == BYTE_SIZE) {
+			for (int i = dstOffset; i < end; i++) {
+				dst[i] = signed ? data[b++] : data[b++] & 0xff;
+			}
+			return;
+		}
+		if ((start & 7) == 0 && bitSize == Short.SIZE) {
+			for (int i = dstOffset; i < end; i++, b += Short.BYTES) {
+				final short v = (short) SHORT_BE.get(data, b);
+				dst[i] = signed ? v : v & 0xffff;
+			}
+			return;
+		}
+		if ((start & 7) == 0 && bitSize == Integer.SIZE) {
+			for (int i = dstOffset; i < end; i++, b += Integer.BYTES) {
+				dst[i] = (int) INT_BE.get(data, b);
+			}
+			return;
+		}
+		final int windowed = dstOffset + windowed(data.length, start, bitSize, count);
+		long p = start;
+		int i = dstOffset;
+		for (; i + 4 <= windowed; i += 4, p += 4L * bitSize) {
+			dst[i] = (int) window(data, p, bitSize);
+			dst[i + 1] = (int) window(data, p + bitSize, bitSize);
+			dst[i + 2] = (int) window(data, p + 2L * bitSize, bitSize);
+			dst[i + 3] = (int) window(data, p + 3L * bitSize, bitSize);
+		}
+		for (; i < end; i++, p += bitSize) {
+			dst[i] = (int) (i < windowed ? window(data, p, bitSize) : bitsOf(data, p, bitSize));
+		}
+		if (signed && bitSize < Integer.SIZE) {
+			final int shift = Integer.SIZE - bitSize;
+			for (int j = dstOffset; j < end; j++) {
+				dst[j] = dst[j] << shift >> shift;
+			}
+		}
+	}
+
+	/**
+	 * Decode count consecutive fields of bitSize bits, the values of count calls of longDecode.
+	 * @param data
+	 * @param bitOffset of the first field
+	 * @param bitSize 1 to 64
+	 * @param signed
+	 * @param dst
+	 * @param dstOffset of the first value
+	 * @param count
+	 * @see #intUnpack(byte[], int, int, boolean, int[], int, int)
+	 */
+	public static void longUnpack(final byte[] data, final int bitOffset, final int bitSize, final boolean signed, final long[] dst,
+			final int dstOffset, final int count) {
+		checkBulk(bitSize, Long.SIZE, dstOffset, count, dst.length);
+		final long start = checkBulkRange(data.length, bitOffset, bitSize, count);
+		final int end = dstOffset + count;
+		if ((start & 7) == 0 && bitSize == Long.SIZE) {
+			int b = (int) (start >>> 3);
+			for (int i = dstOffset; i < end; i++, b += Long.BYTES) {
+				dst[i] = (long) LONG_VIEW.get(data, b);
+			}
+			return;
+		}
+		final int windowed = dstOffset + windowed(data.length, start, bitSize, count);
+		long p = start;
+		int i = dstOffset;
+		for (; i + 4 <= windowed; i += 4, p += 4L * bitSize) {
+			dst[i] = window(data, p, bitSize);
+			dst[i + 1] = window(data, p + bitSize, bitSize);
+			dst[i + 2] = window(data, p + 2L * bitSize, bitSize);
+			dst[i + 3] = window(data, p + 3L * bitSize, bitSize);
+		}
+		for (; i < end; i++, p += bitSize) {
+			dst[i] = i < windowed ? window(data, p, bitSize) : bitsOf(data, p, bitSize);
+		}
+		if (signed && bitSize < Long.SIZE) {
+			final int shift = Long.SIZE - bitSize;
+			for (int j = dstOffset; j < end; j++) {
+				dst[j] = dst[j] << shift >> shift;
+			}
+		}
+	}
+
+	/**
+	 * @return the absolute bit position of count fields of bitSize bits
+	 */
+	private static long checkBulkRange(final int byteLength, final int bitOffset, final int bitSize, final int count) {
+		final long bits = (long) bitSize * count;
+		if (bitOffset < 0 || bitOffset + bits > (long) byteLength * BYTE_SIZE) {
+			throw new ArrayIndexOutOfBoundsException(count + " fields of " + bitSize + " bits at bit " + bitOffset + " outside " + byteLength + " bytes");
+		}
+		return bitOffset;
+	}
+
+	/**
+	 * @return number of the count fields from start that a 64 bit load at the byte of the field covers
+	 */
+	private static int windowed(final int byteLength, final long start, final int bitSize, final int count) {
+		if (bitSize > Long.SIZE - 7) return 0;
+		final long limit = (long) (byteLength - Long.BYTES + 1) * BYTE_SIZE;
+		if (start >= limit) return 0;
+		return (int) Math.min(count, (limit - 1 - start) / bitSize + 1);
+	}
+
+	/**
+	 * Read a field within the 64 bits from its byte, no range check is done.
+	 */
+	private static long window(final byte[] data, final long bitPosition, final int bitSize) {
+		return ((long) LONG_VIEW.get(data, (int) (bitPosition >>> 3)) << (int) (bitPosition & 7)) >>> (Long.SIZE - bitSize);
+	}
+
+	/**
+	 * The bits of an integer field of at most 64 bits in a byte order, right aligned.
+	 * A byte aligned field of 16, 32 or 64 bits is a single load through a byte array view.
+	 */
+	private static long orderedBits(final byte[] data, final int bitOffset, final int bitSize, final Endian endian) {
+		if ((bitOffset & 7) == 0 && endian != Endian.LSB_LO) {
+			checkRange(data.length, 0, bitOffset, bitSize);
+			final int i = bitOffset >>> 3;
+			final boolean little = endian == Endian.LITTLE_ENDIAN;
+			switch (bitSize) {
+			case 16: return (little ? (short) SHORT_LE.get(data, i) : (short) SHORT_BE.get(data, i)) & 0xffffL;
+			case 32: return (little ? (int) INT_LE.get(data, i) : (int) INT_BE.get(data, i)) & 0xffffffffL;
+			case 64: return little ? (long) LONG_LE.get(data, i) : (long) LONG_VIEW.get(data, i);
+			default: break;
+			}
+		}
+		endian.check(bitSize, false);
+		return endian.order(lowBitsOf(data, bitOffset / BYTE_SIZE, bitOffset % BYTE_SIZE, bitSize), bitSize);
+	}
+
+	/**
+	 * Reorder the big endian bytes of a field, right aligned, to the big endian bytes of its value.
+	 */
+	private static byte[] reordered(final byte[] ba, final int bitSize, final Endian endian) {
+		reverse(ba, endian == Endian.LSB_LO);
+		final int shift = ba.length * BYTE_SIZE - bitSize;
+		if (endian == Endian.LSB_LO && shift > 0) {
+			for (int i = ba.length - 1; i >= 0; i--) {
+				ba[i] = (byte) (((ba[i] & 0xff) >>> shift) | (i > 0 ? ba[i - 1] << (BYTE_SIZE - shift) : 0));
+			}
+		}
+		return ba;
 	}
 
 	public static byte[] decode(final byte[] data, final int bitOffset, final int bitSize) {
 		return decode(data, bitOffset / BYTE_SIZE, bitOffset % BYTE_SIZE, bitSize);
 	}
 
+	/**
+	 * Decode a field to its little endian bytes.
+	 * @param data
+	 * @param byteOffset
+	 * @param bitOffset
+	 * @param bitSize
+	 * @return
+	 */
 	public static byte[] decode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize) {
-		final boolean[] br = new boolean[bitSize];
-		final boolean[] fr = flatten(toPartitionedArray(reverseBitsInBytes(data), data.length * BYTE_SIZE));
-		System.arraycopy(fr, byteOffset * BYTE_SIZE + bitOffset, br, 0, br.length);
-		return toByteArray(reverse(br), false);
+		return decode(data, byteOffset, bitOffset, bitSize, false);
+	}
+
+	private static byte[] decode(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize, final boolean bigEndian) {
+		final long end = checkRange(data.length, byteOffset, bitOffset, bitSize) + bitSize;
+		final byte[] result = new byte[byteSizeOf(bitSize)];
+		for (int k = 0; k < bitSize; k += Long.SIZE) {
+			final int n = Math.min(Long.SIZE, bitSize - k);
+			final long v = bitsOf(data, end - k - n, n);
+			final int ix = k / BYTE_SIZE;
+			for (int i = 0, m = byteSizeOf(n); i < m; i++) {
+				result[bigEndian ? result.length - 1 - ix - i : ix + i] = (byte) (v >>> (i * BYTE_SIZE));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The least significant 64 bits of a field, wider fields are truncated like the value types are.
+	 */
+	private static long lowBitsOf(final byte[] data, final int byteOffset, final int bitOffset, final int bitSize) {
+		final long start = checkRange(data.length, byteOffset, bitOffset, bitSize);
+		if (bitSize == 0) return 0L;
+		final int n = Math.min(bitSize, Long.SIZE);
+		return bitsOf(data, start + bitSize - n, n);
+	}
+
+	/**
+	 * @return the absolute bit position of the field
+	 */
+	private static long checkRange(final int byteLength, final int byteOffset, final int bitOffset, final int bitSize) {
+		if (bitSize < 0) throw new NegativeArraySizeException(String.valueOf(bitSize));
+		final long start = (long) byteOffset * BYTE_SIZE + bitOffset;
+		if (start < 0 || start + bitSize > (long) byteLength * BYTE_SIZE) {
+			throw new ArrayIndexOutOfBoundsException("bit range " + start + " + " + bitSize + " outside " + byteLength + " bytes");
+		}
+		return start;
+	}
+
+	/**
+	 * Read bits msb first using a single 64 bit load where the data allows it.
+	 * No range check is done.
+	 * @param data
+	 * @param bitPosition absolute bit position
+	 * @param bitSize 1 to 64
+	 * @return the bits right aligned
+	 */
+	static long bitsOf(final byte[] data, final long bitPosition, final int bitSize) {
+		final int byteIx = (int) (bitPosition >>> 3);
+		final int shift = (int) (bitPosition & 7);
+		if (byteIx + Long.BYTES <= data.length) {
+			final long v = ((long) LONG_VIEW.get(data, byteIx) << shift) >>> (Long.SIZE - bitSize);
+			final int extra = shift + bitSize - Long.SIZE;
+			return extra > 0 ? v | ((data[byteIx + Long.BYTES] & 0xff) >>> (BYTE_SIZE - extra)) : v;
+		}
+		final int needed = shift + bitSize;
+		final int n = byteSizeOf(needed);
+		long v = 0L;
+		for (int i = 0; i < n; i++) {
+			v = (v << BYTE_SIZE) | (data[byteIx + i] & 0xff);
+		}
+		return (v >>> (n * BYTE_SIZE - needed)) & ((1L << bitSize) - 1L);
+	}
+
+	/*
+	 * ByteBuffer decoding, heap, direct and mapped buffers are read in place.
+	 * Offsets are absolute bit offsets from index 0 up to the limit, the buffer position and byte order are ignored.
+	 * A MemorySegment is decoded through its asByteBuffer() view, which does not copy.
+	 */
+
+	public static double doubleDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		return Double.longBitsToDouble(longDecode(data, bitOffset, bitSize, signed));
+	}
+	public static float floatDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		return Float.intBitsToFloat(intDecode(data, bitOffset, bitSize, signed));
+	}
+	public static String bcdDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		final char[] digits = new char[Math.max(0, bitSize / bcdSize)];
+		return new String(digits, 0, bcdDecode(data, bitOffset, bitSize, digits, 0));
+	}
+
+	public static int bcdDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final char[] dst, final int dstOffset) {
+		final int n = bcdDigitsOf(data.limit(), bitOffset, bitSize);
+		int i = 0;
+		if ((bitOffset & 7) == 0) {
+			for (int b = bitOffset >>> 3; i + 2 <= n; i += 2, b++) {
+				final int d = (data.get(b) & 0xff) << 1;
+				dst[dstOffset + i] = BCD_DIGITS[d];
+				dst[dstOffset + i + 1] = BCD_DIGITS[d + 1];
+			}
+		}
+		for (; i < n; i++) {
+			dst[dstOffset + i] = (char) (bitsOf(data, bitOffset + (long) i * bcdSize, bcdSize) + ZERO_ASCII);
+		}
+		return n;
+	}
+
+	public static int bcdDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final byte[] dst, final int dstOffset) {
+		final int n = bcdDigitsOf(data.limit(), bitOffset, bitSize);
+		int i = 0;
+		if ((bitOffset & 7) == 0) {
+			for (int b = bitOffset >>> 3; i + 2 <= n; i += 2, b++) {
+				final int d = (data.get(b) & 0xff) << 1;
+				dst[dstOffset + i] = (byte) BCD_DIGITS[d];
+				dst[dstOffset + i + 1] = (byte) BCD_DIGITS[d + 1];
+			}
+		}
+		for (; i < n; i++) {
+			dst[dstOffset + i] = (byte) (bitsOf(data, bitOffset + (long) i * bcdSize, bcdSize) + ZERO_ASCII);
+		}
+		return n;
+	}
+
+	public static String asciiDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		final char[] chars = new char[Math.max(0, bitSize / BYTE_SIZE)];
+		asciiDecode(data, bitOffset, bitSize, chars, 0);
+		return new String(chars);
+	}
+
+	public static int asciiDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final char[] dst, final int dstOffset) {
+		final long start = checkRange(data.limit(), 0, bitOffset, bitSize);
+		final int n = bitSize / BYTE_SIZE;
+		for (int i = 0; i < n; i++) {
+			dst[dstOffset + i] = (char) bitsOf(data, start + (long) i * BYTE_SIZE, BYTE_SIZE);
+		}
+		return n;
+	}
+
+	public static int asciiDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final byte[] dst, final int dstOffset) {
+		final long start = checkRange(data.limit(), 0, bitOffset, bitSize);
+		final int n = bitSize / BYTE_SIZE;
+		if ((bitOffset & 7) == 0) {
+			data.get(bitOffset >>> 3, dst, dstOffset, n);
+			return n;
+		}
+		for (int i = 0; i < n; i++) {
+			dst[dstOffset + i] = (byte) bitsOf(data, start + (long) i * BYTE_SIZE, BYTE_SIZE);
+		}
+		return n;
+	}
+
+	public static byte[] bytearrayDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		final long end = checkRange(data.limit(), 0, bitOffset, bitSize) + bitSize;
+		final byte[] result = new byte[byteSizeOf(bitSize)];
+		if ((end & 7) == 0) {
+			data.get((int) (end >>> 3) - result.length, result);
+			if (result.length > 0) result[0] &= 0xff >>> (result.length * BYTE_SIZE - bitSize);
+			return result;
+		}
+		for (int k = 0; k < bitSize; k += Long.SIZE) {
+			final int n = Math.min(Long.SIZE, bitSize - k);
+			final long v = bitsOf(data, end - k - n, n);
+			final int ix = result.length - 1 - k / BYTE_SIZE;
+			for (int i = 0, m = byteSizeOf(n); i < m; i++) {
+				result[ix - i] = (byte) (v >>> (i * BYTE_SIZE));
+			}
+		}
+		return result;
+	}
+	public static byte byteDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		return byteDecimalOf((byte) lowBitsOf(data, bitOffset, bitSize), bitSize, signed);
+	}
+	public static short shortDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		return (short) intDecimalOf((int) lowBitsOf(data, bitOffset, bitSize), bitSize, signed);
+	}
+	public static int intDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		return intDecimalOf((int) lowBitsOf(data, bitOffset, bitSize), bitSize, signed);
+	}
+	public static BigInteger bigintDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		if (bitSize < Long.SIZE || bitSize == Long.SIZE && signed) {
+			return BigInteger.valueOf(longDecimalOf(lowBitsOf(data, bitOffset, bitSize), bitSize, signed));
+		}
+		return bigintOf(bytearrayDecode(data, bitOffset, bitSize, signed), bitSize, signed);
+	}
+	public static long longDecode(final ByteBuffer data, final int bitOffset, final int bitSize,
+			final boolean signed) {
+		return longDecimalOf(lowBitsOf(data, bitOffset, bitSize), bitSize, signed);
+	}
+
+	public static byte byteDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return byteDecimalOf((byte) orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static short shortDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return (short) intDecimalOf((int) orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static int intDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return intDecimalOf((int) orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static long longDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		return longDecimalOf(orderedBits(data, bitOffset, bitSize, endian), bitSize, signed);
+	}
+	public static BigInteger bigintDecode(final ByteBuffer data, final int bitOffset, final int bitSize, final boolean signed, final Endian endian) {
+		if (endian == Endian.BIG_ENDIAN) return bigintDecode(data, bitOffset, bitSize, signed);
+		if (bitSize < Long.SIZE || bitSize == Long.SIZE && signed) {
+			return BigInteger.valueOf(longDecimalOf(orderedBits(data, bitOffset, bitSize, endian), bitSize, signed));
+		}
+		endian.check(bitSize, true);
+		return bigintOf(reordered(bytearrayDecode(data, bitOffset, bitSize, false), bitSize, endian), bitSize, signed);
+	}
+
+	public static void intUnpack(final ByteBuffer data, final int bitOffset, final int bitSize, final boolean signed, final int[] dst,
+			final int dstOffset, final int count) {
+		checkBulk(bitSize, Integer.SIZE, dstOffset, count, dst.length);
+		final long start = checkBulkRange(data.limit(), bitOffset, bitSize, count);
+		final int end = dstOffset + count;
+		if ((start & 7) == 0 && bitSize == Integer.SIZE) {
+			int b = (int) (start >>> 3);
+			for (int i = dstOffset; i < end; i++, b += Integer.BYTES) {
+				dst[i] = (int) BUFFER_INT_BE.get(data, b);
+			}
+			return;
+		}
+		long p = start;
+		for (int i = dstOffset; i < end; i++, p += bitSize) {
+			dst[i] = (int) bitsOf(data, p, bitSize);
+		}
+		if (signed && bitSize < Integer.SIZE) {
+			final int shift = Integer.SIZE - bitSize;
+			for (int j = dstOffset; j < end; j++) {
+				dst[j] = dst[j] << shift >> shift;
+			}
+		}
+	}
+	public static void longUnpack(final ByteBuffer data, final int bitOffset, final int bitSize, final boolean signed, final long[] dst,
+			final int dstOffset, final int count) {
+		checkBulk(bitSize, Long.SIZE, dstOffset, count, dst.length);
+		final long start = checkBulkRange(data.limit(), bitOffset, bitSize, count);
+		final int end = dstOffset + count;
+		if ((start & 7) == 0 && bitSize == Long.SIZE) {
+			int b = (int) (start >>> 3);
+			for (int i = dstOffset; i < end; i++, b += Long.BYTES) {
+				dst[i] = (long) BUFFER_LONG_VIEW.get(data, b);
+			}
+			return;
+		}
+		long p = start;
+		for (int i = dstOffset; i < end; i++, p += bitSize) {
+			dst[i] = bitsOf(data, p, bitSize);
+		}
+		if (signed && bitSize < Long.SIZE) {
+			final int shift = Long.SIZE - bitSize;
+			for (int j = dstOffset; j < end; j++) {
+				dst[j] = dst[j] << shift >> shift;
+			}
+		}
+	}
+
+	private static long orderedBits(final ByteBuffer data, final int bitOffset, final int bitSize, final Endian endian) {
+		if ((bitOffset & 7) == 0 && endian != Endian.LSB_LO) {
+			checkRange(data.limit(), 0, bitOffset, bitSize);
+			final int i = bitOffset >>> 3;
+			final boolean little = endian == Endian.LITTLE_ENDIAN;
+			switch (bitSize) {
+			case 16: return (little ? (short) BUFFER_SHORT_LE.get(data, i) : (short) BUFFER_SHORT_BE.get(data, i)) & 0xffffL;
+			case 32: return (little ? (int) BUFFER_INT_LE.get(data, i) : (int) BUFFER_INT_BE.get(data, i)) & 0xffffffffL;
+			case 64: return little ? (long) BUFFER_LONG_LE.get(data, i) : (long) BUFFER_LONG_VIEW.get(data, i);
+			default: break;
+			}
+		}
+		endian.check(bitSize, false);
+		return endian.order(lowBitsOf(data, bitOffset, bitSize), bitSize);
+	}
+
+	private static long lowBitsOf(final ByteBuffer data, final int bitOffset, final int bitSize) {
+		final long start = checkRange(data.limit(), 0, bitOffset, bitSize);
+		if (bitSize == 0) return 0L;
+		final int n = Math.min(bitSize, Long.SIZE);
+		return bitsOf(data, start + bitSize - n, n);
+	}
+
+	static long bitsOf(final ByteBuffer data, final long bitPosition, final int bitSize) {
+		final int byteIx = (int) (bitPosition >>> 3);
+		final int shift = (int) (bitPosition & 7);
+		if (byteIx + Long.BYTES <= data.limit()) {
+			final long v = ((long) BUFFER_LONG_VIEW.get(data, byteIx) << shift) >>> (Long.SIZE - bitSize);
+			final int extra = shift + bitSize - Long.SIZE;
+			return extra > 0 ? v | ((data.get(byteIx + Long.BYTES) & 0xff) >>> (BYTE_SIZE - extra)) : v;
+		}
+		final int needed = shift + bitSize;
+		final int n = byteSizeOf(needed);
+		long v = 0L;
+		for (int i = 0; i < n; i++) {
+			v = (v << BYTE_SIZE) | (data.get(byteIx + i) & 0xff);
+		}
+		return (v >>> (n * BYTE_SIZE - needed)) & ((1L << bitSize) - 1L);
 	}
 
 	public static byte[] reverseBitsInBytes(final byte[] ba) {
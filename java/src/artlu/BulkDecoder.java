@@ -0,0 +1,273 @@
+package artlu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decodes a record file in parallel chunks of a memory mapped file.
+ * Each chunk decodes the records starting within it. A chunk finds its first record from the fixed record size
+ * when one is given, otherwise by scanning for a byte offset where several records in a row decode, which
+ * identified_by makes reliable. The merge step checks that every chunk starts where the previous one ended and
+ * decodes a chunk again from the right offset when the scan found a false start, so the result is always the
+ * same as decoding the file sequentially.
+ * @author anderse
+ *
+ */
+public final class BulkDecoder {
+
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+	public static final int DEFAULT_MAX_RECORD_SIZE = 64 * 1024;
+	private static final int RESYNC_RECORDS = 4;
+
+	private final Decoder decoder;
+	private final Executor executor;
+	private final int chunkSize;
+	private final int maxRecordSize;
+	private final int recordSize;
+
+	/**
+	 * Decode on the common fork join pool with default sizes and scanning for record starts.
+	 * @param decoder
+	 */
+	public BulkDecoder(final Decoder decoder) {
+		this(decoder, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE, DEFAULT_MAX_RECORD_SIZE, 0);
+	}
+
+	/**
+	 * @param decoder
+	 * @param executor runs the chunks, a fork join pool or a virtual thread per task executor
+	 * @param chunkSize bytes per chunk
+	 * @param maxRecordSize largest record in bytes, a chunk maps this much beyond its end
+	 * @param recordSize size in bytes of every record for static_size externals, 0 to scan for record starts
+	 */
+	public BulkDecoder(final Decoder decoder, final Executor executor, final int chunkSize, final int maxRecordSize,
+			final int recordSize) {
+		if (chunkSize <= 0 || maxRecordSize <= 0 || recordSize < 0) throw new IllegalArgumentException("sizes must be positive");
+		if (((long) chunkSize + maxRecordSize) * BitCodec.BYTE_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("chunk and record bits must fit an int");
+		}
+		this.decoder = decoder;
+		this.executor = executor;
+		this.chunkSize = chunkSize;
+		this.maxRecordSize = maxRecordSize;
+		this.recordSize = recordSize;
+	}
+
+	/**
+	 * Decode all records of a file.
+	 * @param file
+	 * @return the records in file order and the chunk statistics
+	 * @throws IOException
+	 * @throws CodecException if a record can not be decoded
+	 */
+	public Result decode(final Path file) throws IOException {
+		final long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final int n = (int) ((size + chunkSize - 1) / chunkSize);
+			final List<CompletableFuture<Chunk>> futures = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				final int index = i;
+				futures.add(CompletableFuture.supplyAsync(() -> decodeChunk(channel, size, index, -1), executor));
+			}
+			final List<Chunk> chunks = new ArrayList<>(n);
+			final List<Map<String, Object>> records = new ArrayList<>();
+			long end = 0;
+			for (int i = 0; i < n; i++) {
+				Chunk c = join(futures.get(i));
+				if (c.bitOffset != end) c = decodeChunk(channel, size, i, end);
+				chunks.add(c);
+				records.addAll(c.records);
+				end = c.bitOffset + c.bits;
+			}
+			return new Result(records, chunks, System.nanoTime() - start);
+		}
+	}
+
+	private static Chunk join(final CompletableFuture<Chunk> future) {
+		try {
+			return future.join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param from absolute bit offset of the first record, -1 to find it
+	 */
+	private Chunk decodeChunk(final FileChannel channel, final long size, final int index, final long from) {
+		final long t0 = System.nanoTime();
+		final long chunkStart = (long) index * chunkSize;
+		final boolean last = chunkStart + chunkSize >= size;
+		final long mapStart = from < 0 ? chunkStart : Math.min(chunkStart, from / BitCodec.BYTE_SIZE);
+		final ByteBuffer data;
+		try {
+			data = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(size, chunkStart + chunkSize + maxRecordSize) - mapStart);
+		} catch (final IOException e) {
+			throw new CodecException("can not map chunk " + index, e);
+		}
+		final int chunkEnd = (int) (Math.min(size, chunkStart + chunkSize) - mapStart) * BitCodec.BYTE_SIZE;
+		final int limit = data.limit() * BitCodec.BYTE_SIZE;
+		int pos;
+		if (from >= 0) {
+			pos = (int) (from - mapStart * BitCodec.BYTE_SIZE);
+		} else if (index == 0) {
+			pos = 0;
+		} else if (recordSize > 0) {
+			pos = (int) ((chunkStart + recordSize - 1) / recordSize * recordSize - chunkStart) * BitCodec.BYTE_SIZE;
+		} else {
+			pos = resync(data, chunkEnd, last);
+			if (pos < 0) return new Chunk(index, -1, 0, Collections.emptyList(), System.nanoTime() - t0);
+		}
+		final int first = pos;
+		final boolean speculative = from < 0 && index > 0;
+		final List<Map<String, Object>> records = new ArrayList<>();
+		while (pos < chunkEnd && limit - pos >= BitCodec.BYTE_SIZE) {
+			final Map<String, Object> record = new LinkedHashMap<>();
+			int n;
+			try {
+				n = decoder.decode(data, pos, record);
+			} catch (final RuntimeException e) {
+				if (speculative) return new Chunk(index, -1, 0, Collections.emptyList(), System.nanoTime() - t0);
+				if (!(e instanceof IndexOutOfBoundsException)) throw e;
+				throw new CodecException("record of " + decoder.name() + " at bit " + (mapStart * BitCodec.BYTE_SIZE + pos)
+						+ (last ? " is truncated" : " exceeds " + maxRecordSize + " bytes"), e);
+			}
+			if (n <= 0) {
+				if (speculative) return new Chunk(index, -1, 0, Collections.emptyList(), System.nanoTime() - t0);
+				throw new CodecException("no record of " + decoder.name() + " at bit " + (mapStart * BitCodec.BYTE_SIZE + pos));
+			}
+			records.add(record);
+			pos += n;
+		}
+		return new Chunk(index, mapStart * BitCodec.BYTE_SIZE + first, pos - first, records, System.nanoTime() - t0);
+	}
+
+	/**
+	 * Find the first byte offset in the chunk where RESYNC_RECORDS records in a row decode,
+	 * or fewer ending at the end of the file.
+	 * @return bit offset in data, -1 when there is none
+	 */
+	private int resync(final ByteBuffer data, final int chunkEnd, final boolean last) {
+		final Map<String, Object> record = new LinkedHashMap<>();
+		final int limit = data.limit() * BitCodec.BYTE_SIZE;
+		for (int start = 0; start < chunkEnd; start += BitCodec.BYTE_SIZE) {
+			int pos = start;
+			int k = 0;
+			try {
+				while (k < RESYNC_RECORDS && limit - pos >= BitCodec.BYTE_SIZE) {
+					record.clear();
+					final int n = decoder.decode(data, pos, record);
+					if (n <= 0) break;
+					pos += n;
+					k++;
+				}
+			} catch (final RuntimeException e) {
+				continue;
+			}
+			if (k == RESYNC_RECORDS || (last && k > 0 && limit - pos < BitCodec.BYTE_SIZE)) return start;
+		}
+		return -1;
+	}
+
+	/**
+	 * The records of one chunk with its decode time.
+	 */
+	public static final class Chunk {
+		final int index;
+		final long bitOffset;
+		final long bits;
+		final List<Map<String, Object>> records;
+		final long nanos;
+
+		Chunk(final int index, final long bitOffset, final long bits, final List<Map<String, Object>> records, final long nanos) {
+			this.index = index;
+			this.bitOffset = bitOffset;
+			this.bits = bits;
+			this.records = records;
+			this.nanos = nanos;
+		}
+
+		public int index() {
+			return index;
+		}
+
+		/**
+		 * @return file bit offset of the first record
+		 */
+		public long bitOffset() {
+			return bitOffset;
+		}
+
+		/**
+		 * @return bits decoded
+		 */
+		public long bits() {
+			return bits;
+		}
+
+		public int records() {
+			return records.size();
+		}
+
+		public long nanos() {
+			return nanos;
+		}
+
+		public double bytesPerSecond() {
+			return nanos == 0 ? 0 : bits / (double) BitCodec.BYTE_SIZE * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Chunk[" + index + ", bit " + bitOffset + ", " + records() + " records, "
+					+ String.format("%.1f", bytesPerSecond() / 1e6) + " MB/s]";
+		}
+	}
+
+	/**
+	 * The records of a file in file order.
+	 */
+	public static final class Result {
+		private final List<Map<String, Object>> records;
+		private final List<Chunk> chunks;
+		private final long nanos;
+
+		Result(final List<Map<String, Object>> records, final List<Chunk> chunks, final long nanos) {
+			this.records = records;
+			this.chunks = Collections.unmodifiableList(chunks);
+			this.nanos = nanos;
+		}
+
+		public List<Map<String, Object>> records() {
+			return records;
+		}
+
+		/**
+		 * @return per chunk statistics in file order
+		 */
+		public List<Chunk> chunks() {
+			return chunks;
+		}
+
+		/**
+		 * @return wall clock time of the whole decode
+		 */
+		public long nanos() {
+			return nanos;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package artlu;
+
+/**
+ * Thrown when a schema can not be compiled or a record can not be decoded or encoded.
+ * @author anderse
+ *
+ */
+public class CodecException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CodecException(final String message) {
+		super(message);
+	}
+
+	public CodecException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,79 @@
+package artlu;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of BitCodecs, the encode state shared encoders write to.
+ * Unlike a ThreadLocal the pool does not keep a codec per thread, so it suits virtual threads and short lived
+ * tasks as well as thread pools. Codecs beyond the pool size are dropped when released.
+ * Thread safe.
+ * @author anderse
+ *
+ */
+public final class CodecPool {
+
+	public static final int DEFAULT_SIZE = 64;
+
+	private final ConcurrentLinkedQueue<BitCodec> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final int size;
+
+	public CodecPool() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param size most codecs kept for reuse
+	 */
+	public CodecPool(final int size) {
+		if (size < 0) throw new IllegalArgumentException("pool size must not be negative");
+		this.size = size;
+	}
+
+	/**
+	 * @return an empty codec, for the calling thread only until it is released
+	 */
+	public BitCodec acquire() {
+		final BitCodec codec = free.poll();
+		if (codec == null) return new BitCodec();
+		pooled.decrementAndGet();
+		return codec;
+	}
+
+	/**
+	 * Clear a codec and keep it for reuse, it must not be used after release.
+	 * @param codec
+	 */
+	public void release(final BitCodec codec) {
+		codec.clear();
+		if (pooled.incrementAndGet() > size) {
+			pooled.decrementAndGet();
+			return;
+		}
+		free.offer(codec);
+	}
+
+	/**
+	 * Encode one record through a pooled codec.
+	 * @param encoder
+	 * @param record
+	 * @return the record bytes, the last byte zero padded
+	 */
+	public byte[] encode(final Encoder encoder, final Map<String, ?> record) {
+		final BitCodec codec = acquire();
+		try {
+			return encoder.encode(record, codec).toByteArray();
+		} finally {
+			release(codec);
+		}
+	}
+
+	/**
+	 * @return codecs kept for reuse
+	 */
+	public int pooled() {
+		return pooled.get();
+	}
+}
@@ -0,0 +1,141 @@
+package artlu;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runtime helpers called by generated codec classes.
+ * @author anderse
+ *
+ */
+public final class CodecSupport {
+
+	private CodecSupport() {
+	}
+
+	public static Number number(final Object value, final String name) {
+		if (value instanceof Number) return (Number) value;
+		throw invalid(value, name, "number");
+	}
+
+	public static BigInteger bigint(final Object value, final String name) {
+		if (value instanceof BigInteger) return (BigInteger) value;
+		return BigInteger.valueOf(number(value, name).longValue());
+	}
+
+	public static byte[] bytes(final Object value, final String name) {
+		if (value instanceof byte[]) return (byte[]) value;
+		if (value instanceof String) return ((String) value).getBytes(StandardCharsets.ISO_8859_1);
+		throw invalid(value, name, "bytearray");
+	}
+
+	public static String string(final Object value, final String name) {
+		if (value instanceof String) return (String) value;
+		if (value instanceof byte[]) return new String((byte[]) value, StandardCharsets.ISO_8859_1);
+		if (value instanceof Number) return value.toString();
+		throw invalid(value, name, "string");
+	}
+
+	public static List<?> list(final Object value, final String name) {
+		if (value instanceof List) return (List<?>) value;
+		throw invalid(value, name, "list");
+	}
+
+	private static CodecException invalid(final Object value, final String name, final String expected) {
+		if (value == null) return new CodecException("missing field " + name);
+		return new CodecException("field " + name + " is not a " + expected + ": " + value.getClass().getName());
+	}
+
+	/**
+	 * Equality used by schema expressions comparing non numeric values,
+	 * numbers compare by value and byte arrays as iso-8859-1 strings.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static boolean equal(final Object a, final Object b) {
+		if (a instanceof Number && b instanceof Number) {
+			return ((Number) a).longValue() == ((Number) b).longValue();
+		}
+		if (a instanceof byte[] && b instanceof byte[]) {
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		}
+		if (a == null || b == null) return a == b;
+		return string(a, null).equals(string(b, null));
+	}
+
+	public static long length(final Object value) {
+		if (value instanceof byte[]) return ((byte[]) value).length;
+		if (value instanceof CharSequence) return ((CharSequence) value).length();
+		if (value instanceof List) return ((List<?>) value).size();
+		throw new CodecException("length of " + value);
+	}
+
+	/**
+	 * Find a terminator byte.
+	 * @param data
+	 * @param bitOffset search start, rounded up to a byte boundary
+	 * @param terminator
+	 * @return bit offset of the terminator, or the end of data if there is none
+	 */
+	public static int terminatorOffset(final byte[] data, final int bitOffset, final long terminator) {
+		int i = BitCodec.byteSizeOf(bitOffset);
+		while (i < data.length && data[i] != (byte) terminator) i++;
+		return i * BitCodec.BYTE_SIZE;
+	}
+
+	public static int terminatorOffset(final ByteBuffer data, final int bitOffset, final long terminator) {
+		int i = BitCodec.byteSizeOf(bitOffset);
+		while (i < data.limit() && data.get(i) != (byte) terminator) i++;
+		return i * BitCodec.BYTE_SIZE;
+	}
+
+	/**
+	 * @param data
+	 * @param terminatorOffset as returned by terminatorOffset
+	 * @return the bit offset after the terminator
+	 */
+	public static int afterTerminator(final byte[] data, final int terminatorOffset) {
+		return Math.min(terminatorOffset + BitCodec.BYTE_SIZE, data.length * BitCodec.BYTE_SIZE);
+	}
+
+	public static int afterTerminator(final ByteBuffer data, final int terminatorOffset) {
+		return Math.min(terminatorOffset + BitCodec.BYTE_SIZE, data.limit() * BitCodec.BYTE_SIZE);
+	}
+
+	/**
+	 * Pass a bytearray or ascii field to a sink, in place when it is byte aligned.
+	 * @param sink
+	 * @param fieldId
+	 * @param data
+	 * @param bitOffset
+	 * @param bitSize
+	 */
+	public static void pushBytes(final DecodeSink sink, final int fieldId, final byte[] data, final int bitOffset, final int bitSize) {
+		if ((bitOffset & 7) == 0 && (bitSize & 7) == 0) {
+			if (bitOffset + bitSize > data.length * BitCodec.BYTE_SIZE || bitSize < 0) {
+				throw new ArrayIndexOutOfBoundsException(bitOffset + bitSize);
+			}
+			sink.onBytes(fieldId, data, bitOffset / BitCodec.BYTE_SIZE, bitSize / BitCodec.BYTE_SIZE);
+		} else {
+			final byte[] b = BitCodec.bytearrayDecode(data, bitOffset, bitSize, false);
+			sink.onBytes(fieldId, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Pad the encoded bits up to an absolute bit length.
+	 * @param codec
+	 * @param bitEnd
+	 * @param padding padding byte
+	 * @param name of the padded block
+	 */
+	public static void pad(final BitCodec codec, final int bitEnd, final long padding, final String name) {
+		final int n = bitEnd - codec.bitLength();
+		if (n < 0) throw new CodecException(name + " exceeds its size by " + -n + " bits");
+		codec.addPadding(n, (int) padding);
+	}
+}
@@ -0,0 +1,1688 @@
+package artlu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import artlu.Schema.Case;
+import artlu.Schema.Element;
+import artlu.Schema.External;
+import artlu.Schema.Field;
+import artlu.Schema.Group;
+import artlu.Schema.InternalDef;
+import artlu.Schema.InternalField;
+import artlu.Schema.InternalType;
+import artlu.Schema.Properties;
+import artlu.Schema.Repeat;
+import artlu.Schema.Switch;
+
+/**
+ * Writes the java source of the codec class of one external, and of the record classes of internals.
+ * Fields at a known offset are decoded and encoded at constant offsets, the rest relative to the offset
+ * of the last variable sized element.
+ * @author anderse
+ *
+ */
+final class CodecWriter {
+
+	/**
+	 * Field types that may have a byte order.
+	 */
+	private static final Set<String> INTEGER_TYPES = new HashSet<>(Arrays.asList("byte", "short", "int", "long", "bigint"));
+
+	private final External external;
+	/**
+	 * package of the generated classes
+	 */
+	private final String pkg;
+	private final String className;
+	private int n;
+	/**
+	 * java expression for the data length in bytes in the decode method being written
+	 */
+	private String dataLength;
+	/**
+	 * writing an offsets method, only fields in referenced are decoded
+	 */
+	private boolean layout;
+	/**
+	 * writing the DecodeSink decode method
+	 */
+	private boolean push;
+	private int repeats;
+	/**
+	 * generate metrics calls
+	 */
+	private final boolean metrics;
+	/**
+	 * labels of the branches counted by the metrics, by branch id
+	 */
+	private final List<String> branches = new ArrayList<>();
+	private int branch;
+	private final List<String> fieldNames;
+	private final Map<String, Field> fields = new HashMap<>();
+	private final Set<String> referenced;
+	/**
+	 * depth of conditional blocks around the element being written
+	 */
+	private int conditionalDepth;
+	private final List<String> layoutFields;
+	private final Map<String, Integer> layoutIndexes = new HashMap<>();
+	private final int[] staticOffsets;
+	private final int[] staticSizes;
+	/**
+	 * fields with a present if condition that folded to false
+	 */
+	private final Set<String> neverPresent = new HashSet<>();
+	/**
+	 * writing an in_map or out_map class, fields without copies are only decoded when referenced
+	 */
+	private CopyPlan plan;
+	/**
+	 * writing a projection, the projected fields and the fields of its filter, other fields are only
+	 * decoded when referenced
+	 */
+	private Set<String> wanted;
+
+	CodecWriter(final External external, final List<String> fieldNames, final boolean metrics, final String pkg) {
+		this.external = external;
+		this.pkg = pkg;
+		this.metrics = metrics;
+		this.fieldNames = fieldNames;
+		fieldsOf(external.body, fields);
+		this.className = SchemaCompiler.classNameOf(external.name);
+		this.referenced = referencedNames(external);
+		this.layoutFields = new ArrayList<>(layoutNamesOf(external.body));
+		for (int i = 0; i < layoutFields.size(); i++) {
+			layoutIndexes.put(layoutFields.get(i), i);
+		}
+		this.staticOffsets = new int[layoutFields.size()];
+		this.staticSizes = new int[layoutFields.size()];
+		Arrays.fill(staticOffsets, -1);
+		Arrays.fill(staticSizes, -1);
+	}
+
+	private String local(final String prefix, final String name) {
+		return prefix + (n++) + (name == null ? "" : "_" + name);
+	}
+
+	String source() {
+		final JavaOut out = new JavaOut();
+		out.line("package " + pkg + ";");
+		out.line("");
+		out.line("import java.math.BigInteger;");
+		out.line("import java.nio.ByteBuffer;");
+		out.line("import java.util.ArrayList;");
+		out.line("import java.util.List;");
+		out.line("import java.util.Map;");
+		out.line("");
+		out.line("import artlu.BitCodec;");
+		out.line("import artlu.CodecException;");
+		out.line("import artlu.CodecSupport;");
+		out.line("import artlu.DecodeSink;");
+		out.line("import artlu.Encoder;");
+		out.line("import artlu.Endian;");
+		if (metrics) out.line("import artlu.ExternalMetrics;");
+		out.line("import artlu.FieldLayout;");
+		out.line("import artlu.LayoutDecoder;");
+		if (metrics) out.line("import artlu.Metrics;");
+		out.line("import artlu.SinkDecoder;");
+		out.line("");
+		out.line("/**");
+		out.line(" * Generated codec for external " + external.name + ".");
+		out.line(" */");
+		out.open("public final class " + className + " implements LayoutDecoder, SinkDecoder, Encoder");
+		out.line("");
+		out.open("public String name()");
+		out.line("return " + Expr.javaLiteral(external.name) + ";");
+		out.close();
+		out.line("");
+		decodeMethod(out, "byte[]", "data.length");
+		out.line("");
+		decodeMethod(out, "ByteBuffer", "data.limit()");
+		out.line("");
+		offsetsMethod(out, "byte[]", "data.length");
+		out.line("");
+		offsetsMethod(out, "ByteBuffer", "data.limit()");
+		out.line("");
+		identifyMethod(out);
+		out.line("");
+		pushMethod(out);
+		out.line("");
+		out.open("public FieldLayout fieldLayout()");
+		out.line("return LAYOUT;");
+		out.close();
+		out.line("");
+		encodeMethod(out);
+		out.line("");
+		layoutConstant(out);
+		if (metrics) {
+			final StringBuilder labels = new StringBuilder();
+			for (final String b : branches) {
+				labels.append(labels.length() == 0 ? "" : ", ").append(Expr.javaLiteral(b));
+			}
+			out.line("private static final ExternalMetrics METRICS = Metrics.external(" + Expr.javaLiteral(external.name)
+					+ ", new String[] {" + labels + "});");
+		}
+		out.close();
+		return out.toString();
+	}
+
+	/**
+	 * Write the InMapDecoder class of an in_map, decoding the external straight into the record class.
+	 */
+	String inMapSource(final CopyPlan plan) {
+		this.plan = plan;
+		final String record = plan.internal.name;
+		final JavaOut out = new JavaOut();
+		out.line("package " + pkg + ";");
+		out.line("");
+		out.line("import java.math.BigInteger;");
+		out.line("import java.nio.charset.StandardCharsets;");
+		out.line("import java.util.ArrayList;");
+		out.line("import java.util.List;");
+		out.line("");
+		out.line("import artlu.BitCodec;");
+		out.line("import artlu.CodecException;");
+		out.line("import artlu.CodecSupport;");
+		out.line("import artlu.Endian;");
+		out.line("import artlu.InMapDecoder;");
+		out.line("import artlu.SinkDecoder;");
+		out.line("");
+		out.line("/**");
+		out.line(" * Generated decoder of in_map " + plan.mapping.name + ", external " + external.name + " to internal " + record + ".");
+		out.line(" */");
+		out.open("public final class " + SchemaCompiler.mapClassNameOf(plan.mapping.name, "InMap") + " implements InMapDecoder<" + record + ">");
+		out.line("");
+		if (external.properties.identifiedBy != null) {
+			out.line("private static final SinkDecoder CODEC = new " + className + "();");
+			out.line("");
+		}
+		mapMethods(out, plan);
+		out.open("public " + record + " newRecord()");
+		out.line("return new " + record + "();");
+		out.close();
+		out.line("");
+		this.dataLength = "data.length";
+		out.open("public int decode(final byte[] data, final int bitOffset, final " + record + " record)");
+		if (external.properties.identifiedBy != null) {
+			out.line("if (CODEC.identify(data, bitOffset) < 0) return -1;");
+		}
+		for (final Map.Entry<String, String> e : plan.records.entrySet()) {
+			out.line("if (record." + e.getKey() + " == null) record." + e.getKey() + " = new " + e.getValue() + "();");
+		}
+		final Symbols scope = new Symbols(null);
+		final Sink sink = new Sink() {
+			@Override
+			public void put(final JavaOut o, final String name, final String java) {
+				for (final CopyPlan.Copy c : plan.copiesOf(name)) {
+					o.line("record." + c.path + " = " + (c.repeated ? java : converted(c.field.type, c.external.type, java)) + ";");
+				}
+			}
+			@Override
+			public void absent(final JavaOut o, final String name) {
+			}
+			@Override
+			public String listType(final String name) {
+				final List<CopyPlan.Copy> copies = plan.copiesOf(name);
+				return copies.isEmpty() ? null : elementTypeOf(copies.get(0).field.type.element);
+			}
+			@Override
+			public String element(final String name, final String java) {
+				final CopyPlan.Copy c = plan.copiesOf(name).get(0);
+				return converted(c.field.type.element, c.external.type, java);
+			}
+		};
+		final Offset start = new Offset("bitOffset", 0);
+		Offset end = decodeElements(out, external.body, start, scope, sink);
+		end = decodeFraming(out, external.properties, start, end, scope);
+		out.line("return " + (end.base.equals("bitOffset") ? String.valueOf(end.constant) : end.java() + " - bitOffset") + ";");
+		out.close();
+		out.close();
+		return out.toString();
+	}
+
+	/**
+	 * Write the OutMapEncoder class of an out_map, encoding the external straight from the record class.
+	 */
+	String outMapSource(final CopyPlan plan) {
+		this.plan = plan;
+		final String record = plan.internal.name;
+		final JavaOut out = new JavaOut();
+		out.line("package " + pkg + ";");
+		out.line("");
+		out.line("import java.math.BigInteger;");
+		out.line("import java.util.List;");
+		out.line("");
+		out.line("import artlu.BitCodec;");
+		out.line("import artlu.CodecException;");
+		out.line("import artlu.CodecSupport;");
+		out.line("import artlu.Endian;");
+		out.line("import artlu.OutMapEncoder;");
+		out.line("");
+		out.line("/**");
+		out.line(" * Generated encoder of out_map " + plan.mapping.name + ", internal " + record + " to external " + external.name + ".");
+		out.line(" */");
+		out.open("public final class " + SchemaCompiler.mapClassNameOf(plan.mapping.name, "OutMap") + " implements OutMapEncoder<" + record + ">");
+		out.line("");
+		mapMethods(out, plan);
+		out.open("public BitCodec encode(final " + record + " record, final BitCodec codec)");
+		out.line("final int bitOffset = codec.bitLength();");
+		final Source source = new Source() {
+			@Override
+			public String get(final String name) {
+				final List<CopyPlan.Copy> copies = plan.copiesOf(name);
+				if (copies.isEmpty()) return "null";
+				final CopyPlan.Copy c = copies.get(0);
+				// a primitive is boxed only where an Object is needed, the optional check and non numeric fields
+				return (isUnboxed(c) ? "(Object) record." : "record.") + c.path;
+			}
+			@Override
+			public String value(final String name, final String type) {
+				final List<CopyPlan.Copy> copies = plan.copiesOf(name);
+				if (copies.isEmpty() || !isUnboxed(copies.get(0))) return null;
+				final CopyPlan.Copy c = copies.get(0);
+				return (type.equals(c.field.type.name) ? "" : "(" + type + ") ") + "record." + c.path;
+			}
+		};
+		final Symbols scope = new EncodeSymbols(null, source);
+		encodeElements(out, external.body, scope, source);
+		encodeFraming(out, external.properties, "bitOffset", scope, external.name);
+		out.line("return codec;");
+		out.close();
+		out.close();
+		return out.toString();
+	}
+
+	/**
+	 * Write the ProjectedDecoder class of a projection of the external.
+	 * @param projected the fields put in the record
+	 * @param filter null when every record is selected
+	 * @param filterText the filter as given
+	 */
+	String projectionSource(final List<String> projected, final Expr filter, final String filterText) {
+		for (final String name : projected) {
+			if (!fields.containsKey(name)) throw new CodecException("no field " + name + " in " + external.name);
+		}
+		wanted = new HashSet<>(projected);
+		if (filter != null) wanted.addAll(filter.idents());
+		final JavaOut out = new JavaOut();
+		out.line("package " + pkg + ";");
+		out.line("");
+		out.line("import java.math.BigInteger;");
+		out.line("import java.nio.ByteBuffer;");
+		out.line("import java.util.ArrayList;");
+		out.line("import java.util.Arrays;");
+		out.line("import java.util.Collections;");
+		out.line("import java.util.List;");
+		out.line("import java.util.Map;");
+		out.line("");
+		out.line("import artlu.BitCodec;");
+		out.line("import artlu.CodecException;");
+		out.line("import artlu.CodecSupport;");
+		out.line("import artlu.Endian;");
+		out.line("import artlu.ProjectedDecoder;");
+		out.line("");
+		out.line("/**");
+		out.line(" * Generated projection of external " + external.name + ".");
+		out.line(" */");
+		out.open("public final class " + SchemaCompiler.mapClassNameOf(external.name, "Projection") + " implements ProjectedDecoder");
+		out.line("");
+		final StringBuilder names = new StringBuilder();
+		for (final String name : projected) {
+			names.append(names.length() == 0 ? "" : ", ").append(Expr.javaLiteral(name));
+		}
+		out.line("private static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(" + names + "));");
+		out.line("");
+		out.open("public String name()");
+		out.line("return " + Expr.javaLiteral(external.name) + ";");
+		out.close();
+		out.line("");
+		out.open("public List<String> fields()");
+		out.line("return FIELDS;");
+		out.close();
+		out.line("");
+		out.open("public String filter()");
+		out.line("return " + (filter == null ? "null" : Expr.javaLiteral(filterText)) + ";");
+		out.close();
+		out.line("");
+		projectedMethod(out, "byte[]", "data.length", new HashSet<>(projected), filter);
+		out.line("");
+		projectedMethod(out, "ByteBuffer", "data.limit()", new HashSet<>(projected), filter);
+		out.line("");
+		framingMethod(out, "skip", "byte[]", "data.length");
+		out.line("");
+		framingMethod(out, "skip", "ByteBuffer", "data.limit()");
+		out.close();
+		return out.toString();
+	}
+
+	/**
+	 * Write the decode method of a projection. The identification and the filter are tested after the top
+	 * level element that decodes the last field they refer to.
+	 */
+	private void projectedMethod(final JavaOut out, final String dataType, final String dataLength, final Set<String> projected, final Expr filter) {
+		this.dataLength = dataLength;
+		out.open("public int decode(final " + dataType + " data, final int bitOffset, final Map<String, Object> record)");
+		final Symbols scope = new Symbols(null);
+		final Sink sink = new Sink() {
+			@Override
+			public void put(final JavaOut o, final String name, final String java) {
+				if (projected.contains(name)) o.line("record.put(" + Expr.javaLiteral(name) + ", " + java + ");");
+			}
+			@Override
+			public void absent(final JavaOut o, final String name) {
+			}
+			@Override
+			public String listType(final String name) {
+				return projected.contains(name) ? "Object" : null;
+			}
+		};
+		final List<Expr> conditions = new ArrayList<>();
+		if (external.properties.identifiedBy != null) conditions.add(external.properties.identifiedBy);
+		if (filter != null) conditions.add(filter);
+		final Offset start = new Offset("bitOffset", 0);
+		Offset end = start;
+		test(out, conditions, scope);
+		for (final Element e : external.body) {
+			end = decodeElements(out, Collections.singletonList(e), end, scope, sink);
+			test(out, conditions, scope);
+		}
+		end = decodeFraming(out, external.properties, start, end, scope);
+		if (!conditions.isEmpty()) {
+			throw new CodecException(conditions.get(0) + " of a projection of " + external.name
+					+ " refers to fields in a repeat_block, switched_set or conditional block");
+		}
+		out.line("return " + (end.base.equals("bitOffset") ? String.valueOf(end.constant) : end.java() + " - bitOffset") + ";");
+		out.close();
+	}
+
+	/**
+	 * Write the tests of the conditions whose fields are decoded and remove them.
+	 */
+	private static void test(final JavaOut out, final List<Expr> conditions, final Symbols scope) {
+		for (final Iterator<Expr> i = conditions.iterator(); i.hasNext();) {
+			final Expr c = i.next();
+			boolean decoded = true;
+			for (final String name : c.idents()) {
+				decoded &= scope.lookup(name) != null;
+			}
+			if (!decoded) continue;
+			out.line("if (!" + c.javaBoolean(scope) + ") return -1;");
+			i.remove();
+		}
+	}
+
+	/**
+	 * @return java type of a list element converted from an external field
+	 */
+	private static String elementTypeOf(final InternalType type) {
+		if (type.isPrimitive()) return boxedOf(type.name);
+		return "bigint".equals(type.name) ? "BigInteger" : "byte[]";
+	}
+
+	private static boolean isUnboxed(final CopyPlan.Copy c) {
+		return !c.repeated && !c.field.optional && c.field.type.isPrimitive();
+	}
+
+	private void mapMethods(final JavaOut out, final CopyPlan plan) {
+		out.open("public String name()");
+		out.line("return " + Expr.javaLiteral(plan.mapping.name) + ";");
+		out.close();
+		out.line("");
+		out.open("public String external()");
+		out.line("return " + Expr.javaLiteral(external.name) + ";");
+		out.close();
+		out.line("");
+		out.open("public Class<" + plan.internal.name + "> recordClass()");
+		out.line("return " + plan.internal.name + ".class;");
+		out.close();
+		out.line("");
+	}
+
+	/**
+	 * @param type of the internal field
+	 * @param externalType of the external field
+	 * @param java the decoded value
+	 * @return java of the value as the internal type
+	 */
+	private static String converted(final InternalType type, final String externalType, final String java) {
+		final String from = javaTypeOf(externalType);
+		if (type.isPrimitive()) {
+			if ("BigInteger".equals(from)) return java + "." + type.name + "Value()";
+			if ("String".equals(from)) return ("long".equals(type.name) ? "" : "(" + type.name + ") ") + "Long.parseLong(" + java + ")";
+			return from.equals(type.name) ? java : "(" + type.name + ") " + java;
+		}
+		if ("bigint".equals(type.name)) {
+			if ("String".equals(from)) return "new BigInteger(" + java + ")";
+			return "BigInteger".equals(from) ? java : "BigInteger.valueOf(" + java + ")";
+		}
+		return "byte[]".equals(from) ? java : java + ".getBytes(StandardCharsets.ISO_8859_1)";
+	}
+
+	private void decodeMethod(final JavaOut out, final String dataType, final String dataLength) {
+		this.dataLength = dataLength;
+		branch = 0;
+		out.open(measured(out, "int", "decode", "final " + dataType + " data, final int bitOffset, final Map<String, Object> record",
+				"data, bitOffset, record"));
+		final Symbols scope = new Symbols(null);
+		final Sink sink = new Sink() {
+			@Override
+			public void put(final JavaOut o, final String name, final String java) {
+				o.line("record.put(" + Expr.javaLiteral(name) + ", " + java + ");");
+			}
+			@Override
+			public void absent(final JavaOut o, final String name) {
+			}
+		};
+		final Offset start = new Offset("bitOffset", 0);
+		Offset end = decodeElements(out, external.body, start, scope, sink);
+		end = decodeFraming(out, external.properties, start, end, scope);
+		if (external.properties.identifiedBy != null) {
+			out.line("if (!" + external.properties.identifiedBy.javaBoolean(scope) + ") return -1;");
+		}
+		out.line("return " + (end.base.equals("bitOffset") ? String.valueOf(end.constant) : end.java() + " - bitOffset") + ";");
+		out.close();
+	}
+
+	/**
+	 * With metrics write a public method measuring a private one doing the work.
+	 * @param parameters
+	 * @param args the parameter names
+	 * @return the declaration of the method doing the work
+	 */
+	private String measured(final JavaOut out, final String type, final String name, final String parameters, final String args) {
+		if (!metrics) return "public " + type + " " + name + "(" + parameters + ")";
+		final String work = name + "Fields";
+		out.open("public " + type + " " + name + "(" + parameters + ")");
+		if ("encode".equals(name)) {
+			out.line("final int start = codec.bitLength();");
+			out.open("try");
+			out.line(work + "(" + args + ");");
+			out.orElse("catch (final RuntimeException e)");
+			out.line("throw METRICS.failed(e);");
+			out.close();
+			out.line("METRICS.encoded(codec.bitLength() - start);");
+			out.line("return codec;");
+		} else {
+			out.line("final long start = System.nanoTime();");
+			out.open("try");
+			out.line("return METRICS.decoded(" + work + "(" + args + "), start);");
+			out.orElse("catch (final RuntimeException e)");
+			out.line("throw METRICS.failed(e);");
+			out.close();
+		}
+		out.close();
+		out.line("");
+		return "private " + type + " " + work + "(" + parameters + ")";
+	}
+
+	/**
+	 * Count a branch taken in the metrics, when writing a decode method with metrics.
+	 * Every decode method counts the same branches in the same order.
+	 * @param label
+	 */
+	private void hit(final JavaOut out, final String label) {
+		if (!metrics || layout) return;
+		final int id = branch++;
+		if (id == branches.size()) branches.add(label);
+		out.line("METRICS.hit(" + id + ");");
+	}
+
+	/**
+	 * Write the offsets method of LayoutDecoder, a decode method that records where the fields are
+	 * and decodes only the fields that sizes, conditions and the identification refer to.
+	 */
+	private void offsetsMethod(final JavaOut out, final String dataType, final String dataLength) {
+		this.dataLength = dataLength;
+		layout = true;
+		out.open("public int offsets(final " + dataType + " data, final int bitOffset, final int[] offsets, final int[] sizes)");
+		final Symbols scope = new Symbols(null);
+		final Sink sink = new Sink() {
+			@Override
+			public void put(final JavaOut o, final String name, final String java) {
+			}
+			@Override
+			public void absent(final JavaOut o, final String name) {
+			}
+			@Override
+			public void at(final JavaOut o, final String name, final Offset at, final String size) {
+				final Integer i = layoutIndexes.get(name);
+				if (i == null) return;
+				if (conditionalDepth == 0 && at.base.equals("bitOffset")) staticOffsets[i] = (int) at.constant;
+				if (conditionalDepth == 0 && size.matches("\\d+")) staticSizes[i] = Integer.parseInt(size);
+				o.line("offsets[" + i + "] = " + (at.base.equals("bitOffset") ? String.valueOf(at.constant) : at.java() + " - bitOffset") + ";");
+				o.line("sizes[" + i + "] = " + size + ";");
+			}
+		};
+		final Offset start = new Offset("bitOffset", 0);
+		final JavaOut body = out.nested();
+		Offset end = decodeElements(body, external.body, start, scope, sink);
+		end = decodeFraming(body, external.properties, start, end, scope);
+		if (external.properties.identifiedBy == null && end.base.equals("bitOffset") && isStaticLayout()) {
+			out.line("System.arraycopy(STATIC_OFFSETS, 0, offsets, 0, " + staticOffsets.length + ");");
+			out.line("System.arraycopy(STATIC_SIZES, 0, sizes, 0, " + staticSizes.length + ");");
+			out.line("return " + end.constant + ";");
+			out.close();
+			layout = false;
+			return;
+		}
+		out.append(body);
+		if (external.properties.identifiedBy != null) {
+			out.line("if (!" + external.properties.identifiedBy.javaBoolean(scope) + ") return -1;");
+		}
+		out.line("return " + (end.base.equals("bitOffset") ? String.valueOf(end.constant) : end.java() + " - bitOffset") + ";");
+		out.close();
+		layout = false;
+	}
+
+	/**
+	 * @return true when every field of the layout has a static offset and size or is never present
+	 */
+	private boolean isStaticLayout() {
+		for (int i = 0; i < staticOffsets.length; i++) {
+			if ((staticOffsets[i] < 0 || staticSizes[i] < 0) && !neverPresent.contains(layoutFields.get(i))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the identify method of SinkDecoder, decoding only the fields the framing depends on.
+	 */
+	private void identifyMethod(final JavaOut out) {
+		framingMethod(out, "identify", "byte[]", "data.length");
+	}
+
+	/**
+	 * Write a method returning the size of a record, or -1 if it is not identified, decoding only the fields
+	 * the framing depends on.
+	 */
+	private void framingMethod(final JavaOut out, final String name, final String dataType, final String dataLength) {
+		this.dataLength = dataLength;
+		layout = true;
+		out.open("public int " + name + "(final " + dataType + " data, final int bitOffset)");
+		final Symbols scope = new Symbols(null);
+		final Sink sink = new Sink() {
+			@Override
+			public void put(final JavaOut o, final String name, final String java) {
+			}
+			@Override
+			public void absent(final JavaOut o, final String name) {
+			}
+		};
+		final Offset start = new Offset("bitOffset", 0);
+		Offset end = decodeElements(out, external.body, start, scope, sink);
+		end = decodeFraming(out, external.properties, start, end, scope);
+		if (external.properties.identifiedBy != null) {
+			out.line("if (!" + external.properties.identifiedBy.javaBoolean(scope) + ") return -1;");
+		}
+		out.line("return " + (end.base.equals("bitOffset") ? String.valueOf(end.constant) : end.java() + " - bitOffset") + ";");
+		out.close();
+		layout = false;
+	}
+
+	/**
+	 * Write the decode method of SinkDecoder. Byte aligned bytearray and ascii fields are passed to the sink
+	 * in place unless an expression refers to them.
+	 */
+	private void pushMethod(final JavaOut out) {
+		this.dataLength = "data.length";
+		push = true;
+		repeats = 0;
+		branch = 0;
+		out.open(measured(out, "int", "decode", "final byte[] data, final int bitOffset, final DecodeSink sink", "data, bitOffset, sink"));
+		if (external.properties.identifiedBy != null) {
+			out.line("if (identify(data, bitOffset) < 0) return -1;");
+		}
+		out.line("sink.beginRecord(" + Expr.javaLiteral(external.name) + ");");
+		final Symbols scope = new Symbols(null);
+		final Sink sink = new Sink() {
+			@Override
+			public void put(final JavaOut o, final String name, final String java) {
+				final String id = String.valueOf(fieldNames.indexOf(name));
+				switch (fields.get(name).type) {
+				case "byte":
+				case "short":
+				case "int":
+					o.line("sink.onInt(" + id + ", " + java + ");");
+					break;
+				case "long":
+					o.line("sink.onLong(" + id + ", " + java + ");");
+					break;
+				case "float":
+				case "double":
+					o.line("sink.onDouble(" + id + ", " + java + ");");
+					break;
+				case "bigint":
+					o.line("sink.onBigInteger(" + id + ", " + java + ");");
+					break;
+				case "bcd":
+					o.line("sink.onString(" + id + ", " + java + ");");
+					break;
+				default:
+					o.line("sink.onBytes(" + id + ", " + (isBytes(name) ? java + ", 0, " + java + ".length" : "CodecSupport.bytes(" + java + ", null), 0, " + java + ".length()") + ");");
+				}
+			}
+			@Override
+			public void absent(final JavaOut o, final String name) {
+				o.line("sink.onAbsent(" + fieldNames.indexOf(name) + ");");
+			}
+			@Override
+			public void at(final JavaOut o, final String name, final Offset at, final String size) {
+				if (inPlace(name)) {
+					o.line("CodecSupport.pushBytes(sink, " + fieldNames.indexOf(name) + ", data, " + at.java() + ", " + size + ");");
+				}
+			}
+		};
+		final Offset start = new Offset("bitOffset", 0);
+		Offset end = decodeElements(out, external.body, start, scope, sink);
+		end = decodeFraming(out, external.properties, start, end, scope);
+		final String n = local("n", null);
+		out.line("final int " + n + " = " + (end.base.equals("bitOffset") ? String.valueOf(end.constant) : end.java() + " - bitOffset") + ";");
+		out.line("sink.endRecord(" + n + ");");
+		out.line("return " + n + ";");
+		out.close();
+		push = false;
+	}
+
+	private boolean isBytes(final String name) {
+		return "bytearray".equals(fields.get(name).type);
+	}
+
+	/**
+	 * @return true for fields the push decoder passes in place instead of decoding
+	 */
+	private boolean inPlace(final String name) {
+		final String type = fields.get(name).type;
+		return push && ("bytearray".equals(type) || "ascii".equals(type)) && !referenced.contains(name);
+	}
+
+	private void layoutConstant(final JavaOut out) {
+		final Map<String, Field> byName = new HashMap<>();
+		fieldsOf(external.body, byName);
+		final StringBuilder fields = new StringBuilder();
+		final StringBuilder types = new StringBuilder();
+		final StringBuilder signed = new StringBuilder();
+		final StringBuilder endians = new StringBuilder();
+		boolean ordered = false;
+		for (int i = 0; i < layoutFields.size(); i++) {
+			final String sep = i == 0 ? "" : ", ";
+			final Field f = byName.get(layoutFields.get(i));
+			fields.append(sep).append(Expr.javaLiteral(f.name));
+			types.append(sep).append(Expr.javaLiteral(f.type));
+			signed.append(sep).append(f.signed);
+			final Endian endian = Endian.of(f.endian);
+			endians.append(sep).append("Endian.").append(endian);
+			ordered |= endian != Endian.BIG_ENDIAN;
+		}
+		out.line("private static final int[] STATIC_OFFSETS = {" + ints(staticOffsets) + "};");
+		out.line("private static final int[] STATIC_SIZES = {" + ints(staticSizes) + "};");
+		out.line("private static final FieldLayout LAYOUT = new FieldLayout(" + Expr.javaLiteral(external.name) + ",");
+		out.line("\t\tnew String[] {" + fields + "},");
+		out.line("\t\tnew String[] {" + types + "},");
+		out.line("\t\tnew boolean[] {" + signed + "},");
+		out.line("\t\t" + (ordered ? "new Endian[] {" + endians + "}" : "null") + ",");
+		out.line("\t\tSTATIC_OFFSETS,");
+		out.line("\t\tSTATIC_SIZES,");
+		final Expr.Binary tag = identifyingTag();
+		if (tag == null) {
+			out.line("\t\t-1, null);");
+		} else {
+			final Object value = ((Expr.Literal) tag.right).value;
+			out.line("\t\t" + layoutIndexes.get(((Expr.Ident) tag.left).name) + ", "
+					+ (value instanceof String ? Expr.javaLiteral((String) value) : "Long.valueOf(" + value + "L)") + ");");
+		}
+	}
+
+	/**
+	 * @return a field == literal term that the identified_by condition requires, of a field at a static offset
+	 * and size, null if there is none
+	 */
+	private Expr.Binary identifyingTag() {
+		final List<Expr> terms = new ArrayList<>();
+		if (external.properties.identifiedBy != null) conjunctsOf(external.properties.identifiedBy, terms);
+		for (final Expr e : terms) {
+			if (!(e instanceof Expr.Binary) || !"==".equals(((Expr.Binary) e).op)) continue;
+			Expr.Binary b = (Expr.Binary) e;
+			if (b.left instanceof Expr.Literal) b = new Expr.Binary("==", b.right, b.left);
+			if (!(b.left instanceof Expr.Ident) || !(b.right instanceof Expr.Literal)) continue;
+			final Integer i = layoutIndexes.get(((Expr.Ident) b.left).name);
+			if (i == null || staticOffsets[i] < 0 || staticSizes[i] < 0) continue;
+			final String type = fields.get(((Expr.Ident) b.left).name).type;
+			final Object value = ((Expr.Literal) b.right).value;
+			if (value instanceof Long ? isSwitchType(type) || "long".equals(type) : value instanceof String && "ascii".equals(type)) return b;
+		}
+		return null;
+	}
+
+	private Offset decodeElements(final JavaOut out, final List<Element> elements, final Offset at, final Symbols scope, final Sink sink) {
+		Offset o = at;
+		for (final Element e : elements) {
+			if (e instanceof Field) {
+				o = decodeField(out, (Field) e, o, scope, sink);
+			} else if (e instanceof Group) {
+				o = decodeGroup(out, (Group) e, o, scope, sink);
+			} else if (e instanceof Repeat) {
+				o = decodeRepeat(out, (Repeat) e, o, scope, sink);
+			} else if (e instanceof Switch) {
+				o = decodeSwitch(out, (Switch) e, o, scope, sink);
+			}
+		}
+		return o;
+	}
+
+	/**
+	 * Apply the size and terminator properties of a block that started at start.
+	 */
+	private Offset decodeFraming(final JavaOut out, final Properties p, final Offset start, final Offset end, final Symbols scope) {
+		Offset o = end;
+		final Expr bits = p.bitSize();
+		if (bits instanceof Expr.Literal) {
+			o = start.plus((Long) ((Expr.Literal) bits).value);
+		} else if (bits != null) {
+			final String v = local("p", null);
+			out.line("final int " + v + " = " + start.java() + " + (int) " + bits.java(scope) + ";");
+			o = new Offset(v, 0);
+		}
+		if (p.terminatedBy != null) {
+			final String v = local("p", null);
+			out.line("final int " + v + " = CodecSupport.afterTerminator(data, CodecSupport.terminatorOffset(data, " + o.java() + ", " + p.terminatedBy.java(scope) + "));");
+			o = new Offset(v, 0);
+		}
+		return o;
+	}
+
+	private Offset decodeField(final JavaOut out, final Field f, final Offset at, final Symbols scope, final Sink sink) {
+		final boolean skip = (layout || plan != null && plan.copiesOf(f.name).isEmpty() || wanted != null && !wanted.contains(f.name))
+				&& !referenced.contains(f.name) || inPlace(f.name);
+		final String type = javaTypeOf(f.type);
+		final String local = local("f", f.name);
+		final Expr bits = f.bits();
+		final boolean conditional = f.presentIf != null || f.optional;
+		String size = null;
+		Long constant = null;
+		if (bits instanceof Expr.Literal) {
+			constant = (Long) ((Expr.Literal) bits).value;
+			size = String.valueOf(constant);
+		} else if (bits != null) {
+			size = local("z", f.name);
+			out.line("final int " + size + " = (int) " + bits.java(scope) + ";");
+		}
+		if (!conditional) {
+			if (size == null) {
+				final String t = local("t", f.name);
+				out.line("final int " + t + " = CodecSupport.terminatorOffset(data, " + at.java() + ", " + f.terminatedBy.java(scope) + ");");
+				final String terminatedSize = t + " - (" + at.java() + ")";
+				sink.at(out, f.name, at, terminatedSize);
+				if (!skip) {
+					out.line("final " + type + " " + local + " = " + decodeCall(f, at.java(), terminatedSize) + ";");
+					sink.put(out, f.name, local);
+					scope.define(f.name, local, type);
+				}
+				final String p = local("p", null);
+				out.line("final int " + p + " = CodecSupport.afterTerminator(data, " + t + ");");
+				return new Offset(p, 0);
+			}
+			sink.at(out, f.name, at, size);
+			if (!skip) {
+				out.line("final " + type + " " + local + " = " + decodeCall(f, at.java(), size) + ";");
+				sink.put(out, f.name, local);
+				scope.define(f.name, local, type);
+			}
+			if (constant != null) return at.plus(constant);
+			final String p = local("p", null);
+			out.line("final int " + p + " = " + at.java() + " + " + size + ";");
+			return new Offset(p, 0);
+		}
+		if (isNever(f.presentIf)) {
+			if (layout) neverPresent.add(f.name);
+			if (!skip) {
+				out.line("final " + type + " " + local + " = " + defaultOf(type) + ";");
+				scope.define(f.name, local, type);
+			}
+			sink.absent(out, f.name);
+			return at;
+		}
+		if (size == null) throw new CodecException("field " + f.name + " can not be both conditional and terminated");
+		String condition = f.presentIf == null ? null : f.presentIf.javaBoolean(scope);
+		if (f.optional) {
+			final String fits = "(" + at.java() + " + " + size + " <= " + dataLength + " << 3)";
+			condition = condition == null ? fits : condition + " && " + fits;
+		}
+		final String c = local("c", f.name);
+		final String p = local("p", null);
+		out.line("final boolean " + c + " = " + condition + ";");
+		if (!skip) out.line(type + " " + local + " = " + defaultOf(type) + ";");
+		out.line("int " + p + " = " + at.java() + ";");
+		out.open("if (" + c + ")");
+		hit(out, (f.presentIf == null ? "optional " : "present if " + f.presentIf + " ") + f.name);
+		conditionalDepth++;
+		sink.at(out, f.name, at, size);
+		conditionalDepth--;
+		if (!skip) {
+			out.line(local + " = " + decodeCall(f, at.java(), size) + ";");
+			sink.put(out, f.name, local);
+		}
+		out.line(p + " += " + size + ";");
+		out.orElse("else");
+		sink.absent(out, f.name);
+		out.close();
+		if (!skip) scope.define(f.name, local, type);
+		return new Offset(p, 0);
+	}
+
+	/**
+	 * @return true when writing a projection and no field of a block is wanted or referenced
+	 */
+	private boolean isUnwanted(final List<Element> body) {
+		if (wanted == null) return false;
+		for (final String name : namesOf(body)) {
+			if (wanted.contains(name) || referenced.contains(name)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true for a present if condition that folded to false
+	 */
+	private static boolean isNever(final Expr presentIf) {
+		return presentIf != null && Boolean.FALSE.equals(presentIf.constantBoolean());
+	}
+
+	/**
+	 * Integer fields in a byte order, and big endian fields of 16, 32 or 64 bits which read through a byte
+	 * array view when the record puts them on a byte boundary, decode with their Endian.
+	 */
+	private String decodeCall(final Field f, final String at, final String size) {
+		final Endian endian = endianOf(f, size);
+		final boolean viewed = endian == Endian.BIG_ENDIAN && INTEGER_TYPES.contains(f.type) && !"bigint".equals(f.type)
+				&& ("16".equals(size) || "32".equals(size) || "64".equals(size));
+		final String order = endian != Endian.BIG_ENDIAN || viewed ? ", Endian." + endian : "";
+		return "BitCodec." + f.type + "Decode(data, " + at + ", " + size + ", " + f.signed + order + ")";
+	}
+
+	/**
+	 * @param size java expression of the field size
+	 * @return the byte order of a field
+	 * @throws CodecException if the field is not an integer or a constant size can not have the order
+	 */
+	private Endian endianOf(final Field f, final String size) {
+		final Endian endian = Endian.of(f.endian);
+		if (endian == Endian.BIG_ENDIAN) return endian;
+		if (!INTEGER_TYPES.contains(f.type)) throw new CodecException("field " + f.name + " of type " + f.type + " can not be " + endian.schemaName());
+		if (size.matches("\\d+")) {
+			try {
+				endian.check(Integer.parseInt(size), "bigint".equals(f.type));
+			} catch (final CodecException e) {
+				throw new CodecException("field " + f.name + ": " + e.getMessage());
+			}
+		}
+		return endian;
+	}
+
+	private Offset decodeGroup(final JavaOut out, final Group g, final Offset at, final Symbols scope, final Sink sink) {
+		if (g.presentIf == null && g.properties.bitSize() != null && g.properties.terminatedBy == null && isUnwanted(g.body)) {
+			// a block of a known size without wanted fields is stepped over
+			return decodeFraming(out, g.properties, at, at, scope);
+		}
+		if (g.presentIf == null) {
+			final Offset end = decodeElements(out, g.body, at, scope, sink);
+			return decodeFraming(out, g.properties, at, end, scope);
+		}
+		if (isNever(g.presentIf)) {
+			if (layout) neverPresent.addAll(namesOf(g.body));
+			for (final String name : namesOf(g.body)) {
+				sink.absent(out, name);
+			}
+			return at;
+		}
+		final String c = local("c", null);
+		final String p = local("p", null);
+		out.line("final boolean " + c + " = " + g.presentIf.javaBoolean(scope) + ";");
+		out.line("int " + p + " = " + at.java() + ";");
+		out.open("if (" + c + ")");
+		hit(out, "present if " + g.presentIf);
+		final Symbols inner = new Symbols(scope);
+		conditionalDepth++;
+		final Offset end = decodeFraming(out, g.properties, at, decodeElements(out, g.body, at, inner, sink), inner);
+		conditionalDepth--;
+		out.line(p + " = " + end.java() + ";");
+		out.orElse("else");
+		for (final String name : namesOf(g.body)) {
+			sink.absent(out, name);
+		}
+		out.close();
+		return new Offset(p, 0);
+	}
+
+	/**
+	 * @return the field of a repeat_block of a single unconditional big endian byte, short, int or long field of
+	 * a constant size, which is decoded and encoded in bulk, null for other repeat_blocks
+	 */
+	private static Field packedOf(final Repeat r) {
+		if (r.body.size() != 1 || !(r.body.get(0) instanceof Field)) return null;
+		final Field f = (Field) r.body.get(0);
+		if (f.presentIf != null || f.optional || f.encodeValue != null || f.endian != null && Endian.of(f.endian) != Endian.BIG_ENDIAN) return null;
+		final int width;
+		switch (f.type) {
+		case "byte": width = Byte.SIZE; break;
+		case "short": width = Short.SIZE; break;
+		case "int": width = Integer.SIZE; break;
+		case "long": width = Long.SIZE; break;
+		default: return null;
+		}
+		final Expr bits = f.bits();
+		if (!(bits instanceof Expr.Literal)) return null;
+		final long size = (Long) ((Expr.Literal) bits).value;
+		return size > 0 && size <= width ? f : null;
+	}
+
+	private Offset decodeRepeat(final JavaOut out, final Repeat r, final Offset at, final Symbols scope, final Sink sink) {
+		final String count = local("n", null);
+		final String i = local("i", null);
+		final String p = local("p", null);
+		if (isUnwanted(r.body)) {
+			final Offset end = decodeElements(out.nested(), r.body, new Offset(p, 0), new Symbols(scope), sink);
+			if (end.base.equals(p)) {
+				// a repeat_block of a static body without wanted fields is stepped over
+				final Long n = r.count.constantLong();
+				if (n != null && n >= 0) return at.plus(n * end.constant);
+				out.line("final int " + p + " = " + at.java() + " + (int) " + r.count.java(scope) + " * " + end.constant + ";");
+				return new Offset(p, 0);
+			}
+		}
+		out.line("final int " + count + " = (int) " + r.count.java(scope) + ";");
+		final int repeatId = repeats++;
+		final Field packed = layout || push ? null : packedOf(r);
+		if (packed != null && sink.listType(packed.name) != null) return decodePacked(out, r, packed, at, count, sink);
+		if (push) out.line("sink.beginRepeat(" + repeatId + ", " + count + ");");
+		final Map<String, String> lists = new LinkedHashMap<>();
+		for (final String name : layout || push ? Collections.<String>emptySet() : namesOf(r.body)) {
+			final String type = sink.listType(name);
+			if (type == null) continue;
+			final String l = local("l", name);
+			lists.put(name, l);
+			out.line("final List<" + type + "> " + l + " = new ArrayList<>(" + count + ");");
+		}
+		out.line("int " + p + " = " + at.java() + ";");
+		out.open("for (int " + i + " = 0; " + i + " < " + count + "; " + i + "++)");
+		final Sink listSink = new Sink() {
+			@Override
+			public void put(final JavaOut o, final String name, final String java) {
+				if (push) sink.put(o, name, java);
+				else if (lists.containsKey(name)) o.line(lists.get(name) + ".add(" + sink.element(name, java) + ");");
+			}
+			@Override
+			public void absent(final JavaOut o, final String name) {
+				if (push) sink.absent(o, name);
+				else if (lists.containsKey(name)) o.line(lists.get(name) + ".add(null);");
+			}
+			@Override
+			public String listType(final String name) {
+				return sink.listType(name) == null ? null : "Object";
+			}
+			@Override
+			public void at(final JavaOut o, final String name, final Offset at, final String size) {
+				if (push) sink.at(o, name, at, size);
+			}
+		};
+		final Offset end = decodeElements(out, r.body, new Offset(p, 0), new Symbols(scope), listSink);
+		out.line(p + " = " + end.java() + ";");
+		out.close();
+		if (push) out.line("sink.endRepeat(" + repeatId + ");");
+		for (final Map.Entry<String, String> e : lists.entrySet()) {
+			sink.put(out, e.getKey(), e.getValue());
+		}
+		final Long n = r.count.constantLong();
+		if (n != null && n >= 0 && end.base.equals(p)) return at.plus(n * end.constant);
+		return new Offset(p, 0);
+	}
+
+	/**
+	 * Decode a repeat_block of one integer field with a single BitCodec unpack call into an array.
+	 */
+	private Offset decodePacked(final JavaOut out, final Repeat r, final Field f, final Offset at, final String count, final Sink sink) {
+		final String type = javaTypeOf(f.type);
+		final String array = "long".equals(type) ? "long" : "int";
+		final long size = (Long) ((Expr.Literal) f.bits()).value;
+		final String v = local("v", f.name);
+		final String l = local("l", f.name);
+		final String i = local("i", null);
+		out.line("final " + array + "[] " + v + " = new " + array + "[" + count + "];");
+		out.line("BitCodec." + array + "Unpack(data, " + at.java() + ", " + size + ", " + f.signed + ", " + v + ", 0, " + count + ");");
+		out.line("final List<" + sink.listType(f.name) + "> " + l + " = new ArrayList<>(" + count + ");");
+		out.open("for (int " + i + " = 0; " + i + " < " + count + "; " + i + "++)");
+		final String element = v + "[" + i + "]";
+		out.line(l + ".add(" + sink.element(f.name, type.equals(array) ? element : "(" + type + ") " + element) + ");");
+		out.close();
+		sink.put(out, f.name, l);
+		final Long n = r.count.constantLong();
+		if (n != null && n >= 0) return at.plus(n * size);
+		final String p = local("p", null);
+		out.line("final int " + p + " = " + at.java() + " + " + count + " * " + size + ";");
+		return new Offset(p, 0);
+	}
+
+	private Offset decodeSwitch(final JavaOut out, final Switch s, final Offset at, final Symbols scope, final Sink sink) {
+		final Offset prefixEnd = decodeElements(out, s.prefix, at, scope, sink);
+		final Set<String> all = namesOf(Arrays.<Element>asList(s));
+		all.removeAll(namesOf(s.prefix));
+		final String p = local("p", null);
+		out.line("final int " + p + ";");
+		cases(out, s, scope, c -> {
+			hit(out, "switched_set(" + s.discriminator + ") " + (c == s.defaultCase ? "default" : "case " + c.value));
+			decodeCase(out, c, prefixEnd, p, scope, sink, all);
+		});
+		return decodeFraming(out, s.properties, at, new Offset(p, 0), scope);
+	}
+
+	/**
+	 * Write the case selection of a switched_set. Literal case values of an integral or string discriminator
+	 * become a java switch, compiled to a table, lookup or hash switch; other cases are tested in order.
+	 * Without a default case an unmatched discriminator throws.
+	 * @param body writes the body of a case
+	 */
+	private void cases(final JavaOut out, final Switch s, final Symbols scope, final Consumer<Case> body) {
+		final Expr discriminator = new Expr.Ident(s.discriminator);
+		final String type = discriminator.javaType(scope);
+		final Map<String, Case> labels = labelsOf(s, type);
+		if (labels != null) {
+			out.open("switch (" + discriminator.java(scope) + ")");
+			for (final Map.Entry<String, Case> e : labels.entrySet()) {
+				out.open("case " + e.getKey() + ":");
+				body.accept(e.getValue());
+				out.line("break;");
+				out.close();
+			}
+			out.open("default:");
+		} else {
+			boolean first = true;
+			for (final Case c : s.cases) {
+				final String test = new Expr.Binary("==", discriminator, c.value).java(scope);
+				if (first) {
+					out.open("if (" + test + ")");
+				} else {
+					out.orElse("else if (" + test + ")");
+				}
+				first = false;
+				body.accept(c);
+			}
+			if (!first) out.orElse("else");
+			else out.open("");
+		}
+		if (s.defaultCase != null) {
+			body.accept(s.defaultCase);
+		} else {
+			out.line("throw new CodecException(\"no case of switched_set(" + s.discriminator + ") in " + external.name + " for \" + " + discriminator.java(scope) + ");");
+		}
+		out.close();
+		if (labels != null) out.close();
+	}
+
+	/**
+	 * @return java case labels in case order, null when the cases can not be a java switch
+	 */
+	private Map<String, Case> labelsOf(final Switch s, final String type) {
+		final Map<String, Case> labels = new LinkedHashMap<>();
+		for (final Case c : s.cases) {
+			if (!(c.value instanceof Expr.Literal)) return null;
+			final Object v = ((Expr.Literal) c.value).value;
+			final String label;
+			if ("String".equals(type) && v instanceof String) {
+				label = Expr.javaLiteral((String) v);
+			} else if (v instanceof Long && isSwitchType(type)) {
+				final long x = (Long) v;
+				// a value outside the range of the discriminator never matches
+				if (x < minOf(type) || x > maxOf(type)) continue;
+				label = String.valueOf(x);
+			} else {
+				return null;
+			}
+			// the first of equal cases wins, like in the if chain
+			labels.putIfAbsent(label, c);
+		}
+		return labels.isEmpty() ? null : labels;
+	}
+
+	private void decodeCase(final JavaOut out, final Case c, final Offset at, final String p, final Symbols scope, final Sink sink, final Set<String> all) {
+		conditionalDepth++;
+		final Offset end = decodeElements(out, c.body, at, new Symbols(scope), sink);
+		conditionalDepth--;
+		final Set<String> missing = new LinkedHashSet<>(all);
+		missing.removeAll(namesOf(c.body));
+		for (final String name : missing) {
+			sink.absent(out, name);
+		}
+		out.line(p + " = " + end.java() + ";");
+	}
+
+	private void encodeMethod(final JavaOut out) {
+		out.open(measured(out, "BitCodec", "encode", "final Map<String, ?> record, final BitCodec codec", "record, codec"));
+		out.line("final int bitOffset = codec.bitLength();");
+		final Source source = new Source() {
+			@Override
+			public String get(final String name) {
+				return "record.get(" + Expr.javaLiteral(name) + ")";
+			}
+		};
+		final Symbols scope = new EncodeSymbols(null, source);
+		encodeElements(out, external.body, scope, source);
+		encodeFraming(out, external.properties, "bitOffset", scope, external.name);
+		out.line("return codec;");
+		out.close();
+	}
+
+	private void encodeElements(final JavaOut out, final List<Element> elements, final Symbols scope, final Source source) {
+		for (final Element e : elements) {
+			if (e instanceof Field) {
+				encodeField(out, (Field) e, scope, source);
+			} else if (e instanceof Group) {
+				encodeGroup(out, (Group) e, scope, source);
+			} else if (e instanceof Repeat) {
+				encodeRepeat(out, (Repeat) e, scope, source);
+			} else if (e instanceof Switch) {
+				encodeSwitch(out, (Switch) e, scope, source);
+			}
+		}
+	}
+
+	private void encodeFraming(final JavaOut out, final Properties p, final String start, final Symbols scope, final String name) {
+		final Expr bits = p.bitSize();
+		if (bits != null) {
+			final String padding = p.paddedWith == null ? "0" : p.paddedWith.java(scope);
+			out.line("CodecSupport.pad(codec, " + start + " + (int) " + bits.java(scope) + ", " + padding + ", " + Expr.javaLiteral(name) + ");");
+		}
+		if (p.terminatedBy != null) {
+			out.line("codec.addIntEncode((int) " + p.terminatedBy.java(scope) + ", 8, 0, false);");
+		}
+	}
+
+	private String valueOf(final Field f, final String type, final Source source, final Symbols scope) {
+		final String name = Expr.javaLiteral(f.name);
+		if (Expr.isNumeric(type)) {
+			if (f.encodeValue != null) return "(" + type + ") " + f.encodeValue.java(scope);
+			final String direct = source.value(f.name, type);
+			if (direct != null) return direct;
+			return "CodecSupport.number(" + source.get(f.name) + ", " + name + ")." + type + "Value()";
+		}
+		switch (type) {
+		case "BigInteger": return "CodecSupport.bigint(" + source.get(f.name) + ", " + name + ")";
+		case "byte[]": return "CodecSupport.bytes(" + source.get(f.name) + ", " + name + ")";
+		default: return "CodecSupport.string(" + source.get(f.name) + ", " + name + ")";
+		}
+	}
+
+	private void encodeField(final JavaOut out, final Field f, final Symbols scope, final Source source) {
+		final String type = javaTypeOf(f.type);
+		final String local = local("f", f.name);
+		final boolean conditional = f.presentIf != null || f.optional;
+		if (conditional) {
+			String condition = f.presentIf == null ? null : f.presentIf.javaBoolean(scope);
+			if (f.optional) {
+				final String has = "(" + source.get(f.name) + " != null)";
+				condition = condition == null ? has : condition + " && " + has;
+			}
+			out.line(type + " " + local + " = " + defaultOf(type) + ";");
+			out.open("if (" + condition + ")");
+			out.line(local + " = " + valueOf(f, type, source, scope) + ";");
+		} else {
+			out.line("final " + type + " " + local + " = " + valueOf(f, type, source, scope) + ";");
+		}
+		final Expr bits = f.bits();
+		final String size;
+		if (bits != null) {
+			size = bits instanceof Expr.Literal ? bits.java(scope) : "(int) " + bits.java(scope);
+		} else if ("byte[]".equals(type)) {
+			size = local + ".length * 8";
+		} else {
+			size = local + ".length() * 8";
+		}
+		out.line(encodeCall(f, local, size, scope));
+		if (bits == null) {
+			out.line("codec.addIntEncode((int) " + f.terminatedBy.java(scope) + ", 8, 0, false);");
+		}
+		if (conditional) out.close();
+		scope.define(f.name, local, type);
+	}
+
+	private String encodeCall(final Field f, final String local, final String size, final Symbols scope) {
+		final String call = "codec.add" + methodTypeOf(f.type) + "Encode(" + local + ", " + size;
+		if ("bcd".equals(f.type) || "ascii".equals(f.type)) {
+			final String padding = f.paddedWith == null ? "0" : "(int) " + f.paddedWith.java(scope);
+			return call + ", " + padding + ", " + f.signed + ", " + ("right".equals(f.align) ? 0 : 1) + ");";
+		}
+		final Endian endian = endianOf(f, size);
+		return call + ", 0, " + f.signed + (endian == Endian.BIG_ENDIAN ? "" : ", Endian." + endian) + ");";
+	}
+
+	private void encodeGroup(final JavaOut out, final Group g, final Symbols scope, final Source source) {
+		final String start = local("s", null);
+		out.line("final int " + start + " = codec.bitLength();");
+		if (g.presentIf == null) {
+			encodeElements(out, g.body, scope, source);
+			encodeFraming(out, g.properties, start, scope, g.kind);
+			return;
+		}
+		out.open("if (" + g.presentIf.javaBoolean(scope) + ")");
+		final Symbols inner = new EncodeSymbols(scope);
+		encodeElements(out, g.body, inner, source);
+		encodeFraming(out, g.properties, start, inner, g.kind);
+		out.close();
+	}
+
+	private void encodeRepeat(final JavaOut out, final Repeat r, final Symbols scope, final Source source) {
+		final String count = local("n", null);
+		final String i = local("i", null);
+		out.line("final int " + count + " = (int) " + r.count.java(scope) + ";");
+		final Field packed = packedOf(r);
+		if (packed != null) {
+			// collected into an array and written with a single BitCodec pack call
+			final String type = javaTypeOf(packed.type);
+			final String array = "long".equals(type) ? "long" : "int";
+			final String name = Expr.javaLiteral(packed.name);
+			final String l = local("l", packed.name);
+			final String v = local("v", packed.name);
+			out.line("final List<?> " + l + " = CodecSupport.list(" + source.get(packed.name) + ", " + name + ");");
+			out.line("final " + array + "[] " + v + " = new " + array + "[" + count + "];");
+			out.open("for (int " + i + " = 0; " + i + " < " + count + "; " + i + "++)");
+			out.line(v + "[" + i + "] = CodecSupport.number(" + l + ".get(" + i + "), " + name + ")." + type + "Value();");
+			out.close();
+			final String method = "long".equals(type) ? "addLongPack" : "addIntPack";
+			out.line("codec." + method + "(" + v + ", 0, " + count + ", " + ((Expr.Literal) packed.bits()).value + ", " + packed.signed + ");");
+			return;
+		}
+		final Map<String, String> lists = new LinkedHashMap<>();
+		for (final String name : namesOf(r.body)) {
+			final String l = local("l", name);
+			lists.put(name, l);
+			out.line("final List<?> " + l + " = CodecSupport.list(" + source.get(name) + ", " + Expr.javaLiteral(name) + ");");
+		}
+		out.open("for (int " + i + " = 0; " + i + " < " + count + "; " + i + "++)");
+		final Source listSource = new Source() {
+			@Override
+			public String get(final String name) {
+				return lists.get(name) + ".get(" + i + ")";
+			}
+		};
+		encodeElements(out, r.body, new EncodeSymbols(scope), listSource);
+		out.close();
+	}
+
+	private void encodeSwitch(final JavaOut out, final Switch s, final Symbols scope, final Source source) {
+		final String start = local("s", null);
+		out.line("final int " + start + " = codec.bitLength();");
+		encodeElements(out, s.prefix, scope, source);
+		cases(out, s, scope, c -> encodeElements(out, c.body, new EncodeSymbols(scope), source));
+		encodeFraming(out, s.properties, start, scope, "switched_set(" + s.discriminator + ")");
+	}
+
+	/**
+	 * Write the record class of an internal or event, with a public field per internal field.
+	 * @throws CodecException if it extends or refers to an internal that is not declared
+	 */
+	static String internalSource(final Schema schema, final InternalDef d, final String pkg) {
+		final Map<String, InternalField> all = CopyPlan.fieldsOf(schema, d.name);
+		final JavaOut out = new JavaOut();
+		out.line("package " + pkg + ";");
+		out.line("");
+		out.line("/**");
+		out.line(" * Generated record of " + (d.event ? "event " : "internal ") + d.name + ".");
+		out.line(" */");
+		out.open("public class " + d.name + (d.extended == null ? "" : " extends " + d.extended));
+		for (final InternalField f : d.fields) {
+			out.line("public " + javaTypeOf(schema, f.type, f.optional, f.name + " of " + d.name) + " " + f.name + ";");
+		}
+		out.line("");
+		out.line("@Override");
+		out.open("public String toString()");
+		final StringBuilder fields = new StringBuilder();
+		for (final InternalField f : all.values()) {
+			final String value = "bytearray".equals(f.type.name) ? "java.util.Arrays.toString(" + f.name + ")" : f.name;
+			fields.append(fields.length() == 0 ? " + \"" : " + \", ").append(f.name).append("=\" + ").append(value);
+		}
+		out.line("return " + Expr.javaLiteral(d.name + "[") + fields + " + \"]\";");
+		out.close();
+		out.close();
+		return out.toString();
+	}
+
+	/**
+	 * @param optional boxes primitives
+	 * @param what the field, for errors
+	 * @return java type of an internal field
+	 */
+	static String javaTypeOf(final Schema schema, final InternalType type, final boolean optional, final String what) {
+		switch (type.name) {
+		case "bigint":
+			return "java.math.BigInteger";
+		case "bytearray":
+			return "byte[]";
+		case "list":
+			return "java.util.List<" + javaTypeOf(schema, type.element, true, what) + ">";
+		case "map":
+			return "java.util.Map<" + javaTypeOf(schema, type.element, true, what) + ", " + javaTypeOf(schema, type.value, true, what) + ">";
+		default:
+			if (type.isPrimitive()) return optional ? boxedOf(type.name) : type.name;
+			if (!schema.internals.containsKey(type.name)) throw new CodecException("unknown internal " + type.name + " of field " + what);
+			return type.name;
+		}
+	}
+
+	static String boxedOf(final String primitive) {
+		switch (primitive) {
+		case "int": return "Integer";
+		default: return Character.toUpperCase(primitive.charAt(0)) + primitive.substring(1);
+		}
+	}
+
+	/**
+	 * A bit offset in generated code, a java expression base plus a constant.
+	 */
+	static final class Offset {
+		final String base;
+		final long constant;
+
+		Offset(final String base, final long constant) {
+			this.base = base;
+			this.constant = constant;
+		}
+
+		Offset plus(final long n) {
+			return new Offset(base, constant + n);
+		}
+
+		String java() {
+			return constant == 0 ? base : base + " + " + constant;
+		}
+	}
+
+	/**
+	 * Field symbols of the generated code, nested for blocks.
+	 */
+	static class Symbols implements Expr.Scope {
+		private final Symbols parent;
+		private final Map<String, Expr.Symbol> symbols = new HashMap<>();
+
+		Symbols(final Symbols parent) {
+			this.parent = parent;
+		}
+
+		void define(final String name, final String java, final String type) {
+			symbols.put(name, new Expr.Symbol(java, type));
+		}
+
+		Expr.Symbol lookup(final String name) {
+			final Expr.Symbol s = symbols.get(name);
+			return s != null || parent == null ? s : parent.lookup(name);
+		}
+
+		@Override
+		public Expr.Symbol resolve(final String name) {
+			final Expr.Symbol s = lookup(name);
+			if (s == null) throw new CodecException("unknown field " + name);
+			return s;
+		}
+	}
+
+	/**
+	 * Encoder symbols, fields not yet encoded are read from the record.
+	 */
+	static final class EncodeSymbols extends Symbols {
+		private final Source record;
+
+		EncodeSymbols(final Symbols parent, final Source record) {
+			super(parent);
+			this.record = record;
+		}
+
+		/**
+		 * Nested symbols reading from the record of the parent.
+		 */
+		EncodeSymbols(final Symbols parent) {
+			this(parent, ((EncodeSymbols) parent).record);
+		}
+
+		@Override
+		public Expr.Symbol resolve(final String name) {
+			final Expr.Symbol s = lookup(name);
+			if (s != null) return s;
+			final String direct = record.value(name, "long");
+			if (direct != null) return new Expr.Symbol(direct, "long");
+			return new Expr.Symbol("CodecSupport.number(" + record.get(name) + ", " + Expr.javaLiteral(name) + ").longValue()", "long");
+		}
+	}
+
+	/**
+	 * Where decoded values go, the record map or the lists of a repeat_block.
+	 */
+	interface Sink {
+		void put(JavaOut out, String name, String java);
+		void absent(JavaOut out, String name);
+
+		/**
+		 * Location of a present field, size is a java int expression.
+		 */
+		default void at(final JavaOut out, final String name, final Offset at, final String size) {
+		}
+
+		/**
+		 * @return element type of the list collecting a field of a repeat_block, null to not collect it
+		 */
+		default String listType(final String name) {
+			return "Object";
+		}
+
+		/**
+		 * @return java of a decoded value of a field of a repeat_block as an element of its list
+		 */
+		default String element(final String name, final String java) {
+			return java;
+		}
+	}
+
+	/**
+	 * Where values to encode come from, the record map or the lists of a repeat_block.
+	 */
+	interface Source {
+		String get(String name);
+
+		/**
+		 * @param type java type of a numeric field
+		 * @return java of the value as type read without boxing, null when it is not available so
+		 */
+		default String value(final String name, final String type) {
+			return null;
+		}
+	}
+
+	static String javaTypeOf(final String type) {
+		switch (type) {
+		case "byte":
+		case "short":
+		case "int":
+		case "long":
+		case "float":
+		case "double":
+			return type;
+		case "bigint":
+			return "BigInteger";
+		case "bytearray":
+			return "byte[]";
+		case "bcd":
+		case "ascii":
+			return "String";
+		default:
+			throw new CodecException("unsupported field type " + type);
+		}
+	}
+
+	static String defaultOf(final String javaType) {
+		if ("boolean".equals(javaType)) return "false";
+		return Expr.isNumeric(javaType) ? "0" : "null";
+	}
+
+	static String methodTypeOf(final String type) {
+		switch (type) {
+		case "bytearray": return "ByteArray";
+		default: return Character.toUpperCase(type.charAt(0)) + type.substring(1);
+		}
+	}
+
+	/**
+	 * @return names of the fields outside repeat_blocks, the fields a RecordView can address
+	 */
+	static Set<String> layoutNamesOf(final List<Element> elements) {
+		final Set<String> result = new LinkedHashSet<>();
+		for (final Element e : elements) {
+			if (e instanceof Field) {
+				result.add(((Field) e).name);
+			} else if (e instanceof Group) {
+				result.addAll(layoutNamesOf(((Group) e).body));
+			} else if (e instanceof Switch) {
+				final Switch s = (Switch) e;
+				result.addAll(layoutNamesOf(s.prefix));
+				for (final Case c : s.cases) {
+					result.addAll(layoutNamesOf(c.body));
+				}
+				if (s.defaultCase != null) result.addAll(layoutNamesOf(s.defaultCase.body));
+			}
+		}
+		return result;
+	}
+
+	static void fieldsOf(final List<Element> elements, final Map<String, Field> result) {
+		for (final Element e : elements) {
+			if (e instanceof Field) {
+				result.putIfAbsent(((Field) e).name, (Field) e);
+			} else if (e instanceof Group) {
+				fieldsOf(((Group) e).body, result);
+			} else if (e instanceof Repeat) {
+				fieldsOf(((Repeat) e).body, result);
+			} else if (e instanceof Switch) {
+				final Switch s = (Switch) e;
+				fieldsOf(s.prefix, result);
+				for (final Case c : s.cases) {
+					fieldsOf(c.body, result);
+				}
+				if (s.defaultCase != null) fieldsOf(s.defaultCase.body, result);
+			}
+		}
+	}
+
+	/**
+	 * @return names of the fields that decoding an external depends on, referred to by sizes, conditions,
+	 * discriminators, terminators or the identification
+	 */
+	static Set<String> referencedNames(final External external) {
+		final Set<String> result = new HashSet<>();
+		referencedNames(external.properties, result);
+		if (external.properties.identifiedBy != null) result.addAll(external.properties.identifiedBy.idents());
+		referencedNames(external.body, result);
+		return result;
+	}
+
+	private static void referencedNames(final Properties p, final Set<String> result) {
+		for (final Expr e : Arrays.asList(p.dynamicSize, p.terminatedBy)) {
+			if (e != null) result.addAll(e.idents());
+		}
+	}
+
+	private static void referencedNames(final List<Element> elements, final Set<String> result) {
+		for (final Element e : elements) {
+			if (e instanceof Field) {
+				final Field f = (Field) e;
+				for (final Expr x : Arrays.asList(f.bitSize, f.dynamicSize, f.presentIf, f.terminatedBy)) {
+					if (x != null) result.addAll(x.idents());
+				}
+			} else if (e instanceof Group) {
+				final Group g = (Group) e;
+				if (g.presentIf != null) result.addAll(g.presentIf.idents());
+				referencedNames(g.properties, result);
+				referencedNames(g.body, result);
+			} else if (e instanceof Repeat) {
+				final Repeat r = (Repeat) e;
+				result.addAll(r.count.idents());
+				referencedNames(r.body, result);
+			} else if (e instanceof Switch) {
+				final Switch s = (Switch) e;
+				result.add(s.discriminator);
+				referencedNames(s.properties, result);
+				referencedNames(s.prefix, result);
+				for (final Case c : s.cases) {
+					result.addAll(c.value.idents());
+					referencedNames(c.body, result);
+				}
+				if (s.defaultCase != null) referencedNames(s.defaultCase.body, result);
+			}
+		}
+	}
+
+	private static void conjunctsOf(final Expr e, final List<Expr> result) {
+		if (e instanceof Expr.Binary && "&&".equals(((Expr.Binary) e).op)) {
+			conjunctsOf(((Expr.Binary) e).left, result);
+			conjunctsOf(((Expr.Binary) e).right, result);
+		} else {
+			result.add(e);
+		}
+	}
+
+	private static boolean isSwitchType(final String type) {
+		return "byte".equals(type) || "short".equals(type) || "int".equals(type);
+	}
+
+	private static long minOf(final String type) {
+		switch (type) {
+		case "byte": return Byte.MIN_VALUE;
+		case "short": return Short.MIN_VALUE;
+		default: return Integer.MIN_VALUE;
+		}
+	}
+
+	private static long maxOf(final String type) {
+		switch (type) {
+		case "byte": return Byte.MAX_VALUE;
+		case "short": return Short.MAX_VALUE;
+		default: return Integer.MAX_VALUE;
+		}
+	}
+
+	private static String ints(final int[] values) {
+		final StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) buf.append(", ");
+			buf.append(values[i]);
+		}
+		return buf.toString();
+	}
+
+	static Set<String> namesOf(final List<Element> elements) {
+		final Set<String> result = new LinkedHashSet<>();
+		for (final Element e : elements) {
+			if (e instanceof Field) {
+				result.add(((Field) e).name);
+			} else if (e instanceof Group) {
+				result.addAll(namesOf(((Group) e).body));
+			} else if (e instanceof Repeat) {
+				result.addAll(namesOf(((Repeat) e).body));
+			} else if (e instanceof Switch) {
+				final Switch s = (Switch) e;
+				result.addAll(namesOf(s.prefix));
+				for (final Case c : s.cases) {
+					result.addAll(namesOf(c.body));
+				}
+				if (s.defaultCase != null) result.addAll(namesOf(s.defaultCase.body));
+			}
+		}
+		return result;
+	}
+}
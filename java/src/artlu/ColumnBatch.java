@@ -0,0 +1,490 @@
+package artlu;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decodes records of one external into reusable column vectors, one per field outside repeat_blocks.
+ * byte, short and int fields go to int[], long and bigint fields to long[], float and double fields to double[],
+ * bytearray, ascii and bcd fields to offset and data arrays. Each column has a validity bitmap, a field that is
+ * absent in a record, through present if, optional or a switched_set case, is null in that row.
+ * The arrays are kept between batches, clear() starts a new batch.
+ * Columns can be exported in the Arrow columnar layout, little endian buffers with an lsb first validity bitmap.
+ * Not thread safe.
+ * @author anderse
+ *
+ */
+public final class ColumnBatch implements DecodeSink {
+
+	private final SinkDecoder decoder;
+	private final int capacity;
+	private final List<Column> columns = new ArrayList<>();
+	/**
+	 * column by schema field id, null for fields without a column
+	 */
+	private final Column[] byFieldId;
+	private int size;
+	private int repeatDepth;
+
+	/**
+	 * @param schema
+	 * @param external
+	 * @param capacity max records per batch
+	 */
+	public ColumnBatch(final CompiledSchema schema, final String external, final int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+		this.decoder = schema.sinkDecoder(external);
+		this.capacity = capacity;
+		this.byFieldId = new Column[schema.fieldNames().size()];
+		final FieldLayout layout = ((LayoutDecoder) decoder).fieldLayout();
+		for (int i = 0; i < layout.size(); i++) {
+			final Column c = Column.of(layout.field(i), layout.type(i), capacity);
+			columns.add(c);
+			byFieldId[schema.fieldId(layout.field(i))] = c;
+		}
+	}
+
+	/**
+	 * Decode records until the batch is full or the data ends.
+	 * @param data
+	 * @param bitOffset where the first record starts
+	 * @return bit offset after the last record decoded
+	 * @throws CodecException if a record is not of this external
+	 */
+	public int decode(final byte[] data, final int bitOffset) {
+		final int end = data.length * BitCodec.BYTE_SIZE;
+		int pos = bitOffset;
+		while (size < capacity && end - pos >= BitCodec.BYTE_SIZE) {
+			final int n = decoder.decode(data, pos, this);
+			if (n <= 0) throw new CodecException("no record of " + decoder.name() + " at bit " + pos);
+			pos += n;
+		}
+		return pos;
+	}
+
+	/**
+	 * Start a new batch, the column arrays are reused.
+	 */
+	public void clear() {
+		size = 0;
+		for (final Column c : columns) {
+			c.clear();
+		}
+	}
+
+	/**
+	 * @return records in the batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	public List<Column> columns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	/**
+	 * @param field
+	 * @return the column of the field
+	 * @throws CodecException if the field has no column
+	 */
+	public Column column(final String field) {
+		for (final Column c : columns) {
+			if (c.name.equals(field)) return c;
+		}
+		throw new CodecException("no column " + field + " in " + decoder.name());
+	}
+
+	@Override
+	public void beginRecord(final String external) {
+		repeatDepth = 0;
+	}
+
+	@Override
+	public void endRecord(final int bitLength) {
+		size++;
+		for (final Column c : columns) {
+			c.fill(size);
+		}
+	}
+
+	@Override
+	public void beginRepeat(final int repeatId, final int count) {
+		repeatDepth++;
+	}
+
+	@Override
+	public void endRepeat(final int repeatId) {
+		repeatDepth--;
+	}
+
+	private Column columnOf(final int fieldId) {
+		return repeatDepth > 0 ? null : byFieldId[fieldId];
+	}
+
+	@Override
+	public void onInt(final int fieldId, final int value) {
+		final Column c = columnOf(fieldId);
+		if (c != null) c.setLong(size, value);
+	}
+
+	@Override
+	public void onLong(final int fieldId, final long value) {
+		final Column c = columnOf(fieldId);
+		if (c != null) c.setLong(size, value);
+	}
+
+	@Override
+	public void onDouble(final int fieldId, final double value) {
+		final Column c = columnOf(fieldId);
+		if (c != null) c.setDouble(size, value);
+	}
+
+	@Override
+	public void onBytes(final int fieldId, final byte[] buffer, final int offset, final int length) {
+		final Column c = columnOf(fieldId);
+		if (c != null) c.setBytes(size, buffer, offset, length);
+	}
+
+	@Override
+	public void onString(final int fieldId, final String value) {
+		final byte[] b = value.getBytes(StandardCharsets.ISO_8859_1);
+		onBytes(fieldId, b, 0, b.length);
+	}
+
+	@Override
+	public void onBigInteger(final int fieldId, final BigInteger value) {
+		onLong(fieldId, value.longValue());
+	}
+
+	/**
+	 * A column vector with its validity bitmap.
+	 */
+	public abstract static class Column {
+		final String name;
+		final String type;
+		final long[] validity;
+		/**
+		 * rows written, present or null
+		 */
+		int size;
+		int nullCount;
+
+		Column(final String name, final String type, final int capacity) {
+			this.name = name;
+			this.type = type;
+			this.validity = new long[(capacity + Long.SIZE - 1) / Long.SIZE];
+		}
+
+		static Column of(final String name, final String type, final int capacity) {
+			switch (type) {
+			case "byte":
+			case "short":
+			case "int":
+				return new IntColumn(name, type, capacity);
+			case "long":
+			case "bigint":
+				return new LongColumn(name, type, capacity);
+			case "float":
+			case "double":
+				return new DoubleColumn(name, type, capacity);
+			default:
+				return new BytesColumn(name, type, capacity);
+			}
+		}
+
+		public String name() {
+			return name;
+		}
+
+		/**
+		 * @return the artlu field type
+		 */
+		public String type() {
+			return type;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int nullCount() {
+			return nullCount;
+		}
+
+		public boolean isNull(final int row) {
+			return (validity[row >>> 6] & (1L << row)) == 0;
+		}
+
+		/**
+		 * @return validity bits, lsb first, set for present rows
+		 */
+		public long[] validity() {
+			return validity;
+		}
+
+		void clear() {
+			Arrays.fill(validity, 0, (size + Long.SIZE - 1) / Long.SIZE, 0L);
+			size = 0;
+			nullCount = 0;
+		}
+
+		/**
+		 * Null the rows up to row that were not written.
+		 */
+		void fill(final int rows) {
+			while (size < rows) {
+				setNull(size);
+				size++;
+				nullCount++;
+			}
+		}
+
+		void present(final int row) {
+			validity[row >>> 6] |= 1L << row;
+			size = row + 1;
+		}
+
+		abstract void setNull(int row);
+
+		void setLong(final int row, final long value) {
+			throw new CodecException("column " + name + " of type " + type + " is not an integer");
+		}
+
+		void setDouble(final int row, final double value) {
+			throw new CodecException("column " + name + " of type " + type + " is not a float");
+		}
+
+		void setBytes(final int row, final byte[] buffer, final int offset, final int length) {
+			throw new CodecException("column " + name + " of type " + type + " is not a bytearray");
+		}
+
+		/**
+		 * @return the Arrow type of the column
+		 */
+		public abstract String arrowType();
+
+		/**
+		 * @return the Arrow buffers of the column, validity and values, with offsets before the values for
+		 * variable width columns, little endian and padded to 8 bytes
+		 */
+		public abstract ByteBuffer[] arrowBuffers();
+
+		ByteBuffer arrowValidity() {
+			final ByteBuffer b = arrowBuffer((size + Long.SIZE - 1) / Long.SIZE * Long.BYTES);
+			for (int i = 0; i < (size + Long.SIZE - 1) / Long.SIZE; i++) {
+				b.putLong(validity[i]);
+			}
+			return b.flip();
+		}
+
+		static ByteBuffer arrowBuffer(final int bytes) {
+			return ByteBuffer.allocate((bytes + 7) & ~7).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + name + "[" + size + ", " + nullCount + " null]";
+		}
+	}
+
+	public static final class IntColumn extends Column {
+		private final int[] values;
+
+		IntColumn(final String name, final String type, final int capacity) {
+			super(name, type, capacity);
+			values = new int[capacity];
+		}
+
+		public int get(final int row) {
+			return values[row];
+		}
+
+		/**
+		 * @return the values, null rows are 0
+		 */
+		public int[] values() {
+			return values;
+		}
+
+		@Override
+		void setNull(final int row) {
+			values[row] = 0;
+		}
+
+		@Override
+		void setLong(final int row, final long value) {
+			values[row] = (int) value;
+			present(row);
+		}
+
+		@Override
+		public String arrowType() {
+			return "int32";
+		}
+
+		@Override
+		public ByteBuffer[] arrowBuffers() {
+			final ByteBuffer b = arrowBuffer(size * Integer.BYTES);
+			b.asIntBuffer().put(values, 0, size);
+			return new ByteBuffer[] {arrowValidity(), b};
+		}
+	}
+
+	public static final class LongColumn extends Column {
+		private final long[] values;
+
+		LongColumn(final String name, final String type, final int capacity) {
+			super(name, type, capacity);
+			values = new long[capacity];
+		}
+
+		public long get(final int row) {
+			return values[row];
+		}
+
+		/**
+		 * @return the values, null rows are 0
+		 */
+		public long[] values() {
+			return values;
+		}
+
+		@Override
+		void setNull(final int row) {
+			values[row] = 0;
+		}
+
+		@Override
+		void setLong(final int row, final long value) {
+			values[row] = value;
+			present(row);
+		}
+
+		@Override
+		public String arrowType() {
+			return "int64";
+		}
+
+		@Override
+		public ByteBuffer[] arrowBuffers() {
+			final ByteBuffer b = arrowBuffer(size * Long.BYTES);
+			b.asLongBuffer().put(values, 0, size);
+			return new ByteBuffer[] {arrowValidity(), b};
+		}
+	}
+
+	public static final class DoubleColumn extends Column {
+		private final double[] values;
+
+		DoubleColumn(final String name, final String type, final int capacity) {
+			super(name, type, capacity);
+			values = new double[capacity];
+		}
+
+		public double get(final int row) {
+			return values[row];
+		}
+
+		/**
+		 * @return the values, null rows are 0
+		 */
+		public double[] values() {
+			return values;
+		}
+
+		@Override
+		void setNull(final int row) {
+			values[row] = 0;
+		}
+
+		@Override
+		void setDouble(final int row, final double value) {
+			values[row] = value;
+			present(row);
+		}
+
+		@Override
+		public String arrowType() {
+			return "float64";
+		}
+
+		@Override
+		public ByteBuffer[] arrowBuffers() {
+			final ByteBuffer b = arrowBuffer(size * Double.BYTES);
+			b.asDoubleBuffer().put(values, 0, size);
+			return new ByteBuffer[] {arrowValidity(), b};
+		}
+	}
+
+	/**
+	 * Variable width column, the bytes of row i are data[offsets[i]] up to data[offsets[i + 1]].
+	 */
+	public static final class BytesColumn extends Column {
+		private final int[] offsets;
+		private byte[] data;
+
+		BytesColumn(final String name, final String type, final int capacity) {
+			super(name, type, capacity);
+			offsets = new int[capacity + 1];
+			data = new byte[capacity * 8];
+		}
+
+		public byte[] get(final int row) {
+			return Arrays.copyOfRange(data, offsets[row], offsets[row + 1]);
+		}
+
+		public String getString(final int row) {
+			return new String(data, offsets[row], offsets[row + 1] - offsets[row], StandardCharsets.ISO_8859_1);
+		}
+
+		/**
+		 * @return size() + 1 offsets into data
+		 */
+		public int[] offsets() {
+			return offsets;
+		}
+
+		public byte[] data() {
+			return data;
+		}
+
+		@Override
+		void setNull(final int row) {
+			offsets[row + 1] = offsets[row];
+		}
+
+		@Override
+		void setBytes(final int row, final byte[] buffer, final int offset, final int length) {
+			final int start = offsets[row];
+			if (start + length > data.length) data = Arrays.copyOf(data, Math.max(2 * data.length, start + length));
+			System.arraycopy(buffer, offset, data, start, length);
+			offsets[row + 1] = start + length;
+			present(row);
+		}
+
+		@Override
+		public String arrowType() {
+			return "bytearray".equals(type) ? "binary" : "utf8";
+		}
+
+		@Override
+		public ByteBuffer[] arrowBuffers() {
+			final ByteBuffer o = arrowBuffer((size + 1) * Integer.BYTES);
+			o.asIntBuffer().put(offsets, 0, size + 1);
+			final ByteBuffer d = arrowBuffer(offsets[size]);
+			d.put(data, 0, offsets[size]).rewind();
+			return new ByteBuffer[] {arrowValidity(), o, d};
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package artlu;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The loaded codecs of a compiled schema.
+ * Externals are available as decoders and encoders by name, decoder declarations as decoders
+ * selecting among their externals, in_maps and out_maps of declared internals as decoders and encoders of the
+ * classes generated for the internals.
+ * A compiled schema and its decoders and encoders are immutable and can be shared between threads.
+ * Record views, readers and writers keep the state of the record at hand and are used by one thread at a time.
+ * @author anderse
+ *
+ */
+public final class CompiledSchema {
+
+	private final Map<String, byte[]> classes;
+	private final Map<String, String> codecClasses;
+	private final Map<String, List<String>> decoderExternals;
+	private final List<String> fieldNames;
+	private final Map<String, EncoderDeclaration> encoderDeclarations;
+	private final Map<String, String> inMapClasses;
+	private final Map<String, String> outMapClasses;
+	private final Map<String, String> internalClasses;
+	private final ClassLoader loader;
+	private final Map<String, Integer> fieldIds = new LinkedHashMap<>();
+	private final Map<String, Object> codecs = new LinkedHashMap<>();
+	private final Map<String, Decoder> decoders = new LinkedHashMap<>();
+	private final Map<String, InMapDecoder<?>> inMaps = new LinkedHashMap<>();
+	private final Map<String, OutMapEncoder<?>> outMaps = new LinkedHashMap<>();
+
+	/**
+	 * @param classes class files by binary class name
+	 * @param codecClasses codec class name by external name
+	 * @param decoderExternals external names by decoder name
+	 * @param fieldNames field names by field id
+	 * @param encoderDeclarations by encoder name
+	 * @param inMapClasses in map decoder class name by in_map name
+	 * @param outMapClasses out map encoder class name by out_map name
+	 * @param internalClasses record class name by internal or event name
+	 */
+	CompiledSchema(final Map<String, byte[]> classes, final Map<String, String> codecClasses,
+			final Map<String, List<String>> decoderExternals, final List<String> fieldNames,
+			final Map<String, EncoderDeclaration> encoderDeclarations, final Map<String, String> inMapClasses,
+			final Map<String, String> outMapClasses, final Map<String, String> internalClasses) {
+		this(CompiledSchema.class.getClassLoader(), classes, codecClasses, decoderExternals, fieldNames, encoderDeclarations,
+				inMapClasses, outMapClasses, internalClasses);
+	}
+
+	/**
+	 * @param parent loads the runtime classes, and the generated classes when classes is empty
+	 * @param classes class files by binary class name, empty when the generated classes are on the class path
+	 * @param codecClasses codec class name by external name
+	 * @param decoderExternals external names by decoder name
+	 * @param fieldNames field names by field id
+	 * @param encoderDeclarations by encoder name
+	 * @param inMapClasses in map decoder class name by in_map name
+	 * @param outMapClasses out map encoder class name by out_map name
+	 * @param internalClasses record class name by internal or event name
+	 */
+	CompiledSchema(final ClassLoader parent, final Map<String, byte[]> classes, final Map<String, String> codecClasses,
+			final Map<String, List<String>> decoderExternals, final List<String> fieldNames,
+			final Map<String, EncoderDeclaration> encoderDeclarations, final Map<String, String> inMapClasses,
+			final Map<String, String> outMapClasses, final Map<String, String> internalClasses) {
+		this.classes = Collections.unmodifiableMap(new LinkedHashMap<>(classes));
+		this.codecClasses = Collections.unmodifiableMap(new LinkedHashMap<>(codecClasses));
+		this.decoderExternals = Collections.unmodifiableMap(new LinkedHashMap<>(decoderExternals));
+		this.fieldNames = Collections.unmodifiableList(new ArrayList<>(fieldNames));
+		this.encoderDeclarations = Collections.unmodifiableMap(new LinkedHashMap<>(encoderDeclarations));
+		this.inMapClasses = Collections.unmodifiableMap(new LinkedHashMap<>(inMapClasses));
+		this.outMapClasses = Collections.unmodifiableMap(new LinkedHashMap<>(outMapClasses));
+		this.internalClasses = Collections.unmodifiableMap(new LinkedHashMap<>(internalClasses));
+		for (int i = 0; i < fieldNames.size(); i++) {
+			fieldIds.put(fieldNames.get(i), i);
+		}
+		loader = classes.isEmpty() ? parent : new GeneratedClassLoader(parent, this.classes);
+		for (final Map.Entry<String, String> e : codecClasses.entrySet()) {
+			codecs.put(e.getKey(), instance(e.getValue()));
+		}
+		for (final Map.Entry<String, String> e : inMapClasses.entrySet()) {
+			inMaps.put(e.getKey(), (InMapDecoder<?>) instance(e.getValue()));
+		}
+		for (final Map.Entry<String, String> e : outMapClasses.entrySet()) {
+			outMaps.put(e.getKey(), (OutMapEncoder<?>) instance(e.getValue()));
+		}
+		for (final Map.Entry<String, List<String>> e : decoderExternals.entrySet()) {
+			final List<SinkDecoder> ds = new ArrayList<>();
+			for (final String name : e.getValue()) {
+				ds.add((SinkDecoder) codecs.get(name));
+			}
+			decoders.put(e.getKey(), new SelectingDecoder(e.getKey(), ds));
+		}
+	}
+
+	/**
+	 * Load a schema precompiled by SchemaPrecompiler from the class path of this class.
+	 * @param name of the schema, its file name without .artlu
+	 * @return
+	 * @throws CodecException if the schema is not on the class path or was precompiled by another version
+	 */
+	public static CompiledSchema precompiled(final String name) {
+		return precompiled(name, CompiledSchema.class.getClassLoader());
+	}
+
+	/**
+	 * Load a schema precompiled by SchemaPrecompiler. The codecs are plain classes of the class loader, nothing
+	 * is parsed or compiled, so neither a JDK nor Clojure is needed and the classes can be archived by AppCDS or
+	 * built into a native image.
+	 * @param name of the schema, its file name without .artlu
+	 * @param loader has the precompiled classes and descriptor
+	 * @return
+	 * @throws CodecException if the schema is not on the class path or was precompiled by another version
+	 */
+	public static CompiledSchema precompiled(final String name, final ClassLoader loader) {
+		final String resource = descriptorOf(name);
+		try (InputStream in = loader.getResourceAsStream(resource)) {
+			if (in == null) throw new CodecException("no precompiled schema " + name + ", " + resource + " is not on the class path");
+			return SchemaCache.readEntry(new DataInputStream(in), keyOf(name), loader);
+		} catch (final IOException e) {
+			throw new CodecException("can not read precompiled schema " + name, e);
+		}
+	}
+
+	/**
+	 * @return the class path resource describing a precompiled schema
+	 */
+	static String descriptorOf(final String name) {
+		return "META-INF/artlu/" + name + ".codecs";
+	}
+
+	/**
+	 * @return the key of the descriptor of a precompiled schema, a runtime only loads schemas precompiled for
+	 * its version of the generated code
+	 */
+	static String keyOf(final String name) {
+		return "precompiled/" + SchemaCompiler.VERSION + "/" + name;
+	}
+
+	private Object instance(final String className) {
+		try {
+			return loader.loadClass(className).getDeclaredConstructor().newInstance();
+		} catch (final ReflectiveOperationException ex) {
+			throw new CodecException("can not load codec " + className, ex);
+		}
+	}
+
+	/**
+	 * @param name a decoder declaration or an external
+	 * @return
+	 */
+	public Decoder decoder(final String name) {
+		final Decoder d = decoders.get(name);
+		if (d != null) return d;
+		final Object codec = codecs.get(name);
+		if (codec == null) throw new CodecException("unknown decoder " + name);
+		return (Decoder) codec;
+	}
+
+	/**
+	 * @param name a decoder declaration or an external
+	 * @return the decoder pushing fields to a DecodeSink
+	 */
+	public SinkDecoder sinkDecoder(final String name) {
+		return (SinkDecoder) decoder(name);
+	}
+
+	/**
+	 * @param field
+	 * @return the id of the field in DecodeSink calls, the same in all externals
+	 */
+	public int fieldId(final String field) {
+		final Integer id = fieldIds.get(field);
+		if (id == null) throw new CodecException("unknown field " + field);
+		return id;
+	}
+
+	/**
+	 * @return field names by field id
+	 */
+	public List<String> fieldNames() {
+		return fieldNames;
+	}
+
+	/**
+	 * @param name an external
+	 * @return
+	 */
+	public Encoder encoder(final String name) {
+		final Object codec = codecs.get(name);
+		if (codec == null) throw new CodecException("unknown encoder " + name);
+		return (Encoder) codec;
+	}
+
+	/**
+	 * @param name an in_map of a declared internal
+	 * @return the decoder of the external of the in_map into records of the class generated for the internal
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> InMapDecoder<T> inMap(final String name) {
+		final InMapDecoder<?> d = inMaps.get(name);
+		if (d == null) throw new CodecException("unknown in_map " + name + " or its internal is not declared");
+		return (InMapDecoder<T>) d;
+	}
+
+	/**
+	 * @param name an out_map of a declared internal
+	 * @return the encoder of records of the class generated for the internal to the external of the out_map
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> OutMapEncoder<T> outMap(final String name) {
+		final OutMapEncoder<?> e = outMaps.get(name);
+		if (e == null) throw new CodecException("unknown out_map " + name + " or its internal is not declared");
+		return (OutMapEncoder<T>) e;
+	}
+
+	/**
+	 * @param name an internal or event
+	 * @return the class generated for it
+	 */
+	public Class<?> internalClass(final String name) {
+		final String className = internalClasses.get(name);
+		if (className == null) throw new CodecException("unknown internal " + name);
+		try {
+			return loader.loadClass(className);
+		} catch (final ClassNotFoundException e) {
+			throw new CodecException("can not load internal " + className, e);
+		}
+	}
+
+	/**
+	 * @param name an encoder declaration or an external
+	 * @param out
+	 * @return a new writer of records to out, framed as the encoder declaration says
+	 */
+	public RecordWriter writer(final String name, final WritableByteChannel out) {
+		return writer(name, out, RecordWriter.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param name an encoder declaration or an external
+	 * @param out
+	 * @param bufferSize bytes buffered between writes to out
+	 * @return a new writer of records to out, framed as the encoder declaration says
+	 */
+	public RecordWriter writer(final String name, final WritableByteChannel out, final int bufferSize) {
+		final EncoderDeclaration d = encoderDeclarations.get(name);
+		if (d == null) return new RecordWriter(name, Collections.singletonList(encoder(name)), 0, new byte[0], out, bufferSize);
+		final List<Encoder> encoders = new ArrayList<>();
+		for (final String external : d.externals) {
+			encoders.add(encoder(external));
+		}
+		return new RecordWriter(name, encoders, d.blockSize, d.terminator, out, bufferSize);
+	}
+
+	/**
+	 * @param name an external
+	 * @return a new view over records of the external, bind it to a record before reading fields
+	 */
+	public RecordView view(final String name) {
+		final Object codec = codecs.get(name);
+		if (codec == null) throw new CodecException("unknown external " + name);
+		return new RecordView((LayoutDecoder) codec);
+	}
+
+	/**
+	 * @return class files by binary class name
+	 */
+	public Map<String, byte[]> classes() {
+		return classes;
+	}
+
+	/**
+	 * @return codec class name by external name
+	 */
+	public Map<String, String> codecClasses() {
+		return codecClasses;
+	}
+
+	/**
+	 * @return external names by decoder name
+	 */
+	public Map<String, List<String>> decoderExternals() {
+		return decoderExternals;
+	}
+
+	/**
+	 * @return encoder declarations by name
+	 */
+	Map<String, EncoderDeclaration> encoderDeclarations() {
+		return encoderDeclarations;
+	}
+
+	/**
+	 * @return in map decoder class name by in_map name
+	 */
+	Map<String, String> inMapClasses() {
+		return inMapClasses;
+	}
+
+	/**
+	 * @return out map encoder class name by out_map name
+	 */
+	Map<String, String> outMapClasses() {
+		return outMapClasses;
+	}
+
+	/**
+	 * @return record class name by internal name
+	 */
+	Map<String, String> internalClasses() {
+		return internalClasses;
+	}
+
+	/**
+	 * Defines generated classes from their class files.
+	 */
+	static final class GeneratedClassLoader extends ClassLoader {
+		private final Map<String, byte[]> classes;
+
+		GeneratedClassLoader(final ClassLoader parent, final Map<String, byte[]> classes) {
+			super(parent);
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(final String name) throws ClassNotFoundException {
+			final byte[] b = classes.get(name);
+			if (b == null) throw new ClassNotFoundException(name);
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package artlu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import artlu.Schema.Case;
+import artlu.Schema.Element;
+import artlu.Schema.External;
+import artlu.Schema.Field;
+import artlu.Schema.Group;
+import artlu.Schema.InMap;
+import artlu.Schema.InternalDef;
+import artlu.Schema.InternalField;
+import artlu.Schema.InternalType;
+import artlu.Schema.Mapping;
+import artlu.Schema.Repeat;
+import artlu.Schema.Switch;
+
+/**
+ * The field copies of an in_map or out_map between its external and the generated class of its internal,
+ * resolved when the schema is compiled so the generated code copies fields without looking up names.
+ * Explicit i: and e: mappings and emit_field come first, then the records of nested internals filled through
+ * using, then automatic matching pairs the remaining fields by name, ignoring case and underscores unless
+ * use_external_names asks for the names as they are.
+ * @author anderse
+ *
+ */
+final class CopyPlan {
+
+	/**
+	 * One copy between an external field and a field of the record or of a record nested in it.
+	 */
+	static final class Copy {
+		/**
+		 * java path of the internal field from the record, a.b for field b of record field a
+		 */
+		final String path;
+		final InternalField field;
+		final Field external;
+		/**
+		 * the external field is in a repeat_block and the internal field is a list
+		 */
+		final boolean repeated;
+
+		Copy(final String path, final InternalField field, final Field external, final boolean repeated) {
+			this.path = path;
+			this.field = field;
+			this.external = external;
+			this.repeated = repeated;
+		}
+	}
+
+	final Mapping mapping;
+	final External external;
+	final InternalDef internal;
+	/**
+	 * true for an in_map, external to internal
+	 */
+	final boolean in;
+	/**
+	 * copies by external field name
+	 */
+	final Map<String, List<Copy>> copies = new LinkedHashMap<>();
+	/**
+	 * internal of the nested records by path, the records an in_map creates before it copies
+	 */
+	final Map<String, String> records = new LinkedHashMap<>();
+
+	private final Map<String, Field> fields = new HashMap<>();
+	private final Map<String, Integer> depths = new HashMap<>();
+
+	private CopyPlan(final Mapping mapping, final External external, final InternalDef internal, final boolean in) {
+		this.mapping = mapping;
+		this.external = external;
+		this.internal = internal;
+		this.in = in;
+		CodecWriter.fieldsOf(external.body, fields);
+		depthsOf(external.body, 0, depths);
+	}
+
+	/**
+	 * @param schema
+	 * @param mapping an in_map or out_map
+	 * @return the plan, null when the internal of the mapping is not declared in the schema
+	 * @throws CodecException if a mapping refers to unknown fields or fields of incompatible types
+	 */
+	static CopyPlan of(final Schema schema, final Mapping mapping) {
+		final InternalDef internal = mapping.internal == null ? null : schema.internals.get(mapping.internal);
+		if (internal == null) return null;
+		final boolean in = mapping instanceof InMap;
+		final External external = schema.externals.get(mapping.external);
+		if (external == null) throw new CodecException("unknown external " + mapping.external + " in " + kindOf(in) + " " + mapping.name);
+		final CopyPlan plan = new CopyPlan(mapping, external, internal, in);
+		plan.resolve(schema, mapping, "", new ArrayList<>());
+		return plan;
+	}
+
+	private static String kindOf(final boolean in) {
+		return in ? "in_map" : "out_map";
+	}
+
+	/**
+	 * @return the copies of an external field, empty if it is not mapped
+	 */
+	List<Copy> copiesOf(final String name) {
+		final List<Copy> result = copies.get(name);
+		return result == null ? Collections.<Copy>emptyList() : result;
+	}
+
+	private void resolve(final Schema schema, final Mapping m, final String prefix, final List<String> visited) {
+		if (visited.contains(m.name)) throw new CodecException("recursive using of in_map " + m.name);
+		visited.add(m.name);
+		final Map<String, InternalField> targets = fieldsOf(schema, m.internal);
+		final Set<String> done = new HashSet<>();
+		for (final String[] f : m.fieldMappings) {
+			add(m, prefix, targets, f[0], f[1], done);
+		}
+		for (final String[] e : m.emits) {
+			if (in) add(m, prefix, targets, e[0], e[1], done);
+			else add(m, prefix, targets, e[1], e[0], done);
+		}
+		for (final Map.Entry<String, String> u : m.usings.entrySet()) {
+			final InternalField target = targets.get(u.getKey());
+			if (target == null || !target.type.isRecord()) {
+				throw new CodecException("using in " + m.name + " needs a field of an internal type, not " + u.getKey());
+			}
+			final InMap nested = schema.inMaps.get(u.getValue());
+			if (nested == null) throw new CodecException("unknown in_map " + u.getValue() + " in " + m.name);
+			if (!external.name.equals(nested.external) || !target.type.name.equals(nested.internal)) {
+				throw new CodecException("in_map " + nested.name + " does not map external " + external.name + " to internal "
+						+ target.type.name + " of field " + u.getKey() + " in " + m.name);
+			}
+			records.put(prefix + target.name, target.type.name);
+			done.add(target.name);
+			resolve(schema, nested, prefix + target.name + ".", visited);
+		}
+		if (m.automatic) {
+			final Map<String, Field> byName = new HashMap<>();
+			for (final Field f : fields.values()) {
+				byName.putIfAbsent(normal(m, f.name), f);
+			}
+			for (final InternalField target : targets.values()) {
+				final Field source = byName.get(normal(m, target.name));
+				if (done.contains(target.name) || source == null || !convertible(target.type, source)) continue;
+				if ((!in || isRepeated(source)) && !copiesOf(source.name).isEmpty()) continue;
+				copy(prefix, target, source);
+			}
+		}
+		visited.remove(m.name);
+	}
+
+	private static String normal(final Mapping m, final String name) {
+		return m.useExternalNames ? name : name.replace("_", "").toLowerCase(Locale.ROOT);
+	}
+
+	private void add(final Mapping m, final String prefix, final Map<String, InternalField> targets, final String internalName,
+			final String externalName, final Set<String> done) {
+		final InternalField target = targets.get(internalName);
+		if (target == null) throw new CodecException("unknown field " + internalName + " of internal " + m.internal + " in " + m.name);
+		final Field source = fields.get(externalName);
+		if (source == null) throw new CodecException("unknown field " + externalName + " of external " + external.name + " in " + m.name);
+		if (!convertible(target.type, source)) {
+			throw new CodecException("field " + externalName + " " + source.type + (isRepeated(source) ? " in a repeat_block" : "")
+					+ " does not map to " + internalName + " " + target.type + " in " + m.name);
+		}
+		if ((!in || isRepeated(source)) && !copiesOf(externalName).isEmpty()) {
+			throw new CodecException("field " + externalName + " is mapped twice in " + m.name);
+		}
+		copy(prefix, target, source);
+		done.add(internalName);
+	}
+
+	private void copy(final String prefix, final InternalField target, final Field source) {
+		copies.computeIfAbsent(source.name, k -> new ArrayList<>()).add(new Copy(prefix + target.name, target, source, isRepeated(source)));
+	}
+
+	private boolean isRepeated(final Field f) {
+		return depths.get(f.name) > 0;
+	}
+
+	/**
+	 * @return true when the field converts to the internal type both ways; a field in a single repeat_block
+	 * converts to a list of a convertible element type
+	 */
+	private boolean convertible(final InternalType type, final Field f) {
+		final int depth = depths.get(f.name);
+		if (depth == 0) return convertible(type, f.type);
+		return depth == 1 && "list".equals(type.name) && convertible(type.element, f.type);
+	}
+
+	static boolean convertible(final InternalType type, final String external) {
+		final boolean numeric = Expr.isNumeric(external);
+		if (type.isPrimitive()) return numeric || "bigint".equals(external) || "bcd".equals(external);
+		switch (type.name) {
+		case "bigint":
+			return numeric && !"float".equals(external) && !"double".equals(external) || "bigint".equals(external) || "bcd".equals(external);
+		case "bytearray":
+			return "bytearray".equals(external) || "ascii".equals(external) || "bcd".equals(external);
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the fields of an internal and the internals it extends, inherited fields first
+	 */
+	static Map<String, InternalField> fieldsOf(final Schema schema, final String internal) {
+		final List<InternalDef> chain = chainOf(schema, internal);
+		final Map<String, InternalField> result = new LinkedHashMap<>();
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			for (final InternalField f : chain.get(i).fields) {
+				result.put(f.name, f);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the internal followed by the internals it extends
+	 * @throws CodecException if an internal is not declared or extends itself
+	 */
+	static List<InternalDef> chainOf(final Schema schema, final String internal) {
+		final List<InternalDef> result = new ArrayList<>();
+		String name = internal;
+		while (name != null) {
+			final InternalDef d = schema.internals.get(name);
+			if (d == null) throw new CodecException("unknown internal " + name + (result.isEmpty() ? "" : " extended by " + result.get(result.size() - 1)));
+			if (result.contains(d)) throw new CodecException("internal " + name + " extends itself");
+			result.add(d);
+			name = d.extended;
+		}
+		return result;
+	}
+
+	private static void depthsOf(final List<Element> elements, final int depth, final Map<String, Integer> result) {
+		for (final Element e : elements) {
+			if (e instanceof Field) {
+				result.putIfAbsent(((Field) e).name, depth);
+			} else if (e instanceof Group) {
+				depthsOf(((Group) e).body, depth, result);
+			} else if (e instanceof Repeat) {
+				depthsOf(((Repeat) e).body, depth + 1, result);
+			} else if (e instanceof Switch) {
+				final Switch s = (Switch) e;
+				depthsOf(s.prefix, depth, result);
+				for (final Case c : s.cases) {
+					depthsOf(c.body, depth, result);
+				}
+				if (s.defaultCase != null) depthsOf(s.defaultCase.body, depth, result);
+			}
+		}
+	}
+}
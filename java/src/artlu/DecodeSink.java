@@ -0,0 +1,58 @@
+package artlu;
+
+import java.math.BigInteger;
+
+/**
+ * Receives decoded fields as they are decoded, without boxing or intermediate maps and lists.
+ * Fields are identified by the schema wide field id of CompiledSchema.fieldId, repeat_blocks by their index
+ * in the external in declaration order.
+ * Fields of a repeat_block are reported once per element between beginRepeat and endRepeat, absent fields of
+ * conditional blocks and switched_set cases are reported through onAbsent so the elements stay aligned.
+ * @author anderse
+ *
+ */
+public interface DecodeSink {
+
+	default void beginRecord(final String external) {
+	}
+
+	default void endRecord(final int bitLength) {
+	}
+
+	default void beginRepeat(final int repeatId, final int count) {
+	}
+
+	default void endRepeat(final int repeatId) {
+	}
+
+	default void onAbsent(final int fieldId) {
+	}
+
+	/**
+	 * byte, short and int fields
+	 */
+	void onInt(int fieldId, int value);
+
+	void onLong(int fieldId, long value);
+
+	/**
+	 * float and double fields
+	 */
+	void onDouble(int fieldId, double value);
+
+	/**
+	 * bytearray and ascii fields, byte aligned fields are passed in place in the decoded data.
+	 * @param fieldId
+	 * @param buffer only valid during the call
+	 * @param offset
+	 * @param length
+	 */
+	void onBytes(int fieldId, byte[] buffer, int offset, int length);
+
+	/**
+	 * bcd fields
+	 */
+	void onString(int fieldId, String value);
+
+	void onBigInteger(int fieldId, BigInteger value);
+}
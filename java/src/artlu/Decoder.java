@@ -0,0 +1,36 @@
+package artlu;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Decoder for the records of an external, or of a set of externals for a decoder declaration.
+ * Decoders are immutable and can be shared between threads, the state of a decode is in its arguments.
+ * @author anderse
+ *
+ */
+public interface Decoder {
+
+	/**
+	 * @return the external or decoder name
+	 */
+	String name();
+
+	/**
+	 * Decode one record.
+	 * @param data
+	 * @param bitOffset where the record starts
+	 * @param record receives the field values by field name
+	 * @return number of bits consumed, or -1 if the record is not identified by this decoder
+	 */
+	int decode(byte[] data, int bitOffset, Map<String, Object> record);
+
+	/**
+	 * Decode one record in place from a heap, direct or mapped buffer.
+	 * @param data read from index 0 up to the limit, the position is ignored
+	 * @param bitOffset where the record starts
+	 * @param record receives the field values by field name
+	 * @return number of bits consumed, or -1 if the record is not identified by this decoder
+	 */
+	int decode(ByteBuffer data, int bitOffset, Map<String, Object> record);
+}
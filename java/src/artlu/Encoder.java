@@ -0,0 +1,26 @@
+package artlu;
+
+import java.util.Map;
+
+/**
+ * Encoder for the records of an external.
+ * Encoders are immutable and can be shared between threads, the state of an encode is in the BitCodec passed
+ * to it, which is used by one thread at a time. A CodecPool hands out BitCodecs for reuse.
+ * @author anderse
+ *
+ */
+public interface Encoder {
+
+	/**
+	 * @return the external name
+	 */
+	String name();
+
+	/**
+	 * Append one record to codec.
+	 * @param record field values by field name
+	 * @param codec
+	 * @return codec
+	 */
+	BitCodec encode(Map<String, ?> record, BitCodec codec);
+}
@@ -0,0 +1,36 @@
+package artlu;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An encoder declaration of a compiled schema, the externals of its out_maps and the framing of the output.
+ * @author anderse
+ *
+ */
+final class EncoderDeclaration {
+
+	final String name;
+	final List<String> externals;
+	/**
+	 * bytes per block, 0 when the output is not blocked
+	 */
+	final int blockSize;
+	/**
+	 * written after every record, empty when records are not terminated
+	 */
+	final byte[] terminator;
+
+	EncoderDeclaration(final String name, final List<String> externals, final int blockSize, final byte[] terminator) {
+		this.name = name;
+		this.externals = Collections.unmodifiableList(externals);
+		this.blockSize = blockSize;
+		this.terminator = terminator;
+	}
+
+	@Override
+	public String toString() {
+		return name + externals + (blockSize > 0 ? ", block_size(" + blockSize + ")" : "")
+				+ (terminator.length > 0 ? ", terminated_by " + terminator.length + " bytes" : "");
+	}
+}
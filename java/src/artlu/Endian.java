@@ -0,0 +1,80 @@
+package artlu;
+
+/**
+ * Order of the bits of an integer field in the msb first bit stream, the endian-type of int, short, long,
+ * byte and bigint fields.
+ * <ul>
+ * <li>BIG_ENDIAN, the default: the most significant bit of the value comes first.</li>
+ * <li>LITTLE_ENDIAN: the bytes of the value, least significant byte first, each byte msb first.
+ * The field is a whole number of bytes.</li>
+ * <li>LSB_LO: the bits of the value, least significant bit first, of a field of any width.</li>
+ * </ul>
+ * Fields of byte, short, int and long are at most 64 bits in the orders other than big endian.
+ * A field in an order maps to the same value at any bit offset, a byte aligned field of 16, 32 or 64 bits is
+ * read through a byte array view of its byte order.
+ * @author anderse
+ *
+ */
+public enum Endian {
+	BIG_ENDIAN("big_endian"),
+	LITTLE_ENDIAN("little_endian"),
+	LSB_LO("lsb_lo");
+
+	private final String schemaName;
+
+	Endian(final String schemaName) {
+		this.schemaName = schemaName;
+	}
+
+	/**
+	 * @return the name in a schema
+	 */
+	public String schemaName() {
+		return schemaName;
+	}
+
+	/**
+	 * @param schemaName little_endian, big_endian or lsb_lo, null for the default
+	 * @return
+	 */
+	public static Endian of(final String schemaName) {
+		if (schemaName == null) return BIG_ENDIAN;
+		for (final Endian e : values()) {
+			if (e.schemaName.equals(schemaName)) return e;
+		}
+		throw new CodecException("unknown endian " + schemaName);
+	}
+
+	/**
+	 * Convert between the big endian bits of a field and its value in this order, the conversion is its own
+	 * inverse.
+	 * @param bits right aligned
+	 * @param bitSize 0 to 64, a multiple of 8 for little endian
+	 * @return
+	 */
+	public long order(final long bits, final int bitSize) {
+		if (bitSize == 0) return 0L;
+		switch (this) {
+		case LITTLE_ENDIAN:
+			return Long.reverseBytes(bits) >>> (Long.SIZE - bitSize);
+		case LSB_LO:
+			return Long.reverse(bits) >>> (Long.SIZE - bitSize);
+		default:
+			return bits;
+		}
+	}
+
+	/**
+	 * @param bitSize
+	 * @param wide true for bigint fields, which have no width limit
+	 * @throws CodecException if a field of bitSize can not have this order
+	 */
+	public void check(final int bitSize, final boolean wide) {
+		if (this == LITTLE_ENDIAN && bitSize % BitCodec.BYTE_SIZE != 0) {
+			throw new CodecException("a little_endian field is a whole number of bytes, not " + bitSize + " bits");
+		}
+		if (this != BIG_ENDIAN && !wide && bitSize > Long.SIZE) {
+			throw new CodecException("a " + schemaName + " field is at most 64 bits, not " + bitSize);
+		}
+	}
+}
@@ -0,0 +1,577 @@
+package artlu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Schema expression, the aplExpression and aplBooleanExpression rules of artlu.bnf.
+ * Expressions are translated to java source by the schema compiler.
+ * Identifiers refer to fields decoded earlier in the same record and are resolved through a Scope.
+ * @author anderse
+ *
+ */
+public abstract class Expr {
+
+	/**
+	 * Resolves field names to java expressions.
+	 */
+	interface Scope {
+		/**
+		 * @param name
+		 * @return the symbol, never null
+		 * @throws CodecException if the name can not be resolved
+		 */
+		Symbol resolve(String name);
+	}
+
+	static final class Symbol {
+		final String java;
+		final String type;
+
+		Symbol(final String java, final String type) {
+			this.java = java;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * @param scope
+	 * @return java source for the expression
+	 */
+	abstract String java(Scope scope);
+
+	/**
+	 * @param scope
+	 * @return the java type of the expression, long for integer arithmetic
+	 */
+	abstract String javaType(Scope scope);
+
+	/**
+	 * @return the expression with its constant parts evaluated, a Literal when it references no fields
+	 */
+	Expr fold() {
+		return this;
+	}
+
+	/**
+	 * @return true or false for a constant boolean expression, null otherwise
+	 */
+	Boolean constantBoolean() {
+		return null;
+	}
+
+	/**
+	 * @return the value of a constant integer expression, null otherwise
+	 */
+	Long constantLong() {
+		return null;
+	}
+
+	/**
+	 * @return identifiers referenced by the expression
+	 */
+	List<String> idents() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * @param scope
+	 * @return java source for the expression in a boolean context, numbers are true when not zero
+	 */
+	String javaBoolean(final Scope scope) {
+		final String type = javaType(scope);
+		if ("boolean".equals(type)) return java(scope);
+		if (isNumeric(type)) return "(" + java(scope) + " != 0)";
+		return "(" + java(scope) + " != null)";
+	}
+
+	static boolean isNumeric(final String type) {
+		switch (type) {
+		case "byte":
+		case "short":
+		case "int":
+		case "long":
+		case "float":
+		case "double":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Build an expression from an aplExpression, aplBooleanExpression, dynamicSizeExpr,
+	 * intLit, strLit or ident node.
+	 * @param node
+	 * @return
+	 */
+	public static Expr of(final Object node) {
+		final String tag = Tree.tag(node);
+		if (tag == null) throw Tree.unsupported("expression", node);
+		final List<Object> c = Tree.children(node);
+		switch (tag) {
+		case "aplExpression":
+		case "aplBooleanExpression":
+		case "dynamicSizeExpr":
+		case "paren-expr":
+			return of(c.get(0));
+		case "intLit":
+			return new Literal(intOf(node));
+		case "strLit":
+			return new Literal(stringOf(node));
+		case "boolean":
+			return new Literal(Boolean.valueOf(Tree.text(node)));
+		case "ident":
+			return new Ident(Tree.text(node));
+		case "addition": return binary("+", c);
+		case "subtraction": return binary("-", c);
+		case "multiplication": return binary("*", c);
+		case "division": return binary("/", c);
+		case "right-shift": return binary(">>", c);
+		case "left-shift": return binary("<<", c);
+		case "bit-and": return binary("&", c);
+		case "bit-or": return binary("|", c);
+		case "equals": return binary("==", c);
+		case "not-equals": return binary("!=", c);
+		case "gt": return binary(">", c);
+		case "gte": return binary(">=", c);
+		case "lt": return binary("<", c);
+		case "lte": return binary("<=", c);
+		case "and": return binary("&&", c);
+		case "or": return binary("||", c);
+		case "if-expr":
+			return new Conditional(of(c.get(0)), of(c.get(1)), of(c.get(2))).fold();
+		case "type-cast":
+			return new Cast(Tree.text(c.get(0)), of(c.get(1))).fold();
+		case "fn-call": {
+			final List<Expr> args = new ArrayList<>();
+			for (final Object a : c.subList(1, c.size())) {
+				args.add(of(a));
+			}
+			return new Call(Tree.text(c.get(0)), args).fold();
+		}
+		default:
+			throw Tree.unsupported("expression", node);
+		}
+	}
+
+	private static Expr binary(final String op, final List<Object> c) {
+		return new Binary(op, of(c.get(0)), of(c.get(1))).fold();
+	}
+
+	/**
+	 * @param node an intLit node
+	 * @return the value
+	 */
+	static long intOf(final Object node) {
+		long sign = 1;
+		for (final Object c : Tree.children(node)) {
+			final String tag = Tree.tag(c);
+			if ("sign".equals(tag)) {
+				sign = "-".equals(Tree.text(c)) ? -1 : 1;
+			} else if ("decimalLit".equals(tag)) {
+				return sign * Long.parseLong(Tree.text(c));
+			} else if ("octalLit".equals(tag)) {
+				return sign * Long.parseLong(Tree.text(c), 8);
+			} else if ("hexLit".equals(tag)) {
+				return sign * Long.parseUnsignedLong(Tree.text(c), 16);
+			}
+		}
+		throw Tree.unsupported("integer literal", node);
+	}
+
+	/**
+	 * @param node a strLit node
+	 * @return the unescaped string
+	 */
+	static String stringOf(final Object node) {
+		final StringBuilder buf = new StringBuilder();
+		for (final Object cv : Tree.children(node)) {
+			final Object v = Tree.isNode(cv) ? Tree.children(cv).get(0) : cv;
+			final String tag = Tree.tag(v);
+			if (tag == null) {
+				buf.append(v);
+			} else if ("charEscape".equals(tag)) {
+				buf.append(escapeOf(Tree.text(v)));
+			} else if ("hexEscape".equals(tag)) {
+				buf.append((char) Integer.parseInt(Tree.text(v).substring(1), 16));
+			} else if ("octEscape".equals(tag)) {
+				buf.append((char) Integer.parseInt(Tree.text(v), 8));
+			} else {
+				throw Tree.unsupported("string literal", node);
+			}
+		}
+		return buf.toString();
+	}
+
+	private static char escapeOf(final String c) {
+		switch (c) {
+		case "a": return 7;
+		case "b": return '\b';
+		case "f": return '\f';
+		case "n": return '\n';
+		case "r": return '\r';
+		case "t": return '\t';
+		case "v": return 11;
+		default: return c.charAt(0);
+		}
+	}
+
+	static String javaLiteral(final String s) {
+		final StringBuilder buf = new StringBuilder("\"");
+		for (final char ch : s.toCharArray()) {
+			if (ch == '"' || ch == '\\') {
+				buf.append('\\').append(ch);
+			} else if (ch < 32 || ch > 126) {
+				buf.append(String.format("\\u%04x", (int) ch));
+			} else {
+				buf.append(ch);
+			}
+		}
+		return buf.append('"').toString();
+	}
+
+	static final class Literal extends Expr {
+		final Object value;
+
+		Literal(final Object value) {
+			this.value = value;
+		}
+
+		@Override
+		String java(final Scope scope) {
+			if (value instanceof String) return javaLiteral((String) value);
+			if (value instanceof Long) {
+				final long v = (Long) value;
+				return v == (int) v ? String.valueOf(v) : v + "L";
+			}
+			return String.valueOf(value);
+		}
+
+		@Override
+		Boolean constantBoolean() {
+			return value instanceof Boolean ? (Boolean) value : null;
+		}
+
+		@Override
+		Long constantLong() {
+			return value instanceof Long ? (Long) value : null;
+		}
+
+		@Override
+		String javaType(final Scope scope) {
+			if (value instanceof String) return "String";
+			if (value instanceof Boolean) return "boolean";
+			return "long";
+		}
+
+		@Override
+		public String toString() {
+			return value instanceof String ? javaLiteral((String) value) : String.valueOf(value);
+		}
+	}
+
+	static final class Ident extends Expr {
+		final String name;
+
+		Ident(final String name) {
+			this.name = name;
+		}
+
+		@Override
+		String java(final Scope scope) {
+			return scope.resolve(name).java;
+		}
+
+		@Override
+		String javaType(final Scope scope) {
+			return scope.resolve(name).type;
+		}
+
+		@Override
+		List<String> idents() {
+			return Collections.singletonList(name);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	static final class Binary extends Expr {
+		final String op;
+		final Expr left;
+		final Expr right;
+
+		Binary(final String op, final Expr left, final Expr right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean isLogical() {
+			return "&&".equals(op) || "||".equals(op);
+		}
+
+		boolean isComparison() {
+			switch (op) {
+			case "==":
+			case "!=":
+			case ">":
+			case ">=":
+			case "<":
+			case "<=":
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		/**
+		 * Evaluate operations on literals the way the generated java does, long arithmetic for integers.
+		 * A logical operation with a constant left side that decides it folds to that constant.
+		 */
+		@Override
+		Expr fold() {
+			final Expr l = left.fold();
+			final Expr r = right.fold();
+			if (isLogical()) {
+				final Boolean a = l.constantBoolean();
+				if (a != null && a == "||".equals(op)) return new Literal(a);
+				final Boolean b = r.constantBoolean();
+				if (a != null && b != null) return new Literal(b);
+			}
+			final Long a = l.constantLong();
+			final Long b = r.constantLong();
+			if (a != null && b != null) {
+				final Object v = valueOf(a, b);
+				if (v != null) return new Literal(v);
+			} else if (l instanceof Literal && r instanceof Literal && ("==".equals(op) || "!=".equals(op))) {
+				return new Literal(((Literal) l).value.equals(((Literal) r).value) == "==".equals(op));
+			}
+			return l == left && r == right ? this : new Binary(op, l, r);
+		}
+
+		private Object valueOf(final long a, final long b) {
+			switch (op) {
+			case "+": return a + b;
+			case "-": return a - b;
+			case "*": return a * b;
+			case "/": return b == 0 ? null : a / b;
+			case ">>": return a >> b;
+			case "<<": return a << b;
+			case "&": return a & b;
+			case "|": return a | b;
+			case "==": return a == b;
+			case "!=": return a != b;
+			case ">": return a > b;
+			case ">=": return a >= b;
+			case "<": return a < b;
+			case "<=": return a <= b;
+			default: return null;
+			}
+		}
+
+		@Override
+		String java(final Scope scope) {
+			if (isLogical()) {
+				return "(" + left.javaBoolean(scope) + " " + op + " " + right.javaBoolean(scope) + ")";
+			}
+			if (("==".equals(op) || "!=".equals(op))
+					&& !(isNumeric(left.javaType(scope)) && isNumeric(right.javaType(scope)))) {
+				return ("!=".equals(op) ? "!" : "") + "CodecSupport.equal(" + left.java(scope) + ", " + right.java(scope) + ")";
+			}
+			return "(" + left.java(scope) + " " + op + " " + right.java(scope) + ")";
+		}
+
+		@Override
+		String javaType(final Scope scope) {
+			if (isLogical() || isComparison()) return "boolean";
+			final String l = left.javaType(scope);
+			final String r = right.javaType(scope);
+			if ("double".equals(l) || "double".equals(r) || "float".equals(l) || "float".equals(r)) return "double";
+			return "long";
+		}
+
+		@Override
+		List<String> idents() {
+			final List<String> result = new ArrayList<>(left.idents());
+			result.addAll(right.idents());
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " " + op + " " + right + ")";
+		}
+	}
+
+	static final class Conditional extends Expr {
+		final Expr condition;
+		final Expr then;
+		final Expr otherwise;
+
+		Conditional(final Expr condition, final Expr then, final Expr otherwise) {
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		/**
+		 * A constant condition folds to its branch when the branch is constant, other branches keep the
+		 * conditional for its long result type.
+		 */
+		@Override
+		Expr fold() {
+			final Expr c = condition.fold();
+			final Expr t = then.fold();
+			final Expr o = otherwise.fold();
+			final Boolean b = c.constantBoolean();
+			if (b != null && (b ? t : o) instanceof Literal) return b ? t : o;
+			return c == condition && t == then && o == otherwise ? this : new Conditional(c, t, o);
+		}
+
+		@Override
+		String java(final Scope scope) {
+			return "(" + condition.javaBoolean(scope) + " ? " + then.java(scope) + " : " + otherwise.java(scope) + ")";
+		}
+
+		@Override
+		String javaType(final Scope scope) {
+			final String t = then.javaType(scope);
+			return isNumeric(t) ? "long" : t;
+		}
+
+		@Override
+		List<String> idents() {
+			final List<String> result = new ArrayList<>(condition.idents());
+			result.addAll(then.idents());
+			result.addAll(otherwise.idents());
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + condition + " ? " + then + " : " + otherwise + ")";
+		}
+	}
+
+	static final class Call extends Expr {
+		final String name;
+		final List<Expr> args;
+
+		Call(final String name, final List<Expr> args) {
+			this.name = name;
+			this.args = args;
+		}
+
+		@Override
+		Expr fold() {
+			final List<Expr> folded = new ArrayList<>();
+			boolean constant = true;
+			for (final Expr a : args) {
+				final Expr f = a.fold();
+				folded.add(f);
+				constant &= f.constantLong() != null;
+			}
+			if (constant && "abs".equals(name) && folded.size() == 1) return new Literal(Math.abs(folded.get(0).constantLong()));
+			if (constant && ("min".equals(name) || "max".equals(name)) && folded.size() == 2) {
+				final long a = folded.get(0).constantLong();
+				final long b = folded.get(1).constantLong();
+				return new Literal("min".equals(name) ? Math.min(a, b) : Math.max(a, b));
+			}
+			return folded.equals(args) ? this : new Call(name, folded);
+		}
+
+		@Override
+		String java(final Scope scope) {
+			final StringBuilder buf = new StringBuilder();
+			switch (name) {
+			case "min":
+			case "max":
+			case "abs":
+				buf.append("Math.").append(name).append('(');
+				break;
+			case "length":
+				buf.append("CodecSupport.length(");
+				break;
+			default:
+				throw new CodecException("unknown function " + name);
+			}
+			for (int i = 0; i < args.size(); i++) {
+				if (i > 0) buf.append(", ");
+				final Expr a = args.get(i);
+				buf.append(isNumeric(a.javaType(scope)) ? "(long) " + a.java(scope) : a.java(scope));
+			}
+			return buf.append(')').toString();
+		}
+
+		@Override
+		String javaType(final Scope scope) {
+			return "long";
+		}
+
+		@Override
+		List<String> idents() {
+			final List<String> result = new ArrayList<>();
+			for (final Expr a : args) {
+				result.addAll(a.idents());
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return name + args;
+		}
+	}
+
+	static final class Cast extends Expr {
+		final String type;
+		final Expr expr;
+
+		Cast(final String type, final Expr expr) {
+			this.type = type;
+			this.expr = expr;
+		}
+
+		@Override
+		Expr fold() {
+			final Expr e = expr.fold();
+			final Long v = e.constantLong();
+			if (v != null) {
+				switch (type) {
+				case "byte": return new Literal((long) (byte) (long) v);
+				case "short": return new Literal((long) (short) (long) v);
+				case "int": return new Literal((long) (int) (long) v);
+				case "long": return e;
+				default: break;
+				}
+			}
+			return e == expr ? this : new Cast(type, e);
+		}
+
+		@Override
+		String java(final Scope scope) {
+			if (!isNumeric(type)) throw new CodecException("unsupported cast to " + type);
+			return "((" + type + ") " + expr.java(scope) + ")";
+		}
+
+		@Override
+		String javaType(final Scope scope) {
+			return type;
+		}
+
+		@Override
+		List<String> idents() {
+			return expr.idents();
+		}
+
+		@Override
+		public String toString() {
+			return "(" + type + ") " + expr;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package artlu;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decode and encode counters of one external, updated by codecs compiled with metrics.
+ * All counters are LongAdders, codecs on many threads update them without contending.
+ * @author anderse
+ *
+ */
+public final class ExternalMetrics implements ExternalMetricsMXBean {
+
+	static final int LATENCY_BUCKETS = 40;
+
+	private final String external;
+	private final List<String> branches;
+	private final LongAdder recordsDecoded = new LongAdder();
+	private final LongAdder bitsDecoded = new LongAdder();
+	private final LongAdder unidentified = new LongAdder();
+	private final LongAdder recordsEncoded = new LongAdder();
+	private final LongAdder bitsEncoded = new LongAdder();
+	private final LongAdder decodeNanos = new LongAdder();
+	private final LongAdder[] latency = new LongAdder[LATENCY_BUCKETS];
+	private final LongAdder[] hits;
+	private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+	/**
+	 * @param external
+	 * @param branches labels of the counted branches by branch id
+	 */
+	ExternalMetrics(final String external, final List<String> branches) {
+		this.external = external;
+		this.branches = branches;
+		this.hits = new LongAdder[branches.size()];
+		for (int i = 0; i < hits.length; i++) {
+			hits[i] = new LongAdder();
+		}
+		for (int i = 0; i < latency.length; i++) {
+			latency[i] = new LongAdder();
+		}
+	}
+
+	List<String> branches() {
+		return branches;
+	}
+
+	/**
+	 * Count a decode, called by generated codecs.
+	 * @param bits the result of the decode, -1 when the data is not a record of the external
+	 * @param start System.nanoTime() when the decode started
+	 * @return bits
+	 */
+	public int decoded(final int bits, final long start) {
+		final long nanos = System.nanoTime() - start;
+		if (bits < 0) {
+			unidentified.increment();
+			return bits;
+		}
+		recordsDecoded.increment();
+		bitsDecoded.add(bits);
+		decodeNanos.add(nanos);
+		latency[Math.min(LATENCY_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos)))].increment();
+		return bits;
+	}
+
+	/**
+	 * Count an encode, called by generated codecs.
+	 * @param bits encoded
+	 */
+	public void encoded(final int bits) {
+		recordsEncoded.increment();
+		bitsEncoded.add(bits);
+	}
+
+	/**
+	 * Count a branch taken, called by generated codecs.
+	 * @param branch id
+	 */
+	public void hit(final int branch) {
+		hits[branch].increment();
+	}
+
+	/**
+	 * Count a failure, called by generated codecs.
+	 * @param e
+	 * @return e for rethrowing
+	 */
+	public RuntimeException failed(final RuntimeException e) {
+		failures.computeIfAbsent(reasonOf(e), r -> new LongAdder()).increment();
+		return e;
+	}
+
+	private static String reasonOf(final RuntimeException e) {
+		if (e instanceof IndexOutOfBoundsException) return "truncated";
+		if (e instanceof CodecException) return "invalid";
+		return e.getClass().getSimpleName();
+	}
+
+	@Override
+	public String getExternal() {
+		return external;
+	}
+
+	@Override
+	public long getRecordsDecoded() {
+		return recordsDecoded.sum();
+	}
+
+	@Override
+	public long getBytesDecoded() {
+		return bitsDecoded.sum() / BitCodec.BYTE_SIZE;
+	}
+
+	@Override
+	public long getUnidentified() {
+		return unidentified.sum();
+	}
+
+	@Override
+	public long getRecordsEncoded() {
+		return recordsEncoded.sum();
+	}
+
+	@Override
+	public long getBytesEncoded() {
+		return bitsEncoded.sum() / BitCodec.BYTE_SIZE;
+	}
+
+	@Override
+	public Map<String, Long> getFailures() {
+		final Map<String, Long> result = new LinkedHashMap<>();
+		for (final Map.Entry<String, LongAdder> e : failures.entrySet()) {
+			result.put(e.getKey(), e.getValue().sum());
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	@Override
+	public Map<String, Long> getBranchHits() {
+		final Map<String, Long> result = new LinkedHashMap<>();
+		for (int i = 0; i < hits.length; i++) {
+			result.merge(branches.get(i), hits[i].sum(), Long::sum);
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	@Override
+	public long[] getDecodeLatencyHistogram() {
+		final long[] result = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = latency[i].sum();
+		}
+		return result;
+	}
+
+	@Override
+	public double getMeanDecodeNanos() {
+		final long n = recordsDecoded.sum();
+		return n == 0 ? 0 : decodeNanos.sum() / (double) n;
+	}
+
+	@Override
+	public void reset() {
+		for (final LongAdder a : new LongAdder[] {recordsDecoded, bitsDecoded, unidentified, recordsEncoded, bitsEncoded, decodeNanos}) {
+			a.reset();
+		}
+		for (final LongAdder a : latency) {
+			a.reset();
+		}
+		for (final LongAdder a : hits) {
+			a.reset();
+		}
+		failures.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "ExternalMetrics[" + external + ", decoded " + getRecordsDecoded() + ", encoded " + getRecordsEncoded()
+				+ ", failures " + getFailures() + "]";
+	}
+}
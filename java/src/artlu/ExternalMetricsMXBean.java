@@ -0,0 +1,46 @@
+package artlu;
+
+import java.util.Map;
+
+/**
+ * The metrics of one external as published over JMX.
+ * @author anderse
+ *
+ */
+public interface ExternalMetricsMXBean {
+
+	String getExternal();
+
+	long getRecordsDecoded();
+
+	long getBytesDecoded();
+
+	/**
+	 * @return decode calls on data that is not a record of the external, a decoder declaration tries
+	 * every external until one identifies the record
+	 */
+	long getUnidentified();
+
+	long getRecordsEncoded();
+
+	long getBytesEncoded();
+
+	/**
+	 * @return decode and encode failures by reason
+	 */
+	Map<String, Long> getFailures();
+
+	/**
+	 * @return decodes entering each present if, optional and switched_set case by branch
+	 */
+	Map<String, Long> getBranchHits();
+
+	/**
+	 * @return decodes by time, bucket i counts times from 2^(i-1) up to 2^i nanoseconds
+	 */
+	long[] getDecodeLatencyHistogram();
+
+	double getMeanDecodeNanos();
+
+	void reset();
+}
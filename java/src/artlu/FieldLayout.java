@@ -0,0 +1,163 @@
+package artlu;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields of an external addressable by a RecordView, fields in a repeat_block are not.
+ * Offsets and sizes known at schema compile time are static, the others are computed per record.
+ * @author anderse
+ *
+ */
+public final class FieldLayout {
+
+	private final String name;
+	private final String[] fields;
+	private final String[] types;
+	private final boolean[] signed;
+	private final Endian[] endians;
+	private final int[] offsets;
+	private final int[] sizes;
+	private final int identifiedBy;
+	private final Object identifiedValue;
+	private final Map<String, Integer> indexes = new HashMap<>();
+
+	/**
+	 * @param name of the external
+	 * @param fields field names
+	 * @param types artlu field types
+	 * @param signed
+	 * @param offsets static bit offset from the record start, -1 when computed per record
+	 * @param sizes static bit size, -1 when computed per record
+	 */
+	public FieldLayout(final String name, final String[] fields, final String[] types, final boolean[] signed,
+			final int[] offsets, final int[] sizes) {
+		this(name, fields, types, signed, offsets, sizes, -1, null);
+	}
+
+	/**
+	 * @param name of the external
+	 * @param fields field names
+	 * @param types artlu field types
+	 * @param signed
+	 * @param offsets static bit offset from the record start, -1 when computed per record
+	 * @param sizes static bit size, -1 when computed per record
+	 * @param identifiedBy index of a field at a static offset the identified_by condition requires to be
+	 * identifiedValue, -1 when there is none
+	 * @param identifiedValue a Long for integer fields, a String for ascii fields
+	 */
+	public FieldLayout(final String name, final String[] fields, final String[] types, final boolean[] signed,
+			final int[] offsets, final int[] sizes, final int identifiedBy, final Object identifiedValue) {
+		this(name, fields, types, signed, null, offsets, sizes, identifiedBy, identifiedValue);
+	}
+
+	/**
+	 * @param name of the external
+	 * @param fields field names
+	 * @param types artlu field types
+	 * @param signed
+	 * @param endians byte order of the integer fields, null when all are big endian
+	 * @param offsets static bit offset from the record start, -1 when computed per record
+	 * @param sizes static bit size, -1 when computed per record
+	 * @param identifiedBy index of a field at a static offset the identified_by condition requires to be
+	 * identifiedValue, -1 when there is none
+	 * @param identifiedValue a Long for integer fields, a String for ascii fields
+	 */
+	public FieldLayout(final String name, final String[] fields, final String[] types, final boolean[] signed,
+			final Endian[] endians, final int[] offsets, final int[] sizes, final int identifiedBy, final Object identifiedValue) {
+		this.name = name;
+		this.fields = fields;
+		this.types = types;
+		this.signed = signed;
+		this.endians = endians;
+		this.offsets = offsets;
+		this.sizes = sizes;
+		this.identifiedBy = identifiedBy;
+		this.identifiedValue = identifiedValue;
+		for (int i = 0; i < fields.length; i++) {
+			indexes.put(fields[i], i);
+		}
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public int size() {
+		return fields.length;
+	}
+
+	public List<String> fields() {
+		return Collections.unmodifiableList(Arrays.asList(fields));
+	}
+
+	/**
+	 * @param field
+	 * @return index of the field, for the indexed accessors of RecordView
+	 * @throws CodecException if there is no such field
+	 */
+	public int index(final String field) {
+		final Integer i = indexes.get(field);
+		if (i == null) throw new CodecException("no field " + field + " in " + name);
+		return i;
+	}
+
+	public String field(final int index) {
+		return fields[index];
+	}
+
+	public String type(final int index) {
+		return types[index];
+	}
+
+	public boolean signed(final int index) {
+		return signed[index];
+	}
+
+	public Endian endian(final int index) {
+		return endians == null ? Endian.BIG_ENDIAN : endians[index];
+	}
+
+	/**
+	 * @param index
+	 * @return static bit offset, -1 when computed per record
+	 */
+	public int offset(final int index) {
+		return offsets[index];
+	}
+
+	/**
+	 * @param index
+	 * @return static bit size, -1 when computed per record
+	 */
+	public int bitSize(final int index) {
+		return sizes[index];
+	}
+
+	/**
+	 * @return index of the field identifying the external, -1 when there is none
+	 */
+	public int identifiedBy() {
+		return identifiedBy;
+	}
+
+	/**
+	 * @return the value of the identifying field in every record of the external
+	 */
+	public Object identifiedValue() {
+		return identifiedValue;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder buf = new StringBuilder(name).append('[');
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) buf.append(", ");
+			buf.append(types[i]).append(' ').append(fields[i]).append('@').append(offsets[i]).append(':').append(sizes[i]);
+		}
+		return buf.append(']').toString();
+	}
+}
@@ -0,0 +1,42 @@
+package artlu;
+
+/**
+ * Decoder of an in_map, decodes the records of its external straight into instances of the class generated for
+ * its internal. The fields are copied as planned when the schema was compiled, there are no name lookups and
+ * primitive fields are not boxed.
+ * In map decoders are immutable and can be shared between threads.
+ * @author anderse
+ *
+ * @param <T> the generated class of the internal
+ */
+public interface InMapDecoder<T> {
+
+	/**
+	 * @return the in_map name
+	 */
+	String name();
+
+	/**
+	 * @return the external decoded
+	 */
+	String external();
+
+	/**
+	 * @return the generated class of the internal
+	 */
+	Class<T> recordClass();
+
+	/**
+	 * @return a new record with the nested records the in_map fills through using
+	 */
+	T newRecord();
+
+	/**
+	 * Decode one record, fields that are absent keep their value.
+	 * @param data
+	 * @param bitOffset where the record starts
+	 * @param record from newRecord
+	 * @return number of bits consumed, or -1 if the record is not identified by the external, record is unchanged then
+	 */
+	int decode(byte[] data, int bitOffset, T record);
+}
@@ -0,0 +1,68 @@
+package artlu;
+
+/**
+ * Indenting builder of the java source the schema compiler generates.
+ * An else block left empty is dropped when it is closed.
+ * @author anderse
+ *
+ */
+final class JavaOut {
+
+	private final StringBuilder buf = new StringBuilder();
+	private int indent;
+	private int elseStart = -1;
+	private int elseEnd = -1;
+
+	JavaOut line(final String s) {
+		for (int i = 0; i < indent; i++) {
+			buf.append('\t');
+		}
+		buf.append(s).append('\n');
+		return this;
+	}
+
+	JavaOut open(final String s) {
+		line(s + " {");
+		indent++;
+		return this;
+	}
+
+	JavaOut orElse(final String s) {
+		indent--;
+		elseStart = buf.length();
+		line("} " + s + " {");
+		elseEnd = buf.length();
+		indent++;
+		return this;
+	}
+
+	/**
+	 * Close a block, an empty else block is dropped.
+	 */
+	JavaOut close() {
+		indent--;
+		if (buf.length() == elseEnd && buf.indexOf("} else {", elseStart) >= 0) {
+			buf.setLength(elseStart);
+		}
+		return line("}");
+	}
+
+	/**
+	 * @return an empty builder at the same indentation, for code that is appended later or dropped
+	 */
+	JavaOut nested() {
+		final JavaOut o = new JavaOut();
+		o.indent = indent;
+		return o;
+	}
+
+	JavaOut append(final JavaOut other) {
+		buf.append(other.buf);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return buf.toString();
+	}
+}
@@ -0,0 +1,29 @@
+package artlu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder that can locate the fields of a record without decoding them.
+ * Implemented by generated codecs, used by RecordView.
+ * @author anderse
+ *
+ */
+public interface LayoutDecoder extends Decoder {
+
+	/**
+	 * @return the addressable fields with their static offsets
+	 */
+	FieldLayout fieldLayout();
+
+	/**
+	 * Compute the bit offsets and sizes of all fields of a record, only fields the framing depends on are decoded.
+	 * @param data
+	 * @param bitOffset where the record starts
+	 * @param offsets receives the offset of each field relative to bitOffset, -1 when absent
+	 * @param sizes receives the size in bits of each field
+	 * @return number of bits of the record, or -1 if the record is not identified by this decoder
+	 */
+	int offsets(byte[] data, int bitOffset, int[] offsets, int[] sizes);
+
+	int offsets(ByteBuffer data, int bitOffset, int[] offsets, int[] sizes);
+}
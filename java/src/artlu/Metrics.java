@@ -0,0 +1,159 @@
+package artlu;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Optional runtime metrics of compiled codecs, enabled by the system property artlu.metrics.
+ * Codecs compiled while metrics are enabled count records, bytes, failures, branch hits and decode times per
+ * external; codecs compiled while they are disabled contain no metrics code at all.
+ * The metrics of each external are handed to the exporters, by default the JMX exporter, which registers them
+ * as artlu:type=External,name=&lt;external&gt; unless artlu.metrics.jmx is false.
+ * @author anderse
+ *
+ */
+public final class Metrics {
+
+	public static final String PROPERTY = "artlu.metrics";
+	public static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+	private static final Map<String, ExternalMetrics> EXTERNALS = new ConcurrentHashMap<>();
+	private static final List<Exporter> EXPORTERS = new CopyOnWriteArrayList<>();
+	private static final LongAdder SCHEMAS_COMPILED = new LongAdder();
+	private static final LongAdder COMPILE_NANOS = new LongAdder();
+
+	static {
+		if (ENABLED && !"false".equals(System.getProperty(PROPERTY + ".jmx"))) EXPORTERS.add(new JmxExporter());
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * Receives the metrics of every external with compiled metrics.
+	 */
+	public interface Exporter {
+		/**
+		 * @param metrics of an external, new or replacing those of an external of the same name
+		 */
+		void export(ExternalMetrics metrics);
+
+		/**
+		 * @param metrics replaced by those of a recompiled external of the same name
+		 */
+		default void remove(final ExternalMetrics metrics) {
+		}
+	}
+
+	/**
+	 * The metrics of an external, called when a codec class compiled with metrics is initialized.
+	 * Codecs of externals with the same name and branches share their metrics.
+	 * @param external
+	 * @param branches labels of the counted branches by branch id
+	 * @return
+	 */
+	public static ExternalMetrics external(final String external, final String[] branches) {
+		final List<String> labels = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(branches)));
+		synchronized (EXTERNALS) {
+			final ExternalMetrics old = EXTERNALS.get(external);
+			if (old != null && old.branches().equals(labels)) return old;
+			final ExternalMetrics m = new ExternalMetrics(external, labels);
+			EXTERNALS.put(external, m);
+			for (final Exporter e : EXPORTERS) {
+				if (old != null) e.remove(old);
+				e.export(m);
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * Add an exporter, it receives the metrics of the externals compiled so far and of those compiled later.
+	 * @param exporter
+	 */
+	public static void addExporter(final Exporter exporter) {
+		synchronized (EXTERNALS) {
+			EXPORTERS.add(exporter);
+			for (final ExternalMetrics m : EXTERNALS.values()) {
+				exporter.export(m);
+			}
+		}
+	}
+
+	public static void removeExporter(final Exporter exporter) {
+		synchronized (EXTERNALS) {
+			if (!EXPORTERS.remove(exporter)) return;
+			for (final ExternalMetrics m : EXTERNALS.values()) {
+				exporter.remove(m);
+			}
+		}
+	}
+
+	/**
+	 * @return the metrics of all externals compiled with metrics
+	 */
+	public static Collection<ExternalMetrics> externals() {
+		return Collections.unmodifiableCollection(EXTERNALS.values());
+	}
+
+	/**
+	 * Count a schema compiled through ArtluParser.
+	 * @param nanos parse and compile time
+	 */
+	static void compiled(final long nanos) {
+		SCHEMAS_COMPILED.increment();
+		COMPILE_NANOS.add(nanos);
+	}
+
+	public static long schemasCompiled() {
+		return SCHEMAS_COMPILED.sum();
+	}
+
+	public static long compileNanos() {
+		return COMPILE_NANOS.sum();
+	}
+
+	/**
+	 * Registers the metrics of each external in the platform MBean server.
+	 */
+	public static final class JmxExporter implements Exporter {
+		private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		@Override
+		public void export(final ExternalMetrics metrics) {
+			try {
+				final ObjectName name = nameOf(metrics);
+				if (server.isRegistered(name)) server.unregisterMBean(name);
+				server.registerMBean(metrics, name);
+			} catch (final JMException e) {
+				throw new CodecException("can not register metrics of " + metrics.getExternal(), e);
+			}
+		}
+
+		@Override
+		public void remove(final ExternalMetrics metrics) {
+			try {
+				final ObjectName name = nameOf(metrics);
+				if (server.isRegistered(name)) server.unregisterMBean(name);
+			} catch (final JMException e) {
+				throw new CodecException("can not unregister metrics of " + metrics.getExternal(), e);
+			}
+		}
+
+		private static ObjectName nameOf(final ExternalMetrics metrics) throws JMException {
+			return new ObjectName("artlu:type=External,name=" + ObjectName.quote(metrics.getExternal()));
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package artlu;
+
+/**
+ * Encoder of an out_map, encodes instances of the class generated for its internal as records of its external.
+ * The fields are copied as planned when the schema was compiled, there are no name lookups.
+ * Out map encoders are immutable and can be shared between threads.
+ * @author anderse
+ *
+ * @param <T> the generated class of the internal
+ */
+public interface OutMapEncoder<T> {
+
+	/**
+	 * @return the out_map name
+	 */
+	String name();
+
+	/**
+	 * @return the external encoded
+	 */
+	String external();
+
+	/**
+	 * @return the generated class of the internal
+	 */
+	Class<T> recordClass();
+
+	/**
+	 * Append one record to codec.
+	 * @param record
+	 * @param codec
+	 * @return codec
+	 */
+	BitCodec encode(T record, BitCodec codec);
+}
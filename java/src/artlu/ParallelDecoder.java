@@ -0,0 +1,152 @@
+package artlu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decodes independent records, each in a byte array of its own, in parallel.
+ * The records are split into batches of consecutive records and each batch is decoded by one task on the
+ * executor, a fork join pool or a virtual thread per task executor. The results are in record order, a record
+ * that does not decode gets its failure in its result and does not stop the other records.
+ * Thread safe, the decoder is shared by the tasks.
+ * @author anderse
+ *
+ */
+public final class ParallelDecoder {
+
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final Decoder decoder;
+	private final Executor executor;
+	private final int batchSize;
+
+	/**
+	 * Decode on the common fork join pool in batches of the default size.
+	 * @param decoder
+	 */
+	public ParallelDecoder(final Decoder decoder) {
+		this(decoder, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param decoder
+	 * @param executor runs the batches
+	 * @param batchSize records per task
+	 */
+	public ParallelDecoder(final Decoder decoder, final Executor executor, final int batchSize) {
+		if (batchSize <= 0) throw new IllegalArgumentException("batch size must be positive");
+		this.decoder = decoder;
+		this.executor = executor;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Decode one record from the start of each array.
+	 * @param records
+	 * @return a result per record in the order of records
+	 */
+	public List<Result> decode(final byte[]... records) {
+		return decode(Arrays.asList(records));
+	}
+
+	/**
+	 * Decode one record from the start of each array.
+	 * @param records
+	 * @return a result per record in the order of records
+	 */
+	public List<Result> decode(final List<byte[]> records) {
+		final Result[] results = new Result[records.size()];
+		final List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (int from = 0; from < results.length; from += batchSize) {
+			final int start = from;
+			final int end = Math.min(results.length, from + batchSize);
+			futures.add(CompletableFuture.runAsync(() -> {
+				for (int i = start; i < end; i++) {
+					results[i] = decode(i, records.get(i));
+				}
+			}, executor));
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	private Result decode(final int index, final byte[] data) {
+		final Map<String, Object> record = new LinkedHashMap<>();
+		try {
+			final int n = decoder.decode(data, 0, record);
+			if (n <= 0) return new Result(index, null, 0, new CodecException("no record of " + decoder.name() + " in record " + index));
+			return new Result(index, record, n, null);
+		} catch (final IndexOutOfBoundsException e) {
+			return new Result(index, null, 0, new CodecException("record " + index + " of " + decoder.name() + " is truncated", e));
+		} catch (final RuntimeException e) {
+			return new Result(index, null, 0, e);
+		}
+	}
+
+	/**
+	 * The decoded record or the failure of one input record.
+	 */
+	public static final class Result {
+		private final int index;
+		private final Map<String, Object> record;
+		private final int bits;
+		private final RuntimeException failure;
+
+		Result(final int index, final Map<String, Object> record, final int bits, final RuntimeException failure) {
+			this.index = index;
+			this.record = record;
+			this.bits = bits;
+			this.failure = failure;
+		}
+
+		/**
+		 * @return position of the record in the input
+		 */
+		public int index() {
+			return index;
+		}
+
+		public boolean isSuccess() {
+			return failure == null;
+		}
+
+		/**
+		 * @return field values by field name, null when the record failed
+		 */
+		public Map<String, Object> record() {
+			return record;
+		}
+
+		/**
+		 * @return bits decoded, 0 when the record failed
+		 */
+		public int bits() {
+			return bits;
+		}
+
+		/**
+		 * @return why the record did not decode, null on success
+		 */
+		public RuntimeException failure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			return "Result[" + index + ", " + (failure == null ? record : failure) + "]";
+		}
+	}
+}
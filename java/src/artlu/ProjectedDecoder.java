@@ -0,0 +1,37 @@
+package artlu;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decoder of some fields of an external, for the records a filter selects.
+ * Fields outside the projection are stepped over by offset arithmetic unless the framing refers to them, and
+ * the filter is tested as soon as the fields it refers to are decoded, so a rejected record costs no more than
+ * its framing. decode returns -1 for a rejected record as for a record the external does not identify, skip
+ * gives the size of any record to move on to the next one.
+ * Generated by SchemaCompiler.project, immutable and thread safe like the other decoders.
+ * @author anderse
+ *
+ */
+public interface ProjectedDecoder extends Decoder {
+
+	/**
+	 * @return the projected fields, the fields decode puts in the record
+	 */
+	List<String> fields();
+
+	/**
+	 * @return the filter condition, null when every record is selected
+	 */
+	String filter();
+
+	/**
+	 * Locate the end of a record without decoding the projection or testing the filter.
+	 * @param data
+	 * @param bitOffset where the record starts
+	 * @return number of bits of the record, or -1 if the record is not identified by the external
+	 */
+	int skip(byte[] data, int bitOffset);
+
+	int skip(ByteBuffer data, int bitOffset);
+}
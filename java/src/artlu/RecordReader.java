@@ -0,0 +1,212 @@
+package artlu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Decodes the records of a stream one at a time through a bounded buffer.
+ * Records follow each other without alignment, like in ArtluParser.decode. The decoder frames the records,
+ * static_size, dynamic_size, terminated_by and identified_by included; a record that runs past the buffered data
+ * is decoded again once more data is read, growing the buffer up to the max record size.
+ * At least half a buffer is available when a record is decoded, records up to that size never see a partial
+ * buffer, which matters for optional fields that are present when they fit in the data.
+ * Memory use is bounded by the max record size, not by the length of the stream.
+ * @author anderse
+ *
+ */
+public final class RecordReader implements Iterator<Map<String, Object>>, Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	private final Decoder decoder;
+	private final ReadableByteChannel in;
+	private final int maxRecordSize;
+	private byte[] buffer;
+	/**
+	 * bytes of buffer holding data, the whole buffer until the end of the stream is reached
+	 */
+	private int limit;
+	private int bitPosition;
+	private long streamBitPosition;
+	private long records;
+	private boolean eof;
+	private Map<String, Object> next;
+
+	public RecordReader(final Decoder decoder, final InputStream in) {
+		this(decoder, Channels.newChannel(in));
+	}
+
+	public RecordReader(final Decoder decoder, final ReadableByteChannel in) {
+		this(decoder, in, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_RECORD_SIZE);
+	}
+
+	/**
+	 * @param decoder
+	 * @param in
+	 * @param bufferSize initial buffer size in bytes
+	 * @param maxRecordSize largest record in bytes, the buffer grows up to one byte more
+	 */
+	public RecordReader(final Decoder decoder, final ReadableByteChannel in, final int bufferSize, final int maxRecordSize) {
+		if (bufferSize <= 0 || maxRecordSize <= 0) throw new IllegalArgumentException("buffer and record size must be positive");
+		this.decoder = decoder;
+		this.in = in;
+		this.maxRecordSize = maxRecordSize;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Decode the next record.
+	 * @param record receives the fields, cleared first
+	 * @return bits consumed, -1 at the end of the stream
+	 * @throws IOException
+	 * @throws CodecException if a record is not identified, is truncated or exceeds the max record size
+	 */
+	public int read(final Map<String, Object> record) throws IOException {
+		if (!halfFull()) fill();
+		while (true) {
+			if (eof && limit * BitCodec.BYTE_SIZE - bitPosition < BitCodec.BYTE_SIZE) return -1;
+			record.clear();
+			int n;
+			boolean truncated = false;
+			try {
+				n = decoder.decode(buffer, bitPosition, record);
+			} catch (final IndexOutOfBoundsException e) {
+				if (eof) throw new CodecException("truncated record " + records + " of " + decoder.name() + " at bit " + streamBitPosition, e);
+				n = -1;
+				truncated = true;
+			}
+			if (n == 0) throw new CodecException("empty record " + records + " of " + decoder.name() + " at bit " + streamBitPosition);
+			final int end = bitPosition + n;
+			if (n > 0 && (end < limit * BitCodec.BYTE_SIZE || eof)) {
+				bitPosition = end;
+				streamBitPosition += n;
+				records++;
+				return n;
+			}
+			if (eof || n < 0 && !truncated && !mayNeedMore()) {
+				throw new CodecException("record " + records + " at bit " + streamBitPosition + " is not identified by " + decoder.name());
+			}
+			more();
+		}
+	}
+
+	/**
+	 * @return true when a record that is not identified may be identified with more data: a decoder declaration
+	 * tries its externals on a truncated record without throwing, and an external identifies a record from the
+	 * first half buffer that is always available
+	 */
+	private boolean mayNeedMore() {
+		return decoder instanceof SelectingDecoder || !halfFull();
+	}
+
+	/**
+	 * @return true when at least half the buffer, and at least a byte, is unread
+	 */
+	private boolean halfFull() {
+		return limit - bitPosition / BitCodec.BYTE_SIZE >= Math.max(1, buffer.length / 2);
+	}
+
+	/**
+	 * Make room for more data, the record being decoded is incomplete.
+	 */
+	private void more() throws IOException {
+		if (bitPosition < BitCodec.BYTE_SIZE) {
+			if (buffer.length > maxRecordSize) {
+				throw new CodecException("record " + records + " of " + decoder.name() + " at bit " + streamBitPosition
+						+ " exceeds " + maxRecordSize + " bytes");
+			}
+			buffer = Arrays.copyOf(buffer, (int) Math.min(2L * buffer.length, maxRecordSize + 1L));
+		}
+		fill();
+	}
+
+	/**
+	 * Move the unread bytes to the start of the buffer and read until it is full.
+	 * At the end of the stream the buffer is trimmed to the data, decoders see the end of the data as the array length.
+	 */
+	private void fill() throws IOException {
+		if (eof) return;
+		final int start = bitPosition / BitCodec.BYTE_SIZE;
+		System.arraycopy(buffer, start, buffer, 0, limit - start);
+		limit -= start;
+		bitPosition -= start * BitCodec.BYTE_SIZE;
+		final ByteBuffer dst = ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+		while (dst.hasRemaining()) {
+			if (in.read(dst) < 0) {
+				eof = true;
+				break;
+			}
+		}
+		limit = dst.position();
+		if (eof) buffer = Arrays.copyOf(buffer, limit);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			final Map<String, Object> record = new LinkedHashMap<>();
+			try {
+				if (read(record) > 0) next = record;
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Map<String, Object> next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		final Map<String, Object> record = next;
+		next = null;
+		return record;
+	}
+
+	/**
+	 * @return the remaining records, closing the stream closes the reader
+	 */
+	public Stream<Map<String, Object>> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(() -> {
+					try {
+						close();
+					} catch (final IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	/**
+	 * @return number of records read
+	 */
+	public long records() {
+		return records;
+	}
+
+	/**
+	 * @return bit position in the stream after the last record read
+	 */
+	public long bitPosition() {
+		return streamBitPosition;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
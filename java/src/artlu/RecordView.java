@@ -0,0 +1,234 @@
+package artlu;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable flyweight over one record of an external, fields are decoded when read.
+ * Fields at static offsets are read directly; the first read of any other field computes the offsets of the
+ * whole record once, which are kept until the view is bound to another record.
+ * Not thread safe, use one view per thread.
+ * @author anderse
+ *
+ */
+public final class RecordView {
+
+	private final LayoutDecoder codec;
+	private final FieldLayout layout;
+	private final int[] offsets;
+	private final int[] sizes;
+	private byte[] array;
+	private ByteBuffer buffer;
+	private int bitOffset;
+	private int bitLength;
+	private boolean resolved;
+
+	public RecordView(final LayoutDecoder codec) {
+		this.codec = codec;
+		this.layout = codec.fieldLayout();
+		this.offsets = new int[layout.size()];
+		this.sizes = new int[layout.size()];
+	}
+
+	/**
+	 * @param data
+	 * @param bitOffset where the record starts
+	 * @return this view
+	 */
+	public RecordView bind(final byte[] data, final int bitOffset) {
+		this.array = data;
+		this.buffer = null;
+		this.bitOffset = bitOffset;
+		this.resolved = false;
+		return this;
+	}
+
+	/**
+	 * @param data read in place from index 0, the position is ignored
+	 * @param bitOffset where the record starts
+	 * @return this view
+	 */
+	public RecordView bind(final ByteBuffer data, final int bitOffset) {
+		this.array = null;
+		this.buffer = data;
+		this.bitOffset = bitOffset;
+		this.resolved = false;
+		return this;
+	}
+
+	public FieldLayout layout() {
+		return layout;
+	}
+
+	/**
+	 * @param field
+	 * @return index for the indexed accessors
+	 */
+	public int index(final String field) {
+		return layout.index(field);
+	}
+
+	/**
+	 * @return bits of the bound record, the start of the next one, or -1 if it is not identified
+	 */
+	public int bitLength() {
+		resolve();
+		return bitLength;
+	}
+
+	public boolean isPresent(final int index) {
+		return layout.offset(index) >= 0 || resolve().offsets[index] >= 0;
+	}
+
+	public boolean isPresent(final String field) {
+		return isPresent(index(field));
+	}
+
+	private RecordView resolve() {
+		if (!resolved) {
+			Arrays.fill(offsets, -1);
+			bitLength = array != null ? codec.offsets(array, bitOffset, offsets, sizes) : codec.offsets(buffer, bitOffset, offsets, sizes);
+			resolved = true;
+		}
+		return this;
+	}
+
+	private int offsetOf(final int index) {
+		final int o = layout.offset(index);
+		if (o >= 0) return bitOffset + o;
+		final int r = resolve().offsets[index];
+		if (r < 0) throw new CodecException("field " + layout.field(index) + " is not present");
+		return bitOffset + r;
+	}
+
+	private int sizeOf(final int index) {
+		final int s = layout.bitSize(index);
+		return s >= 0 ? s : resolve().sizes[index];
+	}
+
+	public long getLong(final int index) {
+		final int o = offsetOf(index);
+		final int s = sizeOf(index);
+		final boolean signed = layout.signed(index);
+		final Endian endian = layout.endian(index);
+		switch (layout.type(index)) {
+		case "byte":
+			return array != null ? BitCodec.byteDecode(array, o, s, signed, endian) : BitCodec.byteDecode(buffer, o, s, signed, endian);
+		case "short":
+			return array != null ? BitCodec.shortDecode(array, o, s, signed, endian) : BitCodec.shortDecode(buffer, o, s, signed, endian);
+		case "int":
+			return array != null ? BitCodec.intDecode(array, o, s, signed, endian) : BitCodec.intDecode(buffer, o, s, signed, endian);
+		case "long":
+		case "bigint":
+			return array != null ? BitCodec.longDecode(array, o, s, signed, endian) : BitCodec.longDecode(buffer, o, s, signed, endian);
+		default:
+			throw new CodecException("field " + layout.field(index) + " of type " + layout.type(index) + " is not an integer");
+		}
+	}
+
+	public long getLong(final String field) {
+		return getLong(index(field));
+	}
+
+	public int getInt(final int index) {
+		return (int) getLong(index);
+	}
+
+	public int getInt(final String field) {
+		return getInt(index(field));
+	}
+
+	public double getDouble(final int index) {
+		final int o = offsetOf(index);
+		final int s = sizeOf(index);
+		switch (layout.type(index)) {
+		case "float":
+			return array != null ? BitCodec.floatDecode(array, o, s, false) : BitCodec.floatDecode(buffer, o, s, false);
+		case "double":
+			return array != null ? BitCodec.doubleDecode(array, o, s, false) : BitCodec.doubleDecode(buffer, o, s, false);
+		default:
+			return getLong(index);
+		}
+	}
+
+	public double getDouble(final String field) {
+		return getDouble(index(field));
+	}
+
+	public BigInteger getBigInteger(final int index) {
+		if (!"bigint".equals(layout.type(index))) return BigInteger.valueOf(getLong(index));
+		final int o = offsetOf(index);
+		final int s = sizeOf(index);
+		final boolean signed = layout.signed(index);
+		final Endian endian = layout.endian(index);
+		return array != null ? BitCodec.bigintDecode(array, o, s, signed, endian) : BitCodec.bigintDecode(buffer, o, s, signed, endian);
+	}
+
+	public BigInteger getBigInteger(final String field) {
+		return getBigInteger(index(field));
+	}
+
+	/**
+	 * @param index of an ascii or bcd field
+	 * @return
+	 */
+	public String getString(final int index) {
+		final int o = offsetOf(index);
+		final int s = sizeOf(index);
+		final boolean signed = layout.signed(index);
+		switch (layout.type(index)) {
+		case "ascii":
+			return array != null ? BitCodec.asciiDecode(array, o, s, signed) : BitCodec.asciiDecode(buffer, o, s, signed);
+		case "bcd":
+			return array != null ? BitCodec.bcdDecode(array, o, s, signed) : BitCodec.bcdDecode(buffer, o, s, signed);
+		default:
+			throw new CodecException("field " + layout.field(index) + " of type " + layout.type(index) + " is not a string");
+		}
+	}
+
+	public String getString(final String field) {
+		return getString(index(field));
+	}
+
+	/**
+	 * @param index of a bytearray field
+	 * @return the bytes of the field
+	 */
+	public byte[] getBytes(final int index) {
+		if (!"bytearray".equals(layout.type(index))) {
+			throw new CodecException("field " + layout.field(index) + " of type " + layout.type(index) + " is not a bytearray");
+		}
+		final int o = offsetOf(index);
+		final int s = sizeOf(index);
+		final boolean signed = layout.signed(index);
+		return array != null ? BitCodec.bytearrayDecode(array, o, s, signed) : BitCodec.bytearrayDecode(buffer, o, s, signed);
+	}
+
+	public byte[] getBytes(final String field) {
+		return getBytes(index(field));
+	}
+
+	/**
+	 * @param index
+	 * @return the value as the decoder would put it in a record map, null when absent
+	 */
+	public Object get(final int index) {
+		if (!isPresent(index)) return null;
+		switch (layout.type(index)) {
+		case "byte": return (byte) getLong(index);
+		case "short": return (short) getLong(index);
+		case "int": return getInt(index);
+		case "long": return getLong(index);
+		case "bigint": return getBigInteger(index);
+		case "float": return (float) getDouble(index);
+		case "double": return getDouble(index);
+		case "bytearray": return getBytes(index);
+		default: return getString(index);
+		}
+	}
+
+	public Object get(final String field) {
+		return get(index(field));
+	}
+}
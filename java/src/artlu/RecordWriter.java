@@ -0,0 +1,234 @@
+package artlu;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes records back to back into one reusable buffer that is written to a channel in large writes.
+ * Without framing records follow each other without alignment, like ArtluParser.decode reads them.
+ * With terminated_by or block_size every record is padded with zero bits to a whole byte and followed by the
+ * terminator. With block_size a record and its terminator never cross a block boundary, the rest of a block is
+ * padded with zero bytes when the next record does not fit, and the last block is padded when the writer is closed.
+ * Records are encoded through a BitCodec owned by the writer, so encoding allocates nothing per record once the
+ * buffers have grown to the largest record.
+ * Not thread safe.
+ * @author anderse
+ *
+ */
+public final class RecordWriter implements Closeable, Flushable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final String name;
+	private final Encoder[] encoders;
+	private final int blockSize;
+	private final byte[] terminator;
+	private final WritableByteChannel out;
+	private final boolean aligned;
+	private final BitCodec codec = new BitCodec();
+	private byte[] buffer;
+	/**
+	 * bits of buffer not written to out, the bits after it are zero
+	 */
+	private int bitPosition;
+	private long streamBitPosition;
+	private long records;
+	private boolean closed;
+
+	public RecordWriter(final Encoder encoder, final OutputStream out) {
+		this(encoder, Channels.newChannel(out));
+	}
+
+	public RecordWriter(final Encoder encoder, final WritableByteChannel out) {
+		this(encoder.name(), Collections.singletonList(encoder), 0, new byte[0], out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param name of the encoder declaration
+	 * @param encoders the externals of the encoder declaration
+	 * @param blockSize bytes per block, 0 when the output is not blocked
+	 * @param terminator written after every record, empty when records are not terminated
+	 * @param out
+	 * @param bufferSize initial buffer size in bytes, the buffer grows to the largest record
+	 */
+	RecordWriter(final String name, final List<Encoder> encoders, final int blockSize, final byte[] terminator,
+			final WritableByteChannel out, final int bufferSize) {
+		if (bufferSize <= 0 || blockSize < 0) throw new IllegalArgumentException("buffer and block size must be positive");
+		if (encoders.isEmpty()) throw new CodecException("encoder " + name + " has no out_map");
+		this.name = name;
+		this.encoders = encoders.toArray(new Encoder[0]);
+		this.blockSize = blockSize;
+		this.terminator = terminator.clone();
+		this.out = out;
+		this.aligned = blockSize > 0 || terminator.length > 0;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Encode a record of the only external of the encoder.
+	 * @param record
+	 * @throws IOException
+	 * @throws CodecException if the encoder has several externals, or the record does not fit a block
+	 */
+	public void write(final Map<String, ?> record) throws IOException {
+		if (encoders.length > 1) throw new CodecException("encoder " + name + " has several externals, name the external of the record");
+		write(encoders[0], record);
+	}
+
+	/**
+	 * @param external of the record, one of the out_maps of the encoder
+	 * @param record
+	 * @throws IOException
+	 * @throws CodecException if the external is not written by this encoder, or the record does not fit a block
+	 */
+	public void write(final String external, final Map<String, ?> record) throws IOException {
+		for (final Encoder e : encoders) {
+			if (e.name().equals(external)) {
+				write(e, record);
+				return;
+			}
+		}
+		throw new CodecException("external " + external + " is not written by encoder " + name);
+	}
+
+	/**
+	 * Encode records of the only external of the encoder.
+	 * @param records
+	 * @return number of records written
+	 * @throws IOException
+	 */
+	public long writeAll(final Iterable<? extends Map<String, ?>> records) throws IOException {
+		long n = 0;
+		for (final Map<String, ?> r : records) {
+			write(r);
+			n++;
+		}
+		return n;
+	}
+
+	private void write(final Encoder encoder, final Map<String, ?> record) throws IOException {
+		if (closed) throw new IOException("writer of " + name + " is closed");
+		codec.clear();
+		encoder.encode(record, codec);
+		final int bits = codec.bitLength();
+		final int recordBits = aligned ? (bits + BitCodec.BYTE_SIZE - 1) / BitCodec.BYTE_SIZE * BitCodec.BYTE_SIZE : bits;
+		final long framedBits = recordBits + (long) terminator.length * BitCodec.BYTE_SIZE;
+		if (blockSize > 0) {
+			final long blockBits = (long) blockSize * BitCodec.BYTE_SIZE;
+			if (framedBits > blockBits) {
+				throw new CodecException("record " + records + " of " + encoder.name() + " is " + framedBits / BitCodec.BYTE_SIZE
+						+ " bytes, more than block_size(" + blockSize + ")");
+			}
+			final long used = streamBitPosition % blockBits;
+			if (used + framedBits > blockBits) skip((int) (blockBits - used));
+		}
+		ensure(framedBits);
+		codec.writeTo(buffer, bitPosition);
+		bitPosition += recordBits;
+		if (terminator.length > 0) {
+			System.arraycopy(terminator, 0, buffer, bitPosition / BitCodec.BYTE_SIZE, terminator.length);
+			bitPosition += terminator.length * BitCodec.BYTE_SIZE;
+		}
+		streamBitPosition += framedBits;
+		records++;
+	}
+
+	/**
+	 * Pad with zero bits, the buffer is zero after the bit position.
+	 */
+	private void skip(final int bits) throws IOException {
+		ensure(bits);
+		bitPosition += bits;
+		streamBitPosition += bits;
+	}
+
+	/**
+	 * Make room for bits more in the buffer, writing the whole bytes to out first and growing the buffer
+	 * if that is not enough.
+	 */
+	private void ensure(final long bits) throws IOException {
+		if (bitPosition + bits <= (long) buffer.length * BitCodec.BYTE_SIZE) return;
+		drain();
+		final long needed = (bitPosition + bits + BitCodec.BYTE_SIZE - 1) / BitCodec.BYTE_SIZE;
+		if (needed > buffer.length) {
+			if (needed > Integer.MAX_VALUE / BitCodec.BYTE_SIZE) throw new CodecException("record of " + name + " is too large");
+			buffer = Arrays.copyOf(buffer, (int) Math.max(needed, Math.min(2L * buffer.length, Integer.MAX_VALUE / BitCodec.BYTE_SIZE)));
+		}
+	}
+
+	/**
+	 * Write the whole bytes of the buffer to out, a partial last byte stays in the buffer.
+	 */
+	private void drain() throws IOException {
+		final int whole = bitPosition / BitCodec.BYTE_SIZE;
+		if (whole == 0) return;
+		final ByteBuffer src = ByteBuffer.wrap(buffer, 0, whole);
+		while (src.hasRemaining()) {
+			out.write(src);
+		}
+		final int used = (bitPosition + BitCodec.BYTE_SIZE - 1) / BitCodec.BYTE_SIZE;
+		final byte partial = used > whole ? buffer[whole] : 0;
+		Arrays.fill(buffer, 0, used, (byte) 0);
+		buffer[0] = partial;
+		bitPosition -= whole * BitCodec.BYTE_SIZE;
+	}
+
+	/**
+	 * Write the buffered whole bytes to out. A record ending inside a byte keeps that byte buffered
+	 * until the next record or close.
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+
+	/**
+	 * Pad the last block and the last byte, write everything buffered and close the channel.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			if (blockSize > 0) {
+				final long blockBits = (long) blockSize * BitCodec.BYTE_SIZE;
+				final long used = streamBitPosition % blockBits;
+				if (used > 0) skip((int) (blockBits - used));
+			}
+			skip((BitCodec.BYTE_SIZE - bitPosition % BitCodec.BYTE_SIZE) % BitCodec.BYTE_SIZE);
+			drain();
+		} finally {
+			closed = true;
+			out.close();
+		}
+	}
+
+	/**
+	 * @return number of records written
+	 */
+	public long records() {
+		return records;
+	}
+
+	/**
+	 * @return bit position in the output after the last record, terminator and block padding included
+	 */
+	public long bitPosition() {
+		return streamBitPosition;
+	}
+
+	@Override
+	public String toString() {
+		return "RecordWriter[" + name + ", " + records + " records, bit " + streamBitPosition + "]";
+	}
+}
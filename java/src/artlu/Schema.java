@@ -0,0 +1,651 @@
+package artlu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Schema model built from the parse tree of artlu.bnf.
+ * Holds the externals with their fields in declaration order together with the
+ * internal and event types and the in_map, out_map, decoder and encoder declarations referring to them.
+ * @author anderse
+ *
+ */
+public final class Schema {
+
+	final Map<String, External> externals = new LinkedHashMap<>();
+	final Map<String, InMap> inMaps = new LinkedHashMap<>();
+	final Map<String, OutMap> outMaps = new LinkedHashMap<>();
+	final Map<String, DecoderDef> decoders = new LinkedHashMap<>();
+	final Map<String, EncoderDef> encoders = new LinkedHashMap<>();
+	final Map<String, InternalDef> internals = new LinkedHashMap<>();
+
+	private Schema() {
+	}
+
+	/**
+	 * Build the schema from an artlu parse tree, as returned by SchemaParser.parse or artlu.core/parse-tree.
+	 * @param tree
+	 * @return
+	 */
+	public static Schema of(final Object tree) {
+		if (!Tree.is(tree, "artlu")) throw Tree.unsupported("schema", tree);
+		final Schema schema = new Schema();
+		for (final Object node : Tree.children(tree)) {
+			final String tag = Tree.tag(node);
+			if ("external".equals(tag)) {
+				final External e = new External(node);
+				schema.externals.put(e.name, e);
+			} else if ("in_map".equals(tag)) {
+				final InMap m = new InMap(node);
+				schema.inMaps.put(m.name, m);
+			} else if ("out_map".equals(tag)) {
+				final OutMap m = new OutMap(node);
+				schema.outMaps.put(m.name, m);
+			} else if ("decoder".equals(tag)) {
+				final DecoderDef d = new DecoderDef(node);
+				schema.decoders.put(d.name, d);
+			} else if ("encoder".equals(tag)) {
+				final EncoderDef e = new EncoderDef(node);
+				schema.encoders.put(e.name, e);
+			} else if ("internal".equals(tag) || "event".equals(tag)) {
+				final InternalDef i = new InternalDef(node);
+				schema.internals.put(i.name, i);
+			}
+		}
+		return schema;
+	}
+
+	public Set<String> externalNames() {
+		return Collections.unmodifiableSet(externals.keySet());
+	}
+
+	public Set<String> decoderNames() {
+		return Collections.unmodifiableSet(decoders.keySet());
+	}
+
+	public Set<String> encoderNames() {
+		return Collections.unmodifiableSet(encoders.keySet());
+	}
+
+	/**
+	 * Externals a decoder declaration refers to, through its in_maps or nested decoders, in declaration order.
+	 * @param decoder
+	 * @return
+	 */
+	List<External> externalsOf(final String decoder) {
+		final List<External> result = new ArrayList<>();
+		collect(decoder, result, new ArrayList<>());
+		return result;
+	}
+
+	/**
+	 * Externals an encoder declaration writes through its out_maps, in declaration order.
+	 * @param encoder
+	 * @return
+	 */
+	List<External> encoderExternalsOf(final String encoder) {
+		final EncoderDef d = encoders.get(encoder);
+		if (d == null) throw new CodecException("unknown encoder " + encoder);
+		final List<External> result = new ArrayList<>();
+		for (final String m : d.outMaps) {
+			final OutMap outMap = outMaps.get(m);
+			if (outMap == null) throw new CodecException("unknown out_map " + m + " in encoder " + encoder);
+			final External e = externals.get(outMap.external);
+			if (e == null) throw new CodecException("unknown external " + outMap.external + " in out_map " + m);
+			if (!result.contains(e)) result.add(e);
+		}
+		return result;
+	}
+
+	private void collect(final String decoder, final List<External> result, final List<String> visited) {
+		final DecoderDef d = decoders.get(decoder);
+		if (d == null) throw new CodecException("unknown decoder " + decoder);
+		if (visited.contains(decoder)) throw new CodecException("recursive decoder " + decoder);
+		visited.add(decoder);
+		for (final String m : d.inMaps) {
+			final InMap inMap = inMaps.get(m);
+			if (inMap == null) throw new CodecException("unknown in_map " + m + " in decoder " + decoder);
+			final External e = externals.get(inMap.external);
+			if (e == null) throw new CodecException("unknown external " + inMap.external + " in in_map " + m);
+			if (!result.contains(e)) result.add(e);
+		}
+		for (final String ref : d.decoders) {
+			collect(ref, result, visited);
+		}
+	}
+
+	static List<Element> elementsOf(final Object block) {
+		final List<Element> result = new ArrayList<>();
+		for (final Object node : Tree.children(block)) {
+			final String tag = Tree.tag(node);
+			if (tag == null) continue;
+			switch (tag) {
+			case "field":
+				result.add(new Field(node));
+				break;
+			case "set":
+				result.add(new Group(node));
+				break;
+			case "bit_block":
+				result.add(new Group(node));
+				break;
+			case "repeat_block":
+				result.add(new Repeat(node));
+				break;
+			case "switched_set":
+				result.add(new Switch(node));
+				break;
+			case "open-curly":
+			case "close-curly":
+			case "cases":
+				break;
+			default:
+				throw Tree.unsupported("element", node);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Size and framing properties of an external, set or bit_block.
+	 * Sizes are in bytes.
+	 */
+	static final class Properties {
+		Integer staticSize;
+		Expr dynamicSize;
+		Expr terminatedBy;
+		Expr identifiedBy;
+		Expr paddedWith;
+		boolean ignoreTrailingData;
+
+		static Properties of(final Object node) {
+			final Properties p = new Properties();
+			for (final Object c : Tree.children(node)) {
+				p.add(c);
+			}
+			return p;
+		}
+
+		void add(final Object c) {
+			final String tag = Tree.tag(c);
+			if (tag == null) {
+				if ("ignore_trailing_data".equals(c)) ignoreTrailingData = true;
+				return;
+			}
+			switch (tag) {
+			case "static_size":
+			case "bit_block_static_size":
+				staticSize = (int) Expr.intOf(Tree.children(c).get(0));
+				break;
+			case "dynamic_size":
+				dynamicSize = Expr.of(Tree.children(c).get(0));
+				break;
+			case "terminated_by":
+				terminatedBy = Expr.of(Tree.children(c).get(0));
+				break;
+			case "identified_by":
+				identifiedBy = Expr.of(Tree.children(c).get(0));
+				break;
+			case "padded_with":
+				paddedWith = Expr.of(Tree.children(c).get(0));
+				break;
+			case "bit_blockSize":
+				add(Tree.children(c).get(0));
+				break;
+			default:
+				throw Tree.unsupported("property", c);
+			}
+		}
+
+		/**
+		 * @return the size in bits, null when the size is given by the content
+		 */
+		Expr bitSize() {
+			if (staticSize != null) return new Expr.Literal((long) staticSize * BitCodec.BYTE_SIZE);
+			if (dynamicSize != null) return new Expr.Binary("*", new Expr.Literal((long) BitCodec.BYTE_SIZE), dynamicSize).fold();
+			return null;
+		}
+	}
+
+	/**
+	 * @param node a present if expression
+	 * @return the folded condition, null when it is always true
+	 */
+	static Expr conditionOf(final Object node) {
+		final Expr e = Expr.of(node);
+		return Boolean.TRUE.equals(e.constantBoolean()) ? null : e;
+	}
+
+	abstract static class Element {
+	}
+
+	static final class Field extends Element {
+		private static final Set<String> TYPE_KEYWORDS = new HashSet<>(Arrays.asList(
+				"byte", "short", "int", "long", "float", "double", "bigint", "bcd", "ascii", "bytearray"));
+
+		final String name;
+		final String type;
+		String endian;
+		Expr bitSize;
+		Integer staticSize;
+		Expr dynamicSize;
+		boolean signed;
+		boolean optional;
+		Expr presentIf;
+		Expr encodeValue;
+		String align;
+		Expr paddedWith;
+		Expr terminatedBy;
+
+		Field(final Object node) {
+			name = Tree.ident(node);
+			final Object t = Tree.children(Tree.child(node, "type")).get(0);
+			final String tag = Tree.tag(t);
+			if (tag == null) {
+				type = String.valueOf(t);
+			} else if ("ident".equals(tag) && TYPE_KEYWORDS.contains(Tree.text(t))) {
+				// the grammar also lets a type keyword parse as a type name
+				type = Tree.text(t);
+			} else if ("ident".equals(tag) || "list".equals(tag)) {
+				throw Tree.unsupported("field type", t);
+			} else {
+				type = tag;
+				final Object endianType = Tree.child(t, "endian-type");
+				if (endianType != null && !Tree.children(endianType).isEmpty()) {
+					final Object e = Tree.children(endianType).get(0);
+					endian = Tree.isNode(e) ? Tree.tag(e) : String.valueOf(e);
+				}
+			}
+			final Object props = Tree.child(node, "field-properties");
+			for (final Object p : Tree.children(props)) {
+				property(p);
+			}
+		}
+
+		private void property(final Object p) {
+			final String tag = Tree.tag(p);
+			if (tag == null) {
+				if ("optional".equals(p)) optional = true;
+				return;
+			}
+			final List<Object> c = Tree.children(p);
+			switch (tag) {
+			case "signed":
+				signed = true;
+				break;
+			case "unsigned":
+				signed = false;
+				break;
+			case "little_endian":
+			case "big_endian":
+				endian = tag;
+				break;
+			case "bit_size":
+				bitSize = Expr.of(c.get(0));
+				break;
+			case "static_size":
+				staticSize = (int) Expr.intOf(c.get(0));
+				break;
+			case "dynamic_size":
+				dynamicSize = Expr.of(c.get(0));
+				break;
+			case "presentIf":
+				presentIf = conditionOf(c.get(0));
+				break;
+			case "encode_value":
+				encodeValue = Expr.of(c.get(0));
+				break;
+			case "align":
+				align = Tree.text(p);
+				break;
+			case "padded_with":
+				paddedWith = Expr.of(c.get(0));
+				break;
+			case "terminated_by":
+				terminatedBy = Expr.of(c.get(0));
+				break;
+			case "external_only":
+			case "encoding":
+				break;
+			default:
+				throw Tree.unsupported("field property", p);
+			}
+		}
+
+		/**
+		 * @return the size in bits, null for terminated fields
+		 */
+		Expr bits() {
+			if (bitSize != null) return bitSize;
+			if (staticSize != null) return new Expr.Literal((long) staticSize * BitCodec.BYTE_SIZE);
+			if (dynamicSize != null) return new Expr.Binary("*", new Expr.Literal((long) BitCodec.BYTE_SIZE), dynamicSize).fold();
+			final int n = typeBitSize(type);
+			if (n > 0) return new Expr.Literal((long) n);
+			if (terminatedBy != null) return null;
+			throw new CodecException("field " + name + " of type " + type + " needs a size");
+		}
+
+		static int typeBitSize(final String type) {
+			switch (type) {
+			case "byte": return 8;
+			case "short": return 16;
+			case "int": return 32;
+			case "float": return 32;
+			case "long": return 64;
+			case "double": return 64;
+			default: return 0;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + name;
+		}
+	}
+
+	/**
+	 * A set or a bit_block, the fields are part of the enclosing record.
+	 */
+	static final class Group extends Element {
+		final String kind;
+		final Properties properties;
+		final Expr presentIf;
+		final List<Element> body;
+
+		Group(final Object node) {
+			kind = Tree.tag(node);
+			if ("bit_block".equals(kind)) {
+				properties = new Properties();
+				Expr pi = null;
+				for (final Object p : Tree.all(node, "bitBlock-property")) {
+					final Object c = Tree.children(p).get(0);
+					if (Tree.is(c, "presentIf")) {
+						pi = conditionOf(Tree.children(c).get(0));
+					} else {
+						properties.add(c);
+					}
+				}
+				presentIf = pi;
+				body = elementsOf(Tree.child(node, "bitBlock"));
+			} else {
+				properties = Properties.of(Tree.child(node, "external-properties"));
+				presentIf = null;
+				body = elementsOf(Tree.child(node, "externalBlock"));
+			}
+		}
+	}
+
+	static final class Repeat extends Element {
+		final Expr count;
+		final List<Element> body;
+
+		Repeat(final Object node) {
+			count = Expr.of(Tree.child(node, "aplExpression"));
+			body = elementsOf(Tree.child(node, "bitBlock"));
+		}
+	}
+
+	static final class Switch extends Element {
+		final String discriminator;
+		final Properties properties;
+		final List<Element> prefix;
+		final List<Case> cases = new ArrayList<>();
+		final Case defaultCase;
+
+		Switch(final Object node) {
+			discriminator = Tree.ident(node);
+			properties = Properties.of(Tree.child(Tree.child(node, "switched_set_properties"), "external-properties"));
+			final Object block = Tree.child(node, "switched_set-block");
+			prefix = elementsOf(block);
+			final Object cs = Tree.child(block, "cases");
+			for (final Object c : Tree.all(cs, "case")) {
+				cases.add(new Case(c));
+			}
+			final Object d = Tree.child(cs, "default");
+			defaultCase = d == null ? null : new Case(d);
+		}
+	}
+
+	static final class Case {
+		/** null for the default case */
+		final Expr value;
+		final boolean includePrefix;
+		final List<Element> body;
+
+		Case(final Object node) {
+			value = Tree.is(node, "case") ? Expr.of(Tree.child(node, "aplExpression")) : null;
+			includePrefix = Tree.hasLeaf(node, "include_prefix");
+			body = elementsOf(Tree.child(node, "externalBlock"));
+		}
+	}
+
+	static final class External {
+		final String name;
+		final boolean sequential;
+		final Properties properties;
+		final List<Element> body;
+
+		External(final Object node) {
+			name = Tree.ident(node);
+			sequential = Tree.hasLeaf(node, "sequential");
+			properties = Properties.of(Tree.child(node, "external-properties"));
+			body = elementsOf(Tree.child(node, "externalBlock"));
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * The external(...), internal(...) and target_internal(...) references of an in_map or out_map
+	 * and how its fields map: automatic name matching, explicit i: and e: field mappings and emit_field.
+	 */
+	abstract static class Mapping {
+		final String name;
+		String external;
+		String internal;
+		boolean targetInternal;
+		boolean automatic;
+		boolean useExternalNames;
+		/**
+		 * explicit mappings, {internal field, external field}
+		 */
+		final List<String[]> fieldMappings = new ArrayList<>();
+		/**
+		 * emit_field(target, source) in declaration order
+		 */
+		final List<String[]> emits = new ArrayList<>();
+		/**
+		 * in_map by internal field of the automatic block, the internal field gets the record that in_map maps
+		 */
+		final Map<String, String> usings = new LinkedHashMap<>();
+
+		Mapping(final Object node) {
+			name = Tree.ident(node);
+			for (final Object m : Tree.children(Tree.child(node, "ext-int-mappings"))) {
+				final Object arg = Tree.child(m, "ext-int-arg");
+				final Object emit = Tree.child(m, "emit-field");
+				if (Tree.hasLeaf(m, "external")) {
+					external = Tree.ident(arg);
+				} else if (Tree.child(m, "internal-mapping") != null) {
+					internal = Tree.ident(arg);
+					targetInternal = "target_internal".equals(Tree.text(Tree.child(m, "internal-mapping")));
+				} else if (emit != null) {
+					final List<Object> names = Tree.all(emit, "ident");
+					emits.add(new String[] {Tree.text(names.get(0)), Tree.text(names.get(1))});
+				}
+			}
+			automatic = Tree.hasLeaf(node, "automatic") || Tree.hasLeaf(node, "automatic;");
+			useExternalNames = Tree.hasLeaf(node, "use_external_names");
+			for (final Object u : Tree.all(Tree.child(node, "automatic-block"), "using")) {
+				final List<Object> names = Tree.all(u, "ident");
+				usings.put(Tree.text(names.get(0)), Tree.text(names.get(1)));
+			}
+			for (final Object f : Tree.all(node, "field-mapping")) {
+				final List<Object> c = Tree.children(f);
+				final String first = Tree.text(c.get(1));
+				final String second = Tree.text(c.get(3));
+				fieldMappings.add("i:".equals(c.get(0)) ? new String[] {first, second} : new String[] {second, first});
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	static final class InMap extends Mapping {
+		InMap(final Object node) {
+			super(node);
+		}
+	}
+
+	static final class OutMap extends Mapping {
+		OutMap(final Object node) {
+			super(node);
+		}
+	}
+
+	static final class DecoderDef {
+		final String name;
+		final List<String> inMaps = new ArrayList<>();
+		final List<String> decoders = new ArrayList<>();
+
+		DecoderDef(final Object node) {
+			name = Tree.ident(node);
+			for (final Object m : Tree.all(Tree.child(node, "decoders-in_map"), "decoder-in_map")) {
+				inMaps.add(Tree.ident(m));
+			}
+			final Object refs = Tree.child(Tree.child(node, "decoder-block"), "decoder-refs");
+			for (final Object r : Tree.all(refs, "decoder-ref")) {
+				decoders.add(Tree.ident(r));
+			}
+		}
+	}
+
+	static final class EncoderDef {
+		final String name;
+		final List<String> outMaps = new ArrayList<>();
+		Expr blockSize;
+		Expr terminatedBy;
+
+		EncoderDef(final Object node) {
+			name = Tree.ident(node);
+			for (final Object p : Tree.all(Tree.child(node, "encoder-properties"), "encoder-property")) {
+				final Object c = Tree.children(p).get(0);
+				if (Tree.is(c, "encoder-out_map")) {
+					outMaps.add(Tree.ident(c));
+				} else if (Tree.is(c, "block_size")) {
+					blockSize = Expr.of(Tree.children(c).get(0));
+				} else if (Tree.is(c, "terminated_by")) {
+					terminatedBy = Expr.of(Tree.children(c).get(0));
+				}
+			}
+		}
+	}
+
+	/**
+	 * An internal or event declaration, the fields of a generated record class.
+	 */
+	static final class InternalDef {
+		final String name;
+		final boolean event;
+		final String extended;
+		final List<InternalField> fields = new ArrayList<>();
+
+		InternalDef(final Object node) {
+			name = Tree.ident(node);
+			event = Tree.is(node, "event");
+			final Object e = Tree.child(node, "extends");
+			extended = e == null ? null : Tree.ident(e);
+			for (final Object f : Tree.all(Tree.child(node, "internalBlock"), "internal-field")) {
+				fields.add(new InternalField(f));
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	static final class InternalField {
+		final String name;
+		final InternalType type;
+		final boolean optional;
+
+		InternalField(final Object node) {
+			name = Tree.ident(node);
+			type = InternalType.of(Tree.child(node, "internal-type"));
+			optional = Tree.hasLeaf(node, "optional");
+		}
+	}
+
+	/**
+	 * Type of an internal field: a primitive, bigint, bytearray, list, map or the name of an internal.
+	 */
+	static final class InternalType {
+		private static final Set<String> PRIMITIVES = new HashSet<>(Arrays.asList(
+				"byte", "short", "int", "long", "float", "double"));
+
+		final String name;
+		/**
+		 * element of a list, key of a map
+		 */
+		final InternalType element;
+		/**
+		 * value of a map
+		 */
+		final InternalType value;
+
+		private InternalType(final String name, final InternalType element, final InternalType value) {
+			this.name = name;
+			this.element = element;
+			this.value = value;
+		}
+
+		static InternalType of(final Object node) {
+			final Object t = Tree.children(node).get(0);
+			final String tag = Tree.tag(t);
+			if (tag == null) return new InternalType(String.valueOf(t), null, null);
+			switch (tag) {
+			case "ident":
+				return new InternalType(Tree.text(t), null, null);
+			case "list":
+				return new InternalType("list", of(Tree.child(t, "internal-type")), null);
+			case "map":
+				final List<Object> kv = Tree.all(t, "internal-type");
+				return new InternalType("map", of(kv.get(0)), of(kv.get(1)));
+			default:
+				// short with its endian-type
+				return new InternalType(tag, null, null);
+			}
+		}
+
+		boolean isPrimitive() {
+			return PRIMITIVES.contains(name);
+		}
+
+		/**
+		 * @return true for the name of an internal
+		 */
+		boolean isRecord() {
+			return !isPrimitive() && !"bigint".equals(name) && !"bytearray".equals(name) && !"list".equals(name) && !"map".equals(name);
+		}
+
+		@Override
+		public String toString() {
+			if (element == null) return name;
+			return name + "<" + element + (value == null ? "" : ", " + value) + ">";
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package artlu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * On disk cache of compiled schemas keyed by a hash of the schema text.
+ * The key also covers the grammar, the generated code version and the java version,
+ * so entries written by another version are never loaded.
+ * A hit loads the codec classes without parsing the schema.
+ * @author anderse
+ *
+ */
+public final class SchemaCache {
+
+	private static final int MAGIC = 0x61727463;
+	private static final int FORMAT = 4;
+	private static final String SUFFIX = ".codecs";
+
+	private final Path directory;
+	private final String environment;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param directory cache directory, created when missing
+	 */
+	public SchemaCache(final Path directory) {
+		this(directory, environment());
+	}
+
+	/**
+	 * @param directory
+	 * @param environment everything besides the schema text the compiled classes depend on
+	 */
+	SchemaCache(final Path directory, final String environment) {
+		this.directory = directory;
+		this.environment = environment;
+	}
+
+	/**
+	 * Load a compiled schema from the cache, compile and store it on a miss.
+	 * An unreadable entry counts as a failure and is replaced.
+	 * @param text schema source
+	 * @param compiler compiles the schema on a miss
+	 * @return
+	 */
+	public CompiledSchema load(final String text, final Function<String, CompiledSchema> compiler) {
+		final String key = keyOf(text);
+		final Path file = directory.resolve(key + SUFFIX);
+		final CompiledSchema cached = read(file, key);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		misses.incrementAndGet();
+		final CompiledSchema compiled = compiler.apply(text);
+		write(file, key, compiled);
+		return compiled;
+	}
+
+	/**
+	 * Remove all entries.
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		if (!Files.isDirectory(directory)) return;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (final Path f : files) {
+				Files.deleteIfExists(f);
+			}
+		}
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of entries that could not be read or written
+	 */
+	public long failures() {
+		return failures.get();
+	}
+
+	public Path directory() {
+		return directory;
+	}
+
+	@Override
+	public String toString() {
+		return "SchemaCache[" + directory + ", hits=" + hits() + ", misses=" + misses() + ", failures=" + failures() + "]";
+	}
+
+	String keyOf(final String text) {
+		final MessageDigest md = sha256();
+		md.update(environment.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(text.getBytes(StandardCharsets.UTF_8));
+		return hex(md.digest());
+	}
+
+	private CompiledSchema read(final Path file, final String key) {
+		final byte[] b;
+		try {
+			b = Files.readAllBytes(file);
+		} catch (final NoSuchFileException e) {
+			return null;
+		} catch (final IOException e) {
+			failures.incrementAndGet();
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(b))) {
+			return readEntry(in, key, CompiledSchema.class.getClassLoader());
+		} catch (final IOException | RuntimeException | LinkageError e) {
+			failures.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Read an entry, also the format of the descriptor of a precompiled schema.
+	 * @param in
+	 * @param key the entry must have
+	 * @param loader parent of the loader of the class files in the entry, the loader of the generated classes
+	 * when the entry has none
+	 * @return
+	 * @throws IOException if the entry is not readable or not for key
+	 */
+	static CompiledSchema readEntry(final DataInputStream in, final String key, final ClassLoader loader) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != FORMAT || !key.equals(in.readUTF())) {
+			throw new IOException("not an entry for " + key);
+		}
+		final Map<String, String> codecClasses = readNames(in);
+		final Map<String, List<String>> decoderExternals = new LinkedHashMap<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			final String decoder = in.readUTF();
+			final List<String> externals = new ArrayList<>();
+			for (int j = in.readInt(); j > 0; j--) {
+				externals.add(in.readUTF());
+			}
+			decoderExternals.put(decoder, externals);
+		}
+		final List<String> fieldNames = new ArrayList<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			fieldNames.add(in.readUTF());
+		}
+		final Map<String, EncoderDeclaration> encoders = new LinkedHashMap<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			final String encoder = in.readUTF();
+			final List<String> externals = new ArrayList<>();
+			for (int j = in.readInt(); j > 0; j--) {
+				externals.add(in.readUTF());
+			}
+			final int blockSize = in.readInt();
+			final byte[] terminator = new byte[in.readInt()];
+			in.readFully(terminator);
+			encoders.put(encoder, new EncoderDeclaration(encoder, externals, blockSize, terminator));
+		}
+		final Map<String, String> inMapClasses = readNames(in);
+		final Map<String, String> outMapClasses = readNames(in);
+		final Map<String, String> internalClasses = readNames(in);
+		final Map<String, byte[]> classes = new LinkedHashMap<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			final String name = in.readUTF();
+			final byte[] classFile = new byte[in.readInt()];
+			in.readFully(classFile);
+			classes.put(name, classFile);
+		}
+		return new CompiledSchema(loader, classes, codecClasses, decoderExternals, fieldNames, encoders, inMapClasses, outMapClasses,
+				internalClasses);
+	}
+
+	private static Map<String, String> readNames(final DataInputStream in) throws IOException {
+		final Map<String, String> result = new LinkedHashMap<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			result.put(in.readUTF(), in.readUTF());
+		}
+		return result;
+	}
+
+	private static void writeNames(final DataOutputStream out, final Map<String, String> names) throws IOException {
+		out.writeInt(names.size());
+		for (final Map.Entry<String, String> e : names.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue());
+		}
+	}
+
+	/**
+	 * Write through a temporary file so concurrent readers never see a partial entry.
+	 */
+	private void write(final Path file, final String key, final CompiledSchema compiled) {
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(buf)) {
+			writeEntry(out, key, compiled, true);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		try {
+			Files.createDirectories(directory);
+			final Path tmp = Files.createTempFile(directory, key, ".tmp");
+			try {
+				Files.write(tmp, buf.toByteArray());
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (final IOException e) {
+			failures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param out
+	 * @param key
+	 * @param compiled
+	 * @param classFiles false to leave out the class files, when the generated classes are on the class path
+	 * @throws IOException
+	 */
+	static void writeEntry(final DataOutputStream out, final String key, final CompiledSchema compiled, final boolean classFiles)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT);
+		out.writeUTF(key);
+		writeNames(out, compiled.codecClasses());
+		out.writeInt(compiled.decoderExternals().size());
+		for (final Map.Entry<String, List<String>> e : compiled.decoderExternals().entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue().size());
+			for (final String external : e.getValue()) {
+				out.writeUTF(external);
+			}
+		}
+		out.writeInt(compiled.fieldNames().size());
+		for (final String f : compiled.fieldNames()) {
+			out.writeUTF(f);
+		}
+		out.writeInt(compiled.encoderDeclarations().size());
+		for (final EncoderDeclaration d : compiled.encoderDeclarations().values()) {
+			out.writeUTF(d.name);
+			out.writeInt(d.externals.size());
+			for (final String external : d.externals) {
+				out.writeUTF(external);
+			}
+			out.writeInt(d.blockSize);
+			out.writeInt(d.terminator.length);
+			out.write(d.terminator);
+		}
+		writeNames(out, compiled.inMapClasses());
+		writeNames(out, compiled.outMapClasses());
+		writeNames(out, compiled.internalClasses());
+		final Map<String, byte[]> classes = classFiles ? compiled.classes() : Collections.<String, byte[]>emptyMap();
+		out.writeInt(classes.size());
+		for (final Map.Entry<String, byte[]> e : classes.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue().length);
+			out.write(e.getValue());
+		}
+	}
+
+	/**
+	 * @return hash of the grammar, the generated code version, the java version and whether codecs have metrics
+	 */
+	static String environment() {
+		final MessageDigest md = sha256();
+		try (InputStream in = SchemaCache.class.getClassLoader().getResourceAsStream("artlu.bnf")) {
+			if (in == null) throw new CodecException("artlu.bnf is not on the class path");
+			final byte[] buf = new byte[8192];
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				md.update(buf, 0, n);
+			}
+		} catch (final IOException e) {
+			throw new CodecException("can not read artlu.bnf", e);
+		}
+		md.update(("/" + SchemaCompiler.VERSION + "/" + Runtime.version().feature() + (Metrics.ENABLED ? "/metrics" : ""))
+				.getBytes(StandardCharsets.UTF_8));
+		return hex(md.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(final byte[] b) {
+		final StringBuilder buf = new StringBuilder(b.length * 2);
+		for (final byte x : b) {
+			buf.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+		}
+		return buf.toString();
+	}
+}
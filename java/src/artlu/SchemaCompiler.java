@@ -0,0 +1,345 @@
+package artlu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import artlu.Schema.External;
+import artlu.Schema.InternalDef;
+import artlu.Schema.Mapping;
+
+/**
+ * Compiles a schema to one java class per external, implementing both Decoder and Encoder.
+ * The generated code is straight line, fields at a known offset are decoded at constant offsets
+ * into primitive locals through direct BitCodec calls.
+ * Declared internals and events get a record class with public fields, their in_maps and out_maps a decoder
+ * and an encoder copying fields between the external and the record as the CopyPlan says.
+ * Java source is generated and compiled in process, which needs a JDK at runtime.
+ * @author anderse
+ *
+ */
+public final class SchemaCompiler {
+
+	public static final String PACKAGE = "artlu.generated";
+	/**
+	 * Version of the generated code, part of the key of cached schemas.
+	 * Increase when code generation or the runtime the generated code calls changes.
+	 */
+	public static final int VERSION = 10;
+
+	private SchemaCompiler() {
+	}
+
+	/**
+	 * Compile and load the codecs of a schema, with metrics when they are enabled.
+	 * @param schema
+	 * @return
+	 */
+	public static CompiledSchema compile(final Schema schema) {
+		return compile(schema, Metrics.ENABLED);
+	}
+
+	/**
+	 * Compile and load the codecs of a schema.
+	 * @param schema
+	 * @param metrics true to compile the codecs with metrics, see Metrics
+	 * @return
+	 */
+	public static CompiledSchema compile(final Schema schema, final boolean metrics) {
+		return compile(schema, metrics, PACKAGE);
+	}
+
+	/**
+	 * Compile and load the codecs of a schema into a package of their own.
+	 * @param schema
+	 * @param metrics true to compile the codecs with metrics, see Metrics
+	 * @param pkg package of the generated classes
+	 * @return
+	 */
+	public static CompiledSchema compile(final Schema schema, final boolean metrics, final String pkg) {
+		final Map<String, String> sources = sources(schema, metrics, pkg);
+		return new CompiledSchema(compileSources(sources), codecClasses(schema, pkg), decoderExternals(schema), fieldNames(schema),
+				encoderDeclarations(schema), mapClasses(schema.inMaps, schema, "InMap", pkg), mapClasses(schema.outMaps, schema, "OutMap", pkg),
+				internalClasses(schema, pkg));
+	}
+
+	/**
+	 * @param schema
+	 * @return java source of the generated classes by binary class name
+	 */
+	public static Map<String, String> sources(final Schema schema) {
+		return sources(schema, Metrics.ENABLED);
+	}
+
+	/**
+	 * @param schema
+	 * @param metrics true to generate metrics calls
+	 * @return java source of the generated classes by binary class name
+	 */
+	public static Map<String, String> sources(final Schema schema, final boolean metrics) {
+		return sources(schema, metrics, PACKAGE);
+	}
+
+	/**
+	 * @param schema
+	 * @param metrics true to generate metrics calls
+	 * @param pkg package of the generated classes
+	 * @return java source of the generated classes by binary class name
+	 */
+	public static Map<String, String> sources(final Schema schema, final boolean metrics, final String pkg) {
+		final Map<String, String> result = new LinkedHashMap<>();
+		final List<String> fieldNames = fieldNames(schema);
+		for (final External e : schema.externals.values()) {
+			result.put(pkg + "." + classNameOf(e.name), new CodecWriter(e, fieldNames, metrics, pkg).source());
+		}
+		for (final InternalDef d : schema.internals.values()) {
+			add(result, pkg + "." + d.name, CodecWriter.internalSource(schema, d, pkg));
+		}
+		for (final Mapping m : schema.inMaps.values()) {
+			final CopyPlan plan = CopyPlan.of(schema, m);
+			if (plan != null) add(result, pkg + "." + mapClassNameOf(m.name, "InMap"), new CodecWriter(plan.external, fieldNames, false, pkg).inMapSource(plan));
+		}
+		for (final Mapping m : schema.outMaps.values()) {
+			final CopyPlan plan = CopyPlan.of(schema, m);
+			if (plan != null) add(result, pkg + "." + mapClassNameOf(m.name, "OutMap"), new CodecWriter(plan.external, fieldNames, false, pkg).outMapSource(plan));
+		}
+		return result;
+	}
+
+	/**
+	 * Compile and load a decoder of some fields of an external for the records a filter selects.
+	 * @param schema
+	 * @param external
+	 * @param fields the fields to decode
+	 * @param filter an aplBooleanExpression over fields outside repeat_blocks, switched_sets and conditional
+	 * blocks, null to select every record
+	 * @return
+	 * @throws CodecException if a field is not in the external or the filter does not parse
+	 */
+	public static ProjectedDecoder project(final Schema schema, final String external, final List<String> fields, final String filter) {
+		final External e = schema.externals.get(external);
+		if (e == null) throw new CodecException("unknown external " + external);
+		final Expr condition = filter == null ? null : Schema.conditionOf(SchemaParser.parse(filter.trim(), "aplBooleanExpression"));
+		final String className = PACKAGE + "." + mapClassNameOf(external, "Projection");
+		final String source = new CodecWriter(e, fieldNames(schema), false, PACKAGE).projectionSource(fields, condition, filter);
+		final Map<String, byte[]> classes = compileSources(Collections.singletonMap(className, source));
+		try {
+			return (ProjectedDecoder) new CompiledSchema.GeneratedClassLoader(SchemaCompiler.class.getClassLoader(), classes)
+					.loadClass(className).getDeclaredConstructor().newInstance();
+		} catch (final ReflectiveOperationException ex) {
+			throw new CodecException("can not load projection " + className, ex);
+		}
+	}
+
+	private static void add(final Map<String, String> sources, final String className, final String source) {
+		if (sources.containsKey(className)) throw new CodecException("two generated classes are named " + className);
+		sources.put(className, source);
+	}
+
+	/**
+	 * @param schema
+	 * @return the field names of all externals in declaration order, the index is the field id of a DecodeSink
+	 */
+	static List<String> fieldNames(final Schema schema) {
+		final Set<String> result = new LinkedHashSet<>();
+		for (final External e : schema.externals.values()) {
+			result.addAll(CodecWriter.namesOf(e.body));
+		}
+		return new ArrayList<>(result);
+	}
+
+	/**
+	 * @param schema
+	 * @param pkg package of the generated classes
+	 * @return binary class name of the codec by external name
+	 */
+	static Map<String, String> codecClasses(final Schema schema, final String pkg) {
+		final Map<String, String> result = new LinkedHashMap<>();
+		for (final External e : schema.externals.values()) {
+			result.put(e.name, pkg + "." + classNameOf(e.name));
+		}
+		return result;
+	}
+
+	/**
+	 * @param maps in_maps or out_maps by name
+	 * @param schema
+	 * @param suffix of the class names
+	 * @param pkg package of the generated classes
+	 * @return binary class name by name of the maps of declared internals
+	 */
+	static Map<String, String> mapClasses(final Map<String, ? extends Mapping> maps, final Schema schema, final String suffix, final String pkg) {
+		final Map<String, String> result = new LinkedHashMap<>();
+		for (final Mapping m : maps.values()) {
+			if (m.internal != null && schema.internals.containsKey(m.internal)) result.put(m.name, pkg + "." + mapClassNameOf(m.name, suffix));
+		}
+		return result;
+	}
+
+	/**
+	 * @param schema
+	 * @param pkg package of the generated classes
+	 * @return binary class name of the record class by internal or event name
+	 */
+	static Map<String, String> internalClasses(final Schema schema, final String pkg) {
+		final Map<String, String> result = new LinkedHashMap<>();
+		for (final String name : schema.internals.keySet()) {
+			result.put(name, pkg + "." + name);
+		}
+		return result;
+	}
+
+	/**
+	 * @param schema
+	 * @return external names by decoder name
+	 */
+	static Map<String, List<String>> decoderExternals(final Schema schema) {
+		final Map<String, List<String>> result = new LinkedHashMap<>();
+		for (final String d : schema.decoders.keySet()) {
+			final List<String> names = new ArrayList<>();
+			for (final External e : schema.externalsOf(d)) {
+				names.add(e.name);
+			}
+			result.put(d, names);
+		}
+		return result;
+	}
+
+	/**
+	 * @param schema
+	 * @return the encoder declarations by name
+	 * @throws CodecException if block_size or terminated_by is not a constant
+	 */
+	static Map<String, EncoderDeclaration> encoderDeclarations(final Schema schema) {
+		final Map<String, EncoderDeclaration> result = new LinkedHashMap<>();
+		for (final Schema.EncoderDef d : schema.encoders.values()) {
+			final List<String> names = new ArrayList<>();
+			for (final External e : schema.encoderExternalsOf(d.name)) {
+				names.add(e.name);
+			}
+			int blockSize = 0;
+			if (d.blockSize != null) {
+				final Object v = constantOf(d.blockSize);
+				if (!(v instanceof Long) || (Long) v <= 0 || (Long) v > Integer.MAX_VALUE / BitCodec.BYTE_SIZE) {
+					throw new CodecException("block_size of encoder " + d.name + " must be a positive integer, not " + d.blockSize);
+				}
+				blockSize = (int) (long) (Long) v;
+			}
+			byte[] terminator = new byte[0];
+			if (d.terminatedBy != null) {
+				final Object v = constantOf(d.terminatedBy);
+				if (v instanceof Long && (Long) v >= 0 && (Long) v <= 0xff) {
+					terminator = new byte[] {(byte) (long) (Long) v};
+				} else if (v instanceof String && !((String) v).isEmpty()) {
+					terminator = ((String) v).getBytes(StandardCharsets.ISO_8859_1);
+				} else {
+					throw new CodecException("terminated_by of encoder " + d.name + " must be a byte or a string, not " + d.terminatedBy);
+				}
+			}
+			if (blockSize > 0 && terminator.length > blockSize) {
+				throw new CodecException("terminated_by of encoder " + d.name + " does not fit block_size(" + blockSize + ")");
+			}
+			result.put(d.name, new EncoderDeclaration(d.name, names, blockSize, terminator));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the value of a literal, null for other expressions
+	 */
+	private static Object constantOf(final Expr e) {
+		return e instanceof Expr.Literal ? ((Expr.Literal) e).value : null;
+	}
+
+	static String classNameOf(final String external) {
+		return mapClassNameOf(external, "Codec");
+	}
+
+	static String mapClassNameOf(final String name, final String suffix) {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1) + suffix;
+	}
+
+
+	/**
+	 * Compile java sources in memory.
+	 * @param sources by binary class name
+	 * @return class files by binary class name
+	 */
+	static Map<String, byte[]> compileSources(final Map<String, String> sources) {
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) throw new CodecException("no java compiler available, schemas are compiled on a JDK");
+		final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		final Map<String, ByteArrayOutputStream> output = new LinkedHashMap<>();
+		final StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, null);
+		final ForwardingJavaFileManager<StandardJavaFileManager> fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(final Location location, final String className, final Kind kind, final FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						final ByteArrayOutputStream out = new ByteArrayOutputStream();
+						output.put(className, out);
+						return out;
+					}
+				};
+			}
+		};
+		final List<JavaFileObject> units = new ArrayList<>();
+		for (final Map.Entry<String, String> e : sources.entrySet()) {
+			units.add(new SimpleJavaFileObject(URI.create("string:///" + e.getKey().replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE) {
+				@Override
+				public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+					return e.getValue();
+				}
+			});
+		}
+		final List<String> options = Arrays.asList("-classpath", classpath(), "-proc:none");
+		if (!compiler.getTask(null, fileManager, diagnostics, options, null, units).call()) {
+			final StringBuilder buf = new StringBuilder("generated codec does not compile");
+			for (final Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+				buf.append('\n').append(d);
+			}
+			throw new CodecException(buf.toString());
+		}
+		final Map<String, byte[]> result = new LinkedHashMap<>();
+		for (final Map.Entry<String, ByteArrayOutputStream> e : output.entrySet()) {
+			result.put(e.getKey(), e.getValue().toByteArray());
+		}
+		return result;
+	}
+
+	/**
+	 * The class path with the location of the artlu classes added, they may come from a class loader
+	 * that is not on java.class.path.
+	 */
+	private static String classpath() {
+		final String cp = System.getProperty("java.class.path", "");
+		try {
+			final String own = new File(BitCodec.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+			return cp.isEmpty() ? own : own + File.pathSeparator + cp;
+		} catch (final Exception e) {
+			return cp;
+		}
+	}
+}
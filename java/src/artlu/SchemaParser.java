@@ -0,0 +1,1302 @@
+package artlu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Parses schemas to the parse tree of the instaparse grammar artlu.bnf, without instaparse.
+ * A recursive descent parser over the characters of the schema with a method per grammar rule. It hides the
+ * same rules and tokens as the grammar, so its tree is one of the trees instaparse gives for the schema:
+ * nodes are lists tagged with ":rule" strings and leaves are strings, see Tree.
+ * Where the grammar is ambiguous the parser makes the usual choice: a keyword type before an identifier of
+ * the same name, an escape in a string before a backslash, true and false as boolean literals in conditions.
+ * Expressions are parsed by precedence climbing, left associative with * and / before + and -, then &gt;&gt;,
+ * &amp; and |, then the comparisons, &amp;&amp;, || and last ?: which nests to the right. A cast applies to
+ * the operand right after it. The grammar reads an if-expr as the right operand of a comparison, as in
+ * x &gt; c ? 1 : 2 in a condition, the parser needs it in parentheses.
+ * Comments, // to the end of the line and /* to *&#47;, are skipped where the grammar allows whitespace.
+ * The parser backtracks only over a keyword or an identifier, the time is linear in the length of the schema.
+ * @author anderse
+ *
+ */
+public final class SchemaParser {
+
+	private static final String[] CHARS = new String[128];
+	private static final Set<String> CONDITIONS = new HashSet<>(Arrays.asList(
+			":equals", ":not-equals", ":gt", ":gte", ":lt", ":lte", ":and", ":or"));
+
+	static {
+		for (int i = 0; i < CHARS.length; i++) {
+			CHARS[i] = String.valueOf((char) i);
+		}
+	}
+
+	private final String text;
+	private int pos;
+
+	private SchemaParser(final String text) {
+		this.text = text;
+	}
+
+	/**
+	 * @param text schema source
+	 * @return the parse tree of an artlu schema
+	 */
+	public static List<Object> parse(final String text) {
+		return parse(text, "artlu");
+	}
+
+	/**
+	 * @param text
+	 * @param start the grammar rule the whole text must match, artlu, a declaration, field, type, ident,
+	 * intLit, strLit, aplExpression or aplBooleanExpression
+	 * @return the parse tree
+	 */
+	public static List<Object> parse(final String text, final String start) {
+		final SchemaParser p = new SchemaParser(text);
+		try {
+			final List<Object> tree = p.start(start);
+			if (p.pos < text.length()) throw p.fail("end of schema");
+			return tree;
+		} catch (final Failure f) {
+			throw new CodecException(p.messageOf(f));
+		}
+	}
+
+	private List<Object> start(final String rule) {
+		switch (rule) {
+		case "artlu": return artlu();
+		case "external": return external();
+		case "in_map": return inMap();
+		case "out_map": return outMap();
+		case "decoder": return decoder();
+		case "encoder": return encoder();
+		case "internal": return internal();
+		case "event": return event();
+		case "import": return importDeclaration();
+		case "field": return field();
+		case "type": return type();
+		case "ident": return ident();
+		case "intLit": return intLit();
+		case "strLit": return strLit();
+		case "aplExpression": return aplExpression();
+		case "aplBooleanExpression": return aplBooleanExpression();
+		default: throw new CodecException("no start rule " + rule);
+		}
+	}
+
+	private List<Object> artlu() {
+		final List<Object> n = node(":artlu");
+		os();
+		while (pos < text.length()) {
+			n.add(declaration());
+			os();
+		}
+		return n;
+	}
+
+	private List<Object> declaration() {
+		if (at("external")) return external();
+		if (at("in_map")) return inMap();
+		if (at("out_map")) return outMap();
+		if (at("decoder")) return decoder();
+		if (at("encoder")) return encoder();
+		if (at("internal")) return internal();
+		if (at("event")) return event();
+		if (at("import")) return importDeclaration();
+		throw fail("external, in_map, out_map, decoder, encoder, internal, event or import");
+	}
+
+	private List<Object> external() {
+		expect("external");
+		space();
+		final List<Object> n = node(":external", ident());
+		final int from = pos;
+		if (skip(true) && accept("sequential")) {
+			n.add("sequential");
+		} else {
+			pos = from;
+		}
+		os();
+		if (accept(":")) {
+			os();
+			n.add(externalProperties());
+			os();
+		}
+		n.add(externalBlock());
+		os();
+		return n;
+	}
+
+	private List<Object> externalProperties() {
+		final List<Object> n = node(":external-properties", externalProperty());
+		while (list()) {
+			n.add(externalProperty());
+		}
+		return n;
+	}
+
+	private Object externalProperty() {
+		if (accept("ignore_trailing_data")) return "ignore_trailing_data";
+		if (at("dynamic_size")) return dynamicSize();
+		if (at("static_size")) return node(":static_size", arguments("static_size", true, this::intLit));
+		if (at("terminated_by")) return node(":terminated_by", arguments("terminated_by", true, this::aplExpression));
+		if (at("identified_by")) return node(":identified_by", arguments("identified_by", true, this::aplBooleanExpression));
+		if (at("padded_with")) return paddedWith();
+		throw fail("an external property");
+	}
+
+	private List<Object> externalBlock() {
+		expect("{");
+		final List<Object> n = node(":externalBlock");
+		while (true) {
+			os();
+			if (accept("};")) return n;
+			if (followedBy("set", ":{")) {
+				n.add(set());
+			} else if (followedBy("switched_set", "(")) {
+				n.add(switchedSet());
+			} else if (followedBy("bit_block", ":")) {
+				n.add(bitBlock());
+			} else {
+				n.add(field());
+			}
+		}
+	}
+
+	private List<Object> set() {
+		expect("set");
+		final List<Object> n = node(":set");
+		os();
+		if (accept(":")) {
+			os();
+			n.add(externalProperties());
+			os();
+		}
+		n.add(externalBlock());
+		return n;
+	}
+
+	private List<Object> switchedSet() {
+		final List<Object> n = node(":switched_set", arguments("switched_set", true, this::ident));
+		os();
+		if (accept(":")) {
+			os();
+			n.add(node(":switched_set_properties", externalProperties()));
+			os();
+		}
+		expect("{");
+		final List<Object> block = node(":switched_set-block", node(":open-curly"));
+		while (true) {
+			final int from = pos;
+			os();
+			if (at("};") || followedBy("case", "(") || followedBy("default", ":")) {
+				pos = from;
+				break;
+			}
+			block.add(followedBy("bit_block", ":") ? bitBlock() : field());
+		}
+		final List<Object> cases = node(":cases");
+		while (true) {
+			final int from = pos;
+			os();
+			if (!followedBy("case", "(")) {
+				pos = from;
+				break;
+			}
+			cases.add(caseOf());
+		}
+		final int from = pos;
+		os();
+		if (followedBy("default", ":")) {
+			expect("default");
+			os();
+			expect(":");
+			os();
+			expect("include_prefix");
+			os();
+			cases.add(node(":default", "include_prefix", externalBlock()));
+		} else {
+			pos = from;
+		}
+		block.add(cases);
+		os();
+		expect("};");
+		block.add(node(":close-curly"));
+		n.add(block);
+		return n;
+	}
+
+	private List<Object> caseOf() {
+		final List<Object> n = node(":case", arguments("case", true, this::aplExpression));
+		final int from = pos;
+		os();
+		if (accept(":")) {
+			os();
+			expect("include_prefix");
+			n.add("include_prefix");
+		} else {
+			pos = from;
+		}
+		os();
+		n.add(externalBlock());
+		return n;
+	}
+
+	private List<Object> bitBlock() {
+		expect("bit_block");
+		os();
+		expect(":");
+		os();
+		final List<Object> n = node(":bit_block", bitBlockProperty());
+		while (list()) {
+			n.add(bitBlockProperty());
+		}
+		os();
+		n.add(bitBlockBody());
+		return n;
+	}
+
+	private List<Object> bitBlockProperty() {
+		if (at("dynamic_size")) return node(":bitBlock-property", node(":bit_blockSize", dynamicSize()));
+		if (at("static_size")) {
+			return node(":bitBlock-property", node(":bit_blockSize",
+					node(":bit_block_static_size", arguments("static_size", true, this::intLit))));
+		}
+		if (at("present")) return node(":bitBlock-property", presentIf());
+		throw fail("dynamic_size, static_size or present if");
+	}
+
+	private List<Object> bitBlockBody() {
+		expect("{");
+		final List<Object> n = node(":bitBlock");
+		while (true) {
+			os();
+			if (accept("};")) return n;
+			if (followedBy("repeat_block", "(")) {
+				final List<Object> repeat = node(":repeat_block", arguments("repeat_block", true, this::aplExpression));
+				os();
+				repeat.add(bitBlockBody());
+				n.add(repeat);
+			} else {
+				n.add(field());
+			}
+		}
+	}
+
+	private List<Object> field() {
+		final List<Object> n = node(":field", type());
+		space();
+		n.add(ident());
+		os();
+		if (accept(":")) {
+			os();
+			final List<Object> properties = node(":field-properties", fieldProperty());
+			while (list()) {
+				properties.add(fieldProperty());
+			}
+			n.add(properties);
+			os();
+		}
+		expect(";");
+		return n;
+	}
+
+	private Object fieldProperty() {
+		if (at("element_count")) return node(":element_count", arguments("element_count", false, this::aplExpression));
+		if (accept("unsigned")) return node(":unsigned");
+		if (accept("external_only")) return node(":external_only");
+		if (accept("little_endian")) return node(":little_endian");
+		if (accept("big_endian")) return node(":big_endian");
+		if (accept("signed")) return node(":signed");
+		if (at("bit_size")) return node(":bit_size", arguments("bit_size", true, this::aplExpression));
+		if (at("present")) return presentIf();
+		if (at("encode_value")) return node(":encode_value", arguments("encode_value", true, this::aplExpression));
+		if (at("align")) {
+			return node(":align", arguments("align", true, () -> {
+				if (accept("right")) return "right";
+				expect("left");
+				return "left";
+			}));
+		}
+		if (at("padded_with")) return paddedWith();
+		if (at("terminated_by")) return node(":terminated_by", arguments("terminated_by", true, this::aplExpression));
+		if (at("static_size")) return node(":static_size", arguments("static_size", true, this::intLit));
+		if (at("native_size")) return node(":native_size", arguments("native_size", true, this::aplExpression));
+		if (at("dynamic_size")) return dynamicSize();
+		if (at("byte_alignment")) return node(":byte_alignment", arguments("byte_alignment", false, this::aplExpression));
+		if (at("msb")) return node(":msb", arguments("msb", false, this::aplExpression));
+		if (at("lsb")) return node(":lsb", arguments("lsb", false, this::aplExpression));
+		if (accept("optional")) return "optional";
+		for (final String encoding : new String[] {"float", "double", "bigdec"}) {
+			if (accept(encoding)) return node(":encoding", encoding);
+		}
+		for (final String encoding : new String[] {"byte", "short", "int", "long", "bigint"}) {
+			if (at(encoding)) {
+				return node(":encoding", encoding, arguments(encoding, true, () -> {
+					if (accept("base10")) return node(":base", "base10");
+					expect("base16");
+					return node(":base", "base16");
+				}));
+			}
+		}
+		throw fail("a field property");
+	}
+
+	private List<Object> presentIf() {
+		expect("present");
+		space();
+		return node(":presentIf", arguments("if", true, this::aplBooleanExpression));
+	}
+
+	private List<Object> dynamicSize() {
+		return node(":dynamic_size", arguments("dynamic_size", true, () -> node(":dynamicSizeExpr", aplExpression())));
+	}
+
+	private List<Object> paddedWith() {
+		return node(":padded_with", arguments("padded_with", true, () -> peek() == '\'' || peek() == '"' ? strLit() : intLit()));
+	}
+
+	/**
+	 * The type of a field, a keyword type when the field name follows it.
+	 * @return
+	 */
+	private List<Object> type() {
+		final int from = pos;
+		if (at("list")) {
+			final Object t = attempt(this::listType);
+			if (t != null) return node(":type", t);
+		}
+		for (final String keyword : new String[] {"double", "float", "ascii"}) {
+			if (at(keyword) && typeEndsAt(from + keyword.length())) {
+				pos += keyword.length();
+				return node(":type", keyword);
+			}
+		}
+		for (final String keyword : new String[] {"int", "byte", "bcd", "short", "long", "bigint"}) {
+			if (at(keyword)) {
+				final Object t = attempt(() -> {
+					expect(keyword);
+					return "bcd".equals(keyword) ? bcd() : node(":" + keyword, endianType());
+				});
+				if (t != null) return node(":type", t);
+			}
+		}
+		if (at("bytearray") && typeEndsAt(from + "bytearray".length())) {
+			pos += "bytearray".length();
+			return node(":type", "bytearray");
+		}
+		return node(":type", ident());
+	}
+
+	/**
+	 * Parse a keyword type, going back when no field name follows.
+	 * @param rule
+	 * @return the type, null when it is not one
+	 */
+	private Object attempt(final Supplier<Object> rule) {
+		final int from = pos;
+		try {
+			final Object t = rule.get();
+			if (typeEndsAt(pos)) return t;
+		} catch (final Failure f) {
+			// not this keyword
+		}
+		pos = from;
+		return null;
+	}
+
+	private boolean typeEndsAt(final int i) {
+		if (i == text.length()) return true;
+		final char c = text.charAt(i);
+		return c == ' ' || c == '\t' || c == '\n' || c == ',' || text.startsWith("/*", i) || text.startsWith("//", i);
+	}
+
+	private List<Object> bcd() {
+		final List<Object> n = node(":bcd");
+		final int from = pos;
+		os();
+		if (peek() == '(') {
+			n.add(arguments("", true, this::ident));
+		} else {
+			pos = from;
+		}
+		return n;
+	}
+
+	private List<Object> endianType() {
+		final List<Object> n = node(":endian-type");
+		final int from = pos;
+		os();
+		if (peek() != '(') {
+			pos = from;
+			return n;
+		}
+		n.add(arguments("", true, () -> {
+			if (accept("little_endian")) return node(":little_endian");
+			if (accept("big_endian")) return node(":big_endian");
+			if (accept("lsb_lo")) return "lsb_lo";
+			throw fail("little_endian, big_endian or lsb_lo");
+		}));
+		return n;
+	}
+
+	private List<Object> listType() {
+		expect("list");
+		os();
+		expect("<");
+		os();
+		final List<Object> n = node(":list", internalType('>'));
+		os();
+		expect(">");
+		return n;
+	}
+
+	private List<Object> mapType() {
+		expect("map");
+		os();
+		expect("<");
+		os();
+		final List<Object> n = node(":map", internalType(','));
+		os();
+		expect(",");
+		os();
+		n.add(internalType('>'));
+		os();
+		expect(">");
+		return n;
+	}
+
+	/**
+	 * @param end the character after the type and optional whitespace, 0 for whitespace
+	 * @return
+	 */
+	private List<Object> internalType(final char end) {
+		final int from = pos;
+		for (final String keyword : new String[] {"double", "float", "int", "byte", "short", "long", "bigint", "bytearray", "list", "map"}) {
+			if (!at(keyword)) continue;
+			try {
+				final Object t;
+				if ("short".equals(keyword)) {
+					expect(keyword);
+					t = node(":short", endianType());
+				} else if ("list".equals(keyword)) {
+					t = listType();
+				} else if ("map".equals(keyword)) {
+					t = mapType();
+				} else {
+					expect(keyword);
+					t = keyword;
+				}
+				if (internalTypeEnds(end)) return node(":internal-type", t);
+			} catch (final Failure f) {
+				// not this keyword
+			}
+			pos = from;
+		}
+		return node(":internal-type", ident());
+	}
+
+	private boolean internalTypeEnds(final char end) {
+		if (end == 0) return typeEndsAt(pos);
+		final int from = pos;
+		os();
+		final boolean ends = peek() == end;
+		pos = from;
+		return ends;
+	}
+
+	private List<Object> inMap() {
+		expect("in_map");
+		space();
+		final List<Object> n = node(":in_map", ident());
+		os();
+		expect(":");
+		os();
+		n.add(extIntMappings());
+		os();
+		expect("{");
+		os();
+		if (accept("automatic")) {
+			n.add("automatic");
+			int from = pos;
+			os();
+			if (accept(":")) {
+				os();
+				expect("use_external_names");
+				n.add("use_external_names");
+			} else {
+				pos = from;
+			}
+			from = pos;
+			if (skip(true) && peek() == '{') {
+				n.add(automaticBlock());
+				os();
+			} else {
+				pos = from;
+			}
+			expect(";");
+			os();
+		} else {
+			fieldMappings(n);
+		}
+		os();
+		expect("};");
+		return n;
+	}
+
+	private List<Object> automaticBlock() {
+		expect("{");
+		final List<Object> n = node(":automatic-block", node(":open-curly"));
+		while (true) {
+			os();
+			if (accept("}")) return n;
+			final List<Object> using = node(":using", ident());
+			os();
+			expect(":");
+			os();
+			expect("using");
+			space();
+			expect("in_map");
+			space();
+			using.add(ident());
+			os();
+			expect(";");
+			n.add(using);
+		}
+	}
+
+	private void fieldMappings(final List<Object> n) {
+		while (true) {
+			final int from = pos;
+			os();
+			if (!at("i:") && !at("e:")) {
+				pos = from;
+				return;
+			}
+			final String first = at("i:") ? "i:" : "e:";
+			final String second = at("i:") ? "e:" : "i:";
+			final List<Object> mapping = node(":field-mapping");
+			expect(first);
+			mapping.add(first);
+			os();
+			mapping.add(ident());
+			space();
+			expect("and");
+			space();
+			expect(second);
+			mapping.add(second);
+			os();
+			mapping.add(ident());
+			os();
+			expect(";");
+			n.add(mapping);
+		}
+	}
+
+	private List<Object> extIntMappings() {
+		final List<Object> n = node(":ext-int-mappings", extIntMapping());
+		while (list()) {
+			n.add(extIntMapping());
+		}
+		return n;
+	}
+
+	private List<Object> extIntMapping() {
+		final List<Object> n = node(":ext-int-mapping");
+		if (accept("external")) {
+			n.add("external");
+		} else if (accept("internal")) {
+			n.add(node(":internal-mapping", "internal"));
+		} else if (accept("target_internal")) {
+			n.add(node(":internal-mapping", "target_internal"));
+		} else if (at("emit_field")) {
+			final List<Object> emit = node(":emit-field", "emit_field");
+			expect("emit_field");
+			os();
+			expect("(");
+			os();
+			emit.add(ident());
+			os();
+			expect(",");
+			os();
+			emit.add(ident());
+			os();
+			expect(")");
+			n.add(emit);
+			return n;
+		} else {
+			throw fail("external, internal, target_internal or emit_field");
+		}
+		expect("(");
+		os();
+		n.add(node(":ext-int-arg", ident()));
+		os();
+		expect(")");
+		return n;
+	}
+
+	private List<Object> outMap() {
+		expect("out_map");
+		space();
+		final List<Object> n = node(":out_map", ident());
+		os();
+		expect(":");
+		os();
+		n.add(extIntMappings());
+		os();
+		expect("{");
+		os();
+		if (accept("automatic;")) {
+			n.add("automatic;");
+		} else {
+			fieldMappings(n);
+		}
+		os();
+		expect("};");
+		return n;
+	}
+
+	private List<Object> decoder() {
+		expect("decoder");
+		os();
+		final List<Object> n = node(":decoder", ident());
+		os();
+		if (accept(":")) {
+			os();
+			final List<Object> inMaps = node(":decoders-in_map", node(":decoder-in_map", arguments("in_map", true, this::ident)));
+			while (list()) {
+				inMaps.add(node(":decoder-in_map", arguments("in_map", true, this::ident)));
+			}
+			os();
+			expect(";");
+			n.add(inMaps);
+			return n;
+		}
+		expect("{");
+		final List<Object> refs = node(":decoder-refs");
+		while (true) {
+			final int from = pos;
+			os();
+			if (!at("decoder")) {
+				pos = from;
+				break;
+			}
+			expect("decoder");
+			space();
+			final List<Object> ref = node(":decoder-ref", ident());
+			final int end = pos;
+			if (skip(true) && accept("*")) {
+				ref.add("*");
+			} else {
+				pos = end;
+			}
+			os();
+			expect(";");
+			refs.add(ref);
+		}
+		os();
+		expect("};");
+		n.add(node(":decoder-block", node(":open-curly"), refs, node(":close-curly")));
+		return n;
+	}
+
+	private List<Object> encoder() {
+		expect("encoder");
+		os();
+		final List<Object> n = node(":encoder", ident());
+		os();
+		expect(":");
+		os();
+		final List<Object> properties = node(":encoder-properties", encoderProperty());
+		while (list()) {
+			properties.add(encoderProperty());
+		}
+		n.add(properties);
+		os();
+		expect(";");
+		return n;
+	}
+
+	private List<Object> encoderProperty() {
+		if (at("block_size")) return node(":encoder-property", node(":block_size", arguments("block_size", true, this::aplExpression)));
+		if (at("terminated_by")) return node(":encoder-property", node(":terminated_by", arguments("terminated_by", true, this::aplExpression)));
+		if (at("out_map")) return node(":encoder-property", node(":encoder-out_map", arguments("out_map", true, this::ident)));
+		throw fail("block_size, terminated_by or out_map");
+	}
+
+	private List<Object> internal() {
+		expect("internal");
+		space();
+		final List<Object> n = node(":internal", ident());
+		final int from = pos;
+		os();
+		if (accept(":")) {
+			os();
+			n.add(node(":extends", arguments("extends", true, this::ident)));
+		} else {
+			pos = from;
+		}
+		os();
+		n.add(internalBlock());
+		return n;
+	}
+
+	private List<Object> event() {
+		expect("event");
+		space();
+		final List<Object> n = node(":event", ident());
+		os();
+		n.add(internalBlock());
+		return n;
+	}
+
+	private List<Object> internalBlock() {
+		expect("{");
+		final List<Object> n = node(":internalBlock", node(":open-curly"));
+		while (true) {
+			os();
+			if (accept("};")) break;
+			final List<Object> field = node(":internal-field", internalType((char) 0));
+			space();
+			field.add(ident());
+			final int from = pos;
+			os();
+			if (accept(":")) {
+				os();
+				expect("optional");
+				field.add("optional");
+			} else {
+				pos = from;
+			}
+			os();
+			expect(";");
+			n.add(field);
+		}
+		n.add(node(":close-curly"));
+		return n;
+	}
+
+	private List<Object> importDeclaration() {
+		expect("import");
+		space();
+		final List<Object> n = node(":import", ident());
+		while (true) {
+			final int from = pos;
+			os();
+			if (!accept(".")) {
+				pos = from;
+				break;
+			}
+			os();
+			n.add(ident());
+		}
+		os();
+		expect(";");
+		return n;
+	}
+
+	/**
+	 * name os ( os argument os ), os before ( only when spaced.
+	 * @param name
+	 * @param spaced
+	 * @param argument
+	 * @return the argument
+	 */
+	private Object arguments(final String name, final boolean spaced, final Supplier<?> argument) {
+		expect(name);
+		if (spaced) os();
+		expect("(");
+		os();
+		final Object a = argument.get();
+		os();
+		expect(")");
+		return a;
+	}
+
+	/**
+	 * @return whether a comma separated item follows, reading the comma
+	 */
+	private boolean list() {
+		final int from = pos;
+		os();
+		if (!accept(",")) {
+			pos = from;
+			return false;
+		}
+		os();
+		return true;
+	}
+
+	private List<Object> ident() {
+		if (!isLetter(peek())) throw fail("an identifier");
+		final List<Object> n = node(":ident", leaf(pos++));
+		while (pos < text.length()) {
+			final char c = text.charAt(pos);
+			if (isLetter(c) || c == '_') {
+				n.add(leaf(pos));
+			} else if (isDigit(c)) {
+				n.add(node(":decimalDigit", leaf(pos)));
+			} else {
+				break;
+			}
+			pos++;
+		}
+		return n;
+	}
+
+	private List<Object> intLit() {
+		final List<Object> n = node(":intLit");
+		if (peek() == '+' || peek() == '-') {
+			n.add(node(":sign", leaf(pos++)));
+			os();
+		}
+		if (!isDigit(peek())) throw fail("an integer");
+		if (peek() != '0') {
+			final List<Object> d = node(":decimalLit", leaf(pos++));
+			while (isDigit(peek())) {
+				d.add(node(":decimalDigit", leaf(pos++)));
+			}
+			n.add(d);
+		} else if ((at("0x") || at("0X")) && pos + 2 < text.length() && isHexDigit(text.charAt(pos + 2))) {
+			pos += 2;
+			final List<Object> h = node(":hexLit");
+			while (isHexDigit(peek())) {
+				h.add(node(":hexDigit", leaf(pos++)));
+			}
+			n.add(h);
+		} else {
+			final List<Object> o = node(":octalLit", leaf(pos++));
+			while (peek() >= '0' && peek() <= '7') {
+				o.add(node(":octalDigit", leaf(pos++)));
+			}
+			n.add(o);
+		}
+		return n;
+	}
+
+	/**
+	 * A string literal, read again without the escaped quote when that escape leaves it unterminated.
+	 * @return
+	 */
+	private List<Object> strLit() {
+		final int from = pos;
+		try {
+			return strLit(true);
+		} catch (final Failure f) {
+			pos = from;
+			return strLit(false);
+		}
+	}
+
+	private List<Object> strLit(final boolean escapeQuote) {
+		final char quote = peek();
+		if (quote != '\'' && quote != '"') throw fail("a string");
+		pos++;
+		final List<Object> n = node(":strLit");
+		while (true) {
+			if (pos == text.length() || peek() == '\n') throw fail("the end of the string");
+			final char c = text.charAt(pos);
+			if (c == quote) {
+				pos++;
+				return n;
+			}
+			n.add(node(":charValue", c == '\\' ? escape(quote, escapeQuote) : leaf(pos++)));
+		}
+	}
+
+	private Object escape(final char quote, final boolean escapeQuote) {
+		final int i = pos + 1;
+		final char c = i < text.length() ? text.charAt(i) : 0;
+		if ((c == 'x' || c == 'X') && i + 2 < text.length() && isHexDigit(text.charAt(i + 1)) && isHexDigit(text.charAt(i + 2))) {
+			pos += 4;
+			return node(":hexEscape", leaf(i), node(":hexDigit", leaf(i + 1)), node(":hexDigit", leaf(i + 2)));
+		}
+		if (i + 2 < text.length() && isOctalDigit(c) && isOctalDigit(text.charAt(i + 1)) && isOctalDigit(text.charAt(i + 2))) {
+			pos += 4;
+			return node(":octEscape", node(":octalDigit", leaf(i)), node(":octalDigit", leaf(i + 1)), node(":octalDigit", leaf(i + 2)));
+		}
+		if (c != 0 && "abfnrtv\\'\"".indexOf(c) >= 0 && (escapeQuote || c != quote)) {
+			pos += 2;
+			return node(":charEscape", leaf(i));
+		}
+		return leaf(pos++);
+	}
+
+	private List<Object> aplExpression() {
+		final int from = pos;
+		return expression(conditional(), from);
+	}
+
+	private List<Object> aplBooleanExpression() {
+		final int from = pos;
+		return condition(conditional(), from);
+	}
+
+	private List<Object> conditional() {
+		final int from = pos;
+		final List<Object> e = or();
+		final int end = pos;
+		os();
+		if (!accept("?")) {
+			pos = end;
+			return e;
+		}
+		final List<Object> condition = condition(e, from);
+		os();
+		final List<Object> then = aplExpression();
+		os();
+		expect(":");
+		os();
+		return node(":if-expr", condition, then, aplExpression());
+	}
+
+	private List<Object> or() {
+		final int from = pos;
+		List<Object> e = and();
+		while (true) {
+			final int end = pos;
+			os();
+			if (!accept("||")) {
+				pos = end;
+				return e;
+			}
+			os();
+			final int right = pos;
+			e = node(":or", condition(e, from), condition(and(), right));
+		}
+	}
+
+	private List<Object> and() {
+		final int from = pos;
+		List<Object> e = comparison();
+		while (true) {
+			final int end = pos;
+			os();
+			if (!accept("&&")) {
+				pos = end;
+				return e;
+			}
+			os();
+			final int right = pos;
+			e = node(":and", condition(e, from), condition(comparison(), right));
+		}
+	}
+
+	private List<Object> comparison() {
+		final int from = pos;
+		final List<Object> left = arithmetic(0);
+		final int end = pos;
+		os();
+		final String tag;
+		if (accept("==")) {
+			tag = ":equals";
+		} else if (accept("!=")) {
+			tag = ":not-equals";
+		} else if (accept(">=")) {
+			tag = ":gte";
+		} else if (accept("<=")) {
+			tag = ":lte";
+		} else if (at(">") && !at(">>")) {
+			pos++;
+			tag = ":gt";
+		} else if (at("<") && !at("<<")) {
+			pos++;
+			tag = ":lt";
+		} else {
+			pos = end;
+			return left;
+		}
+		os();
+		final int right = pos;
+		return node(tag, expression(left, from), expression(arithmetic(0), right));
+	}
+
+	/**
+	 * Precedence climbing over the binary operators of aplExpression.
+	 * @param precedence lowest precedence of the operators read
+	 * @return
+	 */
+	private List<Object> arithmetic(final int precedence) {
+		final int from = pos;
+		List<Object> left = operand();
+		while (true) {
+			final int end = pos;
+			os();
+			final String tag;
+			final int p;
+			final char c = peek();
+			if (c == '*') {
+				tag = ":multiplication";
+				p = 4;
+			} else if (c == '/') {
+				tag = ":division";
+				p = 4;
+			} else if (c == '+') {
+				tag = ":addition";
+				p = 3;
+			} else if (c == '-') {
+				tag = ":subtraction";
+				p = 3;
+			} else if (at(">>")) {
+				tag = ":right-shift";
+				p = 2;
+			} else if (c == '&' && !at("&&")) {
+				tag = ":bit-and";
+				p = 1;
+			} else if (c == '|' && !at("||")) {
+				tag = ":bit-or";
+				p = 0;
+			} else {
+				pos = end;
+				return left;
+			}
+			if (p < precedence) {
+				pos = end;
+				return left;
+			}
+			pos += ":right-shift".equals(tag) ? 2 : 1;
+			os();
+			final int right = pos;
+			left = node(tag, expression(left, from), expression(arithmetic(p + 1), right));
+		}
+	}
+
+	private List<Object> operand() {
+		final char c = peek();
+		if (isLetter(c)) {
+			final List<Object> id = ident();
+			final int end = pos;
+			os();
+			if (peek() == '(') return call(id);
+			pos = end;
+			return id;
+		}
+		if (isDigit(c) || (c == '+' || c == '-') && signedDigit()) return intLit();
+		if (c == '\'' || c == '"') return strLit();
+		if (c == '(') return castOrParentheses();
+		throw fail("an expression");
+	}
+
+	private List<Object> call(final List<Object> function) {
+		expect("(");
+		final List<Object> n = node(":fn-call", function);
+		os();
+		if (peek() != ')' && peek() != ',') {
+			n.add(aplExpression());
+			os();
+		}
+		while (accept(",")) {
+			os();
+			n.add(aplExpression());
+			os();
+		}
+		expect(")");
+		return n;
+	}
+
+	/**
+	 * (ident) followed by an operand is a type-cast of the operand, anything else in parentheses a paren-expr.
+	 * A sign after (ident) is an operator unless ident is a numeric type.
+	 * @return
+	 */
+	private List<Object> castOrParentheses() {
+		final int from = pos;
+		pos++;
+		os();
+		if (isLetter(peek())) {
+			final List<Object> type = ident();
+			os();
+			if (accept(")")) {
+				os();
+				final char c = peek();
+				if (isLetter(c) || isDigit(c) || c == '\'' || c == '"' || c == '('
+						|| (c == '+' || c == '-') && signedDigit() && Expr.isNumeric(Tree.text(type))) {
+					final int operand = pos;
+					return node(":type-cast", type, expression(operand(), operand));
+				}
+			}
+		}
+		pos = from + 1;
+		os();
+		final List<Object> n = node(":paren-expr", aplExpression());
+		os();
+		expect(")");
+		return n;
+	}
+
+	private boolean signedDigit() {
+		final int from = pos;
+		pos++;
+		os();
+		final boolean digit = isDigit(peek());
+		pos = from;
+		return digit;
+	}
+
+	/**
+	 * @param e
+	 * @param from start of e in the text
+	 * @return e as an aplExpression
+	 */
+	private List<Object> expression(final List<Object> e, final int from) {
+		if (CONDITIONS.contains(e.get(0))) {
+			pos = from;
+			throw fail("an expression, found a condition");
+		}
+		return node(":aplExpression", e);
+	}
+
+	/**
+	 * @param e
+	 * @param from start of e in the text
+	 * @return e as an aplBooleanExpression
+	 */
+	private List<Object> condition(final List<Object> e, final int from) {
+		final Object tag = e.get(0);
+		if (":ident".equals(tag)) {
+			final String name = Tree.text(e);
+			if ("true".equals(name) || "false".equals(name)) return node(":aplBooleanExpression", node(":boolean", name));
+		} else if (!CONDITIONS.contains(tag) && !":fn-call".equals(tag)) {
+			pos = from;
+			throw fail("a condition");
+		}
+		return node(":aplBooleanExpression", e);
+	}
+
+	private boolean followedBy(final String keyword, final String next) {
+		if (!at(keyword)) return false;
+		final int from = pos;
+		pos += keyword.length();
+		os();
+		final boolean result = pos < text.length() && next.indexOf(peek()) >= 0;
+		pos = from;
+		return result;
+	}
+
+	private void os() {
+		skip(false);
+	}
+
+	private void space() {
+		if (!skip(true)) throw fail("whitespace");
+	}
+
+	/**
+	 * Skip whitespace and comments.
+	 * @param comma whether a comma is whitespace
+	 * @return whether anything was skipped
+	 */
+	private boolean skip(final boolean comma) {
+		final int from = pos;
+		while (pos < text.length()) {
+			final char c = text.charAt(pos);
+			if (c == ' ' || c == '\t' || c == '\n' || comma && c == ',') {
+				pos++;
+			} else if (at("//")) {
+				final int end = text.indexOf('\n', pos);
+				pos = end < 0 ? text.length() : end;
+			} else if (at("/*")) {
+				final int end = text.indexOf("*/", pos + 2);
+				if (end < 0) throw fail("the end of the comment");
+				pos = end + 2;
+			} else {
+				break;
+			}
+		}
+		return pos > from;
+	}
+
+	private boolean at(final String s) {
+		return text.startsWith(s, pos);
+	}
+
+	private boolean accept(final String s) {
+		if (!at(s)) return false;
+		pos += s.length();
+		return true;
+	}
+
+	private void expect(final String s) {
+		if (!accept(s)) throw fail("'" + s + "'");
+	}
+
+	private char peek() {
+		return pos < text.length() ? text.charAt(pos) : 0;
+	}
+
+	private String leaf(final int i) {
+		final char c = text.charAt(i);
+		return c < CHARS.length ? CHARS[c] : String.valueOf(c);
+	}
+
+	private static boolean isLetter(final char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isDigit(final char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isOctalDigit(final char c) {
+		return c >= '0' && c <= '7';
+	}
+
+	private static boolean isHexDigit(final char c) {
+		return isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+	}
+
+	private static List<Object> node(final String tag, final Object... children) {
+		final List<Object> n = new ArrayList<>(children.length + 3);
+		n.add(tag);
+		for (final Object c : children) {
+			n.add(c);
+		}
+		return n;
+	}
+
+	private Failure fail(final String expected) {
+		return new Failure(pos, expected);
+	}
+
+	private String messageOf(final Failure f) {
+		int line = 1;
+		int column = 1;
+		for (int i = 0; i < f.pos; i++) {
+			if (text.charAt(i) == '\n') {
+				line++;
+				column = 1;
+			} else {
+				column++;
+			}
+		}
+		final String found;
+		if (f.pos >= text.length()) {
+			found = "the end of the schema";
+		} else {
+			final int eol = text.indexOf('\n', f.pos);
+			found = "'" + text.substring(f.pos, Math.min(f.pos + 20, eol < 0 ? text.length() : eol)) + "'";
+		}
+		return "schema does not parse at line " + line + ", column " + column + ": expected " + f.expected + ", found " + found;
+	}
+
+	/**
+	 * A parse failure, cheap to throw since keywords are parsed by trying.
+	 */
+	private static final class Failure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		final int pos;
+		final String expected;
+
+		Failure(final int pos, final String expected) {
+			super(expected, null, false, false);
+			this.pos = pos;
+			this.expected = expected;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package artlu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Build time compiler of schemas to class files, for a runtime without Clojure, the parser or a JDK.
+ * Each schema.artlu gets its codec classes in a package of its own, a descriptor read by
+ * CompiledSchema.precompiled(schema) and the reflection and resource configuration of a GraalVM native image.
+ * The classes are plain classes of the class path, so AppCDS archives them like any other class.
+ * <pre>
+ * java artlu.SchemaPrecompiler -d classes [-s sources] [-package p] [-metrics] schema.artlu...
+ * </pre>
+ * @author anderse
+ *
+ */
+public final class SchemaPrecompiler {
+
+	private SchemaPrecompiler() {
+	}
+
+	public static void main(final String[] args) throws IOException {
+		Path classes = null;
+		Path sources = null;
+		String pkg = null;
+		boolean metrics = false;
+		final List<Path> schemas = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-d":
+				classes = Paths.get(args[++i]);
+				break;
+			case "-s":
+				sources = Paths.get(args[++i]);
+				break;
+			case "-package":
+				pkg = args[++i];
+				break;
+			case "-metrics":
+				metrics = true;
+				break;
+			default:
+				schemas.add(Paths.get(args[i]));
+			}
+		}
+		if (classes == null || schemas.isEmpty()) {
+			System.err.println("usage: SchemaPrecompiler -d classes [-s sources] [-package p] [-metrics] schema.artlu...");
+			System.exit(2);
+		}
+		for (final Path schema : schemas) {
+			final String name = nameOf(schema);
+			precompile(name, new String(Files.readAllBytes(schema), StandardCharsets.UTF_8), pkg == null ? packageOf(name) : pkg,
+					metrics, classes, sources);
+		}
+	}
+
+	/**
+	 * Compile a schema and write its class files and descriptor.
+	 * @param name of the schema, what CompiledSchema.precompiled loads it by
+	 * @param text of the schema
+	 * @param pkg package of the generated classes
+	 * @param metrics true to compile the codecs with metrics, see Metrics
+	 * @param classes root of the class files and resources
+	 * @param sources root of the java sources, null to not write them
+	 * @return the compiled schema
+	 * @throws CodecException if the schema does not parse or compile
+	 * @throws IOException
+	 */
+	public static CompiledSchema precompile(final String name, final String text, final String pkg, final boolean metrics,
+			final Path classes, final Path sources) throws IOException {
+		final Schema schema = Schema.of(SchemaParser.parse(text));
+		final CompiledSchema compiled = SchemaCompiler.compile(schema, metrics, pkg);
+		for (final Map.Entry<String, byte[]> e : compiled.classes().entrySet()) {
+			write(classes.resolve(e.getKey().replace('.', '/') + ".class"), e.getValue());
+		}
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(buf)) {
+			SchemaCache.writeEntry(out, CompiledSchema.keyOf(name), compiled, false);
+		}
+		write(classes.resolve(CompiledSchema.descriptorOf(name)), buf.toByteArray());
+		final Path nativeImage = classes.resolve("META-INF/native-image/artlu/" + name);
+		write(nativeImage.resolve("reflect-config.json"), reflectConfig(compiled).getBytes(StandardCharsets.UTF_8));
+		write(nativeImage.resolve("resource-config.json"), resourceConfig(name).getBytes(StandardCharsets.UTF_8));
+		if (sources != null) {
+			for (final Map.Entry<String, String> e : SchemaCompiler.sources(schema, metrics, pkg).entrySet()) {
+				write(sources.resolve(e.getKey().replace('.', '/') + ".java"), e.getValue().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * @return the name of a schema file, its file name without .artlu
+	 */
+	static String nameOf(final Path schema) {
+		final String file = schema.getFileName().toString();
+		return file.endsWith(".artlu") ? file.substring(0, file.length() - ".artlu".length()) : file;
+	}
+
+	/**
+	 * @return the default package of the classes of a schema
+	 */
+	static String packageOf(final String name) {
+		final StringBuilder result = new StringBuilder(SchemaCompiler.PACKAGE).append('.');
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			result.append(Character.isJavaIdentifierPart(c) ? Character.toLowerCase(c) : '_');
+		}
+		if (!Character.isJavaIdentifierStart(name.charAt(0))) result.insert(SchemaCompiler.PACKAGE.length() + 1, '_');
+		return result.toString();
+	}
+
+	/**
+	 * The generated classes are created reflectively by CompiledSchema, a native image needs their constructors.
+	 */
+	private static String reflectConfig(final CompiledSchema compiled) {
+		final StringBuilder result = new StringBuilder("[\n");
+		String separator = "";
+		for (final String className : compiled.classes().keySet()) {
+			result.append(separator).append("  {\"name\": \"").append(className).append("\", \"allDeclaredConstructors\": true}");
+			separator = ",\n";
+		}
+		return result.append("\n]\n").toString();
+	}
+
+	private static String resourceConfig(final String name) {
+		return "{\"resources\": {\"includes\": [{\"pattern\": \"\\\\Q" + CompiledSchema.descriptorOf(name) + "\\\\E\"}]}}\n";
+	}
+
+	private static void write(final Path file, final byte[] content) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, content);
+	}
+}
@@ -0,0 +1,360 @@
+package artlu;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decoder of a decoder declaration, the first external in declaration order that identifies the record decodes it.
+ * The record map is cleared between attempts.
+ * Externals whose identified_by requires a field at a static offset to equal a literal are dispatched on that field:
+ * consecutive externals tagged by the same field are grouped, the field is read once per group and looked up in a
+ * table, a sorted key array or, for ascii tags, a byte trie. Only the externals with a matching tag are tried,
+ * the others are tried in order like before, so the result is always that of trying every external in order.
+ * @author anderse
+ *
+ */
+final class SelectingDecoder implements SinkDecoder {
+
+	/**
+	 * largest key range of a dense table
+	 */
+	private static final int MAX_TABLE_SIZE = 1024;
+	private static final int[] NONE = new int[0];
+
+	private final String name;
+	private final SinkDecoder[] decoders;
+	private final Group[] groups;
+
+	SelectingDecoder(final String name, final List<SinkDecoder> decoders) {
+		this.name = name;
+		this.decoders = decoders.toArray(new SinkDecoder[0]);
+		this.groups = groupsOf(this.decoders);
+	}
+
+	@Override
+	public String name() {
+		return name;
+	}
+
+	@Override
+	public int decode(final byte[] data, final int bitOffset, final Map<String, Object> record) {
+		for (final Group g : groups) {
+			for (final int i : g.candidates(data, bitOffset)) {
+				try {
+					final int n = decoders[i].decode(data, bitOffset, record);
+					if (n >= 0) return n;
+				} catch (final IndexOutOfBoundsException e) {
+					// record too short for this external
+				}
+				record.clear();
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int identify(final byte[] data, final int bitOffset) {
+		for (final Group g : groups) {
+			for (final int i : g.candidates(data, bitOffset)) {
+				try {
+					final int n = decoders[i].identify(data, bitOffset);
+					if (n >= 0) return n;
+				} catch (final IndexOutOfBoundsException e) {
+					// record too short for this external
+				}
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int decode(final byte[] data, final int bitOffset, final DecodeSink sink) {
+		final SinkDecoder d = decoderOf(data, bitOffset);
+		return d == null ? -1 : d.decode(data, bitOffset, sink);
+	}
+
+	/**
+	 * @return the first external identifying the record, null if there is none
+	 */
+	private SinkDecoder decoderOf(final byte[] data, final int bitOffset) {
+		for (final Group g : groups) {
+			for (final int i : g.candidates(data, bitOffset)) {
+				try {
+					if (decoders[i].identify(data, bitOffset) >= 0) return decoders[i];
+				} catch (final IndexOutOfBoundsException e) {
+					// record too short for this external
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int decode(final ByteBuffer data, final int bitOffset, final Map<String, Object> record) {
+		for (final Group g : groups) {
+			for (final int i : g.candidates(data, bitOffset)) {
+				try {
+					final int n = decoders[i].decode(data, bitOffset, record);
+					if (n >= 0) return n;
+				} catch (final IndexOutOfBoundsException e) {
+					// record too short for this external
+				}
+				record.clear();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Split the externals into runs tagged by the same field, and runs of untagged externals.
+	 */
+	private static Group[] groupsOf(final SinkDecoder[] decoders) {
+		final List<Group> result = new ArrayList<>();
+		int from = 0;
+		while (from < decoders.length) {
+			final FieldLayout first = tagged(decoders[from]);
+			int to = from + 1;
+			while (to < decoders.length && sameTag(first, tagged(decoders[to]))) {
+				to++;
+			}
+			if (first == null) {
+				result.add(new Ordered(from, to));
+			} else if (first.identifiedValue() instanceof String) {
+				result.add(new Trie(decoders, from, to));
+			} else {
+				result.add(new Keys(decoders, from, to));
+			}
+			from = to;
+		}
+		return result.toArray(new Group[0]);
+	}
+
+	/**
+	 * @return the layout of an external with an identifying field, null otherwise
+	 */
+	private static FieldLayout tagged(final SinkDecoder d) {
+		if (!(d instanceof LayoutDecoder)) return null;
+		final FieldLayout l = ((LayoutDecoder) d).fieldLayout();
+		return l.identifiedBy() < 0 ? null : l;
+	}
+
+	private static boolean sameTag(final FieldLayout a, final FieldLayout b) {
+		if (a == null || b == null) return a == b;
+		final int i = a.identifiedBy();
+		final int j = b.identifiedBy();
+		if (a.offset(i) != b.offset(j) || !a.type(i).equals(b.type(j))) return false;
+		// ascii tags of any length share a trie
+		return a.identifiedValue() instanceof String
+				|| (a.bitSize(i) == b.bitSize(j) && a.signed(i) == b.signed(j) && a.endian(i) == b.endian(j));
+	}
+
+	/**
+	 * Externals of a decoder to try for a record.
+	 */
+	private abstract static class Group {
+		/**
+		 * @return indexes of the externals that may identify the record, in declaration order
+		 */
+		abstract int[] candidates(byte[] data, int bitOffset);
+
+		abstract int[] candidates(ByteBuffer data, int bitOffset);
+	}
+
+	/**
+	 * Untagged externals, all of them are tried.
+	 */
+	private static final class Ordered extends Group {
+		private final int[] all;
+
+		Ordered(final int from, final int to) {
+			all = new int[to - from];
+			Arrays.setAll(all, i -> from + i);
+		}
+
+		@Override
+		int[] candidates(final byte[] data, final int bitOffset) {
+			return all;
+		}
+
+		@Override
+		int[] candidates(final ByteBuffer data, final int bitOffset) {
+			return all;
+		}
+	}
+
+	/**
+	 * Externals tagged by an integer field, looked up by value in a dense table or a sorted key array.
+	 */
+	private static final class Keys extends Group {
+		private final int offset;
+		private final int size;
+		private final String type;
+		private final boolean signed;
+		private final Endian endian;
+		private final long min;
+		/**
+		 * candidates by value - min when dense, null otherwise
+		 */
+		private final int[][] table;
+		private final long[] keys;
+		private final int[][] values;
+
+		Keys(final SinkDecoder[] decoders, final int from, final int to) {
+			final TreeMap<Long, int[]> byValue = new TreeMap<>();
+			FieldLayout l = null;
+			for (int i = from; i < to; i++) {
+				l = tagged(decoders[i]);
+				final int[] c = byValue.getOrDefault(l.identifiedValue(), NONE);
+				final int[] d = Arrays.copyOf(c, c.length + 1);
+				d[c.length] = i;
+				byValue.put((Long) l.identifiedValue(), d);
+			}
+			final int field = l.identifiedBy();
+			this.offset = l.offset(field);
+			this.size = l.bitSize(field);
+			this.type = l.type(field);
+			this.signed = l.signed(field);
+			this.endian = l.endian(field);
+			this.min = byValue.firstKey();
+			final long range = byValue.lastKey() - min;
+			if (range >= 0 && range < MAX_TABLE_SIZE) {
+				table = new int[(int) range + 1][];
+				Arrays.fill(table, NONE);
+				for (final Map.Entry<Long, int[]> e : byValue.entrySet()) {
+					table[(int) (e.getKey() - min)] = e.getValue();
+				}
+				keys = null;
+				values = null;
+			} else {
+				table = null;
+				keys = new long[byValue.size()];
+				values = new int[byValue.size()][];
+				int k = 0;
+				for (final Map.Entry<Long, int[]> e : byValue.entrySet()) {
+					keys[k] = e.getKey();
+					values[k++] = e.getValue();
+				}
+			}
+		}
+
+		private int[] lookup(final long value) {
+			if (table != null) {
+				final long i = value - min;
+				return i >= 0 && i < table.length ? table[(int) i] : NONE;
+			}
+			final int i = Arrays.binarySearch(keys, value);
+			return i >= 0 ? values[i] : NONE;
+		}
+
+		/**
+		 * Read the field as the generated identify does, the value is compared after widening to long.
+		 */
+		@Override
+		int[] candidates(final byte[] data, final int bitOffset) {
+			final int o = bitOffset + offset;
+			if ((long) o + size > (long) data.length * BitCodec.BYTE_SIZE) return NONE;
+			switch (type) {
+			case "byte": return lookup(BitCodec.byteDecode(data, o, size, signed, endian));
+			case "short": return lookup(BitCodec.shortDecode(data, o, size, signed, endian));
+			case "int": return lookup(BitCodec.intDecode(data, o, size, signed, endian));
+			default: return lookup(BitCodec.longDecode(data, o, size, signed, endian));
+			}
+		}
+
+		@Override
+		int[] candidates(final ByteBuffer data, final int bitOffset) {
+			final int o = bitOffset + offset;
+			if ((long) o + size > (long) data.limit() * BitCodec.BYTE_SIZE) return NONE;
+			switch (type) {
+			case "byte": return lookup(BitCodec.byteDecode(data, o, size, signed, endian));
+			case "short": return lookup(BitCodec.shortDecode(data, o, size, signed, endian));
+			case "int": return lookup(BitCodec.intDecode(data, o, size, signed, endian));
+			default: return lookup(BitCodec.longDecode(data, o, size, signed, endian));
+			}
+		}
+	}
+
+	/**
+	 * Externals tagged by an ascii field at the same offset, the bytes of the record are matched against a trie
+	 * of the tags. Every node holds the externals of all tags ending on the path to it, a tag only matches
+	 * a field of its own length.
+	 */
+	private static final class Trie extends Group {
+		private final int offset;
+		private final Node root = new Node();
+
+		Trie(final SinkDecoder[] decoders, final int from, final int to) {
+			int o = 0;
+			for (int i = from; i < to; i++) {
+				final FieldLayout l = tagged(decoders[i]);
+				o = l.offset(l.identifiedBy());
+				final String tag = (String) l.identifiedValue();
+				// a tag of another length than the field never matches
+				if (tag.length() * BitCodec.BYTE_SIZE != l.bitSize(l.identifiedBy())) continue;
+				Node n = root;
+				for (int k = 0; k < tag.length(); k++) {
+					final int b = tag.charAt(k) & 0xff;
+					if (tag.charAt(k) > 0xff) {
+						n = null;
+						break;
+					}
+					if (n.next[b] == null) n.next[b] = new Node();
+					n = n.next[b];
+				}
+				if (n != null) n.ends.add(i);
+			}
+			this.offset = o;
+			root.cumulate(NONE);
+		}
+
+		@Override
+		int[] candidates(final byte[] data, final int bitOffset) {
+			final long end = (long) data.length * BitCodec.BYTE_SIZE;
+			long o = (long) bitOffset + offset;
+			Node n = root;
+			while (o + BitCodec.BYTE_SIZE <= end) {
+				final Node next = n.next[BitCodec.byteDecode(data, (int) o, BitCodec.BYTE_SIZE, false) & 0xff];
+				if (next == null) break;
+				n = next;
+				o += BitCodec.BYTE_SIZE;
+			}
+			return n.candidates;
+		}
+
+		@Override
+		int[] candidates(final ByteBuffer data, final int bitOffset) {
+			final long end = (long) data.limit() * BitCodec.BYTE_SIZE;
+			long o = (long) bitOffset + offset;
+			Node n = root;
+			while (o + BitCodec.BYTE_SIZE <= end) {
+				final Node next = n.next[BitCodec.byteDecode(data, (int) o, BitCodec.BYTE_SIZE, false) & 0xff];
+				if (next == null) break;
+				n = next;
+				o += BitCodec.BYTE_SIZE;
+			}
+			return n.candidates;
+		}
+
+		private static final class Node {
+			final Node[] next = new Node[256];
+			final List<Integer> ends = new ArrayList<>(1);
+			int[] candidates;
+
+			void cumulate(final int[] above) {
+				final int[] c = Arrays.copyOf(above, above.length + ends.size());
+				for (int i = 0; i < ends.size(); i++) {
+					c[above.length + i] = ends.get(i);
+				}
+				Arrays.sort(c);
+				candidates = c;
+				for (final Node n : next) {
+					if (n != null) n.cumulate(c);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package artlu;
+
+/**
+ * Decoder pushing fields to a DecodeSink.
+ * @author anderse
+ *
+ */
+public interface SinkDecoder extends Decoder {
+
+	/**
+	 * Check that a record is identified by this decoder, decoding only the fields the framing depends on.
+	 * @param data
+	 * @param bitOffset
+	 * @return number of bits of the record, or -1 if it is not identified
+	 */
+	int identify(byte[] data, int bitOffset);
+
+	/**
+	 * Decode one record into a sink, nothing is pushed for a record that is not identified.
+	 * @param data
+	 * @param bitOffset where the record starts
+	 * @param sink
+	 * @return number of bits consumed, or -1 if the record is not identified by this decoder
+	 */
+	int decode(byte[] data, int bitOffset, DecodeSink sink);
+}
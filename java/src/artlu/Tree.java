@@ -0,0 +1,82 @@
+package artlu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Access to parse trees in hiccup form, [:tag child...].
+ * Nodes are java.util.List instances whose first element is the tag keyword, leaves are strings.
+ * Only java.util types are used so the tree can come from instaparse or any other producer.
+ * @author anderse
+ *
+ */
+final class Tree {
+
+	private Tree() {
+	}
+
+	static boolean isNode(final Object o) {
+		return o instanceof List && !((List<?>) o).isEmpty();
+	}
+
+	/**
+	 * @param o
+	 * @return the tag name without the leading colon, null for leaves
+	 */
+	static String tag(final Object o) {
+		if (!isNode(o)) return null;
+		final String s = String.valueOf(((List<?>) o).get(0));
+		return s.startsWith(":") ? s.substring(1) : s;
+	}
+
+	static boolean is(final Object o, final String tag) {
+		return tag.equals(tag(o));
+	}
+
+	static List<Object> children(final Object o) {
+		if (!isNode(o)) return Collections.emptyList();
+		final List<?> l = (List<?>) o;
+		return new ArrayList<>(l.subList(1, l.size()));
+	}
+
+	static Object child(final Object o, final String tag) {
+		for (final Object c : children(o)) {
+			if (is(c, tag)) return c;
+		}
+		return null;
+	}
+
+	static List<Object> all(final Object o, final String tag) {
+		final List<Object> result = new ArrayList<>();
+		for (final Object c : children(o)) {
+			if (is(c, tag)) result.add(c);
+		}
+		return result;
+	}
+
+	static boolean hasLeaf(final Object o, final String leaf) {
+		return children(o).contains(leaf);
+	}
+
+	/**
+	 * @param o
+	 * @return all leaf strings of the node concatenated
+	 */
+	static String text(final Object o) {
+		if (!isNode(o)) return o == null ? null : String.valueOf(o);
+		final StringBuilder buf = new StringBuilder();
+		for (final Object c : children(o)) {
+			buf.append(text(c));
+		}
+		return buf.toString();
+	}
+
+	static String ident(final Object o) {
+		return text(is(o, "ident") ? o : child(o, "ident"));
+	}
+
+	static CodecException unsupported(final String what, final Object node) {
+		return new CodecException("unsupported " + what + ": " + node);
+	}
+}
@@ -6,4 +6,14 @@
   :dependencies [[org.clojure/clojure "1.8.0"]
                  [instaparse "1.4.10"]
                  [commentclean "0.2.0-SNAPSHOT"]]
-  :java-source-paths ["java/src"])
+  :java-source-paths ["java/src"]
+  :profiles {:bench {:java-source-paths ["java/bench"]
+                     :dependencies [[org.openjdk.jmh/jmh-core "1.37"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]}
+             :runtime {:jar-name "artlu-runtime.jar"
+                       :omit-source true
+                       :jar-exclusions [#"\.clj$" #"\.bnf$"
+                                        #"artlu/(ArtluParser|Schema|SchemaParser|SchemaCompiler|SchemaPrecompiler|CodecWriter|JavaOut|Expr|Tree|CopyPlan)(\$.*)?\.class$"]}}
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main" "-prof" "gc"]
+            "precompile" ["run" "-m" "artlu.SchemaPrecompiler"]
+            "runtime-jar" ["with-profile" "+runtime" "jar"]})
@@ -3,7 +3,7 @@
   (:require [instaparse.core :as insta]
             [commentclean.core :as comment]
             [clojure.string :refer [capitalize]])
-  (:import [artlu BitCodec]))
+  (:import [artlu BitCodec SchemaParser]))
 
 (defmacro dbg [body]
   `(let [x# ~body]
@@ -119,9 +119,26 @@
   (insta/transform ast->clj-map ast))
 
 
+(defn hiccup-of
+  "A SchemaParser tree as instaparse hiccup, vectors tagged with keywords."
+  [node]
+  (if (instance? java.util.List node)
+    (into [(keyword (subs (first node) 1))] (map hiccup-of (rest node)))
+    node))
+
+(defn parse-tree
+  "The untransformed parse tree, input to the schema compiler."
+  ([text] (parse-tree text :artlu))
+  ([text start] (-> text comment/clean (SchemaParser/parse (name start)) hiccup-of)))
+
+(defn insta-parse-tree
+  "The parse tree of the instaparse parser, the reference of SchemaParser."
+  ([text] (insta-parse-tree text :artlu))
+  ([text start] (-> text comment/clean (parser :start start))))
+
 (defn parse 
   ([text] (parse text :artlu))
-  ([text start] (-> text comment/clean (parser :start start) ast->clj)))
+  ([text start] (-> text (parse-tree start) ast->clj)))
 
 (defn get-failure [ast] (-> ast insta/get-failure print-str))
 
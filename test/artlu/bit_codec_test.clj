@@ -0,0 +1,187 @@
+(ns artlu.bit-codec-test
+  (:require [clojure.test :refer :all])
+  (:import [artlu BitCodec Endian]))
+
+(defn bytes-of [& vs] (vec (map unchecked-byte vs)))
+
+(deftest test-encode-layout
+  (let [bc (doto (BitCodec.)
+             (.addByteEncode (byte 5) 4 0 false)
+             (.addIntEncode (int -2) 12 0 true)
+             (.addLongEncode 1 1 0 false))]
+    (is (= (bytes-of 0x5f 0xfe 0x80) (vec (.toByteArray bc))))
+    (is (= 17 (.bitLength bc)))))
+
+(deftest test-set-encode
+  (let [bc (doto (BitCodec.)
+             (.addIntEncode (int 0) 16 0 false)
+             (.setIntEncode (int 0xab) 4 8 0 false)
+             (.setByteEncode (byte 1) 20 4 0 false))]
+    (is (= (bytes-of 0x0a 0xb0 0x01) (vec (.toByteArray bc))))))
+
+(deftest test-clear
+  (let [bc1 (BitCodec.)
+        bc2 (BitCodec.)]
+    (.addLongEncode bc1 Long/MAX_VALUE 64 0 false)
+    (.addLongEncode bc1 -1 64 0 true)
+    (.clear bc1)
+    (is (= 0 (.bitLength bc1)))
+    (.addIntEncode bc1 (int 3) 7 0 false)
+    (.addIntEncode bc2 (int 3) 7 0 false)
+    (is (= bc1 bc2))
+    (is (= (.hashCode bc1) (.hashCode bc2)))
+    (is (= (bytes-of 0x06) (vec (.toByteArray bc1))))))
+
+(defn reference-decode
+  "Field decode done bit by bit with the boolean helpers, the original semantics."
+  [^bytes data bit-offset bit-size]
+  (let [fr (BitCodec/flatten (BitCodec/toPartitionedArray (BitCodec/reverseBitsInBytes data) (* 8 (alength data))))
+        br (boolean-array bit-size)]
+    (System/arraycopy fr bit-offset br 0 bit-size)
+    (BitCodec/toByteArray (BitCodec/reverse br) false)))
+
+(defn random-bytes [n]
+  (let [r (java.util.Random. 42)
+        ba (byte-array n)]
+    (.nextBytes r ba)
+    ba))
+
+(deftest test-decode-matches-reference
+  (doseq [n [1 7 8 9 13]
+          :let [data (random-bytes n)]]
+    (is (every? true?
+          (for [offset (range (inc (* 8 n)))
+                size (range (inc (min 80 (- (* 8 n) offset))))
+                signed [true false]
+                :let [ref (reference-decode data offset size)]]
+            (and (= (vec ref) (vec (BitCodec/decode data offset size)))
+                 (= (vec (reverse ref)) (vec (BitCodec/bytearrayDecode data (quot offset 8) (rem offset 8) size signed)))
+                 (= (BitCodec/byteOf ref size signed) (BitCodec/byteDecode data offset size signed))
+                 (= (unchecked-short (BitCodec/intOf ref size signed)) (BitCodec/shortDecode data offset size signed))
+                 (= (BitCodec/intOf ref size signed) (BitCodec/intDecode data offset size signed))
+                 (= (BitCodec/longOf ref size signed) (BitCodec/longDecode data offset size signed)))))
+        (str n " bytes"))))
+
+(deftest test-decode-out-of-range
+  (let [data (random-bytes 4)]
+    (is (thrown? ArrayIndexOutOfBoundsException (BitCodec/intDecode data 1 32 false)))
+    (is (thrown? ArrayIndexOutOfBoundsException (BitCodec/longDecode data -1 8 false)))))
+
+(deftest test-byte-buffer-decode
+  (let [data (random-bytes 13)
+        direct (doto (java.nio.ByteBuffer/allocateDirect 13) (.put data) (.position 5))]
+    (is (every? true?
+          (for [offset (range (* 8 13))
+                size (range 1 (inc (min 64 (- (* 8 13) offset))))]
+            (and (= (BitCodec/longDecode data offset size true) (BitCodec/longDecode direct offset size true))
+                 (= (vec (BitCodec/bytearrayDecode data (quot offset 8) (rem offset 8) size false))
+                    (vec (BitCodec/bytearrayDecode direct offset size false)))))))))
+
+(deftest test-write-to
+  (let [bc (doto (BitCodec.)
+             (.addIntEncode (int 0x1ff) 9 0 false)
+             (.addIntEncode (int 0) 3 0 false))
+        dst (byte-array [0 0 0x0f])]
+    (is (= 12 (.writeTo bc dst 6)))
+    (is (= (bytes-of 0x03 0xfe 0x0f) (vec dst)))
+    (is (= 12 (.writeTo bc (java.nio.ByteBuffer/wrap dst) 0)))
+    (is (= (bytes-of 0xff 0x8e 0x0f) (vec dst)))))
+
+(deftest test-bcd-and-ascii
+  (let [bc (doto (BitCodec.)
+             (.addIntEncode (int 0) 16 0 false)
+             (.addBcdEncode "123" 24 0xff false 1)
+             (.setBcdEncode "98" 4 12 0 false 0)
+             (.addAsciiEncode "ab" 24 0x20 false 0))
+        data (.toByteArray bc)
+        chars (char-array 8)
+        ascii (byte-array 3)]
+    (is (= (bytes-of 0x00 0x98 0x12 0x3f 0xff 0x20 0x61 0x62) (vec data)))
+    (is (= "123???" (BitCodec/bcdDecode data 16 24 false)))
+    (is (= 5 (BitCodec/bcdDecode data 4 20 chars 1)))
+    (is (= "09812" (String. chars 1 5)))
+    (is (= "x9812" (str (BitCodec/bcdDecode data 8 16 (StringBuilder. "x")))))
+    (is (= "2" (BitCodec/bcdDecode data 60 8 false)) "stops at the end of data")
+    (is (= " ab" (BitCodec/asciiDecode data 40 24 false)))
+    (is (= 3 (BitCodec/asciiDecode (java.nio.ByteBuffer/wrap data) 40 24 ascii 0)))
+    (is (= (bytes-of 0x20 0x61 0x62) (vec ascii)))))
+
+(deftest test-wide-bigint-and-bytearray
+  (let [id (.shiftLeft BigInteger/ONE 127)
+        bc (doto (BitCodec.)
+             (.addIntEncode (int 1) 3 0 false)
+             (.addBigintEncode id 128 0 false)
+             (.addBigintEncode (biginteger -3) 72 0 true)
+             (.addByteArrayEncode (byte-array [0x71 2 3]) 20 0 false)
+             (.addBigintEncode (.shiftLeft BigInteger/ONE 70) 72 0 false))
+        data (.toByteArray bc)]
+    (is (= (+ 3 128 72 20 72) (.bitLength bc)))
+    (is (= id (BitCodec/bigintDecode data 3 128 false)))
+    (is (= -3 (BitCodec/bigintDecode data 131 72 true)))
+    (is (= (bytes-of 1 2 3) (vec (BitCodec/bytearrayDecode data 203 20 false))) "leading bits truncated")
+    (is (= (.shiftLeft BigInteger/ONE 70) (BitCodec/bigintDecode data 223 72 false)))
+    (is (= (.shiftLeft BigInteger/ONE 70) (BitCodec/bigintDecode (java.nio.ByteBuffer/wrap data) 223 72 false)))))
+
+(deftest test-endian
+  (let [bc (doto (BitCodec.)
+             (.addIntEncode (int 0x01020304) 32 0 false Endian/LITTLE_ENDIAN)
+             (.addShortEncode (short -2) 16 0 true Endian/LITTLE_ENDIAN)
+             (.addByteEncode (byte 1) 4 0 false Endian/LSB_LO)
+             (.addLongEncode 0x0102030405060708 64 0 false Endian/LITTLE_ENDIAN)
+             (.addLongEncode 6 12 0 false Endian/LSB_LO)
+             (.addBigintEncode (biginteger 1) 72 0 false Endian/LITTLE_ENDIAN)
+             (.addBigintEncode (.shiftLeft BigInteger/ONE 69) 70 0 false Endian/LSB_LO))
+        data (.toByteArray bc)]
+    (is (= (bytes-of 4 3 2 1 0xfe 0xff 0x80) (vec (take 7 data))) "little endian bytes, least significant bit first")
+    (is (= 0x01020304 (BitCodec/intDecode data 0 32 false Endian/LITTLE_ENDIAN)))
+    (is (= 0x04030201 (BitCodec/intDecode data 0 32 false Endian/BIG_ENDIAN)))
+    (is (= -2 (BitCodec/shortDecode data 32 16 true Endian/LITTLE_ENDIAN)))
+    (is (= 1 (BitCodec/byteDecode data 48 4 false Endian/LSB_LO)))
+    (is (= 0x0102030405060708 (BitCodec/longDecode data 52 64 false Endian/LITTLE_ENDIAN)) "not byte aligned")
+    (is (= 6 (BitCodec/longDecode data 116 12 false Endian/LSB_LO)))
+    (is (= 1 (BitCodec/bigintDecode data 128 72 false Endian/LITTLE_ENDIAN)))
+    (is (= (.shiftLeft BigInteger/ONE 69) (BitCodec/bigintDecode data 200 70 false Endian/LSB_LO)))
+    (is (= (.shiftLeft BigInteger/ONE 69) (BitCodec/bigintDecode (java.nio.ByteBuffer/wrap data) 200 70 false Endian/LSB_LO)))
+    (is (= 0x01020304 (BitCodec/intDecode (java.nio.ByteBuffer/wrap data) 0 32 false Endian/LITTLE_ENDIAN)))
+    (doseq [e (Endian/values) offset [0 3 8] size [8 16 24 32 64]]
+      (let [v (if (= size 64) -5 (dec (bit-shift-left 1 (dec size))))
+            data (.toByteArray (doto (BitCodec.) (.addLongEncode 0 offset 0 false) (.addLongEncode v size 0 true e)))]
+        (is (= v (BitCodec/longDecode data offset size true e)) (str e " at " offset " of " size " bits"))
+        (is (= v (BitCodec/longDecode (java.nio.ByteBuffer/wrap data) offset size true e)))))
+    (is (thrown? artlu.CodecException (BitCodec/intDecode data 0 12 false Endian/LITTLE_ENDIAN)) "little endian is whole bytes")
+    (doseq [offset [0 1 -8]]
+      (is (thrown-with-msg? ArrayIndexOutOfBoundsException #"bit range .* outside 3 bytes"
+                            (BitCodec/intDecode (byte-array 3) offset 32 false Endian/LITTLE_ENDIAN))
+          "the aligned view path checks the range like the bit path"))
+    (is (thrown-with-msg? ArrayIndexOutOfBoundsException #"bit range 0 \+ 64 outside 7 bytes"
+                          (BitCodec/longDecode (java.nio.ByteBuffer/allocate 7) 0 64 false Endian/BIG_ENDIAN)))))
+
+(deftest test-pack
+  (doseq [size [1 5 8 13 16 32 37 57 63 64] offset [0 3 8] signed [false true]]
+    (let [n 11
+          mask (unsigned-bit-shift-right -1 (- 64 size))
+          vs (long-array (for [i (range n)]
+                           (let [v (bit-and (unchecked-multiply (long (inc i)) -0x61c8864680b583eb) mask)]
+                             (cond
+                               (not signed) (bit-and v (unsigned-bit-shift-right mask 1))
+                               (and (< size 64) (bit-test v (dec size))) (unchecked-subtract v (bit-shift-left 1 size))
+                               :else v))))
+          bc (doto (BitCodec.) (.addLongEncode 0 offset 0 false) (.addLongPack vs 0 n size signed))
+          one (BitCodec.)
+          _ (do (.addLongEncode one 0 offset 0 false) (doseq [v vs] (.addLongEncode one v size 0 signed)))
+          data (.toByteArray bc)
+          dst (long-array (+ n 2))]
+      (is (= (vec (.toByteArray one)) (vec data)) (str n " fields of " size " bits at " offset))
+      (BitCodec/longUnpack data offset size signed dst 1 n)
+      (is (= (vec vs) (vec (take n (drop 1 dst)))))
+      (BitCodec/longUnpack (java.nio.ByteBuffer/wrap data) offset size signed dst 0 n)
+      (is (= (vec vs) (vec (take n dst))))
+      (when (<= size 32)
+        (let [ivs (int-array (map unchecked-int vs))
+              ints (int-array n)]
+          (is (= (vec data) (vec (.toByteArray (doto (BitCodec.) (.addLongEncode 0 offset 0 false) (.addIntPack ivs 0 n size signed))))))
+          (BitCodec/intUnpack data offset size signed ints 0 n)
+          (is (= (vec ivs) (vec ints)))
+          (is (= (vec (for [i (range n)] (BitCodec/intDecode data (+ offset (* i size)) size signed))) (vec ints)))))))
+  (is (thrown? ArrayIndexOutOfBoundsException (BitCodec/intUnpack (byte-array 2) 0 8 false (int-array 3) 0 3)))
+  (is (thrown? NumberFormatException (.addIntPack (BitCodec.) (int-array [1 -1]) 0 2 4 false)) "unsigned fields reject negative values"))
@@ -0,0 +1,404 @@
+(ns artlu.compiler-test
+  (:require [clojure.test :refer :all])
+  (:import [artlu ArtluParser BitCodec]
+           [java.util LinkedHashMap]))
+
+(def schema
+  "external E1 {
+     byte len;
+     int f2 : bit_size(16), signed;
+     bytearray data : dynamic_size(len);
+     bit_block : static_size(1), present if (len > 1) {
+       byte b : bit_size(4);
+       repeat_block(2) {
+         byte c : bit_size(2);
+       };
+     };
+   };
+   external E2 : identified_by(k == 7) {
+     byte k;
+     bcd num : bit_size(16);
+   };
+   in_map M1 : external(E1), internal(I1) { automatic; };
+   in_map M2 : external(E2), internal(I2) { automatic; };
+   decoder D : in_map(M2), in_map(M1);")
+
+(def compiled (delay (.compile (ArtluParser.) schema)))
+
+(defn encode [external record]
+  (.toByteArray (.encode (.encoder @compiled external) record (BitCodec.))))
+
+(defn decode-one [decoder data]
+  (let [m (LinkedHashMap.)
+        n (.decode (.decoder @compiled decoder) data 0 m)]
+    [n (into {} m)]))
+
+(deftest test-round-trip
+  (let [data (encode "E1" {"len" 2 "f2" -5 "data" (byte-array [9 8]) "b" 3 "c" [1 2]})
+        [n m] (decode-one "E1" data)]
+    (is (= 48 n))
+    (is (= 6 (alength data)))
+    (is (= [2 -5 [9 8] 3 [1 2]] (map #(let [v (m %)] (if (instance? (Class/forName "[B") v) (vec v) v)) ["len" "f2" "data" "b" "c"])))))
+
+(deftest test-present-if
+  (let [[n m] (decode-one "E1" (encode "E1" {"len" 1 "f2" 0 "data" (byte-array [1])}))]
+    (is (= 32 n))
+    (is (not (contains? m "b")))))
+
+(deftest test-decoder-selection
+  (let [data (byte-array (concat (encode "E2" {"k" 7 "num" "1234"})
+                                 (encode "E1" {"len" 1 "f2" 1 "data" (byte-array [7])})))
+        records (ArtluParser/decode (.decoder @compiled "D") data)]
+    (is (= 2 (count records)))
+    (is (= "1234" (get (first records) "num")))
+    (is (= 1 (get (second records) "f2")))))
+
+(deftest test-schema-cache
+  (let [dir (java.nio.file.Files/createTempDirectory "artlu-cache" (make-array java.nio.file.attribute.FileAttribute 0))
+        cache (artlu.SchemaCache. dir)
+        first-load (ArtluParser/compile schema cache)
+        second-load (ArtluParser/compile schema cache)
+        record {"len" 1 "f2" 3 "data" (byte-array [5])}
+        encode-with (fn [c] (vec (.toByteArray (.encode (.encoder c "E1") record (BitCodec.)))))]
+    (is (= 1 (.misses cache)))
+    (is (= 1 (.hits cache)))
+    (is (= (encode-with first-load) (encode-with second-load)))
+    (is (= ["E2" "E1"] (vec (get (.decoderExternals second-load) "D"))) "decoder D and its externals survive the cache")
+    (is (= (into {} (map (fn [[k v]] [k (vec v)]) (.decoderExternals first-load)))
+           (into {} (map (fn [[k v]] [k (vec v)]) (.decoderExternals second-load)))))
+    (.clear cache)
+    (ArtluParser/compile schema cache)
+    (is (= 2 (.misses cache)))))
+
+(deftest test-record-reader
+  (let [records (for [i (range 200)] {"len" (mod i 5) "f2" i "data" (byte-array (mod i 5) (unchecked-byte i)) "b" 1 "c" [0 3]})
+        data (byte-array (mapcat #(encode "E1" %) records))
+        channel #(java.nio.channels.Channels/newChannel (java.io.ByteArrayInputStream. data))
+        expected (map #(get % "f2") (ArtluParser/decode (.decoder @compiled "E1") data))]
+    (doseq [buffer-size [1 7 4096]]
+      (with-open [reader (artlu.RecordReader. (.decoder @compiled "E1") (channel) buffer-size 64)]
+        (is (= expected (map #(get % "f2") (iterator-seq reader))))
+        (is (= 200 (.records reader)))))
+    (is (thrown-with-msg? artlu.CodecException #"exceeds 3 bytes"
+                          (doall (iterator-seq (artlu.RecordReader. (.decoder @compiled "E1") (channel) 2 3))))))
+  (let [data (byte-array (mapcat #(encode "E1" {"len" 4 "f2" % "data" (byte-array 4 (unchecked-byte %)) "b" 1 "c" [0 3]}) (range 50)))]
+    (with-open [reader (artlu.RecordReader. (.decoder @compiled "E1") (java.nio.channels.Channels/newChannel (java.io.ByteArrayInputStream. data)) 3 8)]
+      (is (= (range 50) (map #(get % "f2") (iterator-seq reader))) "every 8 byte record is split across refills of a 3 byte buffer")
+      (is (= (* 50 64) (.bitPosition reader))))
+    (is (thrown-with-msg? artlu.CodecException #"record 0 of E1 at bit 0 exceeds 7 bytes"
+                          (doall (iterator-seq (artlu.RecordReader. (.decoder @compiled "E1") (java.nio.channels.Channels/newChannel (java.io.ByteArrayInputStream. data)) 3 7))))))
+  (let [data (byte-array (mapcat #(encode "E2" {"k" (if (= % 10) 8 7) "num" "1234"}) (range 1000)))]
+    (doseq [buffer-size [1 7 64]]
+      (let [reader (artlu.RecordReader. (.decoder @compiled "E2") (java.nio.channels.Channels/newChannel (java.io.ByteArrayInputStream. data)) buffer-size 64)]
+        (is (thrown-with-msg? artlu.CodecException #"record 10 at bit 240 is not identified by E2"
+                              (doall (iterator-seq reader)))
+            "a record that is not identified fails without reading ahead")
+        (is (= 10 (.records reader)))))))
+
+(deftest test-bulk-decoder
+  (let [data (byte-array (mapcat #(encode "E2" {"k" 7 "num" (format "%04d" %)}) (range 1000)))
+        file (java.nio.file.Files/createTempFile "artlu-bulk" ".bin" (make-array java.nio.file.attribute.FileAttribute 0))
+        decoder (.decoder @compiled "E2")]
+    (java.nio.file.Files/write file data (make-array java.nio.file.OpenOption 0))
+    (doseq [[chunk-size record-size] [[64 0] [100 3] [1000000 0]]]
+      (let [result (.decode (artlu.BulkDecoder. decoder (java.util.concurrent.ForkJoinPool/commonPool) chunk-size 16 record-size) file)]
+        (is (= (map #(get % "num") (ArtluParser/decode decoder data))
+               (map #(get % "num") (.records result))))
+        (is (= 1000 (reduce + (map #(.records %) (.chunks result)))))))
+    (java.nio.file.Files/delete file)))
+
+(deftest test-record-view
+  (let [data (encode "E1" {"len" 2 "f2" -5 "data" (byte-array [9 8]) "b" 3 "c" [1 2]})
+        view (.bind (.view @compiled "E1") data 0)
+        layout (.layout view)]
+    (is (= ["len" "f2" "data" "b"] (vec (.fields layout))))
+    (is (= 8 (.offset layout (.index view "f2"))) "static offset")
+    (is (= -1 (.offset layout (.index view "b"))) "offset after a dynamic size")
+    (is (= -5 (.getInt view "f2")))
+    (is (= [9 8] (vec (.getBytes view "data"))))
+    (is (= 3 (.getLong view (.index view "b"))))
+    (is (= 48 (.bitLength view)))
+    (.bind view (encode "E1" {"len" 1 "f2" 0 "data" (byte-array [1])}) 0)
+    (is (not (.isPresent view "b")))
+    (is (nil? (.get view "b")))))
+
+(deftest test-constant-folding
+  (let [c (.compile (ArtluParser.)
+                    "external F {
+                       byte a : bit_size(2 * 4);
+                       int never : present if (1 > 2);
+                       bit_block : static_size(2) {
+                         repeat_block(3) {
+                           byte c : bit_size(4);
+                         };
+                       };
+                       short y;
+                     };")
+        data (.toByteArray (.encode (.encoder c "F") {"a" 5 "never" 1 "c" [1 2 3] "y" 7} (BitCodec.)))
+        view (.bind (.view c "F") data 0)
+        layout (.layout view)]
+    (is (= 5 (alength data)))
+    (is (= [0 -1 24] (map #(.offset layout (.index view %)) ["a" "never" "y"])) "static after the repeat_block")
+    (is (= 8 (.bitSize layout (.index view "a"))))
+    (is (not (.isPresent view "never")))
+    (is (= 7 (.getInt view "y")))
+    (is (= 40 (.bitLength view)))
+    (is (= {"a" 5 "c" [1 2 3] "y" 7} (second (let [m (LinkedHashMap.)] [(.decode (.decoder c "F") data 0 m) (into {} m)]))))))
+
+(defn recording-sink [events]
+  (reify artlu.DecodeSink
+    (beginRecord [_ external] (swap! events conj [:begin external]))
+    (endRecord [_ bits] (swap! events conj [:end bits]))
+    (beginRepeat [_ id n] (swap! events conj [:repeat id n]))
+    (endRepeat [_ id] (swap! events conj [:end-repeat id]))
+    (onAbsent [_ id] (swap! events conj [:absent id]))
+    (onInt [_ id v] (swap! events conj [id v]))
+    (onLong [_ id v] (swap! events conj [id v]))
+    (onDouble [_ id v] (swap! events conj [id v]))
+    (onBytes [_ id buffer offset length] (swap! events conj [id (vec (java.util.Arrays/copyOfRange ^bytes buffer (int offset) (int (+ offset length))))]))
+    (onString [_ id v] (swap! events conj [id v]))
+    (onBigInteger [_ id v] (swap! events conj [id v]))))
+
+(deftest test-decode-sink
+  (let [events (atom [])
+        id #(.fieldId @compiled %)
+        data (byte-array (concat (encode "E1" {"len" 2 "f2" -5 "data" (byte-array [9 8]) "b" 3 "c" [1 2]})
+                                 (encode "E2" {"k" 7 "num" "1234"})))]
+    (is (= 2 (ArtluParser/decode (.sinkDecoder @compiled "D") data (recording-sink events))))
+    (is (= [[:begin "E1"] [(id "len") 2] [(id "f2") -5] [(id "data") [9 8]] [(id "b") 3]
+            [:repeat 0 2] [(id "c") 1] [(id "c") 2] [:end-repeat 0] [:end 48]
+            [:begin "E2"] [(id "k") 7] [(id "num") "1234"] [:end 24]]
+           @events))))
+
+(deftest test-parallel-decoder
+  (let [pool (artlu.CodecPool. 4)
+        encoder (.encoder @compiled "E2")
+        inputs (vec (pmap #(.encode pool encoder {"k" 7 "num" (format "%04d" %)}) (range 500)))
+        inputs (assoc inputs 100 (byte-array 1) 200 (byte-array [9 9 9]))
+        executor (java.util.concurrent.Executors/newFixedThreadPool 4)
+        results (.decode (artlu.ParallelDecoder. (.decoder @compiled "D") executor 16) inputs)]
+    (.shutdown executor)
+    (is (= 500 (count results)))
+    (is (= (range 500) (map #(.index %) results)))
+    (is (= (for [i (range 500) :when (not (#{100 200} i))] (format "%04d" i))
+           (keep #(some-> (.record %) (get "num")) results)))
+    (is (= 24 (.bits (first results))))
+    (is (instance? artlu.CodecException (.failure (nth results 100))) "truncated")
+    (is (instance? artlu.CodecException (.failure (nth results 200))) "not identified")
+    (is (<= (.pooled pool) 4))))
+
+(deftest test-column-batch
+  (let [records (for [i (range 10)] {"len" (mod i 3) "f2" (- i) "data" (byte-array (mod i 3) (byte i)) "b" i "c" [1 2]})
+        data (byte-array (mapcat #(encode "E1" %) records))
+        batch (artlu.ColumnBatch. @compiled "E1" 4)]
+    (is (= 4 (do (.decode batch data 0) (.size batch))))
+    (.clear batch)
+    (let [pos (.decode batch data 0)
+          pos (do (.clear batch) (.decode batch data pos))]
+      (is (= 4 (.size batch)))
+      (is (= [-4 -5 -6 -7] (take 4 (vec (.values (.column batch "f2"))))))
+      (is (= [1 2 0 1] (map #(count (.get (.column batch "data") %)) (range 4))))
+      (is (= [true false true true] (map #(.isNull (.column batch "b") %) (range 4))) "b is absent when len <= 1")
+      (is (= 3 (.nullCount (.column batch "b"))))
+      (let [[validity offsets] (.arrowBuffers (.column batch "data"))]
+        (is (= 0xf (.get validity 0)))
+        (is (= [0 1 3 3 4] (map #(.getInt offsets (* 4 %)) (range 5))))))))
+
+(def dispatch-schema
+  "external A : identified_by(tag == 1) { byte tag; short x; };
+   external B : identified_by(tag == 2 && y > 0) { byte tag; byte y; };
+   external C : identified_by(tag == 2) { byte tag; int z; };
+   external S : identified_by(name == 'AB') { ascii name : static_size(2); byte y; };
+   external U { byte tag;
+     switched_set(tag) {
+       case (1) { short x; };
+       case (300) { int z; };
+       case (2) { byte y; };
+       default : include_prefix { };
+     };
+   };
+   in_map MA : external(A), internal(I) { automatic; };
+   in_map MB : external(B), internal(I) { automatic; };
+   in_map MC : external(C), internal(I) { automatic; };
+   in_map MS : external(S), internal(I) { automatic; };
+   decoder D : in_map(MA), in_map(MB), in_map(MC), in_map(MS);
+   out_map OA : external(A), internal(I) { automatic; };
+   out_map OC : external(C), internal(I) { automatic; };
+   encoder W : block_size(16), terminated_by(10), out_map(OA), out_map(OC);")
+
+(def dispatch-compiled (delay (.compile (ArtluParser.) dispatch-schema)))
+
+(deftest test-dispatch
+  (let [c @dispatch-compiled
+        enc #(vec (.toByteArray (.encode (.encoder c %1) %2 (BitCodec.))))
+        data (byte-array (concat (enc "C" {"tag" 2 "z" 5}) (enc "B" {"tag" 2 "y" 3}) (enc "A" {"tag" 1 "x" 4})
+                                 (enc "S" {"name" "AB" "y" 6})))
+        records (ArtluParser/decode (.decoder c "D") data)]
+    (is (= [{"tag" 2 "z" 5} {"tag" 2 "y" 3} {"tag" 1 "x" 4} {"name" "AB" "y" 6}] (map #(into {} %) records))
+        "the first external in declaration order identifying a record decodes it")
+    (is (= -1 (.decode (.decoder c "D") (byte-array [3 0 0 0]) 0 (LinkedHashMap.))))
+    (is (= [{"tag" 2 "y" 9} {"tag" 7}] (map #(into {} %) (ArtluParser/decode (.decoder c "U") (byte-array [2 9 7]))))
+        "a case out of the range of the discriminator never matches")))
+
+(deftest test-record-writer
+  (let [out (java.io.ByteArrayOutputStream.)]
+    (with-open [w (.writer @dispatch-compiled "W" (java.nio.channels.Channels/newChannel out) 4)]
+      (dotimes [i 3]
+        (.write w "A" {"tag" 1 "x" i})
+        (.write w "C" {"tag" 2 "z" i}))
+      (.write w "A" {"tag" 1 "x" 3}))
+    (is (= [1 0 0 10, 2 0 0 0 0 10, 1 0 1 10, 0 0
+            2 0 0 0 1 10, 1 0 2 10, 2 0 0 0 2 10]
+           (vec (take 32 (.toByteArray out))))
+        "records are terminated and never cross a 16 byte block")
+    (is (= 48 (.size out)) "the last block is padded"))
+  (let [out (java.io.ByteArrayOutputStream.)
+        records (for [i (range 100)] {"len" (mod i 3) "f2" i "data" (byte-array (mod i 3) (byte i)) "b" 1 "c" [0 3]})]
+    (with-open [w (artlu.RecordWriter. (.encoder @compiled "E1") out)]
+      (is (= 100 (.writeAll w records))))
+    (is (= (vec (mapcat #(encode "E1" %) records)) (vec (.toByteArray out))))))
+
+(deftest test-metrics
+  (let [c (artlu.SchemaCompiler/compile (artlu.Schema/of (.parseTree (ArtluParser.) schema)) true)
+        data (byte-array (concat (.toByteArray (.encode (.encoder c "E1") {"len" 2 "f2" 1 "data" (byte-array [1 2]) "b" 1 "c" [0 1]} (BitCodec.)))
+                                 (.toByteArray (.encode (.encoder c "E1") {"len" 1 "f2" 2 "data" (byte-array [3])} (BitCodec.)))))
+        metrics (first (filter #(= "E1" (.getExternal %)) (artlu.Metrics/externals)))]
+    (.reset metrics)
+    (is (= 2 (count (ArtluParser/decode (.decoder c "E1") data))))
+    (is (thrown? IndexOutOfBoundsException (.decode (.decoder c "E1") (byte-array 2) 0 (LinkedHashMap.))))
+    (is (= 2 (.getRecordsDecoded metrics)))
+    (is (= 10 (.getBytesDecoded metrics)))
+    (is (= {"present if (len > 1)" 1} (into {} (.getBranchHits metrics))))
+    (is (= {"truncated" 1} (into {} (.getFailures metrics))))
+    (is (= 2 (reduce + (.getDecodeLatencyHistogram metrics)))))
+  (is (not (.contains (first (vals (artlu.SchemaCompiler/sources (artlu.Schema/of (.parseTree (ArtluParser.) schema)) false))) "METRICS"))
+      "codecs compiled without metrics have no metrics code"))
+
+(def mapped-schema
+  "external P : identified_by(kind == 3) {
+     byte kind;
+     int len : bit_size(16);
+     bcd num : bit_size(16);
+     bit_block : static_size(1) { repeat_block(2) { byte v : bit_size(4); }; };
+     bytearray data : static_size(2);
+     ascii tag : static_size(2), optional;
+   };
+   internal Base { int kind; };
+   internal Tag { bytearray tag; };
+   internal Rec : extends(Base) { long length; long num; list<int> v; bytearray data; Tag t; short opt : optional; };
+   in_map MT : external(P), internal(Tag) { automatic; };
+   in_map MP : external(P), internal(Rec), emit_field(length, len) { automatic { t : using in_map MT; }; };
+   out_map OP : external(P), internal(Rec), emit_field(len, length) { automatic; };")
+
+(deftest test-in-map-records
+  (let [c (.compile (ArtluParser.) mapped-schema)
+        in (.inMap c "MP")
+        data (.toByteArray (.encode (.encoder c "P") {"kind" 3 "len" 513 "num" "1234" "v" [5 9] "data" (byte-array [7 8]) "tag" "ab"} (BitCodec.)))
+        r (.newRecord in)]
+    (is (= 80 (.decode in data 0 r)))
+    (is (= (.internalClass c "Rec") (class r)))
+    (is (= [3 513 1234 [5 9] [7 8] [97 98] nil]
+           [(.-kind r) (.-length r) (.-num r) (vec (.-v r)) (vec (.-data r)) (vec (.-tag (.-t r))) (.-opt r)]))
+    (is (= (vec (take 8 data)) (vec (.toByteArray (.encode (.outMap c "OP") r (BitCodec.)))))
+        "the out_map writes the fields it maps, the optional tag is absent")
+    (is (= -1 (.decode in (byte-array (cons 4 (rest data))) 0 r)) "not identified"))
+  (is (thrown-with-msg? artlu.CodecException #"does not map"
+                        (.compile (ArtluParser.) (str mapped-schema "in_map X : external(P), internal(Tag) { i: tag and e: kind; };")))))
+
+(deftest test-endian-fields
+  (let [c (.compile (ArtluParser.)
+                    "external L : identified_by(tag == 513) {
+                       short(little_endian) tag;
+                       int(little_endian) a;
+                       short b : little_endian, signed;
+                       long(lsb_lo) c : bit_size(12);
+                       bigint(little_endian) d : bit_size(72);
+                       int f;
+                     };
+                     external K : identified_by(tag == 514) { short(little_endian) tag; byte y; };
+                     in_map ML : external(L), internal(I) { automatic; };
+                     in_map MK : external(K), internal(I) { automatic; };
+                     decoder D : in_map(ML), in_map(MK);")
+        record {"tag" 513 "a" 0x01020304 "b" -2 "c" 1 "d" (biginteger 3) "f" 0x11223344}
+        data (.toByteArray (.encode (.encoder c "L") record (BitCodec.)))
+        unaligned (.toByteArray (.encode (.encoder c "L") record (doto (BitCodec.) (.addIntEncode (int 1) 3 0 false))))
+        decode (fn [decoder data offset] (let [m (LinkedHashMap.)] (.decode (.decoder c decoder) data offset m) (into {} m)))]
+    (is (= (map unchecked-byte [1 2 4 3 2 1 0xfe 0xff]) (take 8 data)))
+    (is (= record (decode "L" data 0)))
+    (is (= record (decode "L" unaligned 3)) "record not on a byte boundary")
+    (is (= 0x01020304 (.getLong (.bind (.view c "L") data 0) "a")))
+    (is (= -2 (.getInt (.bind (.view c "L") (java.nio.ByteBuffer/wrap data) 0) "b")))
+    (is (= {"tag" 514 "y" 9} (decode "D" (.toByteArray (.encode (.encoder c "K") {"tag" 514 "y" 9} (BitCodec.))) 0))
+        "selected by a little endian tag"))
+  (is (thrown-with-msg? artlu.CodecException #"whole number of bytes"
+                        (.compile (ArtluParser.) "external X { int(little_endian) a : bit_size(12); };")))
+  (is (thrown-with-msg? artlu.CodecException #"can not be little_endian"
+                        (.compile (ArtluParser.) "external X { ascii a : static_size(2), little_endian; };"))))
+
+(def wide-schema
+  "external W {
+     byte kind;
+     int len : bit_size(16);
+     bit_block : static_size(2) { byte a : bit_size(4); byte b : bit_size(4); short c : bit_size(8); };
+     bit_block : dynamic_size(len * 3) { repeat_block(len) { byte r; short s; }; };
+     bit_block : static_size(5) { byte w; repeat_block(2) { short q; }; };
+     bytearray data : dynamic_size(kind);
+     long id;
+   };")
+
+(deftest test-projection
+  (let [c (.compile (ArtluParser.) wide-schema)
+        data (let [codec (BitCodec.)]
+               (doseq [k (range 1 5)]
+                 (.encode (.encoder c "W") {"kind" k "len" k "a" 1 "b" 2 "c" 3 "r" (repeat k 1) "s" (repeat k 7)
+                                            "w" k "q" [8 9] "data" (byte-array k) "id" (+ 100 k)} codec))
+               (.toByteArray codec))
+        p (.project (ArtluParser.) wide-schema "W" ["id" "w"] "kind > 1 && kind != 3")]
+    (is (= [{"w" 2 "id" 102} {"w" 4 "id" 104}] (ArtluParser/select p data)))
+    (is (= -1 (.decode p data 0 (LinkedHashMap.))) "rejected")
+    (is (= (.decode (.decoder c "W") data 0 (LinkedHashMap.)) (.skip p data 0)))
+    (is (= [[7] [7 7] [7 7 7] [7 7 7 7]]
+           (map #(get % "s") (ArtluParser/select (.project (ArtluParser.) wide-schema "W" ["s"] nil) data)))))
+  (is (thrown-with-msg? artlu.CodecException #"no field nope"
+                        (.project (ArtluParser.) wide-schema "W" ["nope"] nil)))
+  (is (thrown-with-msg? artlu.CodecException #"repeat_block"
+                        (.project (ArtluParser.) wide-schema "W" ["id"] "r > 1"))))
+
+(deftest test-precompiled
+  (let [dir (java.nio.file.Files/createTempDirectory "artlu-classes" (make-array java.nio.file.attribute.FileAttribute 0))
+        _ (artlu.SchemaPrecompiler/precompile "s-1" schema "artlu.generated.s_1" false dir nil)
+        loader (java.net.URLClassLoader. (into-array java.net.URL [(.toURL (.toUri dir))]) (.getClassLoader artlu.CompiledSchema))
+        c (artlu.CompiledSchema/precompiled "s-1" loader)
+        record {"len" 1 "f2" 3 "data" (byte-array [5])}
+        data (.toByteArray (.encode (.encoder c "E1") record (BitCodec.)))]
+    (is (empty? (.classes c)) "the classes are loaded from the class path")
+    (is (= "artlu.generated.s_1.E1Codec" (get (.codecClasses c) "E1")))
+    (is (= loader (.getClassLoader (class (.decoder c "E1")))))
+    (is (= (vec (encode "E1" record)) (vec data)))
+    (is (= [3 [5]] (let [m (LinkedHashMap.)] (.decode (.decoder c "E1") data 0 m) [(get m "f2") (vec (get m "data"))])))
+    (is (= ["E2" "E1"] (vec (get (.decoderExternals c) "D")))))
+  (is (thrown-with-msg? artlu.CodecException #"no precompiled schema nope"
+                        (artlu.CompiledSchema/precompiled "nope"))))
+
+(def packed-schema
+  "external R {
+     byte n;
+     bit_block : dynamic_size(n * 3) { repeat_block(n) { int x : bit_size(13), signed; byte y : bit_size(11); }; };
+     bit_block : static_size(13) {
+       repeat_block(4) { short d : bit_size(12), signed; };
+       repeat_block(1) { long t : bit_size(56); };
+     };
+   };")
+
+(deftest test-packed-repeat
+  (let [c (.compile (ArtluParser.) packed-schema)
+        source (first (vals (artlu.SchemaCompiler/sources (artlu.Schema/of (.parseTree (ArtluParser.) packed-schema)) false)))
+        record {"n" 2 "x" [-4096 7] "y" [1 2] "d" [-2048 2047 0 -1] "t" [72057594037927935]}
+        data (.toByteArray (.encode (.encoder c "R") record (BitCodec.)))
+        m (LinkedHashMap.)]
+    (is (.contains source "BitCodec.intUnpack(data, ") "a repeat_block of one integer field is decoded in bulk")
+    (is (.contains source "codec.addLongPack(") "and encoded in bulk")
+    (is (= 160 (.decode (.decoder c "R") data 0 m)))
+    (is (= record (into {} (map (fn [[k v]] [k (if (instance? java.util.List v) (map long v) (long v))]) m))))
+    (is (= [Short] (distinct (map class (get m "d")))) "the elements keep the field type")
+    (is (= (into {} m) (let [b (LinkedHashMap.)] (.decode (.decoder c "R") (java.nio.ByteBuffer/wrap data) 0 b) (into {} b))))))
@@ -1,6 +1,7 @@
 (ns artlu.core-test
   (:require [clojure.test :refer :all]
-            [artlu.core :refer :all])
+            [artlu.core :refer :all]
+            [instaparse.core :as insta])
   (:use [clojure.pprint])
   (:import [artlu BitCodec]))
 
@@ -41,7 +42,48 @@
   ))
 
 
+(defn instaparse-parses?
+  "Whether the SchemaParser tree of text is one of the trees instaparse gives for it."
+  [text start]
+  (boolean (some #{(parse-tree text start)} (insta/parses parser text :start start))))
 
-
-
-
+(deftest test-schema-parser
+  (doseq [[start text] [[:artlu "external E1 {
+                                   byte len;
+                                   int f2 : bit_size(16), signed;
+                                   bytearray data : dynamic_size(len);
+                                   bit_block : static_size(1), present if (len > 1) {
+                                     byte b : bit_size(4);
+                                     repeat_block(2) {
+                                       byte c : bit_size(2);
+                                     };
+                                   };
+                                 };
+                                 external E2 : identified_by(k == 7) {
+                                   byte k;
+                                   bcd num : bit_size(16);
+                                 };
+                                 in_map M1 : external(E1), internal(I1) { automatic; };
+                                 decoder D : in_map(M1);"]
+                        [:external "external S sequential : ignore_trailing_data, terminated_by(0) {
+                                      set : static_size(2) { int(little_endian) a; };
+                                      switched_set(k) { byte k; case(1) : include_prefix { byte x; }; default : include_prefix { }; };
+                                    };"]
+                        [:artlu "internal I : extends(J) { int a; list<short> b : optional; };
+                                 out_map O : external(E), target_internal(I) { automatic; };
+                                 in_map N : emit_field(a, b) { i: x and e: y; };
+                                 decoder X { decoder A *; };
+                                 encoder En : block_size(2), out_map(O);
+                                 import a.b;"]
+                        [:field "int(lsb_lo) x : int(base16), optional, padded_with(' '), present if (a > 1 || b);"]
+                        [:field "integer x;"]
+                        [:aplExpression "(a + b) * 2 - c - 1"]
+                        [:aplExpression "(int) a >> 3 & 0xff | 017"]
+                        [:aplExpression "x == 1 ? f(2, -3) : (len) - 1"]
+                        [:aplExpression "'a\\n\\x41\\101'"]
+                        [:aplBooleanExpression "len > 1 && k != 7 || true"]]]
+    (is (instaparse-parses? text start) text))
+  (doseq [[start text] [[:field "int x"] [:aplExpression "a << 2"] [:aplBooleanExpression "a + 1"]]]
+    (is (insta/failure? (parser text :start start)))
+    (is (thrown? artlu.CodecException (parse-tree text start))))
+  (is (= :aplExpression (first (parse-tree (clojure.string/join " + " (repeat 1000 "a")) :aplExpression)))))